@@ -10,6 +10,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Log;
 import android.view.Menu;
@@ -34,20 +35,56 @@ import androidx.navigation.ui.NavigationUI;
 import com.bumptech.glide.Glide;
 import com.example.meshup.databinding.ActivityMainBinding;
 import com.example.meshup.ui.chat.ChatFragment;
+import com.example.meshup.ui.data.ChatMessage;
+import com.example.meshup.ui.data.ConversationIndex;
+import com.example.meshup.ui.data.FirebaseChatDatabase;
+import com.example.meshup.ui.data.GroupChannel;
+import com.example.meshup.ui.data.HistoryTransfer;
+import com.example.meshup.ui.data.LocalChatHistory;
+import com.example.meshup.ui.data.LocalMessageStore;
+import com.example.meshup.ui.data.MessageSearchIndex;
+import com.example.meshup.ui.data.RetentionCompactor;
+import com.example.meshup.ui.data.SegmentedChatLog;
+import com.example.meshup.ui.data.SyncEngine;
 import com.example.meshup.ui.devicediscovery.BluetoothConnectionManager;
 import com.example.meshup.ui.devicediscovery.DeviceConnectionListener;
+import com.example.meshup.ui.mesh.HistorySync;
+import com.example.meshup.ui.mesh.MerkleTree;
+import com.example.meshup.ui.mesh.MeshFrame;
+import com.example.meshup.ui.mesh.MeshPayloads;
+import com.example.meshup.ui.mesh.MeshRouter;
+import com.example.meshup.ui.mesh.PresenceGossip;
+import com.example.meshup.ui.mesh.StoreAndForwardQueue;
+import com.example.meshup.ui.mesh.TopologyGraph;
+import com.example.meshup.ui.topology.TopologyFragment;
 import com.example.meshup.utils.DevicePreferences;
+import com.example.meshup.utils.GroupPreferences;
 import com.google.android.material.navigation.NavigationView;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
 public class MainActivity extends AppCompatActivity implements
         NavigationView.OnNavigationItemSelectedListener,
         ChatFragment.ChatFragmentListener,
+        TopologyFragment.TopologyFragmentListener,
         BluetoothConnectionManager.BluetoothConnectionListener,
-        DeviceConnectionListener {
+        DeviceConnectionListener,
+        MeshRouter.FrameListener,
+        HistorySync.SyncListener {
 
     private static final String TAG = "MainActivity";
     private static final int REQUEST_ALL_PERMISSIONS = 1001;
@@ -58,11 +95,50 @@ public class MainActivity extends AppCompatActivity implements
     private static final long RECONNECTION_DELAY = 3000; // 3 seconds
     private static final int MAX_RECONNECTION_ATTEMPTS = 5;
     private static final String HEARTBEAT_MESSAGE = "PING";
+    private static final long MESH_TICK_INTERVAL = 5000; // 5 seconds
+    private static final String HISTORY_EXPORT_SUFFIX = ".mshx";
+    private static final long HISTORY_DRAIN_TIMEOUT = 2000; // 2 seconds
 
     private AppBarConfiguration mAppBarConfiguration;
     private ActivityMainBinding binding;
     private BluetoothAdapter bluetoothAdapter;
     private BluetoothConnectionManager connectionManager;
+    private MeshRouter meshRouter;
+    private PresenceGossip presenceGossip;
+    private TopologyGraph topologyGraph;
+    private HistorySync historySync;
+    private final LocalChatHistory chatHistory = new LocalChatHistory();
+    // Takes new messages into the history off the main thread, in arrival order, since the first
+    // use of a conversation reads it from the store
+    private final ExecutorService historyExecutor =
+            Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "chat-history"));
+    // Hand the router's callbacks to history sync on the history executor, since its store reads
+    // conversations from SQLite on first use
+    private final MeshRouter.FrameListener historySyncFrames = (frame, link, now) ->
+            historyExecutor.execute(() -> historySync.onFrameDelivered(frame, link, now));
+    private final MeshRouter.LinkListener historySyncLinks = new MeshRouter.LinkListener() {
+        @Override
+        public void onLinkUp(String link, long now) {
+            historyExecutor.execute(() -> historySync.onLinkUp(link, now));
+        }
+
+        @Override
+        public void onLinkDown(String link) {
+            historyExecutor.execute(() -> historySync.onLinkDown(link));
+        }
+    };
+    // Reads and writes the mesh outbox journals, so storing a frame never touches files on the
+    // main thread, where the router runs
+    private final ExecutorService meshOutboxExecutor =
+            Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "mesh-outbox"));
+    private LocalMessageStore messageStore;
+    private SegmentedChatLog chatLog;
+    private SyncEngine syncEngine;
+    private ConversationIndex conversationIndex;
+    private final MessageSearchIndex searchIndex = new MessageSearchIndex();
+    private RetentionCompactor retentionCompactor;
+    private HistoryTransfer historyTransfer;
+    private FirebaseChatDatabase remoteDatabase;
     private DatabaseReference chatRoomsRef;
     private NavController navController;
 
@@ -71,6 +147,7 @@ public class MainActivity extends AppCompatActivity implements
     private Handler reconnectionHandler;
     private Runnable heartbeatRunnable;
     private Runnable reconnectionRunnable;
+    private Runnable meshTickRunnable;
     private BluetoothDevice lastConnectedDevice;
     private boolean isManualDisconnect = false;
     private int reconnectionAttempts = 0;
@@ -98,7 +175,8 @@ public class MainActivity extends AppCompatActivity implements
             NavigationView navigationView = binding.navView;
 
             mAppBarConfiguration = new AppBarConfiguration.Builder(
-                    R.id.nav_home, R.id.nav_gallery, R.id.nav_slideshow, R.id.nav_find_devices, R.id.nav_chat)
+                    R.id.nav_home, R.id.nav_gallery, R.id.nav_slideshow, R.id.nav_find_devices, R.id.nav_chat,
+                    R.id.nav_mesh_topology)
                     .setOpenableLayout(drawer)
                     .build();
 
@@ -122,6 +200,12 @@ public class MainActivity extends AppCompatActivity implements
             // Initialize Bluetooth connection manager with error handling
             initializeBluetoothManager();
 
+            // Open the on-device message store before anything can receive messages
+            initializeMessageStore();
+
+            // Initialize mesh routing on top of the Bluetooth link
+            initializeMeshRouter();
+
             // Load profile with error handling
             loadProfileToDrawer();
 
@@ -181,6 +265,278 @@ public class MainActivity extends AppCompatActivity implements
                 attemptReconnection();
             }
         };
+
+        // Mesh housekeeping: keep router links in sync and send route advertisements
+        meshTickRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if (meshRouter != null) {
+                    long now = System.currentTimeMillis();
+                    syncMeshLinks();
+                    meshRouter.tick(now);
+                    presenceGossip.tick(now);
+                    topologyGraph.tick(now);
+                }
+                heartbeatHandler.postDelayed(this, MESH_TICK_INTERVAL);
+            }
+        };
+    }
+
+    /**
+     * Every message added to the in-memory history is persisted in batches, and appended to the
+     * segmented log the chat screen pages through. The history reads a conversation from the store
+     * the first time history sync or a new message needs it, and uploads a previous run left in
+     * the outbox are resumed. The conversation index follows every message and is mirrored to its
+     * compact Firebase node. The search index is built from the store on the first search and then
+     * follows new messages. The retention compactor archives history past the policy the user
+     * set for a conversation, if any, and removes it from every layer, the cloud copy included;
+     * conversations without one keep everything. Imports are written to the store directly; the
+     * log and conversation index take each batch, and the history and search index read the
+     * imported conversations again.
+     */
+    private void initializeMessageStore() {
+        remoteDatabase = new FirebaseChatDatabase();
+        messageStore = new LocalMessageStore(this);
+        chatLog = new SegmentedChatLog(new File(getFilesDir(), "chat_log"));
+        conversationIndex = new ConversationIndex(messageStore);
+        conversationIndex.setMirror(remoteDatabase::saveConversationSummary);
+        chatHistory.setLoader(conversationKey ->
+                messageStore.getMessagesBetween(conversationKey, Long.MIN_VALUE, Long.MAX_VALUE));
+        searchIndex.setLoader(visitor -> {
+            for (String conversationKey : messageStore.getConversationKeys()) {
+                messageStore.forEachMessage(conversationKey, visitor);
+            }
+        });
+        chatHistory.addMessageSink(messageStore);
+        chatHistory.addMessageSink(chatLog);
+        chatHistory.addMessageSink(conversationIndex);
+        chatHistory.addMessageSink(searchIndex);
+        retentionCompactor = new RetentionCompactor(messageStore, new File(getFilesDir(), "chat_archive"));
+        retentionCompactor.addExpiryListener((conversationKey, before, expired) -> {
+            chatHistory.expireBefore(conversationKey, before);
+            chatLog.expireBefore(conversationKey, before);
+            for (ChatMessage message : expired) {
+                searchIndex.remove(conversationKey, message.getId());
+            }
+            runOnUiThread(() -> remoteDatabase.delete(conversationKey, expired, null));
+        });
+        chatHistory.addMessageSink(retentionCompactor);
+        historyTransfer = new HistoryTransfer(messageStore, retentionCompactor, added -> {
+            for (ChatMessage message : added) {
+                try {
+                    chatLog.append(message);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error appending imported message " + message.getId(), e);
+                }
+            }
+            conversationIndex.addHistory(added);
+        });
+        syncEngine = new SyncEngine(messageStore, remoteDatabase);
+        syncEngine.start();
+        new Thread(() -> {
+            conversationIndex.load();
+            runOnUiThread(() -> remoteDatabase.loadConversationSummaries(conversationIndex::merge));
+            migratePendingMessages();
+            for (Map.Entry<String, Long> archived : messageStore.getArchivedBefore().entrySet()) {
+                chatHistory.expireBefore(archived.getKey(), archived.getValue());
+            }
+            List<ChatMessage> outbox = messageStore.getOutboxMessages();
+            runOnUiThread(() -> syncEngine.restore(outbox));
+            chatLog.compactAll();
+            retentionCompactor.runAll();
+        }, "restore-history").start();
+    }
+
+    /**
+     * Move messages left in the old SharedPreferences blob into the store's pending table
+     */
+    private void migratePendingMessages() {
+        SharedPreferences prefs = getSharedPreferences("PendingMessages", MODE_PRIVATE);
+        String messages = prefs.getString("messages", null);
+        if (messages == null) {
+            return;
+        }
+
+        for (String line : messages.split("\n")) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) continue;
+            try {
+                messageStore.insertPending(line.substring(colon + 1), Long.parseLong(line.substring(0, colon)));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Skipping malformed pending message");
+            }
+        }
+        prefs.edit().remove("messages").apply();
+    }
+
+    /**
+     * Create the mesh router. Its node ID is the chat user ID so routes and message senders match.
+     * Undeliverable frames are kept in a durable outbox under the app's files directory; its
+     * journals are read and written on the outbox executor.
+     */
+    private void initializeMeshRouter() {
+        meshRouter = new MeshRouter(getMeshNodeId(), this::sendMeshFrame);
+        meshRouter.setStoreAndForwardQueue(new StoreAndForwardQueue(new File(getFilesDir(), "mesh_outbox"),
+                meshOutboxExecutor));
+        meshRouter.addFrameListener(this);
+
+        // Presence is gossiped between neighbours so it works without the cloud
+        String handle = getSharedPreferences("ChatPrefs", MODE_PRIVATE).getString("username", "User");
+        presenceGossip = new PresenceGossip(meshRouter, handle, new Random());
+        meshRouter.addFrameListener(presenceGossip);
+
+        // Link-state announcements give the topology debug screen a view of the whole mesh
+        topologyGraph = new TopologyGraph(meshRouter);
+        meshRouter.addFrameListener(topologyGraph);
+
+        // Direct neighbours' conversations are keyed by Bluetooth address, which is also the link
+        historySync = new HistorySync(meshRouter, new HistorySync.HistoryStore() {
+            @Override
+            public String getConversationKey(String link) {
+                return link;
+            }
+
+            @Override
+            public List<ChatMessage> getMessagesBetween(String conversationKey, long from, long to) {
+                return chatHistory.getMessagesBetween(conversationKey, from, to);
+            }
+
+            @Override
+            public ChatMessage getMessage(String conversationKey, String messageId) {
+                return chatHistory.getMessage(conversationKey, messageId);
+            }
+
+            @Override
+            public boolean containsMessage(String conversationKey, String messageId) {
+                return chatHistory.containsMessage(conversationKey, messageId);
+            }
+
+            @Override
+            public MerkleTree getMerkleTree(String conversationKey) {
+                return chatHistory.getMerkleTree(conversationKey);
+            }
+        });
+        historySync.addSyncListener(this);
+        meshRouter.addFrameListener(historySyncFrames);
+        meshRouter.addLinkListener(historySyncLinks);
+
+        heartbeatHandler.post(meshTickRunnable);
+    }
+
+    private String getMeshNodeId() {
+        SharedPreferences prefs = getSharedPreferences("ChatPrefs", MODE_PRIVATE);
+        String nodeId = prefs.getString("user_id", null);
+        if (nodeId == null) {
+            nodeId = UUID.randomUUID().toString().substring(0, 8);
+            prefs.edit().putString("user_id", nodeId).apply();
+        }
+        return nodeId;
+    }
+
+    /**
+     * Mesh transport: write a frame to a neighbour if it is the device we are connected to
+     */
+    private boolean sendMeshFrame(String link, String frame) {
+        if (connectionManager == null) return false;
+
+        BluetoothDevice device = connectionManager.getConnectedDevice();
+        if (device == null || !device.getAddress().equals(link)) {
+            return false;
+        }
+
+        // Blocking write time feeds the router's goodput estimate for this link
+        byte[] bytes = frame.getBytes(StandardCharsets.UTF_8);
+        long start = SystemClock.elapsedRealtime();
+        boolean written = connectionManager.write(bytes);
+        if (written && meshRouter != null) {
+            meshRouter.getLinkMetrics().recordThroughput(link, bytes.length, SystemClock.elapsedRealtime() - start);
+        }
+        return written;
+    }
+
+    /**
+     * The connection listener can be taken over by ChatFragment, so reconcile router links
+     * with the connection manager's state instead of relying on callbacks alone
+     */
+    private void syncMeshLinks() {
+        BluetoothDevice device = connectionManager != null ? connectionManager.getConnectedDevice() : null;
+        String connectedAddress = device != null ? device.getAddress() : null;
+        long now = System.currentTimeMillis();
+
+        List<String> links = meshRouter.getLinks();
+        for (String link : links) {
+            if (!link.equals(connectedAddress)) {
+                meshRouter.onLinkDown(link);
+            }
+        }
+        if (connectedAddress != null && !links.contains(connectedAddress)) {
+            meshRouter.onLinkUp(connectedAddress, now);
+        }
+    }
+
+    // MeshRouter.FrameListener implementation
+    @Override
+    public void onFrameDelivered(MeshFrame frame, String link, long now) {
+        if (MeshFrame.TYPE_GROUP_DATA.equals(frame.getType())) {
+            onGroupFrameDelivered(frame);
+            return;
+        }
+        if (!MeshFrame.TYPE_DATA.equals(frame.getType())) {
+            return;
+        }
+
+        runOnUiThread(() -> {
+            ChatFragment chatFragment = getChatFragment();
+            if (chatFragment != null) {
+                chatFragment.onMeshMessageReceived(frame, link);
+            } else {
+                String conversationKey = frame.getHops() == 0 ? link : frame.getOrigin();
+                ChatMessage message = MeshPayloads.decodeChatMessage(frame.getPayload(), conversationKey);
+                // Persisted through the history's message store
+                historyExecutor.execute(() -> chatHistory.addMessage(message));
+            }
+        });
+    }
+
+    private void onGroupFrameDelivered(MeshFrame frame) {
+        runOnUiThread(() -> {
+            ChatFragment chatFragment = getChatFragment();
+            if (chatFragment != null) {
+                chatFragment.onMeshGroupMessageReceived(frame);
+                return;
+            }
+
+            GroupChannel group = MeshPayloads.decodeGroupChannel(frame.getPayload());
+            if (group != null) {
+                GroupPreferences.saveGroup(this, group);
+                ChatMessage message = MeshPayloads.decodeGroupMessage(frame.getPayload());
+                historyExecutor.execute(() -> chatHistory.addMessage(message));
+            }
+        });
+    }
+
+    // HistorySync.SyncListener implementation, called on the history executor
+    @Override
+    public void onMessagesSynced(String conversationKey, List<ChatMessage> messages) {
+        chatHistory.addHistory(messages);
+        Log.d(TAG, "History sync added " + messages.size() + " messages for " + conversationKey);
+
+        runOnUiThread(() -> {
+            ChatFragment chatFragment = getChatFragment();
+            if (chatFragment != null) {
+                chatFragment.onMessagesSynced(conversationKey, messages);
+            }
+        });
+    }
+
+    private ChatFragment getChatFragment() {
+        NavHostFragment navHostFragment = (NavHostFragment) getSupportFragmentManager()
+                .findFragmentById(R.id.nav_host_fragment_content_main);
+        if (navHostFragment == null) {
+            return null;
+        }
+        Fragment currentFragment = navHostFragment.getChildFragmentManager().getPrimaryNavigationFragment();
+        return currentFragment instanceof ChatFragment ? (ChatFragment) currentFragment : null;
     }
 
     /**
@@ -524,6 +880,56 @@ public class MainActivity extends AppCompatActivity implements
         return connectionManager;
     }
 
+    @Override
+    public MeshRouter getMeshRouter() {
+        return meshRouter;
+    }
+
+    @Override
+    public PresenceGossip getPresenceGossip() {
+        return presenceGossip;
+    }
+
+    @Override
+    public TopologyGraph getTopologyGraph() {
+        return topologyGraph;
+    }
+
+    @Override
+    public LocalChatHistory getChatHistory() {
+        return chatHistory;
+    }
+
+    @Override
+    public Executor getHistoryExecutor() {
+        return historyExecutor;
+    }
+
+    @Override
+    public SegmentedChatLog getChatLog() {
+        return chatLog;
+    }
+
+    @Override
+    public SyncEngine getSyncEngine() {
+        return syncEngine;
+    }
+
+    @Override
+    public FirebaseChatDatabase getChatDatabase() {
+        return remoteDatabase;
+    }
+
+    @Override
+    public ConversationIndex getConversationIndex() {
+        return conversationIndex;
+    }
+
+    @Override
+    public MessageSearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
     @Override
     public void onSendMessage(String message, BluetoothDevice device) {
         if (connectionManager != null) {
@@ -597,6 +1003,11 @@ public class MainActivity extends AppCompatActivity implements
                 // Start heartbeat mechanism
                 startHeartbeat();
 
+                // Bring the mesh link up so routes are exchanged immediately
+                if (meshRouter != null) {
+                    meshRouter.onLinkUp(device.getAddress(), System.currentTimeMillis());
+                }
+
                 // Cancel any pending reconnection attempts
                 if (reconnectionHandler != null) {
                     reconnectionHandler.removeCallbacks(reconnectionRunnable);
@@ -632,7 +1043,7 @@ public class MainActivity extends AppCompatActivity implements
     public void onDataReceived(byte[] buffer, int bytes) {
         if (buffer != null && bytes > 0) {
             try {
-                String message = new String(buffer, 0, bytes);
+                String message = new String(buffer, 0, bytes, StandardCharsets.UTF_8);
 
                 // Update last data received time
                 lastDataReceived = System.currentTimeMillis();
@@ -643,6 +1054,15 @@ public class MainActivity extends AppCompatActivity implements
                     return;
                 }
 
+                // Mesh frames are handled by the router, which delivers local ones back to us
+                if (MeshFrame.isMeshFrame(message)) {
+                    BluetoothDevice sender = connectionManager != null ? connectionManager.getConnectedDevice() : null;
+                    if (meshRouter != null && sender != null) {
+                        meshRouter.onFrameReceived(sender.getAddress(), message, System.currentTimeMillis());
+                    }
+                    return;
+                }
+
                 Log.d(TAG, "Data received in MainActivity: " + message);
 
                 runOnUiThread(() -> {
@@ -674,7 +1094,8 @@ public class MainActivity extends AppCompatActivity implements
                                 Log.d(TAG, "Message received but not currently in chat fragment");
 
                                 // Store the message for later display
-                                storeReceivedMessage(message);
+                                storeReceivedMessage(connectionManager != null
+                                        ? connectionManager.getConnectedDevice() : null, message);
 
                                 // Show notification and optionally navigate to chat
                                 if (connectionManager != null && connectionManager.getConnectedDevice() != null) {
@@ -700,38 +1121,22 @@ public class MainActivity extends AppCompatActivity implements
         }
     }
 
-    // Add this method to store messages when not in chat
-    private void storeReceivedMessage(String message) {
-        try {
-            SharedPreferences prefs = getSharedPreferences("PendingMessages", MODE_PRIVATE);
-            String existingMessages = prefs.getString("messages", "");
-            String timestamp = String.valueOf(System.currentTimeMillis());
-            String messageWithTimestamp = timestamp + ":" + message + "\n";
-
-            prefs.edit()
-                    .putString("messages", existingMessages + messageWithTimestamp)
-                    .apply();
-
-            Log.d(TAG, "Message stored for later display");
-        } catch (Exception e) {
-            Log.e(TAG, "Error storing received message", e);
+    /**
+     * Take a text message that arrived while no chat screen was open into the history, which
+     * stores, indexes and counts it as unread, and queue its upload
+     */
+    private void storeReceivedMessage(BluetoothDevice device, String message) {
+        ChatMessage chatMessage = device != null
+                ? ChatFragment.decodeTextMessage(message, device.getAddress(), System.currentTimeMillis()) : null;
+        if (chatMessage == null) {
+            Log.d(TAG, "Not a chat message, nothing to store");
+            return;
         }
-    }
-
-    // Add this method to retrieve stored messages
-    public String getStoredMessages() {
-        try {
-            SharedPreferences prefs = getSharedPreferences("PendingMessages", MODE_PRIVATE);
-            String messages = prefs.getString("messages", "");
-
-            // Clear stored messages after retrieving
-            prefs.edit().remove("messages").apply();
-
-            return messages;
-        } catch (Exception e) {
-            Log.e(TAG, "Error retrieving stored messages", e);
-            return "";
+        historyExecutor.execute(() -> chatHistory.addMessage(chatMessage));
+        if (syncEngine != null) {
+            syncEngine.enqueue(chatMessage);
         }
+        Log.d(TAG, "Message stored for later display");
     }
 
     /**
@@ -837,6 +1242,77 @@ public class MainActivity extends AppCompatActivity implements
         }
     }
 
+    @Override
+    public boolean onOptionsItemSelected(@NonNull MenuItem item) {
+        int id = item.getItemId();
+        if (id == R.id.action_export_history) {
+            exportHistory();
+            return true;
+        } else if (id == R.id.action_import_history) {
+            importHistory();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * Export every conversation, archived ranges included, to a new file in the app's history
+     * folder. Runs off the main thread; a million messages take seconds, not minutes.
+     */
+    private void exportHistory() {
+        File directory = getExternalFilesDir("history");
+        if (historyTransfer == null || directory == null) {
+            Toast.makeText(this, "History is not available", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        File file = new File(directory, "meshup-" + System.currentTimeMillis() + HISTORY_EXPORT_SUFFIX);
+        new Thread(() -> {
+            try {
+                long count = historyTransfer.export(file, null);
+                runOnUiThread(() -> Toast.makeText(this, "Exported " + count + " messages to " +
+                        file.getName(), Toast.LENGTH_LONG).show());
+            } catch (IOException e) {
+                Log.e(TAG, "Error exporting history", e);
+                runOnUiThread(() -> Toast.makeText(this, "Export failed", Toast.LENGTH_SHORT).show());
+            }
+        }, "export-history").start();
+    }
+
+    /**
+     * Import the newest export in the app's history folder. Messages already known are skipped,
+     * and an import that was cut short picks up where it stopped.
+     */
+    private void importHistory() {
+        File directory = getExternalFilesDir("history");
+        File[] exports = directory != null
+                ? directory.listFiles((dir, name) -> name.endsWith(HISTORY_EXPORT_SUFFIX)) : null;
+        if (historyTransfer == null || exports == null || exports.length == 0) {
+            Toast.makeText(this, "No history export found", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        File newest = exports[0];
+        for (File export : exports) {
+            if (export.lastModified() > newest.lastModified()) {
+                newest = export;
+            }
+        }
+        File file = newest;
+        new Thread(() -> {
+            try {
+                HistoryTransfer.ImportResult result = historyTransfer.importFrom(file);
+                for (String conversationKey : result.getConversationKeys()) {
+                    chatHistory.invalidate(conversationKey);
+                }
+                searchIndex.invalidate();
+                runOnUiThread(() -> Toast.makeText(this, "Imported " + result.getImported() +
+                        " messages, " + result.getSkipped() + " already present", Toast.LENGTH_LONG).show());
+            } catch (IOException e) {
+                Log.e(TAG, "Error importing history", e);
+                runOnUiThread(() -> Toast.makeText(this, "Import failed", Toast.LENGTH_SHORT).show());
+            }
+        }, "import-history").start();
+    }
+
     @Override
     public boolean onNavigationItemSelected(@NonNull MenuItem item) {
         try {
@@ -862,6 +1338,8 @@ public class MainActivity extends AppCompatActivity implements
                 navController.navigate(R.id.nav_find_devices);
             } else if (id == R.id.nav_chat) {
                 navController.navigate(R.id.nav_chat);
+            } else if (id == R.id.nav_mesh_topology) {
+                navController.navigate(R.id.nav_mesh_topology);
             }
 
             binding.drawerLayout.closeDrawer(GravityCompat.START);
@@ -914,9 +1392,40 @@ public class MainActivity extends AppCompatActivity implements
     protected void onDestroy() {
         super.onDestroy();
         try {
+            if (heartbeatHandler != null) {
+                heartbeatHandler.removeCallbacks(meshTickRunnable);
+            }
+            if (meshRouter != null) {
+                meshRouter.removeFrameListener(this);
+                meshRouter.removeFrameListener(presenceGossip);
+                meshRouter.removeFrameListener(historySyncFrames);
+                meshRouter.removeLinkListener(historySyncLinks);
+            }
             if (connectionManager != null) {
                 connectionManager.stop();
             }
+            if (syncEngine != null) {
+                syncEngine.stop();
+            }
+            if (remoteDatabase != null) {
+                remoteDatabase.removeListeners();
+            }
+            // Let messages already handed over reach the store before it closes, and queued
+            // frames reach their journals
+            historyExecutor.shutdown();
+            meshOutboxExecutor.shutdown();
+            historyExecutor.awaitTermination(HISTORY_DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+            meshOutboxExecutor.awaitTermination(HISTORY_DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (messageStore != null) {
+                chatHistory.removeMessageSink(messageStore);
+                chatHistory.removeMessageSink(chatLog);
+                chatHistory.removeMessageSink(conversationIndex);
+                chatHistory.removeMessageSink(searchIndex);
+                chatHistory.removeMessageSink(retentionCompactor);
+                retentionCompactor.close();
+                messageStore.close();
+                chatLog.close();
+            }
         } catch (Exception e) {
             Log.e(TAG, "Error in onDestroy", e);
         }
@@ -22,6 +22,7 @@ import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.appcompat.app.AlertDialog;
 import androidx.core.app.ActivityCompat;
 import androidx.fragment.app.Fragment;
 import androidx.recyclerview.widget.LinearLayoutManager;
@@ -30,17 +31,34 @@ import androidx.recyclerview.widget.RecyclerView;
 import com.example.meshup.R;
 import com.example.meshup.ui.data.FirebaseChatDatabase;
 import com.example.meshup.ui.data.ChatMessage;
+import com.example.meshup.ui.data.ChatStore;
 import com.example.meshup.ui.data.ConnectedDevice;
+import com.example.meshup.ui.data.ConversationIndex;
+import com.example.meshup.ui.data.ConversationSummary;
+import com.example.meshup.ui.data.GroupChannel;
+import com.example.meshup.ui.data.LocalChatHistory;
+import com.example.meshup.ui.data.MessageSearchIndex;
+import com.example.meshup.ui.data.SegmentedChatLog;
+import com.example.meshup.ui.data.SyncEngine;
 import com.example.meshup.ui.devicediscovery.BluetoothConnectionManager;
+import com.example.meshup.ui.mesh.MeshFrame;
+import com.example.meshup.ui.mesh.MeshPayloads;
+import com.example.meshup.ui.mesh.MeshRouter;
+import com.example.meshup.ui.mesh.PresenceGossip;
+import com.example.meshup.utils.GroupPreferences;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 
 public class ChatFragment extends Fragment implements
         BluetoothConnectionManager.BluetoothConnectionListener,
-        FirebaseChatDatabase.ChatMessageListener,
-        FirebaseChatDatabase.ConnectedDevicesListener {
+        ChatStore.DeltaListener,
+        FirebaseChatDatabase.ConnectedDevicesListener,
+        PresenceGossip.PresenceListener,
+        ConversationIndex.Listener {
 
     private static final String TAG = "ChatFragment";
     private static final String PREFS_NAME = "ChatPrefs";
@@ -50,6 +68,10 @@ public class ChatFragment extends Fragment implements
     private static final String MESSAGE_TYPE_TEXT = "text";
     private static final String MESSAGE_TYPE_USER_INFO = "user_info";
     private static final String MESSAGE_SEPARATOR = "|||";
+    private static final String MESH_PEER_DEVICE_NAME = "Mesh peer";
+    private static final String GROUP_DEVICE_NAME = "Group";
+    private static final int LOCAL_PAGE_SIZE = 50;
+    private static final int SEARCH_RESULT_LIMIT = 50;
 
     // Views
     private RecyclerView recyclerViewConnectedDevices;
@@ -58,19 +80,30 @@ public class ChatFragment extends Fragment implements
     private ImageButton buttonSendMessage;
     private TextView textViewNoDevices;
     private TextView textViewChatWith;
+    private TextView textViewNewGroup;
+    private TextView textViewSearch;
 
     // Data
     private ConnectedDevicesAdapter connectedDevicesAdapter;
     private ChatMessagesAdapter chatMessagesAdapter;
     private List<ConnectedDevice> connectedDevicesList;
     private List<ChatMessage> chatMessagesList;
+    private ConversationBuffer conversationBuffer;
     private BluetoothConnectionManager connectionManager;
     private FirebaseChatDatabase firebaseDatabase;
+    // Message history goes through the store interface; Firebase is its backend here
+    private ChatStore chatStore;
     private SharedPreferences sharedPreferences;
     private Handler mainHandler;
 
     // Current chat
     private ConnectedDevice currentChatDevice;
+    private SegmentedChatLog.Position olderLocalPosition;
+    // Bumped per opened chat, so a page read for an earlier one is dropped when it lands
+    private int localPageRequest;
+    private boolean loadingLocalPage;
+    private boolean remoteHistoryExhausted;
+    private boolean loadingRemotePage;
     private String currentUserName;
     private String currentUserId;
     private int currentProfilePicture;
@@ -78,6 +111,15 @@ public class ChatFragment extends Fragment implements
     // Listener interface for parent activity
     public interface ChatFragmentListener {
         BluetoothConnectionManager getConnectionManager();
+        MeshRouter getMeshRouter();
+        PresenceGossip getPresenceGossip();
+        LocalChatHistory getChatHistory();
+        Executor getHistoryExecutor();
+        SegmentedChatLog getChatLog();
+        SyncEngine getSyncEngine();
+        FirebaseChatDatabase getChatDatabase();
+        ConversationIndex getConversationIndex();
+        MessageSearchIndex getSearchIndex();
         void onSendMessage(String message, BluetoothDevice device);
     }
 
@@ -104,6 +146,8 @@ public class ChatFragment extends Fragment implements
         setupListeners();
         loadUserProfile();
         loadConnectedDevices();
+        loadGroups();
+        startPresenceUpdates();
         return view;
     }
 
@@ -112,7 +156,15 @@ public class ChatFragment extends Fragment implements
         super.onDestroy();
         stopListeningForMessages();
         if (firebaseDatabase != null) {
-            firebaseDatabase.removeListeners();
+            firebaseDatabase.removeListeners(this);
+        }
+        PresenceGossip presenceGossip = getPresenceGossip();
+        if (presenceGossip != null) {
+            presenceGossip.removePresenceListener(this);
+        }
+        ConversationIndex conversationIndex = getConversationIndex();
+        if (conversationIndex != null) {
+            conversationIndex.removeListener(this);
         }
     }
 
@@ -123,6 +175,11 @@ public class ChatFragment extends Fragment implements
         if (firebaseDatabase != null) {
             firebaseDatabase.setUserOffline();
         }
+        // Messages arriving while the screen is away count as unread
+        ConversationIndex conversationIndex = getConversationIndex();
+        if (conversationIndex != null) {
+            conversationIndex.setOpenConversation(null);
+        }
         // Don't stop listening here if you want to receive messages in background
         // stopListeningForMessages();
     }
@@ -144,11 +201,17 @@ public class ChatFragment extends Fragment implements
             firebaseDatabase.setUserOnline();
         }
 
-        // CRITICAL: Always restart listening for ALL device messages, not just current chat
+        ConversationIndex conversationIndex = getConversationIndex();
+        if (conversationIndex != null && currentChatDevice != null) {
+            conversationIndex.setOpenConversation(currentChatDevice.getDeviceAddress());
+        }
+
+        // CRITICAL: Always listen for ALL device messages, not just current chat
         if (firebaseDatabase != null && firebaseDatabase.isUserAuthenticated()) {
-            // Listen for messages from all connected devices
+            // Idempotent: devices already followed are not re-fetched
+            Log.d(TAG, firebaseDatabase.getActiveListenerCount() + " Firebase listeners active");
             for (ConnectedDevice device : connectedDevicesList) {
-                firebaseDatabase.startListeningForMessages(device.getDeviceAddress(), this);
+                chatStore.subscribe(device.getDeviceAddress(), this);
             }
         }
 
@@ -161,6 +224,8 @@ public class ChatFragment extends Fragment implements
         buttonSendMessage = view.findViewById(R.id.button_send_message);
         textViewNoDevices = view.findViewById(R.id.textView_no_devices);
         textViewChatWith = view.findViewById(R.id.textView_chat_with);
+        textViewNewGroup = view.findViewById(R.id.textView_new_group);
+        textViewSearch = view.findViewById(R.id.textView_search);
     }
 
     private void updateConnectedDeviceInfo(BluetoothDevice device, String senderName) {
@@ -240,11 +305,13 @@ public class ChatFragment extends Fragment implements
 
     private void initializeData() {
         connectedDevicesList = new ArrayList<>();
-        chatMessagesList = new ArrayList<>();
+        conversationBuffer = new ConversationBuffer();
+        chatMessagesList = conversationBuffer.asList();
         mainHandler = new Handler(Looper.getMainLooper());
 
-        // Initialize database and preferences
-        firebaseDatabase = new FirebaseChatDatabase();
+        // The activity's database, so its listeners, write batches and page cache are shared
+        firebaseDatabase = chatFragmentListener != null ? chatFragmentListener.getChatDatabase() : null;
+        chatStore = firebaseDatabase;
         sharedPreferences = requireContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
 
         // Get connection manager from parent activity
@@ -259,6 +326,11 @@ public class ChatFragment extends Fragment implements
     private void setupRecyclerViews() {
         // Connected devices RecyclerView
         connectedDevicesAdapter = new ConnectedDevicesAdapter(connectedDevicesList, this::onDeviceSelected);
+        ConversationIndex conversationIndex = getConversationIndex();
+        if (conversationIndex != null) {
+            connectedDevicesAdapter.setConversationIndex(conversationIndex);
+            conversationIndex.addListener(this);
+        }
         recyclerViewConnectedDevices.setLayoutManager(
                 new LinearLayoutManager(getContext(), LinearLayoutManager.HORIZONTAL, false));
         recyclerViewConnectedDevices.setAdapter(connectedDevicesAdapter);
@@ -269,10 +341,22 @@ public class ChatFragment extends Fragment implements
         layoutManager.setStackFromEnd(true); // Start from bottom
         recyclerViewChatMessages.setLayoutManager(layoutManager);
         recyclerViewChatMessages.setAdapter(chatMessagesAdapter);
+
+        // Page older messages in when scrolled to the top
+        recyclerViewChatMessages.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (dy < 0 && !recyclerView.canScrollVertically(-1)) {
+                    loadOlderMessages();
+                }
+            }
+        });
     }
 
     private void setupListeners() {
         buttonSendMessage.setOnClickListener(v -> sendMessage());
+        textViewNewGroup.setOnClickListener(v -> showCreateGroupDialog());
+        textViewSearch.setOnClickListener(v -> showSearchDialog());
 
         editTextMessage.addTextChangedListener(new TextWatcher() {
             @Override
@@ -319,40 +403,233 @@ public class ChatFragment extends Fragment implements
 
     private void loadConnectedDevices() {
         if (firebaseDatabase != null && firebaseDatabase.isUserAuthenticated()) {
-            firebaseDatabase.loadConnectedDevices(new FirebaseChatDatabase.ConnectedDevicesListener() {
-                @Override
-                public void onDevicesUpdated(List<ConnectedDevice> devices) {
-                    mainHandler.post(() -> {
-                        connectedDevicesList.clear();
-                        connectedDevicesList.addAll(devices);
-                        connectedDevicesAdapter.notifyDataSetChanged();
-                        updateDevicesVisibility();
-
-                        // CRITICAL: Set up message listeners for all devices
-                        for (ConnectedDevice device : devices) {
-                            firebaseDatabase.startListeningForMessages(device.getDeviceAddress(), ChatFragment.this);
-                        }
-                    });
+            // The fragment itself is the listener, so a recreated view does not subscribe twice
+            firebaseDatabase.loadConnectedDevices(this);
+        } else {
+            loadConnectedDevicesFromPrefs();
+        }
+        updateDevicesVisibility();
+    }
+
+    private PresenceGossip getPresenceGossip() {
+        return chatFragmentListener != null ? chatFragmentListener.getPresenceGossip() : null;
+    }
+
+    private ConversationIndex getConversationIndex() {
+        return chatFragmentListener != null ? chatFragmentListener.getConversationIndex() : null;
+    }
+
+    /**
+     * Refresh the preview and unread badge of the conversation's entry in the device strip
+     */
+    @Override
+    public void onConversationUpdated(ConversationSummary summary) {
+        mainHandler.post(() -> {
+            ConnectedDevice device = findConnectedDevice(summary.getConversationKey());
+            int index = device != null ? connectedDevicesList.indexOf(device) : -1;
+            if (index != -1) {
+                connectedDevicesAdapter.notifyItemChanged(index);
+            }
+        });
+    }
+
+    /**
+     * Feed the device list from the local gossiped presence view instead of waiting for Firebase
+     */
+    private void startPresenceUpdates() {
+        PresenceGossip presenceGossip = getPresenceGossip();
+        if (presenceGossip != null) {
+            presenceGossip.setLocalHandle(currentUserName, System.currentTimeMillis());
+            presenceGossip.addPresenceListener(this);
+            onPresenceChanged(presenceGossip.getView());
+        }
+    }
+
+    // PresenceGossip.PresenceListener implementation
+    @Override
+    public void onPresenceChanged(List<PresenceGossip.PresenceEntry> view) {
+        mainHandler.post(() -> {
+            long now = System.currentTimeMillis();
+            for (PresenceGossip.PresenceEntry entry : view) {
+                ConnectedDevice device = findConnectedDeviceByUserId(entry.getUserId());
+                if (device == null) {
+                    // Peer only known through the mesh: keyed by user ID until we connect directly
+                    device = new ConnectedDevice(entry.getUserId(), MESH_PEER_DEVICE_NAME, entry.getHandle(),
+                            android.R.drawable.ic_menu_myplaces, entry.getLastSeen(), entry.isOnline(now));
+                    device.setUserId(entry.getUserId());
+                    connectedDevicesList.add(device);
+                    connectedDevicesAdapter.notifyItemInserted(connectedDevicesList.size() - 1);
+                    continue;
                 }
 
-                @Override
-                public void onDeviceStatusChanged(ConnectedDevice device) {
-                    mainHandler.post(() -> {
-                        ConnectedDevice existingDevice = findConnectedDevice(device.getDeviceAddress());
-                        if (existingDevice != null) {
-                            int index = connectedDevicesList.indexOf(existingDevice);
-                            if (index != -1) {
-                                connectedDevicesList.set(index, device);
-                                connectedDevicesAdapter.notifyItemChanged(index);
-                            }
-                        }
-                    });
+                // Direct neighbours go offline through the Bluetooth callbacks, mesh-only peers by timeout
+                boolean online = entry.isOnline(now);
+                boolean newer = entry.getLastSeen() > device.getLastSeen();
+                boolean timedOut = device.isOnline() && !online &&
+                        device.getDeviceAddress().equals(entry.getUserId());
+                if (!newer && !timedOut) {
+                    continue;
+                }
+                device.setLastSeen(Math.max(device.getLastSeen(), entry.getLastSeen()));
+                device.setOnline(online || (device.isOnline() && !timedOut));
+                if (entry.getHandle() != null && !entry.getHandle().isEmpty()) {
+                    device.setUsername(entry.getHandle());
+                }
+                int index = connectedDevicesList.indexOf(device);
+                if (index != -1) {
+                    connectedDevicesAdapter.notifyItemChanged(index);
+                }
+            }
+            updateDevicesVisibility();
+        });
+    }
+
+    /**
+     * Group channels are listed next to devices; their history is keyed by the group conversation
+     */
+    private void loadGroups() {
+        if (getContext() == null) return;
+        for (GroupChannel group : GroupPreferences.getGroups(getContext())) {
+            addGroupEntry(group);
+        }
+    }
+
+    private ConnectedDevice addGroupEntry(GroupChannel group) {
+        ConnectedDevice entry = findConnectedDevice(group.getConversationKey());
+        if (entry == null) {
+            entry = new ConnectedDevice(group.getConversationKey(), GROUP_DEVICE_NAME, group.getName(),
+                    android.R.drawable.ic_menu_share, System.currentTimeMillis(), true);
+            connectedDevicesList.add(entry);
+            connectedDevicesAdapter.notifyItemInserted(connectedDevicesList.size() - 1);
+            if (firebaseDatabase != null && firebaseDatabase.isUserAuthenticated()) {
+                chatStore.subscribe(entry.getDeviceAddress(), this);
+            }
+            updateDevicesVisibility();
+        } else if (group.getName() != null && !group.getName().equals(entry.getUsername())) {
+            entry.setUsername(group.getName());
+            connectedDevicesAdapter.notifyItemChanged(connectedDevicesList.indexOf(entry));
+        }
+        return entry;
+    }
+
+    /**
+     * Pick members among peers whose user ID is known, then name the group
+     */
+    private void showCreateGroupDialog() {
+        List<ConnectedDevice> candidates = new ArrayList<>();
+        for (ConnectedDevice device : connectedDevicesList) {
+            if (device.getUserId() != null && !GroupChannel.isGroupConversation(device.getDeviceAddress())) {
+                candidates.add(device);
+            }
+        }
+        if (candidates.isEmpty()) {
+            Toast.makeText(getContext(), "No peers with a known ID to add yet", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        String[] names = new String[candidates.size()];
+        boolean[] checked = new boolean[candidates.size()];
+        for (int i = 0; i < candidates.size(); i++) {
+            names[i] = candidates.get(i).getUsername();
+        }
+
+        new AlertDialog.Builder(requireContext())
+                .setTitle("Group members")
+                .setMultiChoiceItems(names, checked, (dialog, which, isChecked) -> checked[which] = isChecked)
+                .setPositiveButton("Next", (dialog, which) -> {
+                    List<String> members = new ArrayList<>();
+                    members.add(currentUserId);
+                    for (int i = 0; i < candidates.size(); i++) {
+                        if (checked[i]) members.add(candidates.get(i).getUserId());
+                    }
+                    if (members.size() > 1) {
+                        showGroupNameDialog(members);
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    private void showGroupNameDialog(List<String> members) {
+        EditText input = new EditText(requireContext());
+        input.setHint("Group name");
+
+        new AlertDialog.Builder(requireContext())
+                .setTitle("New group")
+                .setView(input)
+                .setPositiveButton("Create", (dialog, which) -> {
+                    String name = input.getText().toString().trim();
+                    GroupChannel group = new GroupChannel(UUID.randomUUID().toString().substring(0, 8),
+                            name.isEmpty() ? "Group" : name, members);
+                    GroupPreferences.saveGroup(requireContext(), group);
+                    onDeviceSelected(addGroupEntry(group));
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    private void showSearchDialog() {
+        EditText input = new EditText(requireContext());
+        input.setHint("Words, prefix* or \"a phrase\"");
+        input.setSingleLine(true);
+
+        new AlertDialog.Builder(requireContext())
+                .setTitle("Search messages")
+                .setView(input)
+                .setPositiveButton("Search", (dialog, which) -> showSearchResults(input.getText().toString()))
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    /**
+     * Search local history off the main thread, since the first search builds the index from the
+     * store
+     */
+    private void showSearchResults(String query) {
+        MessageSearchIndex searchIndex = chatFragmentListener != null ? chatFragmentListener.getSearchIndex() : null;
+        if (searchIndex == null || query.trim().isEmpty()) {
+            return;
+        }
+
+        new Thread(() -> {
+            List<ChatMessage> results = searchIndex.search(query, SEARCH_RESULT_LIMIT);
+            mainHandler.post(() -> {
+                if (isAdded()) {
+                    showSearchResults(results);
                 }
             });
-        } else {
-            loadConnectedDevicesFromPrefs();
+        }, "search-history").start();
+    }
+
+    /**
+     * List the newest matches; picking one opens its conversation
+     */
+    private void showSearchResults(List<ChatMessage> results) {
+        if (results.isEmpty()) {
+            Toast.makeText(getContext(), "No messages found", Toast.LENGTH_SHORT).show();
+            return;
         }
-        updateDevicesVisibility();
+
+        String[] items = new String[results.size()];
+        for (int i = 0; i < results.size(); i++) {
+            ChatMessage message = results.get(i);
+            ConnectedDevice device = findConnectedDevice(message.getDeviceAddress());
+            String conversation = device != null ? device.getUsername() : message.getDeviceAddress();
+            items[i] = conversation + "\n" + message.getSenderName() + ": " + message.getContent();
+        }
+
+        new AlertDialog.Builder(requireContext())
+                .setTitle(results.size() + " messages")
+                .setItems(items, (dialog, which) -> {
+                    ConnectedDevice device = findConnectedDevice(results.get(which).getDeviceAddress());
+                    if (device != null) {
+                        onDeviceSelected(device);
+                    } else {
+                        Toast.makeText(getContext(), "That conversation is not available", Toast.LENGTH_SHORT).show();
+                    }
+                })
+                .setNegativeButton("Close", null)
+                .show();
     }
 
     private void loadConnectedDevicesFromPrefs() {
@@ -365,12 +642,12 @@ public class ChatFragment extends Fragment implements
         if (connectionManager != null) {
             BluetoothDevice connectedDevice = connectionManager.getConnectedDevice();
             if (connectedDevice != null) {
-                addOrUpdateConnectedDevice(connectedDevice, "Unknown User", android.R.drawable.ic_menu_myplaces);
+                addOrUpdateConnectedDevice(connectedDevice, "Unknown User", null, android.R.drawable.ic_menu_myplaces);
             }
         }
     }
 
-    private void addOrUpdateConnectedDevice(BluetoothDevice device, String username, int profilePicture) {
+    private void addOrUpdateConnectedDevice(BluetoothDevice device, String username, String userId, int profilePicture) {
         // Check for permission before accessing device name
         String deviceName = "Unknown Device";
         if (ActivityCompat.checkSelfPermission(requireContext(), Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED) {
@@ -379,6 +656,16 @@ public class ChatFragment extends Fragment implements
 
         ConnectedDevice connectedDevice = findConnectedDevice(device.getAddress());
 
+        // Replace the mesh-only entry of this user now that we know its Bluetooth address
+        if (userId != null) {
+            ConnectedDevice meshPeer = findConnectedDevice(userId);
+            if (meshPeer != null && meshPeer != connectedDevice) {
+                int meshIndex = connectedDevicesList.indexOf(meshPeer);
+                connectedDevicesList.remove(meshIndex);
+                connectedDevicesAdapter.notifyItemRemoved(meshIndex);
+            }
+        }
+
         if (connectedDevice == null) {
             // Add new device
             connectedDevice = new ConnectedDevice(
@@ -389,11 +676,15 @@ public class ChatFragment extends Fragment implements
                     System.currentTimeMillis(),
                     true
             );
+            connectedDevice.setUserId(userId);
             connectedDevicesList.add(0, connectedDevice); // Add to top
             connectedDevicesAdapter.notifyItemInserted(0);
         } else {
             // Update existing device
             connectedDevice.setUsername(username);
+            if (userId != null) {
+                connectedDevice.setUserId(userId);
+            }
             connectedDevice.setProfilePicture(profilePicture);
             connectedDevice.setLastSeen(System.currentTimeMillis());
             connectedDevice.setOnline(true);
@@ -414,7 +705,16 @@ public class ChatFragment extends Fragment implements
 
     private ConnectedDevice findConnectedDevice(String deviceAddress) {
         for (ConnectedDevice device : connectedDevicesList) {
-            if (device.getDeviceAddress().equals(deviceAddress)) {
+            if (deviceAddress != null && deviceAddress.equals(device.getDeviceAddress())) {
+                return device;
+            }
+        }
+        return null;
+    }
+
+    private ConnectedDevice findConnectedDeviceByUserId(String userId) {
+        for (ConnectedDevice device : connectedDevicesList) {
+            if (userId.equals(device.getUserId())) {
                 return device;
             }
         }
@@ -432,10 +732,12 @@ public class ChatFragment extends Fragment implements
     }
 
     private void onDeviceSelected(ConnectedDevice device) {
-        // Stop listening to previous chat messages
-        stopListeningForMessages();
-
+        // The previous chat keeps its listener, so its messages still arrive in the background
         currentChatDevice = device;
+        ConversationIndex conversationIndex = getConversationIndex();
+        if (conversationIndex != null) {
+            conversationIndex.setOpenConversation(device.getDeviceAddress());
+        }
         textViewChatWith.setText("Chat with " + device.getUsername());
         textViewChatWith.setVisibility(View.VISIBLE);
 
@@ -476,40 +778,23 @@ public class ChatFragment extends Fragment implements
         );
 
         // Add to local list immediately for better UX
-        chatMessagesList.add(message);
-        chatMessagesAdapter.notifyItemInserted(chatMessagesList.size() - 1);
-        recyclerViewChatMessages.scrollToPosition(chatMessagesList.size() - 1);
+        recordHistory(message, true);
+        showMessage(message);
         Log.d(TAG, "Added sent message to local display");
 
         // Clear input immediately for better UX
         editTextMessage.setText("");
 
-        // Send via Firebase (for persistence and sync)
-        if (firebaseDatabase != null && firebaseDatabase.isUserAuthenticated()) {
-            firebaseDatabase.sendMessage(message, new FirebaseChatDatabase.ChatMessageListener() {
-                @Override
-                public void onMessageReceived(ChatMessage message) {}
-
-                @Override
-                public void onMessagesLoaded(List<ChatMessage> messages) {}
-
-                @Override
-                public void onMessageSent(boolean success, String error) {
-                    if (!success) {
-                        Log.e(TAG, "Failed to save sent message to Firebase: " + error);
-                        // You might want to show an error indicator on the message
-                    } else {
-                        Log.d(TAG, "Successfully saved sent message to Firebase");
-                    }
-                }
-            });
-        }
+        // Upload to Firebase (for persistence and sync) once the outbox has it
+        uploadMessage(message);
 
         // Send via Bluetooth
-        boolean bluetoothSent = sendMessageViaBluetooth(messageText);
+        boolean bluetoothSent = sendMessageViaBluetooth(message);
         if (!bluetoothSent) {
             Log.w(TAG, "Failed to send message via Bluetooth");
             Toast.makeText(getContext(), "Message may not have been delivered", Toast.LENGTH_SHORT).show();
+        } else if (isMeshOffline()) {
+            Toast.makeText(getContext(), "Peer out of range, message queued", Toast.LENGTH_SHORT).show();
         }
     }
 
@@ -530,15 +815,20 @@ public class ChatFragment extends Fragment implements
         }
     }
 
-    private boolean sendMessageViaBluetooth(String messageText) {
+    private boolean sendMessageViaBluetooth(ChatMessage message) {
+        if (currentChatDevice != null && GroupChannel.isGroupConversation(currentChatDevice.getDeviceAddress())) {
+            return sendGroupMessage(message);
+        }
+
         if (connectionManager != null && currentChatDevice != null) {
             BluetoothDevice bluetoothDevice = connectionManager.getConnectedDevice();
-            if (bluetoothDevice != null && bluetoothDevice.getAddress().equals(currentChatDevice.getDeviceAddress())) {
+            if (bluetoothDevice != null && bluetoothDevice.getAddress().equals(currentChatDevice.getDeviceAddress())
+                    && !isMeshNeighbour(bluetoothDevice.getAddress())) {
                 // Create formatted message with user info
                 String formattedMessage = MESSAGE_TYPE_TEXT + MESSAGE_SEPARATOR +
                         currentUserName + MESSAGE_SEPARATOR +
                         currentUserId + MESSAGE_SEPARATOR +
-                        messageText;
+                        message.getContent();
 
                 if (chatFragmentListener != null) {
                     chatFragmentListener.onSendMessage(formattedMessage, bluetoothDevice);
@@ -546,44 +836,137 @@ public class ChatFragment extends Fragment implements
                 }
             }
         }
-        return false; // Failed to send message
+
+        // Peer is not our direct neighbour: hand the message to the mesh router
+        return sendMessageViaMesh(message);
     }
 
-    private String generateMessageId() {
-        return UUID.randomUUID().toString();
+    private boolean sendMessageViaMesh(ChatMessage message) {
+        MeshRouter meshRouter = chatFragmentListener != null ? chatFragmentListener.getMeshRouter() : null;
+        if (meshRouter == null || currentChatDevice == null) {
+            return false;
+        }
+
+        // Without a known user ID the router queues by Bluetooth address until the peer is back in range
+        String destination = currentChatDevice.getUserId() != null ?
+                currentChatDevice.getUserId() : currentChatDevice.getDeviceAddress();
+        return meshRouter.sendUnicast(destination, MeshFrame.TYPE_DATA, message.getId(),
+                MeshPayloads.encodeChatMessage(message), System.currentTimeMillis());
     }
 
-    // Firebase ChatMessageListener implementation
-    @Override
-    public void onMessageReceived(ChatMessage message) {
-        mainHandler.post(() -> {
-            Log.d(TAG, "Firebase message received: " + message.getContent() + " from " + message.getSenderName());
-
-            // Check if message already exists to avoid duplicates
-            boolean messageExists = false;
-            for (ChatMessage existingMessage : chatMessagesList) {
-                if (existingMessage.getId().equals(message.getId())) {
-                    messageExists = true;
-                    break;
-                }
-            }
+    /**
+     * One multicast frame reaches every member; relays split it by next hop
+     */
+    private boolean sendGroupMessage(ChatMessage message) {
+        MeshRouter meshRouter = chatFragmentListener != null ? chatFragmentListener.getMeshRouter() : null;
+        GroupChannel group = GroupPreferences.getGroup(requireContext(),
+                GroupChannel.getGroupId(currentChatDevice.getDeviceAddress()));
+        if (meshRouter == null || group == null) {
+            return false;
+        }
+        return meshRouter.sendMulticast(group.getMemberIds(), MeshFrame.TYPE_GROUP_DATA, message.getId(),
+                MeshPayloads.encodeGroupMessage(group, message), System.currentTimeMillis());
+    }
+
+    /**
+     * Neighbours that advertised routes speak the mesh protocol; sending them frames instead of the
+     * plain text format keeps our message ID, which history sync relies on
+     */
+    private boolean isMeshNeighbour(String deviceAddress) {
+        MeshRouter meshRouter = chatFragmentListener != null ? chatFragmentListener.getMeshRouter() : null;
+        return meshRouter != null && meshRouter.getNeighbourId(deviceAddress) != null;
+    }
+
+    private boolean isMeshOffline() {
+        MeshRouter meshRouter = chatFragmentListener != null ? chatFragmentListener.getMeshRouter() : null;
+        return meshRouter != null && meshRouter.getLinks().isEmpty();
+    }
+
+    /**
+     * Called by the activity when the mesh router delivers a chat frame addressed to us
+     */
+    public void onMeshMessageReceived(MeshFrame frame, String link) {
+        // Direct neighbours are keyed by Bluetooth address, multi-hop peers by their user ID
+        String conversationKey = frame.getHops() == 0 ? link : frame.getOrigin();
+        ConnectedDevice sender = findConnectedDeviceByUserId(frame.getOrigin());
+        if (sender != null) {
+            conversationKey = sender.getDeviceAddress();
+        }
+
+        ChatMessage chatMessage = MeshPayloads.decodeChatMessage(frame.getPayload(), conversationKey);
+        if (chatMessage == null) {
+            Log.w(TAG, "Invalid mesh chat payload in " + frame);
+            return;
+        }
 
-            // If this message is for the current chat device, display it
-            if (currentChatDevice != null &&
-                    message.getDeviceAddress().equals(currentChatDevice.getDeviceAddress()) &&
-                    !messageExists) {
+        Log.d(TAG, "Mesh message from " + frame.getOrigin() + " after " + frame.getHops() + " hops");
+        displayReceivedMessage(chatMessage, conversationKey);
+        saveReceivedMessage(chatMessage);
+        updateDeviceWithNewMessage(conversationKey);
+    }
+
+    /**
+     * Called by the activity when a group frame for one of our groups arrives
+     */
+    public void onMeshGroupMessageReceived(MeshFrame frame) {
+        GroupChannel group = MeshPayloads.decodeGroupChannel(frame.getPayload());
+        ChatMessage chatMessage = MeshPayloads.decodeGroupMessage(frame.getPayload());
+        if (group == null || chatMessage == null || getContext() == null) {
+            Log.w(TAG, "Invalid mesh group payload in " + frame);
+            return;
+        }
 
-                chatMessagesList.add(message);
-                chatMessagesAdapter.notifyItemInserted(chatMessagesList.size() - 1);
-                recyclerViewChatMessages.scrollToPosition(chatMessagesList.size() - 1);
-                Log.d(TAG, "Displayed Firebase message in current chat");
+        // Membership travels with every message, so new members learn the group from it
+        addGroupEntry(GroupPreferences.saveGroup(getContext(), group));
+        displayReceivedMessage(chatMessage, group.getConversationKey());
+        saveReceivedMessage(chatMessage);
+        updateDeviceWithNewMessage(group.getConversationKey());
+    }
+
+    /**
+     * Called by the activity with messages a neighbour had that were missing here
+     */
+    public void onMessagesSynced(String conversationKey, List<ChatMessage> messages) {
+        boolean currentChat = currentChatDevice != null &&
+                currentChatDevice.getDeviceAddress().equals(conversationKey);
+
+        for (ChatMessage message : messages) {
+            saveReceivedMessage(message);
+            if (currentChat) {
+                // Synced messages are usually older than what is on screen; the cache slots them in
+                int index = conversationBuffer.add(message);
+                if (index >= 0) {
+                    chatMessagesAdapter.notifyItemInserted(index);
+                }
             }
+        }
+        updateDeviceWithNewMessage(conversationKey);
+        Log.d(TAG, "Synced " + messages.size() + " missing messages for " + conversationKey);
+    }
 
-            // Update device status regardless of current chat
-            updateDeviceWithNewMessage(message.getDeviceAddress());
+    /**
+     * @param live true for a message sent or received just now, which may count as unread; false
+     *             for one from the cloud copy, which was counted where it first arrived
+     */
+    private void recordHistory(ChatMessage message, boolean live) {
+        if (chatFragmentListener == null) {
+            return;
+        }
+        LocalChatHistory chatHistory = chatFragmentListener.getChatHistory();
+        // Off the main thread: the first message of a conversation reads it from the store
+        chatFragmentListener.getHistoryExecutor().execute(() -> {
+            if (live) {
+                chatHistory.addMessage(message);
+            } else {
+                chatHistory.addHistory(message);
+            }
         });
     }
 
+    private String generateMessageId() {
+        return UUID.randomUUID().toString();
+    }
+
     // New method to update device status when new message arrives
     private void updateDeviceWithNewMessage(String deviceAddress) {
         ConnectedDevice device = findConnectedDevice(deviceAddress);
@@ -598,19 +981,65 @@ public class ChatFragment extends Fragment implements
         }
     }
 
+    // ChatStore.DeltaListener implementation
     @Override
-    public void onMessagesLoaded(List<ChatMessage> messages) {
-        mainHandler.post(() -> {
-            chatMessagesList.clear();
-            chatMessagesList.addAll(messages);
-            chatMessagesAdapter.notifyDataSetChanged();
-            if (!chatMessagesList.isEmpty()) {
-                recyclerViewChatMessages.scrollToPosition(chatMessagesList.size() - 1);
-            }
-        });
+    public void onMessageAdded(String deviceAddress, ChatMessage message) {
+        recordHistory(message, false);
+        if (isCurrentChat(deviceAddress)) {
+            showMessage(message);
+        }
+    }
+
+    @Override
+    public void onMessageChanged(String deviceAddress, ChatMessage message) {
+        recordHistory(message, false);
+        if (!isCurrentChat(deviceAddress)) {
+            return;
+        }
+        int oldIndex = conversationBuffer.indexOf(message.getId());
+        if (oldIndex < 0) {
+            showMessage(message);
+            return;
+        }
+        int newIndex = conversationBuffer.update(message);
+        if (newIndex != oldIndex) {
+            chatMessagesAdapter.notifyItemMoved(oldIndex, newIndex);
+        }
+        chatMessagesAdapter.notifyItemChanged(newIndex);
     }
 
     @Override
+    public void onMessageRemoved(String deviceAddress, String messageId) {
+        if (!isCurrentChat(deviceAddress)) {
+            return;
+        }
+        int index = conversationBuffer.remove(messageId);
+        if (index >= 0) {
+            chatMessagesAdapter.notifyItemRemoved(index);
+        }
+    }
+
+    private boolean isCurrentChat(String deviceAddress) {
+        return currentChatDevice != null && currentChatDevice.getDeviceAddress().equals(deviceAddress);
+    }
+
+    /**
+     * Insert a message into the open conversation at its sorted position, following it down if
+     * it is the newest
+     * @return false if it was already shown
+     */
+    private boolean showMessage(ChatMessage message) {
+        int index = conversationBuffer.add(message);
+        if (index < 0) {
+            return false;
+        }
+        chatMessagesAdapter.notifyItemInserted(index);
+        if (index == conversationBuffer.size() - 1) {
+            recyclerViewChatMessages.scrollToPosition(index);
+        }
+        return true;
+    }
+
     public void onMessageSent(boolean success, String error) {
         mainHandler.post(() -> {
             if (!success && error != null) {
@@ -626,8 +1055,16 @@ public class ChatFragment extends Fragment implements
         mainHandler.post(() -> {
             connectedDevicesList.clear();
             connectedDevicesList.addAll(devices);
+            loadGroups();
             connectedDevicesAdapter.notifyDataSetChanged();
             updateDevicesVisibility();
+
+            // CRITICAL: Set up message listeners for all devices; devices already followed keep theirs
+            for (ConnectedDevice device : devices) {
+                if (device.getDeviceAddress() != null) {
+                    chatStore.subscribe(device.getDeviceAddress(), ChatFragment.this);
+                }
+            }
         });
     }
 
@@ -653,7 +1090,7 @@ public class ChatFragment extends Fragment implements
                 deviceName = device.getName();
             }
             Log.d(TAG, "Device connected: " + deviceName + " (" + device.getAddress() + ")");
-            addOrUpdateConnectedDevice(device, "Unknown User", android.R.drawable.ic_menu_myplaces);
+            addOrUpdateConnectedDevice(device, "Unknown User", null, android.R.drawable.ic_menu_myplaces);
 
             // Send user info message
             sendUserInfoMessage(device);
@@ -695,7 +1132,13 @@ public class ChatFragment extends Fragment implements
                 deviceName = device.getName();
             }
             Log.d(TAG, "Connection established with: " + deviceName + " (" + device.getAddress() + ")");
-            addOrUpdateConnectedDevice(device, "Unknown User", android.R.drawable.ic_menu_myplaces);
+            addOrUpdateConnectedDevice(device, "Unknown User", null, android.R.drawable.ic_menu_myplaces);
+
+            // Bring the router up here too, its link listeners start the history sync handshake
+            MeshRouter meshRouter = chatFragmentListener != null ? chatFragmentListener.getMeshRouter() : null;
+            if (meshRouter != null) {
+                meshRouter.onLinkUp(device.getAddress(), System.currentTimeMillis());
+            }
         });
     }
 
@@ -718,7 +1161,7 @@ public class ChatFragment extends Fragment implements
     @Override
     public void onDataReceived(byte[] data, int length) {
         if (data != null && length > 0) {
-            String message = new String(data, 0, length);
+            String message = new String(data, 0, length, StandardCharsets.UTF_8);
             mainHandler.post(() -> {
                 Log.d(TAG, "Data received: " + message);
                 // Process the received data as a message
@@ -747,6 +1190,15 @@ public class ChatFragment extends Fragment implements
 
     private void processReceivedMessage(BluetoothDevice device, String receivedMessage) {
         try {
+            // Mesh frames go through the router, which hands local chat frames back via the activity
+            if (MeshFrame.isMeshFrame(receivedMessage)) {
+                MeshRouter meshRouter = chatFragmentListener != null ? chatFragmentListener.getMeshRouter() : null;
+                if (meshRouter != null) {
+                    meshRouter.onFrameReceived(device.getAddress(), receivedMessage, System.currentTimeMillis());
+                }
+                return;
+            }
+
             String[] parts = receivedMessage.split("\\" + MESSAGE_SEPARATOR);
             if (parts.length < 4) {
                 Log.w(TAG, "Invalid message format received: " + receivedMessage);
@@ -760,50 +1212,20 @@ public class ChatFragment extends Fragment implements
             if (MESSAGE_TYPE_USER_INFO.equals(messageType)) {
                 // Handle user info message
                 int profilePicture = Integer.parseInt(parts[3]);
-                addOrUpdateConnectedDevice(device, senderName, profilePicture);
+                addOrUpdateConnectedDevice(device, senderName, senderId, profilePicture);
 
             } else if (MESSAGE_TYPE_TEXT.equals(messageType)) {
                 // Handle text message
-                String messageContent = parts[3];
-
-                // Create unique message ID
-                String messageId = generateUniqueMessageId(senderId, messageContent, System.currentTimeMillis());
+                ChatMessage chatMessage = decodeTextMessage(receivedMessage, device.getAddress(),
+                        System.currentTimeMillis());
 
-                ChatMessage chatMessage = new ChatMessage(
-                        messageId,
-                        senderId,
-                        senderName,
-                        device.getAddress(),
-                        messageContent,
-                        MESSAGE_TYPE_TEXT,
-                        System.currentTimeMillis(),
-                        true // This is a received message
-                );
-
-                Log.d(TAG, "Processing received message: " + messageContent + " from " + senderName);
+                Log.d(TAG, "Processing received message: " + chatMessage.getContent() + " from " + senderName);
 
                 // CRITICAL: Display message immediately on receiver's screen
                 displayReceivedMessage(chatMessage, device.getAddress());
 
                 // Save to Firebase for persistence - but don't wait for it
-                if (firebaseDatabase != null && firebaseDatabase.isUserAuthenticated()) {
-                    firebaseDatabase.sendMessage(chatMessage, new FirebaseChatDatabase.ChatMessageListener() {
-                        @Override
-                        public void onMessageReceived(ChatMessage message) {}
-
-                        @Override
-                        public void onMessagesLoaded(List<ChatMessage> messages) {}
-
-                        @Override
-                        public void onMessageSent(boolean success, String error) {
-                            if (!success) {
-                                Log.e(TAG, "Failed to save received message to Firebase: " + error);
-                            } else {
-                                Log.d(TAG, "Successfully saved received message to Firebase");
-                            }
-                        }
-                    });
-                }
+                saveReceivedMessage(chatMessage);
 
                 // Update connected device info
                 updateConnectedDeviceInfo(device, senderName);
@@ -813,23 +1235,41 @@ public class ChatFragment extends Fragment implements
         }
     }
 
+    private void saveReceivedMessage(ChatMessage chatMessage) {
+        uploadMessage(chatMessage);
+    }
+
+    /**
+     * Hand a message to the sync engine, which keeps it in the outbox until Firebase has it
+     */
+    private void uploadMessage(ChatMessage message) {
+        SyncEngine syncEngine = chatFragmentListener != null ? chatFragmentListener.getSyncEngine() : null;
+        if (syncEngine != null) {
+            syncEngine.enqueue(message);
+        } else {
+            Log.w(TAG, "No sync engine, message " + message.getId() + " stays local");
+        }
+    }
+
     private void displayReceivedMessage(ChatMessage chatMessage, String deviceAddress) {
+        recordHistory(chatMessage, true);
+
         // ALWAYS display the message if it's from any connected device
         // Not just the currently selected chat device
 
-        // First, check if message already exists to avoid duplicates
-        boolean messageExists = chatMessagesList.stream()
-                .anyMatch(msg -> msg.getId().equals(chatMessage.getId()) ||
-                        (msg.getContent().equals(chatMessage.getContent()) &&
-                                msg.getSenderId().equals(chatMessage.getSenderId()) &&
-                                Math.abs(msg.getTimestamp() - chatMessage.getTimestamp()) < 2000));
+        // First, check if message already exists to avoid duplicates; an echo under another ID
+        // is only looked for among the messages within two seconds of it
+        boolean messageExists = conversationBuffer.contains(chatMessage.getId());
+        for (ChatMessage msg : conversationBuffer.between(chatMessage.getTimestamp() - 1999,
+                chatMessage.getTimestamp() + 1999)) {
+            messageExists |= msg.getContent().equals(chatMessage.getContent()) &&
+                    msg.getSenderId().equals(chatMessage.getSenderId());
+        }
 
         if (!messageExists) {
             // If this device is currently selected for chat, show immediately
-            if (currentChatDevice != null && currentChatDevice.getDeviceAddress().equals(deviceAddress)) {
-                chatMessagesList.add(chatMessage);
-                chatMessagesAdapter.notifyItemInserted(chatMessagesList.size() - 1);
-                recyclerViewChatMessages.scrollToPosition(chatMessagesList.size() - 1);
+            if (isCurrentChat(deviceAddress)) {
+                showMessage(chatMessage);
                 Log.d(TAG, "Added received message to current chat display");
             } else {
                 // Message is from a different device - update that device's status
@@ -854,42 +1294,171 @@ public class ChatFragment extends Fragment implements
 
 
     // Helper method to generate unique message IDs
-    private String generateUniqueMessageId(String senderId, String content, long timestamp) {
+    /**
+     * Parse a plain-text chat message received from a direct neighbour
+     * @return the message, or null if the text is not a chat message
+     */
+    public static ChatMessage decodeTextMessage(String receivedMessage, String deviceAddress, long now) {
+        String[] parts = receivedMessage.split("\\" + MESSAGE_SEPARATOR);
+        if (parts.length < 4 || !MESSAGE_TYPE_TEXT.equals(parts[0])) {
+            return null;
+        }
+        return new ChatMessage(
+                generateUniqueMessageId(parts[2], parts[3], now),
+                parts[2],
+                parts[1],
+                deviceAddress,
+                parts[3],
+                MESSAGE_TYPE_TEXT,
+                now,
+                true // This is a received message
+        );
+    }
+
+    private static String generateUniqueMessageId(String senderId, String content, long timestamp) {
         return senderId + "_" + content.hashCode() + "_" + timestamp;
     }
 
     // Also make sure your loadChatHistory method is robust
     private void loadChatHistory(String deviceAddress) {
-        chatMessagesList.clear();
+        conversationBuffer.clear();
+        olderLocalPosition = null;
+        int request = ++localPageRequest;
+        loadingLocalPage = false;
+        remoteHistoryExhausted = false;
+        loadingRemotePage = false;
         chatMessagesAdapter.notifyDataSetChanged();
 
+        // Show the newest page from the device as soon as the log has read it, off the main
+        // thread; Firebase fills in when it answers, whichever comes first
+        SegmentedChatLog chatLog = chatFragmentListener != null ? chatFragmentListener.getChatLog() : null;
+        if (chatLog != null) {
+            loadingLocalPage = true;
+            chatLog.readPage(deviceAddress, null, LOCAL_PAGE_SIZE, (address, page) -> mainHandler.post(() -> {
+                if (request != localPageRequest) {
+                    return;
+                }
+                loadingLocalPage = false;
+                olderLocalPosition = page.getOlder();
+                for (ChatMessage message : page.getMessages()) {
+                    showMessage(message);
+                }
+            }));
+        }
+
         if (firebaseDatabase != null && firebaseDatabase.isUserAuthenticated()) {
             Log.d(TAG, "Loading chat history for device: " + deviceAddress);
 
-            // Load existing messages
-            firebaseDatabase.loadChatMessages(deviceAddress, this);
-
-            // IMPORTANT: Start listening for new messages in real-time
-            firebaseDatabase.startListeningForMessages(deviceAddress, this);
+            // Delivers the newest page, then new messages in real-time; older pages load on scroll.
+            // A conversation already being followed delivers nothing new, so show its cached page
+            chatStore.subscribe(deviceAddress, this);
+            chatStore.loadPage(deviceAddress, null, (address, messages, hasOlder) -> {
+                if (isCurrentChat(address)) {
+                    for (ChatMessage message : messages) {
+                        showMessage(message);
+                    }
+                }
+            });
         } else {
             Log.w(TAG, "Firebase database not available or user not authenticated");
         }
     }
 
+    /**
+     * Insert the page before the oldest one shown, skipping messages already in the list. The
+     * device log is read first; once it runs out, pages come from Firebase.
+     */
+    private void loadOlderMessages() {
+        SegmentedChatLog chatLog = chatFragmentListener != null ? chatFragmentListener.getChatLog() : null;
+        if (currentChatDevice == null) {
+            return;
+        }
+        if (loadingLocalPage) {
+            return;
+        }
+        if (chatLog == null || olderLocalPosition == null) {
+            loadOlderRemoteMessages();
+            return;
+        }
+
+        int request = localPageRequest;
+        loadingLocalPage = true;
+        chatLog.readPage(currentChatDevice.getDeviceAddress(), olderLocalPosition, LOCAL_PAGE_SIZE,
+                (address, page) -> mainHandler.post(() -> {
+                    if (request != localPageRequest) {
+                        return;
+                    }
+                    loadingLocalPage = false;
+                    olderLocalPosition = page.getOlder();
+                    for (ChatMessage message : page.getMessages()) {
+                        int index = conversationBuffer.add(message);
+                        if (index >= 0) {
+                            chatMessagesAdapter.notifyItemInserted(index);
+                        }
+                    }
+                }));
+    }
+
+    private void loadOlderRemoteMessages() {
+        if (remoteHistoryExhausted || loadingRemotePage || chatMessagesList.isEmpty() ||
+                firebaseDatabase == null || !firebaseDatabase.isUserAuthenticated()) {
+            return;
+        }
+
+        loadingRemotePage = true;
+        chatStore.loadPage(currentChatDevice.getDeviceAddress(), chatMessagesList.get(0),
+                (deviceAddress, messages, hasOlder) -> {
+                    if (!isCurrentChat(deviceAddress)) {
+                        return;
+                    }
+                    loadingRemotePage = false;
+                    remoteHistoryExhausted = !hasOlder;
+                    for (ChatMessage message : messages) {
+                        recordHistory(message, false);
+                        int index = conversationBuffer.add(message);
+                        if (index >= 0) {
+                            chatMessagesAdapter.notifyItemInserted(index);
+                        }
+                    }
+                    Log.d(TAG, "Loaded " + messages.size() + " older messages for " + deviceAddress);
+                });
+    }
+
     private void stopListeningForMessages() {
         if (firebaseDatabase != null && currentChatDevice != null) {
-            firebaseDatabase.stopListeningForMessages(currentChatDevice.getDeviceAddress());
+            chatStore.unsubscribe(currentChatDevice.getDeviceAddress(), this);
         }
     }
 
     // Public methods for external access
+    /**
+     * Clear the open conversation everywhere it is kept: the on-device layers through the chat
+     * history, pending uploads, and the cloud copy
+     */
     public void clearChatHistory() {
         if (currentChatDevice != null) {
-            chatMessagesList.clear();
+            String conversationKey = currentChatDevice.getDeviceAddress();
+            long clearedAt = System.currentTimeMillis();
+            conversationBuffer.clear();
+            olderLocalPosition = null;
+            localPageRequest++;
+            loadingLocalPage = false;
             chatMessagesAdapter.notifyDataSetChanged();
 
+            if (chatFragmentListener != null) {
+                LocalChatHistory chatHistory = chatFragmentListener.getChatHistory();
+                if (chatHistory != null) {
+                    // Behind any message still on its way into the history
+                    chatFragmentListener.getHistoryExecutor().execute(() ->
+                            chatHistory.clearConversation(conversationKey, clearedAt));
+                }
+                SyncEngine syncEngine = chatFragmentListener.getSyncEngine();
+                if (syncEngine != null) {
+                    syncEngine.clearConversation(conversationKey, clearedAt);
+                }
+            }
             if (firebaseDatabase != null && firebaseDatabase.isUserAuthenticated()) {
-                firebaseDatabase.deleteChatHistory(currentChatDevice.getDeviceAddress());
+                chatStore.deleteConversation(conversationKey, null);
             }
         }
     }
@@ -906,7 +1475,7 @@ public class ChatFragment extends Fragment implements
         // Clear chat if this was the current chat device
         if (currentChatDevice != null && currentChatDevice.equals(device)) {
             currentChatDevice = null;
-            chatMessagesList.clear();
+            conversationBuffer.clear();
             chatMessagesAdapter.notifyDataSetChanged();
             textViewChatWith.setVisibility(View.GONE);
             editTextMessage.setEnabled(false);
@@ -11,6 +11,8 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.meshup.R;
 import com.example.meshup.ui.data.ConnectedDevice;
+import com.example.meshup.ui.data.ConversationIndex;
+import com.example.meshup.ui.data.ConversationSummary;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -22,6 +24,7 @@ public class ConnectedDevicesAdapter extends RecyclerView.Adapter<ConnectedDevic
     private List<ConnectedDevice> devices;
     private OnDeviceClickListener listener;
     private ConnectedDevice selectedDevice;
+    private ConversationIndex conversationIndex;
 
     public interface OnDeviceClickListener {
         void onDeviceClick(ConnectedDevice device);
@@ -51,6 +54,11 @@ public class ConnectedDevicesAdapter extends RecyclerView.Adapter<ConnectedDevic
         return devices.size();
     }
 
+    public void setConversationIndex(ConversationIndex conversationIndex) {
+        this.conversationIndex = conversationIndex;
+        notifyDataSetChanged();
+    }
+
     public void setSelectedDevice(ConnectedDevice device) {
         ConnectedDevice previousSelected = selectedDevice;
         selectedDevice = device;
@@ -74,6 +82,8 @@ public class ConnectedDevicesAdapter extends RecyclerView.Adapter<ConnectedDevic
         private TextView textViewUsername;
         private TextView textViewDeviceName;
         private TextView textViewLastSeen;
+        private TextView textViewLastMessage;
+        private TextView textViewUnread;
         private View statusIndicator;
         private View itemContainer;
 
@@ -83,6 +93,8 @@ public class ConnectedDevicesAdapter extends RecyclerView.Adapter<ConnectedDevic
             textViewUsername = itemView.findViewById(R.id.textView_username);
             textViewDeviceName = itemView.findViewById(R.id.textView_device_name);
             textViewLastSeen = itemView.findViewById(R.id.textView_last_seen);
+            textViewLastMessage = itemView.findViewById(R.id.textView_last_message);
+            textViewUnread = itemView.findViewById(R.id.textView_unread);
             statusIndicator = itemView.findViewById(R.id.status_indicator);
             itemContainer = itemView.findViewById(R.id.item_container);
 
@@ -116,6 +128,23 @@ public class ConnectedDevicesAdapter extends RecyclerView.Adapter<ConnectedDevic
                 textViewLastSeen.setTextColor(itemView.getContext().getColor(R.color.text_secondary));
             }
 
+            // Last message preview and unread badge from the conversation index
+            ConversationSummary summary = conversationIndex != null
+                    ? conversationIndex.getSummary(device.getDeviceAddress()) : null;
+            if (summary != null && summary.getLastMessage() != null) {
+                textViewLastMessage.setText(summary.getLastSender() != null
+                        ? summary.getLastSender() + ": " + summary.getLastMessage() : summary.getLastMessage());
+                textViewLastMessage.setVisibility(View.VISIBLE);
+            } else {
+                textViewLastMessage.setVisibility(View.GONE);
+            }
+            if (summary != null && summary.getUnreadCount() > 0) {
+                textViewUnread.setText(summary.getUnreadCount() > 99 ? "99+" : String.valueOf(summary.getUnreadCount()));
+                textViewUnread.setVisibility(View.VISIBLE);
+            } else {
+                textViewUnread.setVisibility(View.GONE);
+            }
+
             // Set selection state
             if (isSelected) {
                 itemContainer.setBackgroundResource(R.color.item_selected);
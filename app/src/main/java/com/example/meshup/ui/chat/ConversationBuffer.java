@@ -0,0 +1,273 @@
+package com.example.meshup.ui.chat;
+
+import com.example.meshup.ui.data.ChatMessage;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The messages of the open conversation, kept sorted by timestamp and then ID, which is the order
+ * Firebase uses for orderByChild("timestamp").
+ *
+ * Messages sit in a treap whose nodes also count their subtree, so finding a message's position,
+ * inserting, moving and removing one all take O(log n) however late it arrived, and nothing is
+ * ever re-sorted. Every change returns the positions it touched, so the caller can send the
+ * matching fine-grained notification instead of redrawing the whole list; the adapter renders
+ * the read-only {@link #asList()} view.
+ */
+public class ConversationBuffer {
+    private static final class Node {
+        final ChatMessage message;
+        final int priority;
+        Node left;
+        Node right;
+        int size = 1;
+
+        Node(ChatMessage message, int priority) {
+            this.message = message;
+            this.priority = priority;
+        }
+    }
+
+    private final Map<String, ChatMessage> messagesById = new HashMap<>();
+    private final List<ChatMessage> view = new AbstractList<ChatMessage>() {
+        @Override
+        public ChatMessage get(int index) {
+            return ConversationBuffer.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return ConversationBuffer.this.size();
+        }
+    };
+    private Node root;
+    private int seed = 0x2545F491;
+
+    /**
+     * @return the position the message was inserted at, or -1 if its ID is already shown
+     */
+    public int add(ChatMessage message) {
+        if (message == null || message.getId() == null || messagesById.containsKey(message.getId())) {
+            return -1;
+        }
+        root = insert(root, new Node(message, nextPriority()));
+        messagesById.put(message.getId(), message);
+        return rank(message);
+    }
+
+    /**
+     * Replace the shown copy of a message; the caller reads {@link #indexOf(String)} first to
+     * know where it was
+     * @return its new position, or -1 if the message is not shown
+     */
+    public int update(ChatMessage message) {
+        if (message == null || remove(message.getId()) < 0) {
+            return -1;
+        }
+        return add(message);
+    }
+
+    /**
+     * @return the position the message was removed from, or -1 if it was not shown
+     */
+    public int remove(String id) {
+        ChatMessage message = id != null ? messagesById.remove(id) : null;
+        if (message == null) {
+            return -1;
+        }
+        int index = rank(message);
+        root = delete(root, message);
+        return index;
+    }
+
+    public int indexOf(String id) {
+        ChatMessage message = id != null ? messagesById.get(id) : null;
+        return message != null ? rank(message) : -1;
+    }
+
+    public boolean contains(String id) {
+        return id != null && messagesById.containsKey(id);
+    }
+
+    public ChatMessage get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size());
+        }
+        Node node = root;
+        while (true) {
+            int leftSize = size(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index == leftSize) {
+                return node.message;
+            } else {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * @return the shown messages with from &lt;= timestamp &lt;= to, oldest first
+     */
+    public List<ChatMessage> between(long from, long to) {
+        List<ChatMessage> messages = new ArrayList<>();
+        for (int i = countBefore(from); i < size(); i++) {
+            ChatMessage message = get(i);
+            if (message.getTimestamp() > to) {
+                break;
+            }
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    public int size() {
+        return size(root);
+    }
+
+    public void clear() {
+        root = null;
+        messagesById.clear();
+    }
+
+    /**
+     * Live, read-only view in display order
+     */
+    public List<ChatMessage> asList() {
+        return view;
+    }
+
+    /**
+     * @return how many messages are older than the timestamp
+     */
+    private int countBefore(long timestamp) {
+        int count = 0;
+        Node node = root;
+        while (node != null) {
+            if (node.message.getTimestamp() < timestamp) {
+                count += size(node.left) + 1;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return count;
+    }
+
+    private int rank(ChatMessage message) {
+        int rank = 0;
+        Node node = root;
+        while (node != null) {
+            int order = compare(message, node.message);
+            if (order < 0) {
+                node = node.left;
+            } else if (order == 0) {
+                return rank + size(node.left);
+            } else {
+                rank += size(node.left) + 1;
+                node = node.right;
+            }
+        }
+        return -1;
+    }
+
+    private static Node insert(Node node, Node added) {
+        if (node == null) {
+            return added;
+        }
+        if (compare(added.message, node.message) < 0) {
+            node.left = insert(node.left, added);
+            if (node.left.priority > node.priority) {
+                return rotateRight(node);
+            }
+        } else {
+            node.right = insert(node.right, added);
+            if (node.right.priority > node.priority) {
+                return rotateLeft(node);
+            }
+        }
+        resize(node);
+        return node;
+    }
+
+    private static Node delete(Node node, ChatMessage message) {
+        if (node == null) {
+            return null;
+        }
+        int order = compare(message, node.message);
+        if (order == 0) {
+            return merge(node.left, node.right);
+        }
+        if (order < 0) {
+            node.left = delete(node.left, message);
+        } else {
+            node.right = delete(node.right, message);
+        }
+        resize(node);
+        return node;
+    }
+
+    /**
+     * Join two treaps where everything in the first sorts before everything in the second
+     */
+    private static Node merge(Node first, Node second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        if (first.priority > second.priority) {
+            first.right = merge(first.right, second);
+            resize(first);
+            return first;
+        }
+        second.left = merge(first, second.left);
+        resize(second);
+        return second;
+    }
+
+    private static Node rotateRight(Node node) {
+        Node left = node.left;
+        node.left = left.right;
+        left.right = node;
+        resize(node);
+        resize(left);
+        return left;
+    }
+
+    private static Node rotateLeft(Node node) {
+        Node right = node.right;
+        node.right = right.left;
+        right.left = node;
+        resize(node);
+        resize(right);
+        return right;
+    }
+
+    private static void resize(Node node) {
+        node.size = size(node.left) + size(node.right) + 1;
+    }
+
+    private static int size(Node node) {
+        return node != null ? node.size : 0;
+    }
+
+    // Xorshift: priorities only need to be spread out, not unpredictable
+    private int nextPriority() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return seed;
+    }
+
+    private static int compare(ChatMessage a, ChatMessage b) {
+        int byTime = Long.compare(a.getTimestamp(), b.getTimestamp());
+        return byTime != 0 ? byTime : a.getId().compareTo(b.getId());
+    }
+}
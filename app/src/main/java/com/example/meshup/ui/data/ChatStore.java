@@ -0,0 +1,61 @@
+package com.example.meshup.ui.data;
+
+import java.util.List;
+
+/**
+ * Where chat messages live, one ordered history per conversation.
+ *
+ * Messages are ordered by timestamp, then ID, and pages are cut at a message rather than a time,
+ * so paging back never skips or repeats a message. {@link FirebaseChatDatabase} keeps them under
+ * chats/&lt;uid&gt;/&lt;conversation&gt;/messages, {@link LocalChatStore} in the device's SQLite store
+ * and {@link InMemoryChatStore} in memory only, which runs the whole chat pipeline without a
+ * device or a network.
+ */
+public interface ChatStore {
+    int PAGE_SIZE = 50;
+
+    /**
+     * Per-message changes of one conversation. Messages already stored arrive as additions first,
+     * in timestamp order, then every later change arrives on its own.
+     */
+    interface DeltaListener {
+        void onMessageAdded(String conversationKey, ChatMessage message);
+        void onMessageChanged(String conversationKey, ChatMessage message);
+        void onMessageRemoved(String conversationKey, String messageId);
+    }
+
+    interface PageListener {
+        /**
+         * @param messages oldest first
+         * @param hasOlder whether another page may exist before this one
+         */
+        void onPageLoaded(String conversationKey, List<ChatMessage> messages, boolean hasOlder);
+    }
+
+    interface WriteListener {
+        void onWriteComplete(boolean success, String error);
+    }
+
+    /**
+     * Add a message, or replace the one with its ID
+     */
+    void append(ChatMessage message, WriteListener listener);
+
+    /**
+     * Load up to {@link #PAGE_SIZE} messages: the newest when before is null, otherwise the ones
+     * that sort just before it
+     */
+    void loadPage(String conversationKey, ChatMessage before, PageListener listener);
+
+    /**
+     * Deliver the conversation's newest page, then every change to it. Subscribing again with the
+     * same listener does nothing.
+     */
+    void subscribe(String conversationKey, DeltaListener listener);
+
+    void unsubscribe(String conversationKey, DeltaListener listener);
+
+    void delete(String conversationKey, List<ChatMessage> messages, WriteListener listener);
+
+    void deleteConversation(String conversationKey, WriteListener listener);
+}
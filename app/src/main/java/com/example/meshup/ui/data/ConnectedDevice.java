@@ -4,6 +4,7 @@ public class ConnectedDevice {
     private String deviceAddress;
     private String deviceName;
     private String username;
+    private String userId;
     private int profilePicture;
     private long lastSeen;
     private boolean isOnline;
@@ -25,6 +26,7 @@ public class ConnectedDevice {
     public String getDeviceAddress() { return deviceAddress; }
     public String getDeviceName() { return deviceName; }
     public String getUsername() { return username; }
+    public String getUserId() { return userId; }
     public int getProfilePicture() { return profilePicture; }
     public long getLastSeen() { return lastSeen; }
     public boolean isOnline() { return isOnline; }
@@ -33,6 +35,7 @@ public class ConnectedDevice {
     public void setDeviceAddress(String deviceAddress) { this.deviceAddress = deviceAddress; }
     public void setDeviceName(String deviceName) { this.deviceName = deviceName; }
     public void setUsername(String username) { this.username = username; }
+    public void setUserId(String userId) { this.userId = userId; }
     public void setProfilePicture(int profilePicture) { this.profilePicture = profilePicture; }
     public void setLastSeen(long lastSeen) { this.lastSeen = lastSeen; }
     public void setOnline(boolean online) { isOnline = online; }
@@ -0,0 +1,235 @@
+package com.example.meshup.ui.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Per-conversation summaries, kept up to date one message at a time.
+ *
+ * Every message added to the chat history moves its conversation's last message forward and,
+ * if it was received live while that conversation is not open, adds to its unread count. Changes
+ * are written to the local store, which coalesces them, and handed to a mirror that keeps one
+ * compact remote node, so the conversation list never needs to read message history.
+ */
+public class ConversationIndex implements LocalChatHistory.MessageSink {
+
+    public interface Listener {
+        void onConversationUpdated(ConversationSummary summary);
+    }
+
+    public interface Mirror {
+        void onSummaryChanged(ConversationSummary summary);
+    }
+
+    private final LocalMessageStore store;
+    private final Map<String, ConversationSummary> summaries = new HashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private Mirror mirror;
+    private String openConversation;
+
+    public ConversationIndex(LocalMessageStore store) {
+        this.store = store;
+    }
+
+    public void setMirror(Mirror mirror) {
+        this.mirror = mirror;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Read the stored summaries, one small query; call off the main thread
+     */
+    public void load() {
+        List<ConversationSummary> stored = store.getConversationSummaries();
+        synchronized (this) {
+            for (ConversationSummary summary : stored) {
+                ConversationSummary known = summaries.get(summary.getConversationKey());
+                if (known == null || known.getLastTimestamp() < summary.getLastTimestamp()) {
+                    summaries.put(summary.getConversationKey(), summary);
+                }
+            }
+        }
+        for (ConversationSummary summary : stored) {
+            notifyListeners(summary);
+        }
+    }
+
+    /**
+     * Take summaries from the remote node where they are newer, e.g. on a fresh install
+     */
+    public void merge(List<ConversationSummary> remote) {
+        for (ConversationSummary summary : remote) {
+            ConversationSummary merged = null;
+            synchronized (this) {
+                ConversationSummary known = summaries.get(summary.getConversationKey());
+                if (known == null || known.getLastTimestamp() < summary.getLastTimestamp()) {
+                    summaries.put(summary.getConversationKey(), summary.copy());
+                    merged = summary.copy();
+                }
+            }
+            if (merged != null) {
+                store.putConversation(merged);
+                notifyListeners(merged);
+            }
+        }
+    }
+
+    @Override
+    public void onMessageAdded(ChatMessage message, boolean live) {
+        ConversationSummary changed = null;
+        synchronized (this) {
+            ConversationSummary summary = apply(message, live);
+            if (summary != null) {
+                changed = summary.copy();
+            }
+        }
+        if (changed != null) {
+            publish(changed);
+        }
+    }
+
+    /**
+     * Take imported messages, as history: previews move forward but nothing counts as unread, and
+     * each conversation is published once for the whole list
+     */
+    public void addHistory(List<ChatMessage> messages) {
+        Map<String, ConversationSummary> changed = new LinkedHashMap<>();
+        synchronized (this) {
+            for (ChatMessage message : messages) {
+                ConversationSummary summary = apply(message, false);
+                if (summary != null) {
+                    changed.put(summary.getConversationKey(), summary);
+                }
+            }
+            for (Map.Entry<String, ConversationSummary> entry : changed.entrySet()) {
+                entry.setValue(entry.getValue().copy());
+            }
+        }
+        for (ConversationSummary summary : changed.values()) {
+            publish(summary);
+        }
+    }
+
+    /**
+     * Only a message sent or received live counts as unread; history sync, remote pages and
+     * imports bring in messages that were read, or counted, where they first arrived
+     * @return the changed summary, or null if the message changes nothing
+     */
+    private ConversationSummary apply(ChatMessage message, boolean live) {
+        String key = message.getDeviceAddress();
+        if (key == null) {
+            return null;
+        }
+
+        ConversationSummary summary = summaries.get(key);
+        if (summary == null) {
+            summary = new ConversationSummary(key, null, null, null, 0, 0);
+            summaries.put(key, summary);
+        }
+        // History sync can bring in older messages; only a newer one becomes the preview
+        if (message.getTimestamp() < summary.getLastTimestamp()) {
+            return null;
+        }
+        if (message.isReceived() && message.getSenderName() != null) {
+            summary.setPeerName(message.getSenderName());
+        }
+        summary.setLastMessage(message.getContent());
+        summary.setLastSender(message.getSenderName());
+        summary.setLastTimestamp(message.getTimestamp());
+        if (live && message.isReceived() && !key.equals(openConversation)) {
+            summary.setUnreadCount(summary.getUnreadCount() + 1);
+        }
+        return summary;
+    }
+
+    /**
+     * Keep the conversation in the list, without a preview or unread messages
+     */
+    @Override
+    public void onConversationCleared(String conversationKey, long before) {
+        ConversationSummary changed;
+        synchronized (this) {
+            ConversationSummary summary = summaries.get(conversationKey);
+            if (summary == null || summary.getLastTimestamp() >= before) {
+                return;
+            }
+            summary.setLastMessage(null);
+            summary.setLastSender(null);
+            summary.setUnreadCount(0);
+            changed = summary.copy();
+        }
+        publish(changed);
+    }
+
+    /**
+     * The conversation on screen; its received messages count as read
+     */
+    public void setOpenConversation(String conversationKey) {
+        synchronized (this) {
+            openConversation = conversationKey;
+        }
+        if (conversationKey != null) {
+            markRead(conversationKey);
+        }
+    }
+
+    public void markRead(String conversationKey) {
+        ConversationSummary changed = null;
+        synchronized (this) {
+            ConversationSummary summary = summaries.get(conversationKey);
+            if (summary != null && summary.getUnreadCount() != 0) {
+                summary.setUnreadCount(0);
+                changed = summary.copy();
+            }
+        }
+        if (changed != null) {
+            publish(changed);
+        }
+    }
+
+    /**
+     * @return a copy of the conversation's summary, or null if it has no messages yet
+     */
+    public synchronized ConversationSummary getSummary(String conversationKey) {
+        ConversationSummary summary = summaries.get(conversationKey);
+        return summary != null ? summary.copy() : null;
+    }
+
+    /**
+     * @return copies of all summaries, most recent conversation first
+     */
+    public synchronized List<ConversationSummary> getSummaries() {
+        List<ConversationSummary> copies = new ArrayList<>();
+        for (ConversationSummary summary : summaries.values()) {
+            copies.add(summary.copy());
+        }
+        copies.sort((a, b) -> Long.compare(b.getLastTimestamp(), a.getLastTimestamp()));
+        return copies;
+    }
+
+    private void publish(ConversationSummary summary) {
+        store.putConversation(summary);
+        Mirror currentMirror = mirror;
+        if (currentMirror != null) {
+            currentMirror.onSummaryChanged(summary);
+        }
+        notifyListeners(summary);
+    }
+
+    private void notifyListeners(ConversationSummary summary) {
+        for (Listener listener : listeners) {
+            listener.onConversationUpdated(summary);
+        }
+    }
+}
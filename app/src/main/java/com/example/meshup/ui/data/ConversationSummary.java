@@ -0,0 +1,47 @@
+package com.example.meshup.ui.data;
+
+/**
+ * One row of the conversation index: who the conversation is with, its newest message and how
+ * many received messages have not been read yet
+ */
+public class ConversationSummary {
+    private String conversationKey;
+    private String peerName;
+    private String lastMessage;
+    private String lastSender;
+    private long lastTimestamp;
+    private int unreadCount;
+
+    // Default constructor for Firebase
+    public ConversationSummary() {}
+
+    public ConversationSummary(String conversationKey, String peerName, String lastMessage,
+                               String lastSender, long lastTimestamp, int unreadCount) {
+        this.conversationKey = conversationKey;
+        this.peerName = peerName;
+        this.lastMessage = lastMessage;
+        this.lastSender = lastSender;
+        this.lastTimestamp = lastTimestamp;
+        this.unreadCount = unreadCount;
+    }
+
+    public ConversationSummary copy() {
+        return new ConversationSummary(conversationKey, peerName, lastMessage, lastSender, lastTimestamp, unreadCount);
+    }
+
+    // Getters
+    public String getConversationKey() { return conversationKey; }
+    public String getPeerName() { return peerName; }
+    public String getLastMessage() { return lastMessage; }
+    public String getLastSender() { return lastSender; }
+    public long getLastTimestamp() { return lastTimestamp; }
+    public int getUnreadCount() { return unreadCount; }
+
+    // Setters
+    public void setConversationKey(String conversationKey) { this.conversationKey = conversationKey; }
+    public void setPeerName(String peerName) { this.peerName = peerName; }
+    public void setLastMessage(String lastMessage) { this.lastMessage = lastMessage; }
+    public void setLastSender(String lastSender) { this.lastSender = lastSender; }
+    public void setLastTimestamp(long lastTimestamp) { this.lastTimestamp = lastTimestamp; }
+    public void setUnreadCount(int unreadCount) { this.unreadCount = unreadCount; }
+}
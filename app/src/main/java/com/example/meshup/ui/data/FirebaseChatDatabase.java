@@ -7,43 +7,65 @@ import androidx.annotation.NonNull;
 import com.example.meshup.UserModel;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
+import com.google.firebase.database.ChildEventListener;
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.Query;
 import com.google.firebase.database.ValueEventListener;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-public class FirebaseChatDatabase {
+/**
+ * Firebase backend of the chat store. Every conversation's messages live under
+ * chats/&lt;uid&gt;/&lt;conversation&gt;/messages, which sending, paging, listening and deleting all use.
+ */
+public class FirebaseChatDatabase implements ChatStore {
 
     private static final String TAG = "FirebaseChatDatabase";
     private static final String USERS_NODE = "Users";
-    private static final String CHATS_NODE = "Chats";
-    private static final String MESSAGES_NODE = "Messages";
+    private static final String CHATS_NODE = "chats";
     private static final String CONNECTED_DEVICES_NODE = "ConnectedDevices";
+    private static final String CONVERSATIONS_NODE = "conversations";
+    private static final int PAGE_CACHE_SIZE = 32;
+    private static final int DELETE_BATCH_SIZE = 200;
 
     private FirebaseDatabase database;
     private DatabaseReference usersRef;
-    private DatabaseReference chatsRef;
-    private DatabaseReference messagesRef;
     private DatabaseReference connectedDevicesRef;
     private FirebaseAuth auth;
     private String currentUserId;
+    private WriteBatcher writeBatcher;
+    private PresenceWriter presenceWriter;
 
     // Listeners
-    private ChatMessageListener messageListener;
     private ConnectedDevicesListener devicesListener;
     private UserProfileListener userProfileListener;
-    private Map<String, ValueEventListener> messageListeners = new HashMap<>();
+    private final SubscriptionRegistry subscriptions = new SubscriptionRegistry();
+    private List<ConnectedDevice> lastDevices;
+    // Conversations that are device nodes under ConnectedDevices; mesh peers and groups are not
+    private final Set<String> deviceAddresses = new HashSet<>();
+    // Page loads in progress, so concurrent requests for the same page share one download
+    private final Map<String, List<PageListener>> pendingPages = new HashMap<>();
+    // Pages already downloaded, keyed by conversation and cursor, least recently used dropped first
+    private final Map<String, List<ChatMessage>> pageCache =
+            new LinkedHashMap<String, List<ChatMessage>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, List<ChatMessage>> eldest) {
+                    return size() > PAGE_CACHE_SIZE;
+                }
+            };
 
-    public interface ChatMessageListener {
-        void onMessageReceived(ChatMessage message);
-        void onMessagesLoaded(List<ChatMessage> messages);
-        void onMessageSent(boolean success, String error);
+    public interface ConversationSummariesListener {
+        void onSummariesLoaded(List<ConversationSummary> summaries);
     }
 
     public interface ConnectedDevicesListener {
@@ -61,9 +83,9 @@ public class FirebaseChatDatabase {
         auth = FirebaseAuth.getInstance();
 
         usersRef = database.getReference(USERS_NODE);
-        chatsRef = database.getReference(CHATS_NODE);
-        messagesRef = database.getReference(MESSAGES_NODE);
         connectedDevicesRef = database.getReference(CONNECTED_DEVICES_NODE);
+        writeBatcher = new WriteBatcher(database.getReference());
+        presenceWriter = new PresenceWriter(writeBatcher);
 
         FirebaseUser currentUser = auth.getCurrentUser();
         if (currentUser != null) {
@@ -127,89 +149,265 @@ public class FirebaseChatDatabase {
         }
     }
 
-    public void startListeningForMessages(String deviceAddress, ChatMessageListener listener) {
+    /**
+     * Listeners for the same conversation share one Firebase listener, so resuming the chat screen
+     * downloads nothing that is already being followed.
+     */
+    @Override
+    public void subscribe(String deviceAddress, DeltaListener listener) {
         FirebaseUser currentUser = getCurrentUser();
-        if (currentUser == null) return;
+        if (currentUser == null || listener == null) return;
 
-        String chatPath = "chats/" + currentUser.getUid() + "/" + deviceAddress + "/messages";
-        DatabaseReference messagesRef = database.getReference(chatPath);
+        String chatPath = getMessagesPath(currentUser.getUid(), deviceAddress);
+        SubscriptionRegistry.Result result = subscriptions.subscribe(getMessagesKey(deviceAddress), listener,
+                () -> attachMessageListener(deviceAddress, chatPath));
 
-        // Remove existing listener for this device if any
-        stopListeningForMessages(deviceAddress);
+        if (result == SubscriptionRegistry.Result.JOINED) {
+            // The shared listener only reports changes from here on, so catch up from the cache
+            loadPage(deviceAddress, null, (address, messages, hasOlder) -> {
+                for (ChatMessage message : messages) {
+                    listener.onMessageAdded(deviceAddress, message);
+                }
+            });
+        }
+    }
 
-        ValueEventListener messageListener = new ValueEventListener() {
+    /**
+     * Newest page first, then listen for what comes after its newest message, so neither step
+     * depends on how long the conversation is. If either fails the subscription is dropped, and
+     * the next subscriber attaches again.
+     */
+    private SubscriptionRegistry.Attachment attachMessageListener(String deviceAddress, String chatPath) {
+        String key = getMessagesKey(deviceAddress);
+        MessageSubscription subscription = new MessageSubscription();
+
+        // Child events carry only the message that changed, so a new message costs the same
+        // however long the conversation is
+        subscription.listener = new ChildEventListener() {
             @Override
-            public void onDataChange(@NonNull DataSnapshot snapshot) {
-                List<ChatMessage> messages = new ArrayList<>();
-                for (DataSnapshot messageSnapshot : snapshot.getChildren()) {
-                    try {
-                        ChatMessage message = messageSnapshot.getValue(ChatMessage.class);
-                        if (message != null) {
-                            messages.add(message);
-                        }
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error parsing message", e);
-                    }
+            public void onChildAdded(@NonNull DataSnapshot snapshot, String previousChildName) {
+                ChatMessage message = parseMessage(snapshot);
+                if (message == null) return;
+                updateLatestPage(deviceAddress, message, message.getId());
+                for (DeltaListener owner : subscriptions.getOwners(key, DeltaListener.class)) {
+                    owner.onMessageAdded(deviceAddress, message);
                 }
+            }
 
-                // Sort messages by timestamp
-                messages.sort((m1, m2) -> Long.compare(m1.getTimestamp(), m2.getTimestamp()));
+            @Override
+            public void onChildChanged(@NonNull DataSnapshot snapshot, String previousChildName) {
+                ChatMessage message = parseMessage(snapshot);
+                if (message == null) return;
+                updateLatestPage(deviceAddress, message, message.getId());
+                for (DeltaListener owner : subscriptions.getOwners(key, DeltaListener.class)) {
+                    owner.onMessageChanged(deviceAddress, message);
+                }
+            }
 
-                if (listener != null) {
-                    listener.onMessagesLoaded(messages);
+            @Override
+            public void onChildRemoved(@NonNull DataSnapshot snapshot) {
+                updateLatestPage(deviceAddress, null, snapshot.getKey());
+                for (DeltaListener owner : subscriptions.getOwners(key, DeltaListener.class)) {
+                    owner.onMessageRemoved(deviceAddress, snapshot.getKey());
                 }
             }
 
+            @Override
+            public void onChildMoved(@NonNull DataSnapshot snapshot, String previousChildName) {
+                // A timestamp change also arrives as onChildChanged, which re-sorts the message
+            }
+
             @Override
             public void onCancelled(@NonNull DatabaseError error) {
                 Log.e(TAG, "Failed to listen for messages: " + error.getMessage());
+                subscriptions.remove(key, subscription);
             }
         };
 
-        messagesRef.addValueEventListener(messageListener);
-        messageListeners.put(deviceAddress, messageListener);
+        loadPage(deviceAddress, null, new PageFailureListener() {
+            @Override
+            public void onPageLoaded(String address, List<ChatMessage> messages, boolean hasOlder) {
+                if (subscription.detached) {
+                    return; // Stopped while the page was loading
+                }
+                for (DeltaListener owner : subscriptions.getOwners(key, DeltaListener.class)) {
+                    for (ChatMessage message : messages) {
+                        owner.onMessageAdded(deviceAddress, message);
+                    }
+                }
 
-        Log.d(TAG, "Started listening for messages from device: " + deviceAddress);
+                // The page has been delivered already, so only what is newer comes from the listener
+                Query messagesQuery = database.getReference(chatPath).orderByChild("timestamp");
+                if (!messages.isEmpty()) {
+                    ChatMessage newest = messages.get(messages.size() - 1);
+                    messagesQuery = messagesQuery.startAfter(newest.getTimestamp(), newest.getId());
+                }
+                messagesQuery.addChildEventListener(subscription.listener);
+                subscription.query = messagesQuery;
+                Log.d(TAG, "Started listening for messages from device: " + deviceAddress);
+            }
+
+            @Override
+            public void onPageFailed() {
+                subscriptions.remove(key, subscription);
+            }
+        });
+        return subscription;
     }
 
-    // Method to stop listening for messages from a specific device
-    public void stopListeningForMessages(String deviceAddress) {
-        ValueEventListener listener = messageListeners.get(deviceAddress);
-        FirebaseUser currentUser = getCurrentUser();
-        if (listener != null && currentUser != null) {
-            String chatPath = "chats/" + currentUser.getUid() + "/" + deviceAddress + "/messages";
-            DatabaseReference messagesRef = database.getReference(chatPath);
-            messagesRef.removeEventListener(listener);
-            messageListeners.remove(deviceAddress);
-            Log.d(TAG, "Stopped listening for messages from device: " + deviceAddress);
+    /**
+     * A page listener that is told when the query fails, instead of being handed an empty page
+     */
+    private interface PageFailureListener extends PageListener {
+        void onPageFailed();
+    }
+
+    /**
+     * A message listener that may be detached before its page has loaded and it is attached
+     */
+    private static class MessageSubscription implements SubscriptionRegistry.Attachment {
+        ChildEventListener listener;
+        Query query;
+        boolean detached;
+
+        @Override
+        public void detach() {
+            detached = true;
+            if (query != null) {
+                query.removeEventListener(listener);
+            }
+        }
+    }
+
+    /**
+     * Keep the cached newest page in step with live changes, so a conversation opened again is
+     * served from memory
+     */
+    private void updateLatestPage(String deviceAddress, ChatMessage message, String messageId) {
+        List<ChatMessage> page = pageCache.get(deviceAddress);
+        if (page == null || messageId == null) {
+            return;
+        }
+
+        List<ChatMessage> updated = new ArrayList<>(page.size() + 1);
+        for (ChatMessage cached : page) {
+            if (!messageId.equals(cached.getId())) {
+                updated.add(cached);
+            }
+        }
+        if (message != null) {
+            int index = updated.size();
+            while (index > 0 && isAfter(updated.get(index - 1), message)) {
+                index--;
+            }
+            updated.add(index, message);
+        }
+        while (updated.size() > PAGE_SIZE) {
+            updated.remove(0);
+        }
+        pageCache.put(deviceAddress, updated);
+    }
+
+    private static boolean isAfter(ChatMessage a, ChatMessage b) {
+        return a.getTimestamp() != b.getTimestamp()
+                ? a.getTimestamp() > b.getTimestamp() : a.getId().compareTo(b.getId()) > 0;
+    }
+
+    private static String getMessagesKey(String deviceAddress) {
+        return "messages/" + deviceAddress;
+    }
+
+    private ChatMessage parseMessage(DataSnapshot snapshot) {
+        try {
+            return SnapshotMappers.decodeChatMessage(snapshot);
+        } catch (Exception e) {
+            Log.e(TAG, "Error parsing message", e);
+            return null;
         }
     }
 
+    @Override
+    public void unsubscribe(String deviceAddress, DeltaListener listener) {
+        subscriptions.unsubscribe(getMessagesKey(deviceAddress), listener);
+        Log.d(TAG, "Stopped listening for messages from device: " + deviceAddress);
+    }
+
     // Method to notify about new messages (triggers real-time updates)
     public void notifyNewMessage(String deviceAddress, ChatMessage message) {
-        FirebaseUser currentUser = getCurrentUser();
-        if (currentUser == null) return;
+        if (currentUserId == null) return;
 
-        // Update a "last_message" field that triggers listeners on other devices
-        String chatPath = "chats/" + currentUser.getUid() + "/" + deviceAddress;
-        DatabaseReference chatRef = database.getReference(chatPath);
+        // Only the preview fields; the unread count belongs to the conversation index
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("conversationKey", deviceAddress);
+        fields.put("lastMessage", message.getContent());
+        fields.put("lastSender", message.getSenderName());
+        fields.put("lastTimestamp", message.getTimestamp());
+        presenceWriter.update(getConversationPath(deviceAddress), fields);
+    }
 
-        Map<String, Object> updates = new HashMap<>();
-        updates.put("last_message_time", message.getTimestamp());
-        updates.put("last_message_content", message.getContent());
-        updates.put("last_message_sender", message.getSenderName());
+    /**
+     * Mirror a conversation summary into the compact conversations node; debounced like presence,
+     * so a burst of messages writes the summary once
+     */
+    public void saveConversationSummary(ConversationSummary summary) {
+        if (currentUserId == null) return;
+
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("conversationKey", summary.getConversationKey());
+        fields.put("peerName", summary.getPeerName());
+        fields.put("lastMessage", summary.getLastMessage());
+        fields.put("lastSender", summary.getLastSender());
+        fields.put("lastTimestamp", summary.getLastTimestamp());
+        fields.put("unreadCount", summary.getUnreadCount());
+        presenceWriter.update(getConversationPath(summary.getConversationKey()), fields);
+    }
+
+    /**
+     * One read of the conversations node, without touching any message history
+     */
+    public void loadConversationSummaries(ConversationSummariesListener listener) {
+        if (currentUserId == null || listener == null) return;
+
+        database.getReference(CONVERSATIONS_NODE).child(currentUserId)
+                .addListenerForSingleValueEvent(new ValueEventListener() {
+                    @Override
+                    public void onDataChange(@NonNull DataSnapshot snapshot) {
+                        List<ConversationSummary> summaries = new ArrayList<>();
+                        for (DataSnapshot summarySnapshot : snapshot.getChildren()) {
+                            try {
+                                ConversationSummary summary = summarySnapshot.getValue(ConversationSummary.class);
+                                if (summary != null && summary.getConversationKey() != null) {
+                                    summaries.add(summary);
+                                }
+                            } catch (Exception e) {
+                                Log.e(TAG, "Error parsing conversation summary", e);
+                            }
+                        }
+                        listener.onSummariesLoaded(summaries);
+                    }
+
+                    @Override
+                    public void onCancelled(@NonNull DatabaseError error) {
+                        Log.e(TAG, "Failed to load conversation summaries", error.toException());
+                    }
+                });
+    }
 
-        chatRef.updateChildren(updates)
-                .addOnSuccessListener(aVoid -> Log.d(TAG, "New message notification sent"))
-                .addOnFailureListener(e -> Log.e(TAG, "Failed to send new message notification", e));
+    private String getConversationPath(String conversationKey) {
+        return CONVERSATIONS_NODE + "/" + currentUserId + "/" + conversationKey;
+    }
+
+    private static String getMessagesPath(String userId, String conversationKey) {
+        return CHATS_NODE + "/" + userId + "/" + conversationKey + "/messages";
     }
 
     // Chat Message Management
-    public void sendMessage(ChatMessage message, ChatMessageListener listener) {
+    @Override
+    public void append(ChatMessage message, WriteListener listener) {
         FirebaseUser currentUser = getCurrentUser();
         if (currentUser == null) {
             if (listener != null) {
-                listener.onMessageSent(false, "User not authenticated");
+                listener.onWriteComplete(false, "User not authenticated");
             }
             return;
         }
@@ -217,65 +415,61 @@ public class FirebaseChatDatabase {
         String messageId = message.getId();
         String deviceAddress = message.getDeviceAddress();
 
-        // Save message for sender
-        String senderChatPath = "chats/" + currentUser.getUid() + "/" + deviceAddress + "/messages/" + messageId;
-        DatabaseReference senderMessageRef = database.getReference(senderChatPath);
-
-        senderMessageRef.setValue(message)
-                .addOnSuccessListener(aVoid -> {
-                    Log.d(TAG, "Message saved for sender");
-
-                    // Now save message for receiver (if we can identify the receiver)
-                    saveMessageForReceiver(message, listener);
+        // The sender's copy and the device's last-seen time go out as one multi-path update. The
+        // conversation index mirrors the summary on its own, and the receiver's copy joins the
+        // update only once the receiver can be identified, which it cannot be yet
+        Map<String, Object> updates = new HashMap<>();
+        updates.put(getMessagesPath(currentUser.getUid(), deviceAddress) + "/" + messageId,
+                SnapshotMappers.encodeChatMessage(message));
+        if (deviceAddresses.contains(deviceAddress)) {
+            // Writing lastSeen under any other key would create a device node holding nothing else
+            updates.put(CONNECTED_DEVICES_NODE + "/" + currentUser.getUid() + "/" + deviceAddress + "/lastSeen",
+                    message.getTimestamp());
+        }
+        ChatMessage receiverMessage = putReceiverCopy(updates, currentUser.getUid(), message);
 
-                    if (listener != null) {
-                        listener.onMessageSent(true, null);
-                    }
-                })
-                .addOnFailureListener(e -> {
-                    Log.e(TAG, "Failed to save message for sender", e);
-                    if (listener != null) {
-                        listener.onMessageSent(false, e.getMessage());
-                    }
-                });
+        writeBatcher.write(updates, (success, error) -> {
+            if (!success) {
+                Log.e(TAG, "Failed to save message: " + error);
+            } else {
+                Log.d(TAG, receiverMessage != null ? "Message saved for sender and receiver" : "Message saved for sender");
+            }
+            if (listener != null) {
+                listener.onWriteComplete(success, error);
+            }
+        });
     }
 
-    // Method to save message for receiver
-    private void saveMessageForReceiver(ChatMessage message, ChatMessageListener listener) {
-        FirebaseUser currentUser = getCurrentUser();
-        if (currentUser == null) return;
-
+    /**
+     * Add the receiver's copy of a message to the update, if we can identify the receiver.
+     * Neither the receiver's user ID nor our address as the receiver sees it is known yet, so
+     * this adds nothing; the receiver uploads its own copy when the message reaches it.
+     * @return the copy, or null if there is no receiver to write it for
+     */
+    private ChatMessage putReceiverCopy(Map<String, Object> updates, String userId, ChatMessage message) {
         // You'll need to implement a way to identify the receiver's user ID
         // This could be done by storing device-to-user mappings when devices connect
 
         String receiverUserId = getReceiverUserId(message.getDeviceAddress());
-        if (receiverUserId != null && !receiverUserId.equals(currentUser.getUid())) {
-
-            // Create a message from receiver's perspective
-            ChatMessage receiverMessage = new ChatMessage(
-                    message.getId(),
-                    message.getSenderId(),
-                    message.getSenderName(),
-                    getCurrentUserDeviceAddress(), // Your device address from receiver's perspective
-                    message.getContent(),
-                    message.getMessageType(), // Using getMessageType() instead of getType()
-                    message.getTimestamp(),
-                    true // This is received for the receiver
-            );
-
-            String receiverChatPath = "chats/" + receiverUserId + "/" + getCurrentUserDeviceAddress() + "/messages/" + message.getId();
-            DatabaseReference receiverMessageRef = database.getReference(receiverChatPath);
-
-            receiverMessageRef.setValue(receiverMessage)
-                    .addOnSuccessListener(aVoid -> {
-                        Log.d(TAG, "Message saved for receiver");
-                        // Trigger the listener callback for the receiver
-                        if (listener != null) {
-                            listener.onMessageReceived(receiverMessage);
-                        }
-                    })
-                    .addOnFailureListener(e -> Log.e(TAG, "Failed to save message for receiver", e));
+        if (receiverUserId == null || receiverUserId.equals(userId)) {
+            return null;
         }
+
+        // Create a message from receiver's perspective
+        ChatMessage receiverMessage = new ChatMessage(
+                message.getId(),
+                message.getSenderId(),
+                message.getSenderName(),
+                getCurrentUserDeviceAddress(), // Your device address from receiver's perspective
+                message.getContent(),
+                message.getMessageType(), // Using getMessageType() instead of getType()
+                message.getTimestamp(),
+                true // This is received for the receiver
+        );
+
+        updates.put(getMessagesPath(receiverUserId, getCurrentUserDeviceAddress()) + "/" + message.getId(),
+                SnapshotMappers.encodeChatMessage(receiverMessage));
+        return receiverMessage;
     }
 
     // Helper method to get receiver's user ID from device address
@@ -292,207 +486,293 @@ public class FirebaseChatDatabase {
         return null;
     }
 
-    public void loadChatMessages(String deviceAddress, ChatMessageListener listener) {
-        if (currentUserId == null) return;
+    /**
+     * Pages are cached, so going back to a conversation or scrolling over the same history again
+     * stays off the network.
+     */
+    @Override
+    public void loadPage(String deviceAddress, ChatMessage before, PageListener listener) {
+        FirebaseUser currentUser = getCurrentUser();
+        if (currentUser == null) return;
+
+        String cacheKey = before != null
+                ? deviceAddress + "/" + before.getTimestamp() + "/" + before.getId() : deviceAddress;
+        List<ChatMessage> cached = pageCache.get(cacheKey);
+        if (cached != null) {
+            if (listener != null) {
+                listener.onPageLoaded(deviceAddress, cached, cached.size() >= PAGE_SIZE);
+            }
+            return;
+        }
+
+        List<PageListener> waiting = pendingPages.get(cacheKey);
+        if (waiting != null) {
+            if (listener != null) {
+                waiting.add(listener);
+            }
+            return;
+        }
+        List<PageListener> pageListeners = new ArrayList<>();
+        if (listener != null) {
+            pageListeners.add(listener);
+        }
+        pendingPages.put(cacheKey, pageListeners);
 
-        String chatRoomId = createChatRoomId(currentUserId, deviceAddress);
+        String chatPath = getMessagesPath(currentUser.getUid(), deviceAddress);
+        Query pageQuery = database.getReference(chatPath).orderByChild("timestamp");
+        if (before != null) {
+            pageQuery = pageQuery.endBefore(before.getTimestamp(), before.getId());
+        }
 
-        messagesRef.child(chatRoomId)
-                .orderByChild("timestamp")
-                .addValueEventListener(new ValueEventListener() {
+        pageQuery.limitToLast(PAGE_SIZE)
+                .addListenerForSingleValueEvent(new ValueEventListener() {
                     @Override
                     public void onDataChange(@NonNull DataSnapshot snapshot) {
                         List<ChatMessage> messages = new ArrayList<>();
                         for (DataSnapshot messageSnapshot : snapshot.getChildren()) {
-                            ChatMessage message = messageSnapshot.getValue(ChatMessage.class);
+                            ChatMessage message = parseMessage(messageSnapshot);
                             if (message != null) {
                                 messages.add(message);
                             }
                         }
+                        pageCache.put(cacheKey, messages);
+                        pendingPages.remove(cacheKey);
 
-                        if (listener != null) {
-                            listener.onMessagesLoaded(messages);
+                        for (PageListener pageListener : pageListeners) {
+                            pageListener.onPageLoaded(deviceAddress, messages,
+                                    snapshot.getChildrenCount() >= PAGE_SIZE);
                         }
                     }
 
                     @Override
                     public void onCancelled(@NonNull DatabaseError error) {
+                        pendingPages.remove(cacheKey);
                         Log.e(TAG, "Failed to load messages", error.toException());
-                    }
-                });
-    }
-
-    public void listenForNewMessages(String deviceAddress, ChatMessageListener listener) {
-        if (currentUserId == null) return;
-
-        this.messageListener = listener;
-        String chatRoomId = createChatRoomId(currentUserId, deviceAddress);
 
-        messagesRef.child(chatRoomId)
-                .orderByChild("timestamp")
-                .limitToLast(1)
-                .addValueEventListener(new ValueEventListener() {
-                    @Override
-                    public void onDataChange(@NonNull DataSnapshot snapshot) {
-                        for (DataSnapshot messageSnapshot : snapshot.getChildren()) {
-                            ChatMessage message = messageSnapshot.getValue(ChatMessage.class);
-                            if (message != null && !message.getSenderId().equals(currentUserId)) {
-                                if (listener != null) {
-                                    listener.onMessageReceived(message);
-                                }
+                        // Nothing is cached, so a later call queries again; an empty page with
+                        // older history left lets the caller stop waiting and try again
+                        for (PageListener pageListener : pageListeners) {
+                            if (pageListener instanceof PageFailureListener) {
+                                ((PageFailureListener) pageListener).onPageFailed();
+                            } else {
+                                pageListener.onPageLoaded(deviceAddress, new ArrayList<>(), true);
                             }
                         }
                     }
-
-                    @Override
-                    public void onCancelled(@NonNull DatabaseError error) {
-                        Log.e(TAG, "Failed to listen for new messages", error.toException());
-                    }
                 });
     }
 
     // Connected Devices Management
     public void saveConnectedDevice(ConnectedDevice device) {
-        if (currentUserId == null) return;
+        if (currentUserId == null || device.getDeviceAddress() == null) return;
 
-        connectedDevicesRef.child(currentUserId)
-                .child(device.getDeviceAddress())
-                .setValue(device)
-                .addOnSuccessListener(unused -> Log.d(TAG, "Connected device saved"))
-                .addOnFailureListener(e -> Log.e(TAG, "Failed to save connected device", e));
+        deviceAddresses.add(device.getDeviceAddress());
+
+        // Field by field through the presence writer, so only what changed is written
+        presenceWriter.update(CONNECTED_DEVICES_NODE + "/" + currentUserId + "/" + device.getDeviceAddress(),
+                SnapshotMappers.encodeConnectedDevice(device));
     }
 
     public void loadConnectedDevices(ConnectedDevicesListener listener) {
-        if (currentUserId == null) return;
+        if (currentUserId == null || listener == null) return;
 
         this.devicesListener = listener;
-
-        connectedDevicesRef.child(currentUserId)
-                .addValueEventListener(new ValueEventListener() {
-                    @Override
-                    public void onDataChange(@NonNull DataSnapshot snapshot) {
-                        List<ConnectedDevice> devices = new ArrayList<>();
-                        for (DataSnapshot deviceSnapshot : snapshot.getChildren()) {
-                            ConnectedDevice device = deviceSnapshot.getValue(ConnectedDevice.class);
-                            if (device != null) {
-                                devices.add(device);
-                            }
-                        }
-
-                        if (listener != null) {
-                            listener.onDevicesUpdated(devices);
+        String key = CONNECTED_DEVICES_NODE + "/" + currentUserId;
+
+        SubscriptionRegistry.Result result = subscriptions.subscribe(key, listener, () -> {
+            DatabaseReference devicesRef = connectedDevicesRef.child(currentUserId);
+            ValueEventListener devicesValueListener = new ValueEventListener() {
+                @Override
+                public void onDataChange(@NonNull DataSnapshot snapshot) {
+                    List<ConnectedDevice> devices = new ArrayList<>();
+                    for (DataSnapshot deviceSnapshot : snapshot.getChildren()) {
+                        ConnectedDevice device = SnapshotMappers.decodeConnectedDevice(deviceSnapshot);
+                        if (device != null) {
+                            devices.add(device);
+                            deviceAddresses.add(device.getDeviceAddress());
                         }
                     }
 
-                    @Override
-                    public void onCancelled(@NonNull DatabaseError error) {
-                        Log.e(TAG, "Failed to load connected devices", error.toException());
+                    lastDevices = devices;
+                    for (ConnectedDevicesListener owner : subscriptions.getOwners(key, ConnectedDevicesListener.class)) {
+                        owner.onDevicesUpdated(devices);
                     }
-                });
+                }
+
+                @Override
+                public void onCancelled(@NonNull DatabaseError error) {
+                    Log.e(TAG, "Failed to load connected devices", error.toException());
+                }
+            };
+            devicesRef.addValueEventListener(devicesValueListener);
+            return () -> devicesRef.removeEventListener(devicesValueListener);
+        });
+
+        if (result == SubscriptionRegistry.Result.JOINED && lastDevices != null) {
+            listener.onDevicesUpdated(lastDevices);
+        }
     }
 
     public void updateDeviceStatus(String deviceAddress, boolean isOnline) {
-        if (currentUserId == null) return;
+        if (currentUserId == null || !deviceAddresses.contains(deviceAddress)) return;
 
-        Map<String, Object> updates = new HashMap<>();
-        updates.put("online", isOnline);
-        updates.put("lastSeen", System.currentTimeMillis());
-
-        connectedDevicesRef.child(currentUserId)
-                .child(deviceAddress)
-                .updateChildren(updates)
-                .addOnSuccessListener(unused -> Log.d(TAG, "Device status updated"))
-                .addOnFailureListener(e -> Log.e(TAG, "Failed to update device status", e));
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("online", isOnline);
+        fields.put("lastSeen", System.currentTimeMillis());
+        presenceWriter.update(CONNECTED_DEVICES_NODE + "/" + currentUserId + "/" + deviceAddress, fields);
     }
 
     public void removeConnectedDevice(String deviceAddress) {
         if (currentUserId == null) return;
 
-        connectedDevicesRef.child(currentUserId)
-                .child(deviceAddress)
-                .removeValue()
-                .addOnSuccessListener(unused -> Log.d(TAG, "Connected device removed"))
-                .addOnFailureListener(e -> Log.e(TAG, "Failed to remove connected device", e));
+        // Through the batcher, so it cannot overtake a queued write to the same device
+        deviceAddresses.remove(deviceAddress);
+        presenceWriter.forget(CONNECTED_DEVICES_NODE + "/" + currentUserId + "/" + deviceAddress);
+        Map<String, Object> updates = new HashMap<>();
+        updates.put(CONNECTED_DEVICES_NODE + "/" + currentUserId + "/" + deviceAddress, null);
+        writeBatcher.write(updates, (success, error) -> {
+            if (success) {
+                Log.d(TAG, "Connected device removed");
+            } else {
+                Log.e(TAG, "Failed to remove connected device: " + error);
+            }
+        });
     }
 
-    // Chat Room Management
-    private void updateChatRoom(String chatRoomId, ChatMessage lastMessage) {
-        Map<String, Object> chatRoomData = new HashMap<>();
-        chatRoomData.put("lastMessage", lastMessage.getContent());
-        chatRoomData.put("lastMessageTime", lastMessage.getTimestamp());
-        chatRoomData.put("lastMessageSender", lastMessage.getSenderName());
+    /**
+     * Delete messages of a conversation, a batch of paths per multi-path update, so a long range
+     * costs a few round-trips instead of one per message
+     */
+    @Override
+    public void delete(String deviceAddress, List<ChatMessage> messages, WriteListener listener) {
+        if (messages.isEmpty()) {
+            if (listener != null) {
+                listener.onWriteComplete(true, null);
+            }
+            return;
+        }
+        if (currentUserId == null) {
+            if (listener != null) {
+                listener.onWriteComplete(false, "User not authenticated");
+            }
+            return;
+        }
 
-        chatsRef.child(chatRoomId).updateChildren(chatRoomData);
+        String chatPath = getMessagesPath(currentUserId, deviceAddress) + "/";
+        int[] remaining = {(messages.size() + DELETE_BATCH_SIZE - 1) / DELETE_BATCH_SIZE};
+        String[] firstError = {null};
+        for (int start = 0; start < messages.size(); start += DELETE_BATCH_SIZE) {
+            List<ChatMessage> batch = messages.subList(start, Math.min(messages.size(), start + DELETE_BATCH_SIZE));
+            Map<String, Object> updates = new HashMap<>();
+            for (ChatMessage message : batch) {
+                updates.put(chatPath + message.getId(), null);
+            }
+            writeBatcher.write(updates, (success, error) -> {
+                if (!success) {
+                    Log.e(TAG, "Failed to delete " + updates.size() + " messages: " + error);
+                    if (firstError[0] == null) firstError[0] = error;
+                }
+                if (--remaining[0] == 0 && listener != null) {
+                    listener.onWriteComplete(firstError[0] == null, firstError[0]);
+                }
+            });
+        }
+        invalidatePages(deviceAddress);
+        Log.d(TAG, "Deleting " + messages.size() + " messages of " + deviceAddress);
     }
 
-    public void deleteChatHistory(String deviceAddress) {
-        if (currentUserId == null) return;
-
-        String chatRoomId = createChatRoomId(currentUserId, deviceAddress);
+    /**
+     * Delete a conversation's whole history through the batcher, so it cannot be overtaken by a
+     * message write still queued for the same conversation
+     */
+    @Override
+    public void deleteConversation(String deviceAddress, WriteListener listener) {
+        if (currentUserId == null) {
+            if (listener != null) {
+                listener.onWriteComplete(false, "User not authenticated");
+            }
+            return;
+        }
 
-        messagesRef.child(chatRoomId)
-                .removeValue()
-                .addOnSuccessListener(unused -> {
-                    Log.d(TAG, "Chat history deleted");
-                    // Also remove from chats node
-                    chatsRef.child(chatRoomId).removeValue();
-                })
-                .addOnFailureListener(e -> Log.e(TAG, "Failed to delete chat history", e));
+        Map<String, Object> updates = new HashMap<>();
+        updates.put(getMessagesPath(currentUserId, deviceAddress), null);
+        writeBatcher.write(updates, (success, error) -> {
+            if (success) {
+                Log.d(TAG, "Chat history deleted");
+            } else {
+                Log.e(TAG, "Failed to delete chat history: " + error);
+            }
+            if (listener != null) {
+                listener.onWriteComplete(success, error);
+            }
+        });
+        invalidatePages(deviceAddress);
     }
 
-    // Utility Methods
-    private String createChatRoomId(String userId1, String userId2) {
-        // Create a consistent chat room ID regardless of order
-        return userId1.compareTo(userId2) < 0 ?
-                userId1 + "_" + userId2 :
-                userId2 + "_" + userId1;
+    /**
+     * Drop the conversation's cached pages, which may hold deleted messages
+     */
+    private void invalidatePages(String deviceAddress) {
+        Iterator<String> iterator = pageCache.keySet().iterator();
+        while (iterator.hasNext()) {
+            String cacheKey = iterator.next();
+            if (cacheKey.equals(deviceAddress) || cacheKey.startsWith(deviceAddress + "/")) {
+                iterator.remove();
+            }
+        }
     }
 
     // Online Presence Management
     public void setUserOnline() {
         if (currentUserId == null) return;
 
-        DatabaseReference presenceRef = database.getReference("presence").child(currentUserId);
+        String presencePath = "presence/" + currentUserId;
         Map<String, Object> presenceData = new HashMap<>();
         presenceData.put("online", true);
         presenceData.put("lastSeen", System.currentTimeMillis());
 
-        presenceRef.setValue(presenceData);
+        // The onDisconnect below may have changed the node behind our back, so always write it
+        presenceWriter.forget(presencePath);
+        presenceWriter.update(presencePath, presenceData);
 
         // Set offline when user disconnects - Fixed for older Android versions
         Map<String, Object> offlineData = new HashMap<>();
         offlineData.put("online", false);
         offlineData.put("lastSeen", System.currentTimeMillis());
-        presenceRef.onDisconnect().updateChildren(offlineData);
+        database.getReference(presencePath).onDisconnect().updateChildren(offlineData);
     }
 
     public void setUserOffline() {
         if (currentUserId == null) return;
 
-        DatabaseReference presenceRef = database.getReference("presence").child(currentUserId);
         Map<String, Object> presenceData = new HashMap<>();
         presenceData.put("online", false);
         presenceData.put("lastSeen", System.currentTimeMillis());
 
-        presenceRef.setValue(presenceData);
+        presenceWriter.update("presence/" + currentUserId, presenceData);
     }
 
     // Clean up listeners
     public void removeListeners() {
-        // Note: Listeners are stored as references and would need proper cleanup
-        // This is a simplified version
-        for (Map.Entry<String, ValueEventListener> entry : messageListeners.entrySet()) {
-            String deviceAddress = entry.getKey();
-            ValueEventListener listener = entry.getValue();
-            FirebaseUser currentUser = getCurrentUser();
-            if (currentUser != null) {
-                String chatPath = "chats/" + currentUser.getUid() + "/" + deviceAddress + "/messages";
-                DatabaseReference messagesRef = database.getReference(chatPath);
-                messagesRef.removeEventListener(listener);
-            }
-        }
-        messageListeners.clear();
-        Log.d(TAG, "Removing listeners");
+        Log.d(TAG, "Removing " + subscriptions.getActiveCount() + " listeners");
+        subscriptions.detachAll();
+        presenceWriter.flush();
+        writeBatcher.flush();
+    }
+
+    /**
+     * Drop the subscriptions one owner holds, e.g. a screen being destroyed; listeners other
+     * owners still share stay attached
+     */
+    public void removeListeners(Object owner) {
+        subscriptions.unsubscribeAll(owner);
+    }
+
+    /**
+     * @return how many Firebase listeners this instance has attached
+     */
+    public int getActiveListenerCount() {
+        return subscriptions.getActiveCount();
     }
 
     // Get current user ID
@@ -0,0 +1,48 @@
+package com.example.meshup.ui.data;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * A named chat room and the user IDs of its members (including this user).
+ * Its history is kept under {@link #getConversationKey()} wherever per-device history is kept.
+ */
+public class GroupChannel {
+    public static final String CONVERSATION_PREFIX = "group:";
+
+    private String groupId;
+    private String name;
+    private List<String> memberIds = new ArrayList<>();
+
+    // Default constructor for Firebase
+    public GroupChannel() {}
+
+    public GroupChannel(String groupId, String name, List<String> memberIds) {
+        this.groupId = groupId;
+        this.name = name;
+        this.memberIds = new ArrayList<>(new LinkedHashSet<>(memberIds));
+    }
+
+    // Getters
+    public String getGroupId() { return groupId; }
+    public String getName() { return name; }
+    public List<String> getMemberIds() { return memberIds; }
+
+    // Setters
+    public void setGroupId(String groupId) { this.groupId = groupId; }
+    public void setName(String name) { this.name = name; }
+    public void setMemberIds(List<String> memberIds) { this.memberIds = memberIds; }
+
+    public String getConversationKey() {
+        return CONVERSATION_PREFIX + groupId;
+    }
+
+    public static boolean isGroupConversation(String conversationKey) {
+        return conversationKey != null && conversationKey.startsWith(CONVERSATION_PREFIX);
+    }
+
+    public static String getGroupId(String conversationKey) {
+        return conversationKey.substring(CONVERSATION_PREFIX.length());
+    }
+}
@@ -0,0 +1,361 @@
+package com.example.meshup.ui.data;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streaming export and import of chat history, for backups and for moving history to a new device
+ * without a Firebase round-trip per message.
+ *
+ * The file is a short header ("MSHX" and a version byte) followed by one gzip stream of
+ * length-delimited records: a conversation record carries the key that the message records after
+ * it belong to, and a message record carries a message in the segmented log's body format. Both
+ * directions stream through buffered file channels, so memory use does not depend on the size of
+ * the history. An export covers archived ranges as well as stored messages.
+ *
+ * Import writes batches straight into the store, which skips messages it already has by ID, so
+ * nothing is held in memory beyond one batch. The in-memory layers are not fed message by
+ * message: the listener hears of each batch, and the chat history and search index reload the
+ * imported conversations when next used. Progress is checkpointed next to the file after each
+ * batch; importing the same file again after an interruption continues from the last checkpoint.
+ */
+public class HistoryTransfer {
+    private static final String TAG = "HistoryTransfer";
+    private static final byte[] MAGIC = {'M', 'S', 'H', 'X'};
+    private static final byte VERSION = 1;
+    private static final int TAG_END = 0;
+    private static final int TAG_CONVERSATION = 1;
+    private static final int TAG_MESSAGE = 2;
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final int MAX_RECORD_BYTES = 1024 * 1024;
+    private static final int IMPORT_BATCH = 1000;
+    private static final String CHECKPOINT_SUFFIX = ".progress";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * What an export reads, e.g. the store with the archive's cold segments in front of it
+     */
+    public interface Source {
+        List<String> getConversationKeys();
+
+        /**
+         * Stream a conversation's messages, oldest first
+         */
+        void forEachMessage(String conversationKey, LocalMessageStore.MessageVisitor visitor) throws IOException;
+    }
+
+    /**
+     * Where an import writes, e.g. the {@link LocalMessageStore}
+     */
+    public interface Target {
+        /**
+         * Store a batch, keeping any message already stored; durable once this returns
+         * @return the messages that were new
+         */
+        List<ChatMessage> insertNew(List<ChatMessage> messages);
+    }
+
+    public interface ImportListener {
+        /**
+         * A batch was committed; called on the importing thread with the messages that were new
+         */
+        void onBatchImported(List<ChatMessage> added);
+    }
+
+    public static class ImportResult {
+        private final long imported;
+        private final long skipped;
+        private final long resumedAt;
+        private final Set<String> conversationKeys;
+
+        ImportResult(long imported, long skipped, long resumedAt, Set<String> conversationKeys) {
+            this.imported = imported;
+            this.skipped = skipped;
+            this.resumedAt = resumedAt;
+            this.conversationKeys = conversationKeys;
+        }
+
+        public long getImported() { return imported; }
+        public long getSkipped() { return skipped; }
+        public long getResumedAt() { return resumedAt; }
+        // Conversations the file holds messages for, whether or not they were new
+        public Set<String> getConversationKeys() { return conversationKeys; }
+    }
+
+    private final Source source;
+    private final Target target;
+    private final ImportListener listener;
+
+    /**
+     * Export stored and archived history, import into the store
+     */
+    public HistoryTransfer(LocalMessageStore store, RetentionCompactor archive, ImportListener listener) {
+        this(new Source() {
+            @Override
+            public List<String> getConversationKeys() {
+                TreeSet<String> all = new TreeSet<>(store.getConversationKeys());
+                if (archive != null) {
+                    all.addAll(archive.getArchivedConversationKeys());
+                }
+                return new ArrayList<>(all);
+            }
+
+            @Override
+            public void forEachMessage(String conversationKey, LocalMessageStore.MessageVisitor visitor)
+                    throws IOException {
+                if (archive != null) {
+                    archive.forEachArchived(conversationKey, visitor);
+                }
+                store.forEachMessage(conversationKey, visitor);
+            }
+        }, store, listener);
+    }
+
+    public HistoryTransfer(Source source, Target target, ImportListener listener) {
+        this.source = source;
+        this.target = target;
+        this.listener = listener;
+    }
+
+    /**
+     * Write conversations to a file, replacing it only once the export is complete
+     * @param conversationKeys the conversations to export, or null for all of them
+     * @return how many messages were written
+     */
+    public long export(File file, List<String> conversationKeys) throws IOException {
+        List<String> keys = conversationKeys != null ? conversationKeys : source.getConversationKeys();
+
+        long start = System.currentTimeMillis();
+        long[] count = {0};
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        try (FileOutputStream fileOut = new FileOutputStream(temp)) {
+            FileChannel channel = fileOut.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 1);
+            header.put(MAGIC).put(VERSION).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+
+            GZIPOutputStream gzip = new GZIPOutputStream(Channels.newOutputStream(channel), BUFFER_BYTES);
+            try (OutputStream out = new BufferedOutputStream(gzip, BUFFER_BYTES)) {
+                for (String conversationKey : keys) {
+                    writeRecord(out, TAG_CONVERSATION, conversationKey.getBytes(StandardCharsets.UTF_8));
+                    LocalMessageStore.MessageVisitor writer = message -> {
+                        writeRecord(out, TAG_MESSAGE, SegmentedChatLog.encode(message));
+                        count[0]++;
+                    };
+                    source.forEachMessage(conversationKey, writer);
+                }
+                writeVarint(out, TAG_END);
+                out.flush();
+                gzip.finish();
+                channel.force(true);
+            }
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not rename " + temp + " to " + file);
+        }
+
+        Log.d(TAG, "Exported " + count[0] + " messages of " + keys.size() + " conversations in " +
+                (System.currentTimeMillis() - start) + "ms");
+        return count[0];
+    }
+
+    /**
+     * Read a file into the store, continuing where an interrupted import of it stopped. Call off
+     * the main thread.
+     */
+    public ImportResult importFrom(File file) throws IOException {
+        File checkpoint = new File(file.getPath() + CHECKPOINT_SUFFIX);
+        long resumeAt = readCheckpoint(checkpoint, file);
+        long record = 0;
+        long processed = 0;
+        long imported = 0;
+        Set<String> conversationKeys = new HashSet<>();
+        List<ChatMessage> batch = new ArrayList<>(IMPORT_BATCH);
+
+        try (FileInputStream fileIn = new FileInputStream(file)) {
+            FileChannel channel = fileIn.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 1);
+            while (header.hasRemaining() && channel.read(header) != -1) {
+                // Keep reading
+            }
+            header.flip();
+            if (header.remaining() < MAGIC.length + 1) {
+                throw new IOException("Not a history export: " + file);
+            }
+            for (byte b : MAGIC) {
+                if (header.get() != b) {
+                    throw new IOException("Not a history export: " + file);
+                }
+            }
+            if (header.get() != VERSION) {
+                throw new IOException("Unsupported history export version in " + file);
+            }
+
+            try (InputStream in = new BufferedInputStream(new GZIPInputStream(
+                    Channels.newInputStream(channel), BUFFER_BYTES), BUFFER_BYTES)) {
+                String conversationKey = null;
+                byte[] body = new byte[256];
+                while (true) {
+                    int tag = readVarint(in);
+                    if (tag == TAG_END) {
+                        break;
+                    }
+                    int length = readVarint(in);
+                    if (length < 0 || length > MAX_RECORD_BYTES) {
+                        throw new IOException("Corrupt record of " + length + " bytes in " + file);
+                    }
+                    if (length > body.length) {
+                        body = new byte[Math.max(length, body.length * 2)];
+                    }
+                    readFully(in, body, length);
+
+                    if (tag == TAG_CONVERSATION) {
+                        conversationKey = new String(body, 0, length, StandardCharsets.UTF_8);
+                        conversationKeys.add(conversationKey);
+                    } else if (tag == TAG_MESSAGE && conversationKey != null) {
+                        // Records before the checkpoint were committed by an earlier run
+                        if (record++ < resumeAt) {
+                            continue;
+                        }
+                        batch.add(SegmentedChatLog.decode(ByteBuffer.wrap(body, 0, length), conversationKey));
+                        if (batch.size() == IMPORT_BATCH) {
+                            imported += commit(batch);
+                            processed += batch.size();
+                            batch.clear();
+                            writeCheckpoint(checkpoint, file, record);
+                        }
+                    }
+                    // Unknown tags come from a newer format and are skipped
+                }
+            }
+        }
+
+        imported += commit(batch);
+        processed += batch.size();
+        long skipped = processed - imported;
+        if (checkpoint.exists() && !checkpoint.delete()) {
+            Log.w(TAG, "Could not delete " + checkpoint);
+        }
+        Log.d(TAG, "Imported " + imported + " messages from " + file + ", " + skipped + " already known" +
+                (resumeAt > 0 ? ", resumed after " + resumeAt : ""));
+        return new ImportResult(imported, skipped, resumeAt, conversationKeys);
+    }
+
+    /**
+     * Make a batch durable before the checkpoint moves past it
+     * @return how many messages were new
+     */
+    private long commit(List<ChatMessage> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        List<ChatMessage> added;
+        try {
+            added = target.insertNew(batch);
+        } catch (RuntimeException e) {
+            throw new IOException("Could not store imported messages", e);
+        }
+        if (listener != null && !added.isEmpty()) {
+            listener.onBatchImported(added);
+        }
+        return added.size();
+    }
+
+    /**
+     * @return how many message records of this file are already imported
+     */
+    private static long readCheckpoint(File checkpoint, File file) {
+        if (!checkpoint.exists()) {
+            return 0;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(checkpoint, "r")) {
+            // Only valid for the exact file it was written for
+            if (in.readLong() == file.length() && in.readLong() == file.lastModified()) {
+                return in.readLong();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Ignoring unreadable " + checkpoint, e);
+        }
+        return 0;
+    }
+
+    private static void writeCheckpoint(File checkpoint, File file, long records) {
+        File temp = new File(checkpoint.getPath() + TEMP_SUFFIX);
+        try (RandomAccessFile out = new RandomAccessFile(temp, "rw")) {
+            out.setLength(0);
+            out.writeLong(file.length());
+            out.writeLong(file.lastModified());
+            out.writeLong(records);
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write " + checkpoint, e);
+            return;
+        }
+        if (!temp.renameTo(checkpoint)) {
+            Log.w(TAG, "Could not replace " + checkpoint);
+        }
+    }
+
+    private static void writeRecord(OutputStream out, int tag, byte[] body) throws IOException {
+        writeVarint(out, tag);
+        writeVarint(out, body.length);
+        out.write(body);
+    }
+
+    private static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Export ends mid-record");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = in.read(buffer, read, length - read);
+            if (n == -1) {
+                throw new EOFException("Export ends mid-record");
+            }
+            read += n;
+        }
+    }
+}
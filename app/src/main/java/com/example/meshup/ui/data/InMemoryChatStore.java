@@ -0,0 +1,172 @@
+package com.example.meshup.ui.data;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Chat store that keeps everything in memory and calls back on the calling thread before
+ * returning. It has no Android or Firebase dependencies, so the chat pipeline can be run and
+ * load-tested on any JVM; nothing survives the process.
+ */
+public class InMemoryChatStore implements ChatStore {
+    static final Comparator<ChatMessage> ORDER = (a, b) -> a.getTimestamp() != b.getTimestamp()
+            ? Long.compare(a.getTimestamp(), b.getTimestamp()) : a.getId().compareTo(b.getId());
+
+    private static class Conversation {
+        final NavigableSet<ChatMessage> ordered = new TreeSet<>(ORDER);
+        final Map<String, ChatMessage> byId = new HashMap<>();
+        final Set<DeltaListener> listeners = new LinkedHashSet<>();
+    }
+
+    private final Map<String, Conversation> conversations = new HashMap<>();
+
+    @Override
+    public void append(ChatMessage message, WriteListener listener) {
+        if (message == null || message.getId() == null || message.getDeviceAddress() == null) {
+            if (listener != null) {
+                listener.onWriteComplete(false, "Message has no ID or conversation");
+            }
+            return;
+        }
+
+        String key = message.getDeviceAddress();
+        boolean changed;
+        List<DeltaListener> listeners;
+        synchronized (this) {
+            Conversation conversation = open(key);
+            ChatMessage previous = conversation.byId.put(message.getId(), message);
+            if (previous != null) {
+                conversation.ordered.remove(previous);
+            }
+            conversation.ordered.add(message);
+            changed = previous != null;
+            listeners = new ArrayList<>(conversation.listeners);
+        }
+
+        for (DeltaListener deltaListener : listeners) {
+            if (changed) {
+                deltaListener.onMessageChanged(key, message);
+            } else {
+                deltaListener.onMessageAdded(key, message);
+            }
+        }
+        if (listener != null) {
+            listener.onWriteComplete(true, null);
+        }
+    }
+
+    @Override
+    public void loadPage(String conversationKey, ChatMessage before, PageListener listener) {
+        List<ChatMessage> page = new ArrayList<>();
+        boolean hasOlder;
+        synchronized (this) {
+            Conversation conversation = conversations.get(conversationKey);
+            if (conversation != null) {
+                NavigableSet<ChatMessage> older = before != null
+                        ? conversation.ordered.headSet(before, false) : conversation.ordered;
+                Iterator<ChatMessage> iterator = older.descendingIterator();
+                while (iterator.hasNext() && page.size() < PAGE_SIZE) {
+                    page.add(0, iterator.next());
+                }
+                hasOlder = iterator.hasNext();
+            } else {
+                hasOlder = false;
+            }
+        }
+        if (listener != null) {
+            listener.onPageLoaded(conversationKey, page, hasOlder);
+        }
+    }
+
+    @Override
+    public void subscribe(String conversationKey, DeltaListener listener) {
+        synchronized (this) {
+            if (listener == null || !open(conversationKey).listeners.add(listener)) {
+                return;
+            }
+        }
+        loadPage(conversationKey, null, (key, messages, hasOlder) -> {
+            for (ChatMessage message : messages) {
+                listener.onMessageAdded(key, message);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void unsubscribe(String conversationKey, DeltaListener listener) {
+        Conversation conversation = conversations.get(conversationKey);
+        if (conversation != null) {
+            conversation.listeners.remove(listener);
+        }
+    }
+
+    @Override
+    public void delete(String conversationKey, List<ChatMessage> messages, WriteListener listener) {
+        List<String> removed = new ArrayList<>();
+        List<DeltaListener> listeners;
+        synchronized (this) {
+            Conversation conversation = open(conversationKey);
+            for (ChatMessage message : messages) {
+                ChatMessage stored = conversation.byId.remove(message.getId());
+                if (stored != null) {
+                    conversation.ordered.remove(stored);
+                    removed.add(stored.getId());
+                }
+            }
+            listeners = new ArrayList<>(conversation.listeners);
+        }
+        notifyRemoved(conversationKey, removed, listeners);
+        if (listener != null) {
+            listener.onWriteComplete(true, null);
+        }
+    }
+
+    @Override
+    public void deleteConversation(String conversationKey, WriteListener listener) {
+        List<String> removed = new ArrayList<>();
+        List<DeltaListener> listeners;
+        synchronized (this) {
+            Conversation conversation = open(conversationKey);
+            for (ChatMessage message : conversation.ordered) {
+                removed.add(message.getId());
+            }
+            conversation.ordered.clear();
+            conversation.byId.clear();
+            listeners = new ArrayList<>(conversation.listeners);
+        }
+        notifyRemoved(conversationKey, removed, listeners);
+        if (listener != null) {
+            listener.onWriteComplete(true, null);
+        }
+    }
+
+    public synchronized int size(String conversationKey) {
+        Conversation conversation = conversations.get(conversationKey);
+        return conversation != null ? conversation.byId.size() : 0;
+    }
+
+    private Conversation open(String conversationKey) {
+        Conversation conversation = conversations.get(conversationKey);
+        if (conversation == null) {
+            conversation = new Conversation();
+            conversations.put(conversationKey, conversation);
+        }
+        return conversation;
+    }
+
+    private static void notifyRemoved(String conversationKey, List<String> messageIds, List<DeltaListener> listeners) {
+        for (DeltaListener listener : listeners) {
+            for (String messageId : messageIds) {
+                listener.onMessageRemoved(conversationKey, messageId);
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.example.meshup.ui.data;
+
+import com.example.meshup.ui.mesh.MerkleTree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Messages this device has seen, grouped by conversation (the message's device address).
+ *
+ * Filled from sent, received and Firebase-loaded messages so history sync can tell which messages
+ * a neighbour is missing without a round trip to the cloud. Each conversation keeps a Merkle tree
+ * of its message IDs up to date as messages are added, for full-history reconciliation.
+ * Messages older than a conversation's retention cutoff are dropped and not taken in again.
+ *
+ * With a loader, a conversation's stored messages are read the first time the conversation is
+ * used rather than all at start-up, and a conversation written to storage directly, e.g. by an
+ * import, is invalidated and read again on next use. Loading reads storage, so a history with a
+ * loader is used off the main thread.
+ */
+public class LocalChatHistory {
+    /**
+     * Receives every new or changed message, e.g. to persist it
+     */
+    public interface MessageSink {
+        /**
+         * @param live true for a message just sent or received, false for history brought in by
+         *             sync, a remote page or the cloud copy
+         */
+        void onMessageAdded(ChatMessage message, boolean live);
+
+        /**
+         * The user cleared a conversation: drop its messages with timestamp < before
+         */
+        void onConversationCleared(String conversationKey, long before);
+    }
+
+    /**
+     * Reads a conversation's stored messages
+     */
+    public interface Loader {
+        List<ChatMessage> load(String conversationKey);
+    }
+
+    private final Map<String, Map<String, ChatMessage>> conversations = new HashMap<>();
+    private final Map<String, MerkleTree> trees = new HashMap<>();
+    // Conversation -> timestamp below which messages have expired
+    private final Map<String, Long> expiredBefore = new HashMap<>();
+    private final List<MessageSink> messageSinks = new CopyOnWriteArrayList<>();
+    // Conversations read through the loader, or being read
+    private final Set<String> loaded = new HashSet<>();
+    private Loader loader;
+
+    public void addMessageSink(MessageSink sink) {
+        messageSinks.add(sink);
+    }
+
+    public void removeMessageSink(MessageSink sink) {
+        messageSinks.remove(sink);
+    }
+
+    public synchronized void setLoader(Loader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Forget what is held of a conversation; with a loader it is read again on next use
+     */
+    public synchronized void invalidate(String conversationKey) {
+        if (loader == null) {
+            return;
+        }
+        conversations.remove(conversationKey);
+        trees.remove(conversationKey);
+        loaded.remove(conversationKey);
+    }
+
+    private void ensureLoaded(String conversationKey) {
+        if (loader == null || conversationKey == null || !loaded.add(conversationKey)) {
+            return;
+        }
+        for (ChatMessage message : loader.load(conversationKey)) {
+            put(message);
+        }
+    }
+
+    /**
+     * Take a message just sent or received
+     * @return true if the message was not known yet
+     */
+    public synchronized boolean addMessage(ChatMessage message) {
+        return add(message, true);
+    }
+
+    /**
+     * Take a message that is history rather than news, e.g. from the cloud copy or a remote page;
+     * it is stored and indexed but does not count as unread
+     * @return true if the message was not known yet
+     */
+    public synchronized boolean addHistory(ChatMessage message) {
+        return add(message, false);
+    }
+
+    /**
+     * Take messages history sync brought in; see {@link #addHistory(ChatMessage)}
+     */
+    public synchronized void addHistory(List<ChatMessage> messages) {
+        for (ChatMessage message : messages) {
+            add(message, false);
+        }
+    }
+
+    private boolean add(ChatMessage message, boolean live) {
+        boolean known = message != null && containsMessage(message.getDeviceAddress(), message.getId());
+        boolean changed = put(message);
+        if (changed) {
+            for (MessageSink sink : messageSinks) {
+                sink.onMessageAdded(message, live);
+            }
+        }
+        return changed && !known;
+    }
+
+    /**
+     * @return true if the message was new or its timestamp changed
+     */
+    private boolean put(ChatMessage message) {
+        if (message == null || message.getId() == null || message.getDeviceAddress() == null) {
+            return false;
+        }
+        Long before = expiredBefore.get(message.getDeviceAddress());
+        if (before != null && message.getTimestamp() < before) {
+            return false; // Archived already; a peer or a remote page must not bring it back
+        }
+        ensureLoaded(message.getDeviceAddress());
+
+        Map<String, ChatMessage> messages = conversations.get(message.getDeviceAddress());
+        if (messages == null) {
+            messages = new LinkedHashMap<>();
+            conversations.put(message.getDeviceAddress(), messages);
+        }
+        ChatMessage previous = messages.put(message.getId(), message);
+        if (previous != null) {
+            if (previous.getTimestamp() == message.getTimestamp()) {
+                return false;
+            }
+            getMerkleTree(message.getDeviceAddress()).remove(previous.getId(), previous.getTimestamp());
+        }
+        getMerkleTree(message.getDeviceAddress()).add(message.getId(), message.getTimestamp());
+        return true;
+    }
+
+    public synchronized boolean containsMessage(String conversationKey, String messageId) {
+        ensureLoaded(conversationKey);
+        Map<String, ChatMessage> messages = conversations.get(conversationKey);
+        return messages != null && messages.containsKey(messageId);
+    }
+
+    public synchronized ChatMessage getMessage(String conversationKey, String messageId) {
+        ensureLoaded(conversationKey);
+        Map<String, ChatMessage> messages = conversations.get(conversationKey);
+        return messages != null ? messages.get(messageId) : null;
+    }
+
+    /**
+     * @return messages of a conversation with from <= timestamp < to
+     */
+    public synchronized List<ChatMessage> getMessagesBetween(String conversationKey, long from, long to) {
+        ensureLoaded(conversationKey);
+        List<ChatMessage> result = new ArrayList<>();
+        Map<String, ChatMessage> messages = conversations.get(conversationKey);
+        if (messages != null) {
+            for (ChatMessage message : messages.values()) {
+                if (message.getTimestamp() >= from && message.getTimestamp() < to) {
+                    result.add(message);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the conversation's Merkle tree, created empty on first use
+     */
+    public synchronized MerkleTree getMerkleTree(String conversationKey) {
+        ensureLoaded(conversationKey);
+        MerkleTree tree = trees.get(conversationKey);
+        if (tree == null) {
+            tree = new MerkleTree();
+            trees.put(conversationKey, tree);
+        }
+        return tree;
+    }
+
+    /**
+     * Drop a conversation's messages with timestamp < before, and refuse them from now on
+     */
+    public synchronized void expireBefore(String conversationKey, long before) {
+        Long known = expiredBefore.get(conversationKey);
+        if (known != null && known >= before) {
+            return;
+        }
+        expiredBefore.put(conversationKey, before);
+
+        Map<String, ChatMessage> messages = conversations.get(conversationKey);
+        if (messages == null) {
+            return;
+        }
+        Iterator<ChatMessage> iterator = messages.values().iterator();
+        while (iterator.hasNext()) {
+            ChatMessage message = iterator.next();
+            if (message.getTimestamp() < before) {
+                iterator.remove();
+                getMerkleTree(conversationKey).remove(message.getId(), message.getTimestamp());
+            }
+        }
+    }
+
+    /**
+     * Forget a conversation's messages with timestamp < before in every layer, and refuse them from
+     * now on, so history sync and remote pages do not bring a cleared chat back
+     */
+    public synchronized void clearConversation(String conversationKey, long before) {
+        Long known = expiredBefore.get(conversationKey);
+        if (known == null || known < before) {
+            expiredBefore.put(conversationKey, before);
+        }
+
+        Map<String, ChatMessage> messages = conversations.get(conversationKey);
+        if (messages != null) {
+            Iterator<ChatMessage> iterator = messages.values().iterator();
+            while (iterator.hasNext()) {
+                ChatMessage message = iterator.next();
+                if (message.getTimestamp() < before) {
+                    iterator.remove();
+                    getMerkleTree(conversationKey).remove(message.getId(), message.getTimestamp());
+                }
+            }
+        }
+        for (MessageSink sink : messageSinks) {
+            sink.onConversationCleared(conversationKey, before);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.meshup.ui.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Chat store backed by the device's SQLite {@link LocalMessageStore}, so it works offline and
+ * survives restarts. Reads run on the calling thread, which should not be the main thread, and
+ * call back before returning; append reads too, to tell a new message from a replaced one.
+ * Subscribers hear about changes made through this store only.
+ */
+public class LocalChatStore implements ChatStore {
+
+    /**
+     * The message storage this store reads and writes; {@link LocalMessageStore} on a device
+     */
+    public interface Storage {
+        void insert(ChatMessage message);
+
+        boolean contains(String conversationKey, String messageId);
+
+        /**
+         * @return up to limit messages, oldest first, the newest when before is null
+         */
+        List<ChatMessage> getPage(String conversationKey, ChatMessage before, int limit);
+
+        List<ChatMessage> getMessagesBetween(String conversationKey, long from, long to);
+
+        void deleteMessages(String conversationKey, List<String> messageIds);
+
+        void deleteConversation(String conversationKey);
+    }
+
+    private final Storage store;
+    private final Map<String, Set<DeltaListener>> listeners = new HashMap<>();
+
+    public LocalChatStore(Storage store) {
+        this.store = store;
+    }
+
+    @Override
+    public void append(ChatMessage message, WriteListener listener) {
+        if (message == null || message.getId() == null || message.getDeviceAddress() == null) {
+            if (listener != null) {
+                listener.onWriteComplete(false, "Message has no ID or conversation");
+            }
+            return;
+        }
+
+        String key = message.getDeviceAddress();
+        boolean replaced = store.contains(key, message.getId());
+        store.insert(message);
+        for (DeltaListener deltaListener : getListeners(key)) {
+            if (replaced) {
+                deltaListener.onMessageChanged(key, message);
+            } else {
+                deltaListener.onMessageAdded(key, message);
+            }
+        }
+        if (listener != null) {
+            listener.onWriteComplete(true, null);
+        }
+    }
+
+    @Override
+    public void loadPage(String conversationKey, ChatMessage before, PageListener listener) {
+        // One extra row tells whether an older page exists
+        List<ChatMessage> page = store.getPage(conversationKey, before, PAGE_SIZE + 1);
+        boolean hasOlder = page.size() > PAGE_SIZE;
+        if (hasOlder) {
+            page.remove(0);
+        }
+        if (listener != null) {
+            listener.onPageLoaded(conversationKey, page, hasOlder);
+        }
+    }
+
+    @Override
+    public void subscribe(String conversationKey, DeltaListener listener) {
+        synchronized (this) {
+            Set<DeltaListener> conversationListeners = listeners.get(conversationKey);
+            if (conversationListeners == null) {
+                conversationListeners = new LinkedHashSet<>();
+                listeners.put(conversationKey, conversationListeners);
+            }
+            if (listener == null || !conversationListeners.add(listener)) {
+                return;
+            }
+        }
+        loadPage(conversationKey, null, (key, messages, hasOlder) -> {
+            for (ChatMessage message : messages) {
+                listener.onMessageAdded(key, message);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void unsubscribe(String conversationKey, DeltaListener listener) {
+        Set<DeltaListener> conversationListeners = listeners.get(conversationKey);
+        if (conversationListeners != null && conversationListeners.remove(listener) && conversationListeners.isEmpty()) {
+            listeners.remove(conversationKey);
+        }
+    }
+
+    @Override
+    public void delete(String conversationKey, List<ChatMessage> messages, WriteListener listener) {
+        List<String> messageIds = new ArrayList<>(messages.size());
+        for (ChatMessage message : messages) {
+            messageIds.add(message.getId());
+        }
+        store.deleteMessages(conversationKey, messageIds);
+        for (DeltaListener deltaListener : getListeners(conversationKey)) {
+            for (String messageId : messageIds) {
+                deltaListener.onMessageRemoved(conversationKey, messageId);
+            }
+        }
+        if (listener != null) {
+            listener.onWriteComplete(true, null);
+        }
+    }
+
+    @Override
+    public void deleteConversation(String conversationKey, WriteListener listener) {
+        List<DeltaListener> conversationListeners = getListeners(conversationKey);
+        List<ChatMessage> removed = conversationListeners.isEmpty()
+                ? new ArrayList<>() : store.getMessagesBetween(conversationKey, Long.MIN_VALUE, Long.MAX_VALUE);
+        store.deleteConversation(conversationKey);
+        for (DeltaListener deltaListener : conversationListeners) {
+            for (ChatMessage message : removed) {
+                deltaListener.onMessageRemoved(conversationKey, message.getId());
+            }
+        }
+        if (listener != null) {
+            listener.onWriteComplete(true, null);
+        }
+    }
+
+    private synchronized List<DeltaListener> getListeners(String conversationKey) {
+        Set<DeltaListener> conversationListeners = listeners.get(conversationKey);
+        return conversationListeners != null ? new ArrayList<>(conversationListeners) : new ArrayList<>();
+    }
+}
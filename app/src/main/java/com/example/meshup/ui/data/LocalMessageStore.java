@@ -0,0 +1,791 @@
+package com.example.meshup.ui.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * On-device SQLite store for chat messages, indexed by conversation and timestamp.
+ *
+ * Inserts only append to an in-memory batch; a background thread writes each batch in a single
+ * transaction with one compiled statement, so the cost of receiving a message does not depend on
+ * how many are stored. Reads wait for the writer thread to write the batch first, so they always
+ * see every insert and never write on the calling thread. Reads block, so they belong on a
+ * background thread rather than the main one.
+ *
+ * Raw text that arrives while no chat screen can parse it is kept in a separate pending table
+ * until {@link #takePendingMessages(PendingListener)} hands it over. Messages waiting for upload sit in the
+ * outbox table until the sync engine has them acknowledged. The conversation index keeps one
+ * summary row per conversation, and the retention table holds per-conversation policy overrides
+ * and how far each conversation has been archived.
+ */
+public class LocalMessageStore extends SQLiteOpenHelper
+        implements LocalChatHistory.MessageSink, SyncEngine.Outbox, HistoryTransfer.Target, LocalChatStore.Storage {
+    private static final String TAG = "LocalMessageStore";
+    private static final String DATABASE_NAME = "messages.db";
+    private static final int DATABASE_VERSION = 4;
+
+    private static final String TABLE_MESSAGES = "messages";
+    private static final String TABLE_PENDING = "pending_messages";
+    private static final String TABLE_OUTBOX = "outbox";
+    private static final String TABLE_CONVERSATIONS = "conversations";
+    private static final String TABLE_RETENTION = "retention";
+    private static final int BATCH_SIZE = 64;
+    private static final long FLUSH_DELAY = 250; // ms; lets a sync burst share one transaction
+
+    private static final String INSERT_MESSAGE = "INSERT OR REPLACE INTO " + TABLE_MESSAGES +
+            " (conversation, id, sender_id, sender_name, content, message_type, timestamp, received)" +
+            " VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_NEW_MESSAGE = "INSERT OR IGNORE INTO " + TABLE_MESSAGES +
+            " (conversation, id, sender_id, sender_name, content, message_type, timestamp, received)" +
+            " VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String MESSAGE_COLUMNS =
+            "conversation, id, sender_id, sender_name, content, message_type, timestamp, received";
+
+    /**
+     * Receives messages one at a time from a streaming read
+     */
+    public interface MessageVisitor {
+        void visit(ChatMessage message) throws IOException;
+    }
+
+    /**
+     * Receives the raw messages taken from the pending table, on the writer thread
+     */
+    public interface PendingListener {
+        /**
+         * @param pending "timestamp:message" lines, oldest first; empty if there were none
+         */
+        void onPendingMessages(String pending);
+    }
+
+    private final HandlerThread writerThread;
+    private final Handler writerHandler;
+    private final Runnable flushRunnable = this::flush;
+    private final Runnable summaryRunnable = this::writeSummaries;
+    // Held while a batch is written, so batches reach the database in insert order
+    private final Object writeLock = new Object();
+    private List<ChatMessage> batch = new ArrayList<>();
+    private boolean flushScheduled;
+    // Conversation -> newest summary not written yet
+    private final Map<String, ConversationSummary> pendingSummaries = new LinkedHashMap<>();
+
+    public LocalMessageStore(Context context) {
+        super(context.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
+        writerThread = new HandlerThread(TAG);
+        writerThread.start();
+        writerHandler = new Handler(writerThread.getLooper());
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_MESSAGES + " (" +
+                "conversation TEXT NOT NULL, " +
+                "id TEXT NOT NULL, " +
+                "sender_id TEXT, " +
+                "sender_name TEXT, " +
+                "content TEXT, " +
+                "message_type TEXT, " +
+                "timestamp INTEGER NOT NULL, " +
+                "received INTEGER NOT NULL, " +
+                "PRIMARY KEY (conversation, id))");
+        db.execSQL("CREATE INDEX idx_messages_conversation_time ON " + TABLE_MESSAGES +
+                " (conversation, timestamp)");
+        db.execSQL("CREATE TABLE " + TABLE_PENDING + " (" +
+                "seq INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "received_at INTEGER NOT NULL, " +
+                "raw TEXT NOT NULL)");
+        createOutbox(db);
+        createConversations(db);
+        createRetention(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            createOutbox(db);
+        }
+        if (oldVersion < 3) {
+            createConversations(db);
+        }
+        if (oldVersion < 4) {
+            createRetention(db);
+        }
+    }
+
+    private static void createRetention(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_RETENTION + " (" +
+                "conversation TEXT PRIMARY KEY, " +
+                "max_age INTEGER, " +
+                "max_count INTEGER, " +
+                "max_bytes INTEGER, " +
+                "archived_before INTEGER NOT NULL DEFAULT 0)");
+    }
+
+    private static void createConversations(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_CONVERSATIONS + " (" +
+                "conversation TEXT PRIMARY KEY, " +
+                "peer_name TEXT, " +
+                "last_message TEXT, " +
+                "last_sender TEXT, " +
+                "last_timestamp INTEGER NOT NULL, " +
+                "unread INTEGER NOT NULL)");
+    }
+
+    private static void createOutbox(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_OUTBOX + " (" +
+                "seq INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "conversation TEXT NOT NULL, " +
+                "id TEXT NOT NULL UNIQUE ON CONFLICT IGNORE, " +
+                "sender_id TEXT, " +
+                "sender_name TEXT, " +
+                "content TEXT, " +
+                "message_type TEXT, " +
+                "timestamp INTEGER NOT NULL, " +
+                "received INTEGER NOT NULL)");
+    }
+
+    @Override
+    public void onMessageAdded(ChatMessage message, boolean live) {
+        insert(message);
+    }
+
+    /**
+     * Delete the messages and pending uploads on the writer thread, and keep the cutoff like an
+     * archive position, so a restart does not take the messages back in either
+     */
+    @Override
+    public void onConversationCleared(String conversationKey, long before) {
+        writerHandler.post(() -> {
+            int deleted = deleteMessagesBefore(conversationKey, before);
+            try {
+                getWritableDatabase().delete(TABLE_OUTBOX, "conversation = ? AND timestamp < ?",
+                        new String[]{conversationKey, String.valueOf(before)});
+            } catch (Exception e) {
+                Log.e(TAG, "Error clearing uploads of " + conversationKey, e);
+            }
+            Log.d(TAG, "Cleared " + deleted + " messages of " + conversationKey);
+        });
+        setArchivedBefore(conversationKey, before);
+    }
+
+    /**
+     * Queue a message for the next batch; returns without touching the database
+     */
+    @Override
+    public void insert(ChatMessage message) {
+        if (message == null || message.getId() == null || message.getDeviceAddress() == null) {
+            return;
+        }
+
+        synchronized (this) {
+            batch.add(message);
+            if (batch.size() >= BATCH_SIZE) {
+                writerHandler.removeCallbacks(flushRunnable);
+                writerHandler.post(flushRunnable);
+                flushScheduled = true;
+            } else if (!flushScheduled) {
+                writerHandler.postDelayed(flushRunnable, FLUSH_DELAY);
+                flushScheduled = true;
+            }
+        }
+    }
+
+    /**
+     * Write all queued messages in one transaction
+     */
+    public void flush() {
+        synchronized (writeLock) {
+            List<ChatMessage> pending;
+            synchronized (this) {
+                flushScheduled = false;
+                if (batch.isEmpty()) {
+                    return;
+                }
+                pending = batch;
+                batch = new ArrayList<>();
+            }
+            write(pending);
+        }
+    }
+
+    /**
+     * Block until the writer thread has written every queued insert, so a read sees them without
+     * writing on the calling thread
+     */
+    private void awaitBatch() {
+        synchronized (this) {
+            if (batch.isEmpty()) {
+                return;
+            }
+        }
+        if (Looper.myLooper() == writerThread.getLooper() || !writerThread.isAlive()) {
+            flush();
+            return;
+        }
+        CountDownLatch written = new CountDownLatch(1);
+        writerHandler.removeCallbacks(flushRunnable);
+        if (!writerHandler.post(() -> {
+            flush();
+            written.countDown();
+        })) {
+            flush(); // The writer thread has quit
+            return;
+        }
+        try {
+            written.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(List<ChatMessage> pending) {
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            SQLiteStatement statement = db.compileStatement(INSERT_MESSAGE);
+            db.beginTransaction();
+            try {
+                for (ChatMessage message : pending) {
+                    bindMessage(statement, message);
+                    statement.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                statement.close();
+            }
+            Log.d(TAG, "Stored batch of " + pending.size() + " messages");
+        } catch (Exception e) {
+            Log.e(TAG, "Error storing message batch", e);
+        }
+    }
+
+    /**
+     * Write a batch of imported messages in one transaction on the calling thread, keeping any
+     * copy already stored and skipping archived ranges; durable once this returns
+     * @return the messages that were new
+     */
+    @Override
+    public List<ChatMessage> insertNew(List<ChatMessage> messages) {
+        List<ChatMessage> added = new ArrayList<>();
+        synchronized (writeLock) {
+            flush();
+            Map<String, Long> archived = getArchivedBefore();
+            SQLiteDatabase db = getWritableDatabase();
+            SQLiteStatement statement = db.compileStatement(INSERT_NEW_MESSAGE);
+            db.beginTransaction();
+            try {
+                for (ChatMessage message : messages) {
+                    if (message == null || message.getId() == null || message.getDeviceAddress() == null) {
+                        continue;
+                    }
+                    Long before = archived.get(message.getDeviceAddress());
+                    if (before != null && message.getTimestamp() < before) {
+                        continue;
+                    }
+                    bindMessage(statement, message);
+                    // -1 when the row was already there
+                    if (statement.executeInsert() != -1) {
+                        added.add(message);
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                statement.close();
+            }
+        }
+        return added;
+    }
+
+    /**
+     * @return whether a conversation holds a message with this ID, counting queued inserts
+     */
+    @Override
+    public boolean contains(String conversationKey, String messageId) {
+        awaitBatch();
+        try (Cursor cursor = getReadableDatabase().rawQuery("SELECT 1 FROM " + TABLE_MESSAGES +
+                " WHERE conversation = ? AND id = ? LIMIT 1", new String[]{conversationKey, messageId})) {
+            return cursor.moveToFirst();
+        } catch (Exception e) {
+            Log.e(TAG, "Error looking up message " + messageId, e);
+            return false;
+        }
+    }
+
+    /**
+     * @return messages of a conversation with from <= timestamp < to, oldest first
+     */
+    @Override
+    public List<ChatMessage> getMessagesBetween(String conversationKey, long from, long to) {
+        awaitBatch();
+        return query("conversation = ? AND timestamp >= ? AND timestamp < ?",
+                new String[]{conversationKey, String.valueOf(from), String.valueOf(to)}, "timestamp ASC");
+    }
+
+    /**
+     * @return up to limit messages of a conversation, oldest first: the newest when before is
+     * null, otherwise the ones that sort just before it by timestamp, then ID
+     */
+    @Override
+    public List<ChatMessage> getPage(String conversationKey, ChatMessage before, int limit) {
+        awaitBatch();
+        List<ChatMessage> page;
+        if (before == null) {
+            page = query("conversation = ?", new String[]{conversationKey},
+                    "timestamp DESC, id DESC LIMIT " + limit);
+        } else {
+            String timestamp = String.valueOf(before.getTimestamp());
+            page = query("conversation = ? AND (timestamp < ? OR (timestamp = ? AND id < ?))",
+                    new String[]{conversationKey, timestamp, timestamp, before.getId()},
+                    "timestamp DESC, id DESC LIMIT " + limit);
+        }
+        Collections.reverse(page);
+        return page;
+    }
+
+    /**
+     * @return up to limit of a conversation's messages with timestamp < before, oldest first,
+     * starting just after the given message by timestamp, then ID, or at the oldest when it is null
+     */
+    public List<ChatMessage> getMessagesAfter(String conversationKey, ChatMessage after, long before, int limit) {
+        awaitBatch();
+        String end = String.valueOf(before);
+        if (after == null) {
+            return query("conversation = ? AND timestamp < ?", new String[]{conversationKey, end},
+                    "timestamp ASC, id ASC LIMIT " + limit);
+        }
+        String timestamp = String.valueOf(after.getTimestamp());
+        return query("conversation = ? AND timestamp < ? AND (timestamp > ? OR (timestamp = ? AND id > ?))",
+                new String[]{conversationKey, end, timestamp, timestamp, after.getId()},
+                "timestamp ASC, id ASC LIMIT " + limit);
+    }
+
+    /**
+     * Delete some of a conversation's messages in one transaction
+     */
+    @Override
+    public void deleteMessages(String conversationKey, List<String> messageIds) {
+        synchronized (writeLock) {
+            flush();
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (String messageId : messageIds) {
+                    db.delete(TABLE_MESSAGES, "conversation = ? AND id = ?", new String[]{conversationKey, messageId});
+                }
+                db.setTransactionSuccessful();
+            } catch (Exception e) {
+                Log.e(TAG, "Error deleting messages of " + conversationKey, e);
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    @Override
+    public void deleteConversation(String conversationKey) {
+        deleteMessagesBefore(conversationKey, Long.MAX_VALUE);
+    }
+
+    /**
+     * Stream a conversation's messages, oldest first, through one cursor, so memory use does not
+     * depend on how many there are
+     */
+    public void forEachMessage(String conversationKey, MessageVisitor visitor) throws IOException {
+        awaitBatch();
+        try (Cursor cursor = getReadableDatabase().rawQuery("SELECT " + MESSAGE_COLUMNS + " FROM " +
+                TABLE_MESSAGES + " WHERE conversation = ? ORDER BY timestamp ASC, id ASC",
+                new String[]{conversationKey})) {
+            while (cursor.moveToNext()) {
+                visitor.visit(readMessage(cursor));
+            }
+        }
+    }
+
+    /**
+     * @return the key of every conversation with stored messages
+     */
+    public List<String> getConversationKeys() {
+        awaitBatch();
+        List<String> keys = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().rawQuery("SELECT DISTINCT conversation FROM " +
+                TABLE_MESSAGES, null)) {
+            while (cursor.moveToNext()) {
+                keys.add(cursor.getString(0));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading conversations", e);
+        }
+        return keys;
+    }
+
+    /**
+     * Walk a conversation from its newest message, using only timestamps and sizes, until the
+     * policy stops holding
+     * @return the timestamp below which messages expire, or Long.MIN_VALUE if none do
+     */
+    public long findRetentionCutoff(String conversationKey, RetentionPolicy policy, long now) {
+        if (policy.isUnlimited()) {
+            return Long.MIN_VALUE;
+        }
+        awaitBatch();
+
+        // Same measure as RetentionPolicy.sizeOf
+        String size = "32 + ifnull(length(id), 0) + ifnull(length(sender_id), 0) + " +
+                "ifnull(length(sender_name), 0) + ifnull(length(message_type), 0) + ifnull(length(content), 0)";
+        long oldestAllowed = policy.getMaxAge() > 0 ? now - policy.getMaxAge() : Long.MIN_VALUE;
+        try (Cursor cursor = getReadableDatabase().rawQuery("SELECT timestamp, " + size + " FROM " +
+                TABLE_MESSAGES + " WHERE conversation = ? ORDER BY timestamp DESC", new String[]{conversationKey})) {
+            int count = 0;
+            long bytes = 0;
+            long oldestKept = Long.MIN_VALUE;
+            while (cursor.moveToNext()) {
+                long timestamp = cursor.getLong(0);
+                count++;
+                bytes += cursor.getLong(1);
+                boolean keep = timestamp >= oldestAllowed
+                        && (policy.getMaxCount() <= 0 || count <= policy.getMaxCount())
+                        && (policy.getMaxBytes() <= 0 || bytes <= policy.getMaxBytes());
+                if (!keep) {
+                    return oldestKept != Long.MIN_VALUE ? oldestKept : timestamp + 1;
+                }
+                oldestKept = timestamp;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error measuring " + conversationKey, e);
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * Delete a conversation's messages with timestamp < before, once queued inserts are written
+     * @return how many were deleted
+     */
+    public int deleteMessagesBefore(String conversationKey, long before) {
+        synchronized (writeLock) {
+            flush();
+            try {
+                return getWritableDatabase().delete(TABLE_MESSAGES, "conversation = ? AND timestamp < ?",
+                        new String[]{conversationKey, String.valueOf(before)});
+            } catch (Exception e) {
+                Log.e(TAG, "Error deleting expired messages of " + conversationKey, e);
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Override the default policy for one conversation, or go back to it with null
+     */
+    public void setRetentionPolicy(String conversationKey, RetentionPolicy policy) {
+        writerHandler.post(() -> {
+            try {
+                SQLiteDatabase db = getWritableDatabase();
+                ensureRetentionRow(db, conversationKey);
+                ContentValues values = new ContentValues();
+                if (policy != null) {
+                    values.put("max_age", policy.getMaxAge());
+                    values.put("max_count", policy.getMaxCount());
+                    values.put("max_bytes", policy.getMaxBytes());
+                } else {
+                    values.putNull("max_age");
+                    values.putNull("max_count");
+                    values.putNull("max_bytes");
+                }
+                db.update(TABLE_RETENTION, values, "conversation = ?", new String[]{conversationKey});
+            } catch (Exception e) {
+                Log.e(TAG, "Error storing retention policy", e);
+            }
+        });
+    }
+
+    /**
+     * @return the conversation's own policy, or null if it uses the default
+     */
+    public RetentionPolicy getRetentionPolicy(String conversationKey) {
+        try (Cursor cursor = getReadableDatabase().rawQuery("SELECT max_age, max_count, max_bytes FROM " +
+                TABLE_RETENTION + " WHERE conversation = ? AND max_age IS NOT NULL",
+                new String[]{conversationKey})) {
+            if (cursor.moveToFirst()) {
+                return new RetentionPolicy(cursor.getLong(0), cursor.getInt(1), cursor.getLong(2));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading retention policy", e);
+        }
+        return null;
+    }
+
+    /**
+     * Record that a conversation's messages with timestamp < before have been archived
+     */
+    public void setArchivedBefore(String conversationKey, long before) {
+        writerHandler.post(() -> {
+            try {
+                SQLiteDatabase db = getWritableDatabase();
+                ensureRetentionRow(db, conversationKey);
+                db.execSQL("UPDATE " + TABLE_RETENTION + " SET archived_before = max(archived_before, ?)" +
+                        " WHERE conversation = ?", new Object[]{before, conversationKey});
+            } catch (Exception e) {
+                Log.e(TAG, "Error storing archive position", e);
+            }
+        });
+    }
+
+    /**
+     * @return per conversation, the timestamp below which its history has been archived
+     */
+    public Map<String, Long> getArchivedBefore() {
+        Map<String, Long> archived = new HashMap<>();
+        try (Cursor cursor = getReadableDatabase().rawQuery("SELECT conversation, archived_before FROM " +
+                TABLE_RETENTION + " WHERE archived_before > 0", null)) {
+            while (cursor.moveToNext()) {
+                archived.put(cursor.getString(0), cursor.getLong(1));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading archive positions", e);
+        }
+        return archived;
+    }
+
+    private static void ensureRetentionRow(SQLiteDatabase db, String conversationKey) {
+        ContentValues values = new ContentValues();
+        values.put("conversation", conversationKey);
+        db.insertWithOnConflict(TABLE_RETENTION, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    /**
+     * Keep raw text that could not be shown yet
+     */
+    public void insertPending(String raw, long receivedAt) {
+        writerHandler.post(() -> {
+            try {
+                ContentValues values = new ContentValues();
+                values.put("received_at", receivedAt);
+                values.put("raw", raw);
+                getWritableDatabase().insert(TABLE_PENDING, null, values);
+            } catch (Exception e) {
+                Log.e(TAG, "Error storing pending message", e);
+            }
+        });
+    }
+
+    /**
+     * Queue a message for upload; a message already in the outbox keeps its place
+     */
+    @Override
+    public void insertOutbox(ChatMessage message) {
+        writerHandler.post(() -> {
+            try {
+                ContentValues values = new ContentValues();
+                values.put("conversation", message.getDeviceAddress());
+                values.put("id", message.getId());
+                values.put("sender_id", message.getSenderId());
+                values.put("sender_name", message.getSenderName());
+                values.put("content", message.getContent());
+                values.put("message_type", message.getMessageType());
+                values.put("timestamp", message.getTimestamp());
+                values.put("received", message.isReceived() ? 1 : 0);
+                getWritableDatabase().insert(TABLE_OUTBOX, null, values);
+            } catch (Exception e) {
+                Log.e(TAG, "Error queueing message for upload", e);
+            }
+        });
+    }
+
+    /**
+     * Drop a message from the outbox once the server has it
+     */
+    @Override
+    public void removeOutbox(String messageId) {
+        writerHandler.post(() -> {
+            try {
+                getWritableDatabase().delete(TABLE_OUTBOX, "id = ?", new String[]{messageId});
+            } catch (Exception e) {
+                Log.e(TAG, "Error removing uploaded message", e);
+            }
+        });
+    }
+
+    /**
+     * @return messages still waiting for upload, in the order they were queued
+     */
+    public List<ChatMessage> getOutboxMessages() {
+        List<ChatMessage> messages = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().rawQuery("SELECT " + MESSAGE_COLUMNS + " FROM " +
+                TABLE_OUTBOX + " ORDER BY seq ASC", null)) {
+            while (cursor.moveToNext()) {
+                messages.add(readMessage(cursor));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading outbox", e);
+        }
+        return messages;
+    }
+
+    /**
+     * Write a conversation's summary, replacing the previous one. Summaries are written together
+     * after {@link #FLUSH_DELAY}, so a burst of messages writes each conversation's row once.
+     */
+    public void putConversation(ConversationSummary summary) {
+        synchronized (this) {
+            boolean scheduled = !pendingSummaries.isEmpty();
+            pendingSummaries.put(summary.getConversationKey(), summary);
+            if (!scheduled) {
+                writerHandler.postDelayed(summaryRunnable, FLUSH_DELAY);
+            }
+        }
+    }
+
+    private void writeSummaries() {
+        List<ConversationSummary> pending;
+        synchronized (this) {
+            if (pendingSummaries.isEmpty()) {
+                return;
+            }
+            pending = new ArrayList<>(pendingSummaries.values());
+            pendingSummaries.clear();
+        }
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (ConversationSummary summary : pending) {
+                    ContentValues values = new ContentValues();
+                    values.put("conversation", summary.getConversationKey());
+                    values.put("peer_name", summary.getPeerName());
+                    values.put("last_message", summary.getLastMessage());
+                    values.put("last_sender", summary.getLastSender());
+                    values.put("last_timestamp", summary.getLastTimestamp());
+                    values.put("unread", summary.getUnreadCount());
+                    db.insertWithOnConflict(TABLE_CONVERSATIONS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error storing conversation summaries", e);
+        }
+    }
+
+    /**
+     * @return every conversation summary, most recent first
+     */
+    public List<ConversationSummary> getConversationSummaries() {
+        List<ConversationSummary> summaries = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().rawQuery("SELECT conversation, peer_name, last_message, " +
+                "last_sender, last_timestamp, unread FROM " + TABLE_CONVERSATIONS +
+                " ORDER BY last_timestamp DESC", null)) {
+            while (cursor.moveToNext()) {
+                summaries.add(new ConversationSummary(cursor.getString(0), cursor.getString(1),
+                        cursor.getString(2), cursor.getString(3), cursor.getLong(4), cursor.getInt(5)));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading conversation summaries", e);
+        }
+        return summaries;
+    }
+
+    /**
+     * Remove the pending raw messages on the writer thread, after any still queued by
+     * {@link #insertPending}, and hand them to the listener there
+     */
+    public void takePendingMessages(PendingListener listener) {
+        writerHandler.post(() -> {
+            StringBuilder builder = new StringBuilder();
+            try {
+                SQLiteDatabase db = getWritableDatabase();
+                db.beginTransaction();
+                try (Cursor cursor = db.query(TABLE_PENDING, new String[]{"received_at", "raw"},
+                        null, null, null, null, "seq ASC")) {
+                    while (cursor.moveToNext()) {
+                        builder.append(cursor.getLong(0)).append(':').append(cursor.getString(1)).append('\n');
+                    }
+                    db.delete(TABLE_PENDING, null, null);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error taking pending messages", e);
+                builder.setLength(0);
+            }
+            listener.onPendingMessages(builder.toString());
+        });
+    }
+
+    /**
+     * Stop the writer thread once its queued work is done, then write out the last batch
+     */
+    @Override
+    public void close() {
+        writerHandler.removeCallbacks(flushRunnable);
+        writerHandler.removeCallbacks(summaryRunnable);
+        writerThread.quitSafely();
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        writeSummaries();
+        super.close();
+    }
+
+    private List<ChatMessage> query(String selection, String[] args, String orderBy) {
+        List<ChatMessage> messages = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().rawQuery("SELECT " + MESSAGE_COLUMNS + " FROM " +
+                TABLE_MESSAGES + (selection != null ? " WHERE " + selection : "") +
+                " ORDER BY " + orderBy, args)) {
+            while (cursor.moveToNext()) {
+                messages.add(readMessage(cursor));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading messages", e);
+        }
+        return messages;
+    }
+
+    private static ChatMessage readMessage(Cursor cursor) {
+        return new ChatMessage(cursor.getString(1), cursor.getString(2), cursor.getString(3),
+                cursor.getString(0), cursor.getString(4), cursor.getString(5),
+                cursor.getLong(6), cursor.getInt(7) != 0);
+    }
+
+    private static void bindMessage(SQLiteStatement statement, ChatMessage message) {
+        statement.clearBindings();
+        statement.bindString(1, message.getDeviceAddress());
+        statement.bindString(2, message.getId());
+        bindNullable(statement, 3, message.getSenderId());
+        bindNullable(statement, 4, message.getSenderName());
+        bindNullable(statement, 5, message.getContent());
+        bindNullable(statement, 6, message.getMessageType());
+        statement.bindLong(7, message.getTimestamp());
+        statement.bindLong(8, message.isReceived() ? 1 : 0);
+    }
+
+    private static void bindNullable(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+}
@@ -0,0 +1,565 @@
+package com.example.meshup.ui.data;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * In-memory inverted index over message content, for searching local history without the network.
+ *
+ * Content is normalized (NFKD with combining marks stripped, then lower-cased) and split into runs
+ * of letters and digits. Each message gets a document number in the order it is indexed; a term's
+ * postings are that term's document numbers and word positions, delta and varint encoded into one
+ * growing byte array, so appending a message only writes to the end of its terms' arrays.
+ *
+ * A query is a list of terms that must all match: a plain word matches exactly, "word*" matches
+ * any term with that prefix and a "quoted phrase" matches those words next to each other. Matches
+ * come back most recent first.
+ *
+ * With a loader, the index is built from storage on the first search rather than at start-up, and
+ * is built again after {@link #invalidate()}, e.g. once messages were imported into the store.
+ */
+public class MessageSearchIndex implements LocalChatHistory.MessageSink {
+    private static final String TAG = "MessageSearchIndex";
+    private static final int MAX_TERM_LENGTH = 64;
+
+    /**
+     * Streams every stored message
+     */
+    public interface Loader {
+        void forEachMessage(LocalMessageStore.MessageVisitor visitor) throws IOException;
+    }
+
+    /**
+     * One term's postings: per document, the document number delta, the position count and the
+     * position deltas, all as varints
+     */
+    private static class Postings {
+        byte[] data = new byte[16];
+        int length;
+        int lastDocument = -1;
+        int documentCount;
+
+        void add(int document, List<Integer> positions) {
+            writeVarint(document - lastDocument);
+            writeVarint(positions.size());
+            int lastPosition = 0;
+            for (int position : positions) {
+                writeVarint(position - lastPosition);
+                lastPosition = position;
+            }
+            lastDocument = document;
+            documentCount++;
+        }
+
+        private void writeVarint(int value) {
+            if (length + 5 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            while ((value & ~0x7F) != 0) {
+                data[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[length++] = (byte) value;
+        }
+    }
+
+    /**
+     * Sequential reader over one term's postings
+     */
+    private static class PostingsReader {
+        private final Postings postings;
+        private int offset;
+        int document = -1;
+        int[] positions = new int[4];
+        int positionCount;
+
+        PostingsReader(Postings postings) {
+            this.postings = postings;
+        }
+
+        boolean next() {
+            if (offset >= postings.length) {
+                return false;
+            }
+            document += readVarint();
+            positionCount = readVarint();
+            if (positions.length < positionCount) {
+                positions = new int[positionCount];
+            }
+            int position = 0;
+            for (int i = 0; i < positionCount; i++) {
+                position += readVarint();
+                positions[i] = position;
+            }
+            return true;
+        }
+
+        /**
+         * Skip the positions; only the document numbers are needed
+         */
+        boolean nextDocument() {
+            if (offset >= postings.length) {
+                return false;
+            }
+            document += readVarint();
+            positionCount = readVarint();
+            for (int i = 0; i < positionCount; i++) {
+                while ((postings.data[offset++] & 0x80) != 0) {
+                    // Continuation byte
+                }
+            }
+            return true;
+        }
+
+        private int readVarint() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = postings.data[offset++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+
+    // Sorted so a prefix is a contiguous range of terms
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+    // Document number -> message; null once the message was removed
+    private ChatMessage[] documents = new ChatMessage[256];
+    private int documentCount;
+    // Conversation key + message ID -> document number
+    private final Map<String, Integer> documentIds = new HashMap<>();
+    private Loader loader;
+    // Built from the loader before the next search
+    private boolean stale;
+
+    /**
+     * Build the index from storage when it is first searched
+     */
+    public synchronized void setLoader(Loader loader) {
+        this.loader = loader;
+        stale = loader != null;
+    }
+
+    /**
+     * Build the index from storage again before the next search
+     */
+    public synchronized void invalidate() {
+        stale = loader != null;
+    }
+
+    @Override
+    public synchronized void onMessageAdded(ChatMessage message, boolean live) {
+        // A stale index takes the message from storage when it is built
+        if (!stale) {
+            add(message);
+        }
+    }
+
+    /**
+     * Index messages restored from storage; messages already indexed are skipped
+     */
+    public synchronized void addAll(List<ChatMessage> messages) {
+        for (ChatMessage message : messages) {
+            add(message);
+        }
+    }
+
+    public synchronized void add(ChatMessage message) {
+        if (message == null || message.getId() == null || message.getDeviceAddress() == null) {
+            return;
+        }
+
+        String key = documentKey(message.getDeviceAddress(), message.getId());
+        Integer known = documentIds.get(key);
+        if (known != null) {
+            // Content never changes once sent; keep the newer copy for its timestamp
+            documents[known] = message;
+            return;
+        }
+
+        int document = documentCount++;
+        if (document == documents.length) {
+            documents = Arrays.copyOf(documents, documents.length * 2);
+        }
+        documents[document] = message;
+        documentIds.put(key, document);
+
+        Map<String, List<Integer>> positions = new HashMap<>();
+        List<String> tokens = tokenize(message.getContent());
+        for (int i = 0; i < tokens.size(); i++) {
+            List<Integer> termPositions = positions.get(tokens.get(i));
+            if (termPositions == null) {
+                termPositions = new ArrayList<>();
+                positions.put(tokens.get(i), termPositions);
+            }
+            termPositions.add(i);
+        }
+        for (Map.Entry<String, List<Integer>> entry : positions.entrySet()) {
+            Postings postings = terms.get(entry.getKey());
+            if (postings == null) {
+                postings = new Postings();
+                terms.put(entry.getKey(), postings);
+            }
+            postings.add(document, entry.getValue());
+        }
+    }
+
+    /**
+     * Stop returning a message; its postings stay until the index is rebuilt
+     */
+    public synchronized void remove(String conversationKey, String messageId) {
+        Integer document = documentIds.remove(documentKey(conversationKey, messageId));
+        if (document != null) {
+            documents[document] = null;
+        }
+    }
+
+    @Override
+    public void onConversationCleared(String conversationKey, long before) {
+        removeConversation(conversationKey);
+    }
+
+    public synchronized void removeConversation(String conversationKey) {
+        for (int document = 0; document < documentCount; document++) {
+            ChatMessage message = documents[document];
+            if (message != null && conversationKey.equals(message.getDeviceAddress())) {
+                documentIds.remove(documentKey(conversationKey, message.getId()));
+                documents[document] = null;
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return documentIds.size();
+    }
+
+    /**
+     * @return up to limit messages matching every term of the query, most recent first. The first
+     *         search after start-up or an invalidation reads storage, so call off the main thread.
+     */
+    public synchronized List<ChatMessage> search(String query, int limit) {
+        if (stale) {
+            rebuild();
+        }
+        List<int[]> matches = new ArrayList<>();
+        for (String clause : parseQuery(query)) {
+            int[] documents;
+            if (clause.startsWith("\"")) {
+                documents = matchPhrase(tokenize(clause));
+            } else if (clause.endsWith("*")) {
+                documents = matchPrefix(normalize(clause.substring(0, clause.length() - 1)));
+            } else {
+                documents = matchTerm(normalize(clause));
+            }
+            if (documents == null) {
+                continue; // Nothing searchable in this clause, e.g. only punctuation
+            }
+            matches.add(documents);
+        }
+        if (matches.isEmpty() || limit <= 0) {
+            return new ArrayList<>();
+        }
+
+        // Intersect the smallest lists first, so the candidates shrink fastest
+        matches.sort((a, b) -> Integer.compare(a.length, b.length));
+        int[] candidates = matches.get(0);
+        for (int i = 1; i < matches.size() && candidates.length > 0; i++) {
+            candidates = intersect(candidates, matches.get(i));
+        }
+        return mostRecent(candidates, limit);
+    }
+
+    private void rebuild() {
+        stale = false;
+        terms.clear();
+        documents = new ChatMessage[256];
+        documentCount = 0;
+        documentIds.clear();
+        long start = System.currentTimeMillis();
+        try {
+            loader.forEachMessage(this::add);
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading messages to index", e);
+        }
+        Log.d(TAG, "Indexed " + documentIds.size() + " messages in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private int[] matchTerm(String term) {
+        if (term.isEmpty()) {
+            return null;
+        }
+        Postings postings = terms.get(term);
+        return postings != null ? readDocuments(postings) : new int[0];
+    }
+
+    private int[] matchPrefix(String prefix) {
+        if (prefix.isEmpty()) {
+            return null;
+        }
+        SortedMap<String, Postings> range = terms.subMap(prefix, prefix + Character.MAX_VALUE);
+        // One bit per document, so each matching term costs its own postings however many
+        // terms share the prefix
+        BitSet matched = new BitSet(documentCount);
+        for (Postings postings : range.values()) {
+            PostingsReader reader = new PostingsReader(postings);
+            while (reader.nextDocument()) {
+                matched.set(reader.document);
+            }
+        }
+
+        int[] result = new int[matched.cardinality()];
+        int count = 0;
+        for (int document = matched.nextSetBit(0); document >= 0; document = matched.nextSetBit(document + 1)) {
+            result[count++] = document;
+        }
+        return result;
+    }
+
+    /**
+     * Documents where the words occur in order, one position apart
+     */
+    private int[] matchPhrase(List<String> words) {
+        if (words.isEmpty()) {
+            return null;
+        }
+        if (words.size() == 1) {
+            return matchTerm(words.get(0));
+        }
+
+        PostingsReader[] readers = new PostingsReader[words.size()];
+        for (int i = 0; i < words.size(); i++) {
+            Postings postings = terms.get(words.get(i));
+            if (postings == null) {
+                return new int[0];
+            }
+            readers[i] = new PostingsReader(postings);
+        }
+
+        int[] result = new int[16];
+        int count = 0;
+        if (!readers[0].next()) {
+            return new int[0];
+        }
+        // Advance all readers to the same document, then compare positions
+        outer:
+        while (true) {
+            int target = readers[0].document;
+            for (int i = 1; i < readers.length; i++) {
+                while (readers[i].document < target) {
+                    if (!readers[i].next()) {
+                        break outer;
+                    }
+                }
+                if (readers[i].document > target) {
+                    while (readers[0].document < readers[i].document) {
+                        if (!readers[0].next()) {
+                            break outer;
+                        }
+                    }
+                    continue outer;
+                }
+            }
+            if (containsPhrase(readers)) {
+                if (count == result.length) {
+                    result = Arrays.copyOf(result, count * 2);
+                }
+                result[count++] = target;
+            }
+            if (!readers[0].next()) {
+                break;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static boolean containsPhrase(PostingsReader[] readers) {
+        for (int i = 0; i < readers[0].positionCount; i++) {
+            int start = readers[0].positions[i];
+            boolean found = true;
+            for (int j = 1; j < readers.length && found; j++) {
+                found = Arrays.binarySearch(readers[j].positions, 0, readers[j].positionCount, start + j) >= 0;
+            }
+            if (found) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int[] readDocuments(Postings postings) {
+        int[] result = new int[postings.documentCount];
+        PostingsReader reader = new PostingsReader(postings);
+        int count = 0;
+        while (reader.nextDocument()) {
+            result[count++] = reader.document;
+        }
+        return result;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * The limit newest live documents, newest first, using a bounded heap
+     */
+    private List<ChatMessage> mostRecent(int[] candidates, int limit) {
+        PriorityQueue<ChatMessage> newest = new PriorityQueue<>(Math.min(limit, candidates.length) + 1,
+                (a, b) -> Long.compare(a.getTimestamp(), b.getTimestamp()));
+        for (int document : candidates) {
+            ChatMessage message = documents[document];
+            if (message == null) {
+                continue;
+            }
+            if (newest.size() < limit) {
+                newest.add(message);
+            } else if (message.getTimestamp() > newest.peek().getTimestamp()) {
+                newest.poll();
+                newest.add(message);
+            }
+        }
+
+        List<ChatMessage> result = new ArrayList<>(newest);
+        result.sort((a, b) -> Long.compare(b.getTimestamp(), a.getTimestamp()));
+        return result;
+    }
+
+    /**
+     * Split a query into words, "word*" prefixes and quoted phrases
+     */
+    static List<String> parseQuery(String query) {
+        List<String> clauses = new ArrayList<>();
+        if (query == null) {
+            return clauses;
+        }
+        int i = 0;
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '"') {
+                int end = query.indexOf('"', i + 1);
+                if (end == -1) {
+                    end = query.length();
+                }
+                clauses.add("\"" + query.substring(i + 1, end));
+                i = end + 1;
+            } else {
+                int end = i;
+                while (end < query.length() && !Character.isWhitespace(query.charAt(end))) {
+                    end++;
+                }
+                String word = query.substring(i, end);
+                // Punctuation inside a word splits it into several terms, which must then
+                // appear together
+                List<String> tokens = tokenize(word);
+                if (word.endsWith("*") || tokens.size() <= 1) {
+                    clauses.add(word);
+                } else {
+                    clauses.add("\"" + word);
+                }
+                i = end;
+            }
+        }
+        return clauses;
+    }
+
+    /**
+     * Normalized runs of letters and digits, in order
+     */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null || text.isEmpty()) {
+            return tokens;
+        }
+        String normalized = fold(text);
+        int start = -1;
+        for (int i = 0; i < normalized.length(); ) {
+            int codePoint = normalized.codePointAt(i);
+            if (isWordCharacter(codePoint)) {
+                if (start == -1) {
+                    start = i;
+                }
+            } else if (start != -1) {
+                addToken(tokens, normalized.substring(start, i));
+                start = -1;
+            }
+            i += Character.charCount(codePoint);
+        }
+        if (start != -1) {
+            addToken(tokens, normalized.substring(start));
+        }
+        return tokens;
+    }
+
+    /**
+     * Letters and digits, plus the vowel signs some scripts write between letters of one word
+     */
+    private static boolean isWordCharacter(int codePoint) {
+        return Character.isLetterOrDigit(codePoint)
+                || Character.getType(codePoint) == Character.COMBINING_SPACING_MARK;
+    }
+
+    private static void addToken(List<String> tokens, String token) {
+        tokens.add(token.length() > MAX_TERM_LENGTH ? token.substring(0, MAX_TERM_LENGTH) : token);
+    }
+
+    /**
+     * A single query word in index form, or "" if it has no letters or digits
+     */
+    private static String normalize(String word) {
+        List<String> tokens = tokenize(word);
+        return tokens.isEmpty() ? "" : tokens.get(0);
+    }
+
+    /**
+     * Compatibility decomposition without accents, lower-cased, so an accented "CAFE" and "cafe" match
+     */
+    private static String fold(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFKD);
+        StringBuilder folded = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); ) {
+            int codePoint = decomposed.codePointAt(i);
+            int type = Character.getType(codePoint);
+            if (type != Character.NON_SPACING_MARK && type != Character.ENCLOSING_MARK) {
+                folded.appendCodePoint(codePoint);
+            }
+            i += Character.charCount(codePoint);
+        }
+        return folded.toString().toLowerCase(Locale.ROOT);
+    }
+
+    private static String documentKey(String conversationKey, String messageId) {
+        return conversationKey + "/" + messageId;
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.meshup.ui.data;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Debounced writer for presence and device-status nodes.
+ *
+ * Callers set the state they want a node to have as often as they like. The writer keeps only the
+ * latest value of each field and, at most once per {@link #FLUSH_INTERVAL}, writes the fields that
+ * differ from what it last wrote, all in one multi-path update. A lastSeen that only moved forward
+ * by less than {@link #LAST_SEEN_RESOLUTION} is not worth a write on its own, so the write rate
+ * follows real status changes rather than the message rate.
+ */
+public class PresenceWriter {
+    private static final String TAG = "PresenceWriter";
+    private static final long FLUSH_INTERVAL = 2000; // ms
+    private static final long LAST_SEEN_RESOLUTION = 60000; // ms
+    private static final String FIELD_LAST_SEEN = "lastSeen";
+
+    private final WriteBatcher writeBatcher;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable flushRunnable = this::flush;
+    // Node path -> field -> value
+    private final Map<String, Map<String, Object>> desired = new HashMap<>();
+    private final Map<String, Map<String, Object>> written = new HashMap<>();
+    private long lastFlush;
+    private boolean flushScheduled;
+
+    public PresenceWriter(WriteBatcher writeBatcher) {
+        this.writeBatcher = writeBatcher;
+    }
+
+    /**
+     * Record the wanted value of some fields of a node, keyed by path from the database root
+     */
+    public synchronized void update(String nodePath, Map<String, Object> fields) {
+        Map<String, Object> node = desired.get(nodePath);
+        if (node == null) {
+            node = new HashMap<>();
+            desired.put(nodePath, node);
+        }
+        node.putAll(fields);
+
+        if (!flushScheduled) {
+            long delay = Math.max(0, lastFlush + FLUSH_INTERVAL - System.currentTimeMillis());
+            handler.postDelayed(flushRunnable, delay);
+            flushScheduled = true;
+        }
+    }
+
+    /**
+     * Drop everything known about a node, e.g. because it is being deleted
+     */
+    public synchronized void forget(String nodePath) {
+        desired.remove(nodePath);
+        written.remove(nodePath);
+    }
+
+    /**
+     * Write the changed fields now
+     */
+    public synchronized void flush() {
+        handler.removeCallbacks(flushRunnable);
+        flushScheduled = false;
+        lastFlush = System.currentTimeMillis();
+
+        Map<String, Object> updates = new HashMap<>();
+        for (Map.Entry<String, Map<String, Object>> node : desired.entrySet()) {
+            Map<String, Object> writtenNode = written.get(node.getKey());
+            if (writtenNode == null) {
+                writtenNode = new HashMap<>();
+                written.put(node.getKey(), writtenNode);
+            }
+            boolean changed = false;
+            for (Map.Entry<String, Object> field : node.getValue().entrySet()) {
+                if (isChange(field.getKey(), writtenNode.get(field.getKey()), field.getValue(),
+                        writtenNode.containsKey(field.getKey()))) {
+                    updates.put(node.getKey() + "/" + field.getKey(), field.getValue());
+                    writtenNode.put(field.getKey(), field.getValue());
+                    changed = true;
+                }
+            }
+            // A real change carries the current lastSeen with it
+            Object lastSeen = node.getValue().get(FIELD_LAST_SEEN);
+            if (changed && lastSeen != null) {
+                updates.put(node.getKey() + "/" + FIELD_LAST_SEEN, lastSeen);
+                writtenNode.put(FIELD_LAST_SEEN, lastSeen);
+            }
+        }
+        desired.clear();
+        if (updates.isEmpty()) {
+            return;
+        }
+
+        writeBatcher.write(updates, (success, error) -> {
+            if (!success) {
+                Log.e(TAG, "Failed to write " + updates.size() + " presence fields: " + error);
+                retry(updates);
+            }
+        });
+    }
+
+    /**
+     * Put failed fields back, unless a newer value is already waiting
+     */
+    private synchronized void retry(Map<String, Object> updates) {
+        for (Map.Entry<String, Object> update : updates.entrySet()) {
+            int slash = update.getKey().lastIndexOf('/');
+            String nodePath = update.getKey().substring(0, slash);
+            String field = update.getKey().substring(slash + 1);
+
+            Map<String, Object> writtenNode = written.get(nodePath);
+            if (writtenNode != null) {
+                writtenNode.remove(field);
+            }
+            Map<String, Object> node = desired.get(nodePath);
+            if (node == null || !node.containsKey(field)) {
+                Map<String, Object> fields = new HashMap<>();
+                fields.put(field, update.getValue());
+                update(nodePath, fields);
+            }
+        }
+    }
+
+    private static boolean isChange(String field, Object written, Object wanted, boolean known) {
+        if (!known) {
+            return true;
+        }
+        if (FIELD_LAST_SEEN.equals(field) && written instanceof Long && wanted instanceof Long) {
+            return Math.abs((Long) wanted - (Long) written) >= LAST_SEEN_RESOLUTION;
+        }
+        return !Objects.equals(written, wanted);
+    }
+}
@@ -0,0 +1,320 @@
+package com.example.meshup.ui.data;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Enforces each conversation's {@link RetentionPolicy} on a background thread. Only conversations
+ * the user gave a policy through {@link #setPolicy} expire anything; the rest keep every message,
+ * here and in the cloud.
+ *
+ * A conversation is checked at start and again after every {@link #CHECK_INTERVAL} new messages.
+ * Its expired messages always form the oldest range of its history. That range is archived
+ * {@link #CHUNK_SIZE} messages at a time, oldest first, with a pause between chunks: each chunk is
+ * written to a gzip-compressed cold segment and synced to disk, and only then deleted from the
+ * store and handed to the expiry listeners, which drop it from memory, the segmented log, the
+ * search index and Firebase. So neither memory nor the remote deletes in flight grow with the size
+ * of the backlog. Cold segments stay on disk, out of every read path but export.
+ */
+public class RetentionCompactor implements LocalChatHistory.MessageSink {
+    private static final String TAG = "RetentionCompactor";
+    private static final int CHECK_INTERVAL = 500; // messages
+    private static final int CHUNK_SIZE = 1000; // messages
+    private static final long CHUNK_PAUSE = 500; // ms; lets the previous chunk's remote deletes finish
+    private static final String ARCHIVE_SUFFIX = ".gz";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    public interface ExpiryListener {
+        /**
+         * Called once per archived chunk
+         * @param before every message with timestamp < before is archived now
+         * @param expired the chunk's messages, oldest first; the newest may have timestamp == before
+         */
+        void onExpired(String conversationKey, long before, List<ChatMessage> expired);
+    }
+
+    private final LocalMessageStore store;
+    private final File archiveDirectory;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final List<ExpiryListener> listeners = new CopyOnWriteArrayList<>();
+    // Messages added per conversation since it was last checked
+    private final Map<String, Integer> addedSinceCheck = new HashMap<>();
+    // Conversations with chunks still to archive; only touched on the executor
+    private final Set<String> archiving = new HashSet<>();
+
+    public RetentionCompactor(LocalMessageStore store, File archiveDirectory) {
+        this.store = store;
+        this.archiveDirectory = archiveDirectory;
+    }
+
+    public void addExpiryListener(ExpiryListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeExpiryListener(ExpiryListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Apply the policy the user chose for one conversation, or null to keep its whole history
+     * again; expired messages are deleted from the cloud copy too
+     */
+    public void setPolicy(String conversationKey, RetentionPolicy policy) {
+        store.setRetentionPolicy(conversationKey, policy);
+        schedule(conversationKey);
+    }
+
+    /**
+     * @return the conversation's policy, or {@link RetentionPolicy#UNLIMITED} if it has none
+     */
+    public RetentionPolicy getPolicy(String conversationKey) {
+        RetentionPolicy policy = store.getRetentionPolicy(conversationKey);
+        return policy != null ? policy : RetentionPolicy.UNLIMITED;
+    }
+
+    @Override
+    public void onMessageAdded(ChatMessage message, boolean live) {
+        String key = message.getDeviceAddress();
+        boolean check;
+        synchronized (this) {
+            Integer added = addedSinceCheck.get(key);
+            int count = added != null ? added + 1 : 1;
+            check = count >= CHECK_INTERVAL;
+            addedSinceCheck.put(key, check ? 0 : count);
+        }
+        if (check) {
+            schedule(key);
+        }
+    }
+
+    /**
+     * Delete the cold segments that only hold cleared messages, on the archive thread so it cannot
+     * race an archive run of the same conversation
+     */
+    @Override
+    public void onConversationCleared(String conversationKey, long before) {
+        try {
+            executor.execute(() -> {
+                File[] files = new File(archiveDirectory, SegmentedChatLog.encodeName(conversationKey)).listFiles();
+                if (files == null) {
+                    return;
+                }
+                for (File file : files) {
+                    String name = file.getName();
+                    if (name.endsWith(ARCHIVE_SUFFIX) && lastArchivedTimestamp(name) < before && !file.delete()) {
+                        Log.w(TAG, "Could not delete " + file);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            // Shut down: the archive outlives the clear, and is only read by export
+        }
+    }
+
+    /**
+     * Check every stored conversation, e.g. once history has been restored
+     */
+    public void runAll() {
+        try {
+            executor.execute(() -> {
+                for (String conversationKey : store.getConversationKeys()) {
+                    enforce(conversationKey);
+                }
+            });
+        } catch (Exception e) {
+            // Shut down: the next start checks instead
+        }
+    }
+
+    public void close() {
+        executor.shutdown();
+    }
+
+    private void schedule(String conversationKey) {
+        try {
+            executor.execute(() -> enforce(conversationKey));
+        } catch (Exception e) {
+            // Shut down: the next start checks instead
+        }
+    }
+
+    private void enforce(String conversationKey) {
+        if (archiving.contains(conversationKey)) {
+            return; // The running pass measures nothing new; the next check catches up
+        }
+        RetentionPolicy policy = getPolicy(conversationKey);
+        long before = store.findRetentionCutoff(conversationKey, policy, System.currentTimeMillis());
+        if (before == Long.MIN_VALUE) {
+            return;
+        }
+        Log.d(TAG, "Archiving messages of " + conversationKey + " before " + before + " under " + policy);
+        archiveChunk(conversationKey, before, null);
+    }
+
+    /**
+     * Archive and delete the next chunk of messages with timestamp < before, then schedule the one
+     * after it
+     * @param after the newest message of the previous chunk, or null to start at the oldest
+     */
+    private void archiveChunk(String conversationKey, long before, ChatMessage after) {
+        archiving.remove(conversationKey);
+        List<ChatMessage> chunk = store.getMessagesAfter(conversationKey, after, before, CHUNK_SIZE);
+        if (chunk.isEmpty()) {
+            return;
+        }
+
+        try {
+            archive(conversationKey, chunk);
+        } catch (IOException e) {
+            // Nothing is deleted that is not safely archived; the next check tries again
+            Log.e(TAG, "Error archiving " + chunk.size() + " messages of " + conversationKey, e);
+            return;
+        }
+
+        List<String> ids = new ArrayList<>(chunk.size());
+        for (ChatMessage message : chunk) {
+            ids.add(message.getId());
+        }
+        store.deleteMessages(conversationKey, ids);
+
+        // Messages sharing the chunk's last timestamp may still be left for the next chunk
+        ChatMessage last = chunk.get(chunk.size() - 1);
+        boolean done = chunk.size() < CHUNK_SIZE;
+        long archivedBefore = done ? before : last.getTimestamp();
+        store.setArchivedBefore(conversationKey, archivedBefore);
+        for (ExpiryListener listener : listeners) {
+            listener.onExpired(conversationKey, archivedBefore, chunk);
+        }
+        if (done) {
+            return;
+        }
+
+        archiving.add(conversationKey);
+        try {
+            executor.schedule(() -> archiveChunk(conversationKey, before, last), CHUNK_PAUSE, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            // Shut down: the next start checks instead
+        }
+    }
+
+    /**
+     * @return the conversations that have archived history
+     */
+    public List<String> getArchivedConversationKeys() {
+        List<String> keys = new ArrayList<>();
+        String[] names = archiveDirectory.list();
+        if (names != null) {
+            for (String name : names) {
+                String conversationKey = SegmentedChatLog.decodeName(name);
+                if (conversationKey != null) {
+                    keys.add(conversationKey);
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Stream a conversation's archived messages, oldest first, one record at a time
+     */
+    public void forEachArchived(String conversationKey, LocalMessageStore.MessageVisitor visitor) throws IOException {
+        File[] files = new File(archiveDirectory, SegmentedChatLog.encodeName(conversationKey)).listFiles();
+        if (files == null) {
+            return;
+        }
+        // Names start with the first timestamp in fixed-width hex, so name order is time order
+        Arrays.sort(files);
+        byte[] body = new byte[256];
+        for (File file : files) {
+            if (!file.getName().endsWith(ARCHIVE_SUFFIX)) {
+                continue;
+            }
+            try (DataInputStream in = new DataInputStream(new GZIPInputStream(
+                    new BufferedInputStream(new FileInputStream(file), 64 * 1024)))) {
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (length > body.length) {
+                        body = new byte[Math.max(length, body.length * 2)];
+                    }
+                    in.readFully(body, 0, length);
+                    visitor.visit(SegmentedChatLog.decode(ByteBuffer.wrap(body, 0, length), conversationKey));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the newest timestamp in a cold segment, from its "first-last" name
+     */
+    private static long lastArchivedTimestamp(String name) {
+        int dash = name.indexOf('-');
+        try {
+            return Long.parseUnsignedLong(name.substring(dash + 1, dash + 17), 16);
+        } catch (RuntimeException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Write the range to its own cold segment: gzip of "length, body" records in the segmented
+     * log's body format, named after the first and last timestamp it covers
+     */
+    private void archive(String conversationKey, List<ChatMessage> messages) throws IOException {
+        File directory = new File(archiveDirectory, SegmentedChatLog.encodeName(conversationKey));
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        String range = String.format("%016x-%016x", messages.get(0).getTimestamp(),
+                messages.get(messages.size() - 1).getTimestamp());
+        String name = range + ARCHIVE_SUFFIX;
+        // Chunks of messages sharing one timestamp cover the same range
+        for (int copy = 1; new File(directory, name).exists(); copy++) {
+            name = range + "-" + copy + ARCHIVE_SUFFIX;
+        }
+        File file = new File(directory, name);
+        File temp = new File(directory, name + TEMP_SUFFIX);
+
+        try (FileOutputStream fileOut = new FileOutputStream(temp);
+             GZIPOutputStream gzip = new GZIPOutputStream(fileOut, 64 * 1024);
+             DataOutputStream out = new DataOutputStream(gzip)) {
+            for (ChatMessage message : messages) {
+                byte[] body = SegmentedChatLog.encode(message);
+                out.writeInt(body.length);
+                out.write(body);
+            }
+            out.flush();
+            gzip.finish();
+            fileOut.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not rename " + temp + " to " + file);
+        }
+    }
+}
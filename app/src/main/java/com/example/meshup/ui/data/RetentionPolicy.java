@@ -0,0 +1,49 @@
+package com.example.meshup.ui.data;
+
+/**
+ * How much of a conversation's history to keep on the device and in the cloud.
+ *
+ * A message expires once it is older than the maximum age, or once enough newer messages exist
+ * to reach the maximum count or size without it. A limit of 0 does not apply. Conversations keep
+ * their whole history unless the user gives them a policy, since expiry also deletes the cloud copy.
+ */
+public class RetentionPolicy {
+    public static final long DAY = 24L * 60 * 60 * 1000; // ms
+
+    public static final RetentionPolicy UNLIMITED = new RetentionPolicy(0, 0, 0);
+
+    private final long maxAge;
+    private final int maxCount;
+    private final long maxBytes;
+
+    public RetentionPolicy(long maxAge, int maxCount, long maxBytes) {
+        this.maxAge = maxAge;
+        this.maxCount = maxCount;
+        this.maxBytes = maxBytes;
+    }
+
+    public long getMaxAge() { return maxAge; }
+    public int getMaxCount() { return maxCount; }
+    public long getMaxBytes() { return maxBytes; }
+
+    public boolean isUnlimited() {
+        return maxAge <= 0 && maxCount <= 0 && maxBytes <= 0;
+    }
+
+    /**
+     * Approximate stored size of a message, the measure maxBytes applies to
+     */
+    public static long sizeOf(ChatMessage message) {
+        return 32 + length(message.getId()) + length(message.getSenderId()) + length(message.getSenderName())
+                + length(message.getMessageType()) + length(message.getContent());
+    }
+
+    private static int length(String value) {
+        return value != null ? value.length() : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "RetentionPolicy{maxAge=" + maxAge + ", maxCount=" + maxCount + ", maxBytes=" + maxBytes + "}";
+    }
+}
@@ -0,0 +1,812 @@
+package com.example.meshup.ui.data;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only message log, one directory of fixed-size segments per conversation.
+ *
+ * Records are appended to the newest segment through a {@link FileChannel}; full segments are
+ * sealed and never written again. Reads map segments with {@link MappedByteBuffer}s and use a
+ * sparse index (the offset of every {@link #INDEX_INTERVAL}th record) to jump close to the
+ * wanted record, so paging back through months of history only decodes the page being shown.
+ *
+ * Each record is "length, CRC32, body"; a torn write at the end of the newest segment is cut off
+ * when the log is opened. Sealed segments are compacted on a background thread: older copies of
+ * a message that was appended again are dropped, as are messages older than the conversation's
+ * retention cutoff, and undersized neighbours are merged. Pages skip expired messages as soon as
+ * the cutoff is known, and a cutoff newer than the last one seals the newest segment, so its
+ * expired records are rewritten away too. Compaction moves records, so a page
+ * position also remembers the oldest message it covered and is re-resolved against it afterwards.
+ *
+ * Messages from the history and asynchronous page reads run on one I/O thread, in order, so the
+ * main thread never writes, maps or indexes a segment.
+ */
+public class SegmentedChatLog implements LocalChatHistory.MessageSink {
+    private static final String TAG = "SegmentedChatLog";
+
+    public static final long SEGMENT_BYTES = 1024 * 1024;
+    public static final int INDEX_INTERVAL = 64;
+
+    private static final int RECORD_HEADER = 8; // Body length and CRC32
+    private static final int MAX_RECORD_BYTES = 1024 * 1024;
+    private static final byte RECORD_VERSION = 1;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String COMPACT_SUFFIX = ".tmp";
+
+    /**
+     * Where a page ended; pass it back to read the page before it
+     */
+    public static class Position {
+        private final long segmentId;
+        private final int record;
+        private final int generation;
+        // The oldest message of the page, to find the boundary again after a compaction
+        private final String boundaryId;
+        private final long boundaryTimestamp;
+
+        Position(long segmentId, int record, int generation, ChatMessage boundary) {
+            this.segmentId = segmentId;
+            this.record = record;
+            this.generation = generation;
+            this.boundaryId = boundary != null ? boundary.getId() : null;
+            this.boundaryTimestamp = boundary != null ? boundary.getTimestamp() : Long.MIN_VALUE;
+        }
+    }
+
+    public interface PageListener {
+        /**
+         * Called on the log's I/O thread
+         */
+        void onPageRead(String conversationKey, Page page);
+    }
+
+    /**
+     * Messages in log order, plus the position to continue from, or null at the start of the log
+     */
+    public static class Page {
+        private final List<ChatMessage> messages;
+        private final Position older;
+
+        Page(List<ChatMessage> messages, Position older) {
+            this.messages = messages;
+            this.older = older;
+        }
+
+        public List<ChatMessage> getMessages() { return messages; }
+        public Position getOlder() { return older; }
+        public boolean hasOlder() { return older != null; }
+    }
+
+    private static class Segment {
+        final long id;
+        final File file;
+        FileChannel channel; // Only the newest segment is open for appending
+        long size;
+        int count;
+        long[] index = new long[4];
+        boolean indexed;
+        MappedByteBuffer mapped;
+
+        Segment(long id, File file) {
+            this.id = id;
+            this.file = file;
+            this.size = file.length();
+        }
+    }
+
+    private static class ConversationLog {
+        final File directory;
+        final List<Segment> segments = new ArrayList<>();
+        int generation; // Bumped whenever compaction rewrites the sealed segments
+
+        ConversationLog(File directory) {
+            this.directory = directory;
+        }
+
+        Segment active() {
+            return segments.get(segments.size() - 1);
+        }
+    }
+
+    private final File directory;
+    private final Map<String, ConversationLog> conversations = new HashMap<>();
+    // Conversation -> timestamp below which records are dropped by the next compaction
+    private final Map<String, Long> expiredBefore = new HashMap<>();
+    // Conversation -> cutoff the newest segment was last sealed for
+    private final Map<String, Long> sealedBefore = new HashMap<>();
+    private final ExecutorService io = Executors.newSingleThreadExecutor();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor();
+    private boolean closed;
+
+    public SegmentedChatLog(File directory) {
+        this.directory = directory;
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.e(TAG, "Could not create " + directory);
+        }
+    }
+
+    /**
+     * Appended on the I/O thread; the history calls this from whichever thread added the message
+     */
+    @Override
+    public void onMessageAdded(ChatMessage message, boolean live) {
+        runOnIoThread(() -> {
+            try {
+                append(message);
+            } catch (IOException e) {
+                Log.e(TAG, "Error appending message " + message.getId(), e);
+            }
+        });
+    }
+
+    /**
+     * Append a message to its conversation's log
+     */
+    public synchronized void append(ChatMessage message) throws IOException {
+        if (message == null || message.getId() == null || message.getDeviceAddress() == null) {
+            return;
+        }
+
+        byte[] body = encode(message);
+        ConversationLog log = open(message.getDeviceAddress());
+        Segment active = log.active();
+        if (active.count > 0 && active.size + RECORD_HEADER + body.length > SEGMENT_BYTES) {
+            seal(active);
+            active = newSegment(log, active.id + 1);
+            scheduleCompaction(message.getDeviceAddress());
+        }
+        if (active.channel == null) {
+            active.channel = new FileOutputStream(active.file, true).getChannel();
+        }
+
+        ByteBuffer record = frame(body);
+        while (record.hasRemaining()) {
+            active.channel.write(record);
+        }
+
+        addToIndex(active, active.size);
+        active.size += RECORD_HEADER + body.length;
+    }
+
+    /**
+     * Read a page on the I/O thread, after every message already handed to the log is appended
+     */
+    public void readPage(String conversationKey, Position before, int limit, PageListener listener) {
+        runOnIoThread(() -> listener.onPageRead(conversationKey, readPage(conversationKey, before, limit)));
+    }
+
+    /**
+     * Read up to limit messages ending just before a position, or at the end of the log. Call off
+     * the main thread.
+     * @param before a position from an earlier page, or null for the newest messages
+     */
+    public synchronized Page readPage(String conversationKey, Position before, int limit) {
+        List<ChatMessage> messages = new ArrayList<>();
+        ConversationLog log;
+        try {
+            log = open(conversationKey);
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening log for " + conversationKey, e);
+            return new Page(messages, null);
+        }
+
+        // Compaction may have merged the segment a position points into; continue from the
+        // segment that now covers it
+        int segmentIndex = log.segments.size() - 1;
+        int firstEnd = Integer.MAX_VALUE;
+        if (before != null) {
+            while (segmentIndex > 0 && log.segments.get(segmentIndex).id > before.segmentId) {
+                segmentIndex--;
+            }
+            firstEnd = before.record;
+            if (before.generation != log.generation && before.boundaryId != null) {
+                try {
+                    firstEnd = relocate(log.segments.get(segmentIndex), before, conversationKey);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error reading " + log.segments.get(segmentIndex).file, e);
+                    return new Page(messages, null);
+                }
+            }
+        }
+
+        Long expired = expiredBefore.get(conversationKey);
+        long cutoff = expired != null ? expired : Long.MIN_VALUE;
+        int remaining = limit;
+        boolean first = true;
+        while (segmentIndex >= 0) {
+            Segment segment = log.segments.get(segmentIndex);
+            int end;
+            try {
+                ensureIndexed(segment);
+                end = first ? Math.min(firstEnd, segment.count) : segment.count;
+                // Expired records do not count towards the page, so keep reading past them
+                while (end > 0 && remaining > 0) {
+                    int start = Math.max(0, end - remaining);
+                    List<ChatMessage> range = readRange(segment, start, end, conversationKey);
+                    if (cutoff != Long.MIN_VALUE) {
+                        range.removeIf(message -> message.getTimestamp() < cutoff);
+                    }
+                    messages.addAll(0, range);
+                    remaining -= range.size();
+                    end = start;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading " + segment.file, e);
+                return new Page(messages, null);
+            }
+            if (end > 0) {
+                return new Page(messages, new Position(segment.id, end, log.generation,
+                        messages.isEmpty() ? null : messages.get(0)));
+            }
+            first = false;
+            segmentIndex--;
+            if (remaining <= 0) {
+                return new Page(messages, segmentIndex >= 0
+                        ? new Position(log.segments.get(segmentIndex).id, Integer.MAX_VALUE, log.generation,
+                                messages.isEmpty() ? null : messages.get(0)) : null);
+            }
+        }
+        return new Page(messages, null);
+    }
+
+    /**
+     * Drop a conversation's records with timestamp < before: pages skip them from now on, and the
+     * compaction thread seals the newest segment and rewrites the segments without them
+     */
+    public void expireBefore(String conversationKey, long before) {
+        synchronized (this) {
+            Long known = expiredBefore.get(conversationKey);
+            if (known != null && known >= before) {
+                return;
+            }
+            expiredBefore.put(conversationKey, before);
+        }
+        scheduleCompaction(conversationKey);
+    }
+
+    /**
+     * Delete a conversation's records with timestamp < before. Its segments are usually all older,
+     * so they are deleted outright on the I/O thread, with anything newer appended again.
+     */
+    @Override
+    public void onConversationCleared(String conversationKey, long before) {
+        runOnIoThread(() -> {
+            synchronized (this) {
+                if (closed) return;
+                Long known = expiredBefore.get(conversationKey);
+                if (known == null || known < before) {
+                    expiredBefore.put(conversationKey, before);
+                }
+                List<ChatMessage> kept = new ArrayList<>();
+                ConversationLog log;
+                try {
+                    log = open(conversationKey);
+                    for (Segment segment : log.segments) {
+                        ensureIndexed(segment);
+                        for (ChatMessage message : readRange(segment, 0, segment.count, conversationKey)) {
+                            if (message.getTimestamp() >= before) kept.add(message);
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Error reading log of " + conversationKey, e);
+                    return;
+                }
+
+                // A compaction still running on the old segments sees the log replaced and gives up
+                conversations.remove(conversationKey);
+                for (Segment segment : log.segments) {
+                    seal(segment);
+                    segment.mapped = null;
+                    if (!segment.file.delete()) Log.w(TAG, "Could not delete " + segment.file);
+                }
+                try {
+                    for (ChatMessage message : kept) {
+                        append(message);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Error rewriting log of " + conversationKey, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Compact every conversation on the background thread
+     */
+    public void compactAll() {
+        String[] names = directory.list();
+        if (names == null) return;
+        for (String name : names) {
+            String conversationKey = decodeName(name);
+            if (conversationKey != null) {
+                scheduleCompaction(conversationKey);
+            }
+        }
+    }
+
+    /**
+     * Seal every segment once the appends already queued are written
+     */
+    public void close() {
+        compactor.shutdown();
+        runOnIoThread(() -> {
+            synchronized (this) {
+                closed = true;
+                for (ConversationLog log : conversations.values()) {
+                    for (Segment segment : log.segments) {
+                        seal(segment);
+                    }
+                }
+                conversations.clear();
+            }
+        });
+        io.shutdown();
+    }
+
+    private void runOnIoThread(Runnable task) {
+        try {
+            io.execute(task);
+        } catch (Exception e) {
+            // Closed: the message is still in the store, the log just cannot page back to it
+            Log.w(TAG, "Log closed, dropping I/O task");
+        }
+    }
+
+    private ConversationLog open(String conversationKey) throws IOException {
+        ConversationLog log = conversations.get(conversationKey);
+        if (log != null) {
+            return log;
+        }
+
+        log = new ConversationLog(new File(directory, encodeName(conversationKey)));
+        if (!log.directory.exists() && !log.directory.mkdirs()) {
+            throw new IOException("Could not create " + log.directory);
+        }
+        File[] files = log.directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(COMPACT_SUFFIX)) {
+                    // Left over from a compaction that did not finish
+                    if (!file.delete()) Log.w(TAG, "Could not delete " + file);
+                } else if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()), 16);
+                        log.segments.add(new Segment(id, file));
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "Ignoring " + file);
+                    }
+                }
+            }
+        }
+
+        if (log.segments.isEmpty()) {
+            newSegment(log, 0);
+        } else {
+            // Cut off a record torn by a crash mid-append
+            Segment active = log.active();
+            long validSize = ensureIndexed(active);
+            if (validSize < active.size) {
+                Log.w(TAG, "Truncating " + active.file + " from " + active.size + " to " + validSize);
+                try (RandomAccessFile file = new RandomAccessFile(active.file, "rw")) {
+                    file.setLength(validSize);
+                }
+                active.size = validSize;
+                active.mapped = null;
+            }
+        }
+        conversations.put(conversationKey, log);
+        return log;
+    }
+
+    private Segment newSegment(ConversationLog log, long id) throws IOException {
+        File file = new File(log.directory, segmentName(id));
+        if (!file.exists() && !file.createNewFile()) {
+            throw new IOException("Could not create " + file);
+        }
+        Segment segment = new Segment(id, file);
+        segment.indexed = true;
+        log.segments.add(segment);
+        return segment;
+    }
+
+    private void seal(Segment segment) {
+        if (segment.channel == null) return;
+        try {
+            segment.channel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing " + segment.file, e);
+        }
+        segment.channel = null;
+    }
+
+    /**
+     * Build the sparse index and record count by walking the record headers once
+     * @return the size of the valid prefix of the segment
+     */
+    private long ensureIndexed(Segment segment) throws IOException {
+        if (segment.indexed) {
+            return segment.size;
+        }
+
+        ByteBuffer buffer = map(segment);
+        long position = 0;
+        segment.count = 0;
+        while (position + RECORD_HEADER <= segment.size) {
+            int length = buffer.getInt((int) position);
+            if (length < 0 || length > MAX_RECORD_BYTES || position + RECORD_HEADER + length > segment.size) {
+                break;
+            }
+            byte[] body = new byte[length];
+            ByteBuffer slice = buffer.duplicate();
+            slice.position((int) position + RECORD_HEADER);
+            slice.get(body);
+            if (checksum(body) != buffer.getInt((int) position + 4)) {
+                break;
+            }
+            addToIndex(segment, position);
+            position += RECORD_HEADER + length;
+        }
+        segment.indexed = true;
+        return position;
+    }
+
+    private static void addToIndex(Segment segment, long offset) {
+        if (segment.count % INDEX_INTERVAL == 0) {
+            int slot = segment.count / INDEX_INTERVAL;
+            if (slot == segment.index.length) {
+                segment.index = Arrays.copyOf(segment.index, slot * 2);
+            }
+            segment.index[slot] = offset;
+        }
+        segment.count++;
+    }
+
+    /**
+     * Map the segment read-only, remapping when appends have grown it since the last read
+     */
+    private static MappedByteBuffer map(Segment segment) throws IOException {
+        if (segment.mapped == null || segment.mapped.capacity() != segment.size) {
+            try (RandomAccessFile file = new RandomAccessFile(segment.file, "r")) {
+                segment.mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, segment.size);
+            }
+        }
+        return segment.mapped;
+    }
+
+    /**
+     * Find where a position's page began in a segment compaction has rewritten: at its oldest
+     * message, or if that was dropped as superseded or expired, at the first record not older than
+     * it. Messages either side of the boundary may then be shown twice, never skipped.
+     */
+    private int relocate(Segment segment, Position before, String conversationKey) throws IOException {
+        ensureIndexed(segment);
+        ByteBuffer buffer = map(segment).duplicate();
+        int position = 0;
+        int firstNotOlder = -1;
+        for (int record = 0; record < segment.count; record++) {
+            int length = buffer.getInt(position);
+            long timestamp = buffer.getLong(position + RECORD_HEADER + 1); // After the version
+            buffer.position(position + RECORD_HEADER + 1 + 8 + 1);
+            if (before.boundaryId.equals(readString(buffer))) {
+                return record;
+            }
+            if (firstNotOlder < 0 && timestamp >= before.boundaryTimestamp) {
+                firstNotOlder = record;
+            }
+            position += RECORD_HEADER + length;
+        }
+        // A boundary at the end of the segment lies in a later one that was not merged into it
+        if (before.record == Integer.MAX_VALUE || firstNotOlder < 0) {
+            return segment.count;
+        }
+        return firstNotOlder;
+    }
+
+    private List<ChatMessage> readRange(Segment segment, int start, int end, String conversationKey)
+            throws IOException {
+        List<ChatMessage> messages = new ArrayList<>(Math.max(0, end - start));
+        if (start >= end) {
+            return messages;
+        }
+
+        ByteBuffer buffer = map(segment).duplicate();
+        int slot = start / INDEX_INTERVAL;
+        int position = (int) segment.index[slot];
+        for (int record = slot * INDEX_INTERVAL; record < end; record++) {
+            int length = buffer.getInt(position);
+            if (record >= start) {
+                buffer.position(position + RECORD_HEADER);
+                messages.add(decode(buffer, conversationKey));
+            }
+            position += RECORD_HEADER + length;
+        }
+        return messages;
+    }
+
+    private void scheduleCompaction(String conversationKey) {
+        try {
+            compactor.execute(() -> compact(conversationKey));
+        } catch (Exception e) {
+            // Shut down: the next start compacts instead
+        }
+    }
+
+    /**
+     * Rewrite the sealed segments without superseded copies or expired records, merging neighbours
+     * that fit in one segment. Runs on the compaction thread; sealed segments are immutable, so only
+     * the final swap needs the lock.
+     */
+    private void compact(String conversationKey) {
+        List<Segment> sealed;
+        long cutoff;
+        ConversationLog compacted;
+        synchronized (this) {
+            if (closed) return;
+            Long before = expiredBefore.get(conversationKey);
+            cutoff = before != null ? before : Long.MIN_VALUE;
+            ConversationLog log;
+            try {
+                log = open(conversationKey);
+            } catch (IOException e) {
+                Log.e(TAG, "Error opening log for " + conversationKey, e);
+                return;
+            }
+            // The newest segment may hold expired records too; seal it so they are rewritten away
+            Long sealedFor = sealedBefore.get(conversationKey);
+            if (cutoff != Long.MIN_VALUE && (sealedFor == null || sealedFor < cutoff) && log.active().count > 0) {
+                Segment active = log.active();
+                seal(active);
+                try {
+                    newSegment(log, active.id + 1);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error sealing " + active.file, e);
+                    return;
+                }
+                sealedBefore.put(conversationKey, cutoff);
+            }
+            if (log.segments.size() < 2) return;
+            compacted = log;
+            sealed = new ArrayList<>(log.segments.subList(0, log.segments.size() - 1));
+        }
+
+        try {
+            // Newest copy wins: walk the segments from the newest and keep the first copy seen
+            List<List<byte[]>> kept = new ArrayList<>();
+            Set<String> seen = new HashSet<>();
+            int dropped = 0;
+            for (int i = sealed.size() - 1; i >= 0; i--) {
+                List<byte[]> bodies = readBodies(sealed.get(i).file);
+                List<byte[]> records = new ArrayList<>();
+                for (int j = bodies.size() - 1; j >= 0; j--) {
+                    if (seen.add(readId(bodies.get(j))) && readTimestamp(bodies.get(j)) >= cutoff) {
+                        records.add(bodies.get(j));
+                    } else {
+                        dropped++;
+                    }
+                }
+                Collections.reverse(records);
+                kept.add(0, records);
+            }
+
+            // Group neighbouring segments whose surviving records fit in one segment
+            List<List<Integer>> groups = new ArrayList<>();
+            long groupBytes = 0;
+            for (int i = 0; i < sealed.size(); i++) {
+                long bytes = 0;
+                for (byte[] body : kept.get(i)) bytes += RECORD_HEADER + body.length;
+                if (groups.isEmpty() || groupBytes + bytes > SEGMENT_BYTES) {
+                    groups.add(new ArrayList<>());
+                    groupBytes = 0;
+                }
+                groups.get(groups.size() - 1).add(i);
+                groupBytes += bytes;
+            }
+            if (dropped == 0 && groups.size() == sealed.size()) {
+                return; // Nothing to gain
+            }
+
+            List<File> written = new ArrayList<>();
+            for (List<Integer> group : groups) {
+                Segment first = sealed.get(group.get(0));
+                File temp = new File(first.file.getParentFile(), segmentName(first.id) + COMPACT_SUFFIX);
+                try (FileChannel channel = new FileOutputStream(temp).getChannel()) {
+                    for (int i : group) {
+                        for (byte[] body : kept.get(i)) {
+                            ByteBuffer record = frame(body);
+                            while (record.hasRemaining()) channel.write(record);
+                        }
+                    }
+                    channel.force(true);
+                }
+                written.add(temp);
+            }
+
+            synchronized (this) {
+                ConversationLog log = conversations.get(conversationKey);
+                if (closed || log != compacted) {
+                    // Closed, or the conversation was cleared meanwhile
+                    for (File temp : written) {
+                        if (!temp.delete()) Log.w(TAG, "Could not delete " + temp);
+                    }
+                    return;
+                }
+                for (int g = 0; g < groups.size(); g++) {
+                    Segment first = sealed.get(groups.get(g).get(0));
+                    if (!written.get(g).renameTo(first.file)) {
+                        throw new IOException("Could not replace " + first.file);
+                    }
+                    for (int i : groups.get(g).subList(1, groups.get(g).size())) {
+                        if (!sealed.get(i).file.delete()) Log.w(TAG, "Could not delete " + sealed.get(i).file);
+                    }
+                }
+                List<Segment> replaced = new ArrayList<>();
+                for (List<Integer> group : groups) {
+                    Segment first = sealed.get(group.get(0));
+                    replaced.add(new Segment(first.id, first.file));
+                }
+                log.segments.subList(0, sealed.size()).clear();
+                log.segments.addAll(0, replaced);
+                log.generation++;
+            }
+            Log.d(TAG, "Compacted " + conversationKey + ": " + sealed.size() + " segments into " +
+                    groups.size() + ", dropped " + dropped + " superseded or expired records");
+        } catch (IOException e) {
+            Log.e(TAG, "Error compacting " + conversationKey, e);
+        }
+    }
+
+    /**
+     * Read a sealed segment's records through a mapping of its own, so compaction does not touch
+     * the state readers use under the lock
+     */
+    private static List<byte[]> readBodies(File file) throws IOException {
+        List<byte[]> bodies = new ArrayList<>();
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            long size = input.length();
+            ByteBuffer buffer = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int position = 0;
+            while (position + RECORD_HEADER <= size) {
+                int length = buffer.getInt(position);
+                if (length < 0 || length > MAX_RECORD_BYTES || position + RECORD_HEADER + length > size) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                buffer.position(position + RECORD_HEADER);
+                buffer.get(body);
+                if (checksum(body) != buffer.getInt(position + 4)) {
+                    break;
+                }
+                bodies.add(body);
+                position += RECORD_HEADER + length;
+            }
+        }
+        return bodies;
+    }
+
+    private static ByteBuffer frame(byte[] body) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + body.length);
+        record.putInt(body.length).putInt(checksum(body)).put(body);
+        record.flip();
+        return record;
+    }
+
+    private static int checksum(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Record body: version, timestamp, received flag, then ID, sender ID, sender name, type and
+     * content as length-prefixed UTF-8 (length -1 for null). The conversation is the directory.
+     */
+    static byte[] encode(ChatMessage message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (message.getContent() != null
+                ? message.getContent().length() : 0));
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_VERSION);
+        out.writeLong(message.getTimestamp());
+        out.writeBoolean(message.isReceived());
+        writeString(out, message.getId());
+        writeString(out, message.getSenderId());
+        writeString(out, message.getSenderName());
+        writeString(out, message.getMessageType());
+        writeString(out, message.getContent());
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static ChatMessage decode(ByteBuffer buffer, String conversationKey) {
+        buffer.get(); // Version
+        long timestamp = buffer.getLong();
+        boolean received = buffer.get() != 0;
+        String id = readString(buffer);
+        String senderId = readString(buffer);
+        String senderName = readString(buffer);
+        String messageType = readString(buffer);
+        String content = readString(buffer);
+        return new ChatMessage(id, senderId, senderName, conversationKey, content, messageType, timestamp, received);
+    }
+
+    private static long readTimestamp(byte[] body) {
+        return ByteBuffer.wrap(body).getLong(1); // After the version
+    }
+
+    private static String readId(byte[] body) {
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        buffer.position(1 + 8 + 1); // Version, timestamp, received flag
+        return readString(buffer);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String segmentName(long id) {
+        return String.format("%016x", id) + SEGMENT_SUFFIX;
+    }
+
+    /**
+     * Conversation keys contain ':' and other characters that are not safe in file names
+     */
+    static String encodeName(String conversationKey) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : conversationKey.getBytes(StandardCharsets.UTF_8)) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return name.toString();
+    }
+
+    static String decodeName(String name) {
+        if (name.isEmpty() || name.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[name.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(name.charAt(i * 2), 16);
+            int low = Character.digit(name.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) return null;
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
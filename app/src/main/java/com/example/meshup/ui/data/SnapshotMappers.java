@@ -0,0 +1,121 @@
+package com.example.meshup.ui.data;
+
+import com.google.firebase.database.DataSnapshot;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hand-written conversion between the models and their Realtime Database form.
+ *
+ * {@code DataSnapshot.getValue(Class)} maps beans by reflection, looking up getters, setters and
+ * annotations for every child it decodes. These read the snapshot's plain value tree once and copy
+ * the fields across directly, and write models back as maps under the same property names the
+ * reflective mapper uses, so both sides read each other's data.
+ */
+public final class SnapshotMappers {
+
+    private SnapshotMappers() {}
+
+    /**
+     * @return the message, with the snapshot's key as ID if it has none, or null if the snapshot
+     *         holds no message
+     */
+    public static ChatMessage decodeChatMessage(DataSnapshot snapshot) {
+        return decodeChatMessage(snapshot.getValue(), snapshot.getKey());
+    }
+
+    /**
+     * @param value a plain value tree, as {@link DataSnapshot#getValue()} returns it
+     * @param key used as the ID if the value has none
+     */
+    public static ChatMessage decodeChatMessage(Object value, String key) {
+        if (!(value instanceof Map)) {
+            return null;
+        }
+        Map<?, ?> fields = (Map<?, ?>) value;
+        ChatMessage message = new ChatMessage();
+        String id = asString(fields.get("id"));
+        message.setId(id != null ? id : key);
+        message.setSenderId(asString(fields.get("senderId")));
+        message.setSenderName(asString(fields.get("senderName")));
+        message.setDeviceAddress(asString(fields.get("deviceAddress")));
+        message.setContent(asString(fields.get("content")));
+        message.setMessageType(asString(fields.get("messageType")));
+        message.setTimestamp(asLong(fields.get("timestamp")));
+        message.setReceived(asBoolean(fields.get("received")));
+        return message;
+    }
+
+    public static Map<String, Object> encodeChatMessage(ChatMessage message) {
+        Map<String, Object> fields = new HashMap<>();
+        putIfSet(fields, "id", message.getId());
+        putIfSet(fields, "senderId", message.getSenderId());
+        putIfSet(fields, "senderName", message.getSenderName());
+        putIfSet(fields, "deviceAddress", message.getDeviceAddress());
+        putIfSet(fields, "content", message.getContent());
+        putIfSet(fields, "messageType", message.getMessageType());
+        fields.put("timestamp", message.getTimestamp());
+        fields.put("received", message.isReceived());
+        return fields;
+    }
+
+    /**
+     * @return the device, or null if the snapshot holds no device; a node without an address, such
+     *         as a stray lastSeen, is not one
+     */
+    public static ConnectedDevice decodeConnectedDevice(DataSnapshot snapshot) {
+        return decodeConnectedDevice(snapshot.getValue());
+    }
+
+    public static ConnectedDevice decodeConnectedDevice(Object value) {
+        if (!(value instanceof Map)) {
+            return null;
+        }
+        Map<?, ?> fields = (Map<?, ?>) value;
+        String deviceAddress = asString(fields.get("deviceAddress"));
+        if (deviceAddress == null) {
+            return null;
+        }
+        ConnectedDevice device = new ConnectedDevice();
+        device.setDeviceAddress(deviceAddress);
+        device.setDeviceName(asString(fields.get("deviceName")));
+        device.setUsername(asString(fields.get("username")));
+        device.setUserId(asString(fields.get("userId")));
+        device.setProfilePicture((int) asLong(fields.get("profilePicture")));
+        device.setLastSeen(asLong(fields.get("lastSeen")));
+        device.setOnline(asBoolean(fields.get("online")));
+        return device;
+    }
+
+    public static Map<String, Object> encodeConnectedDevice(ConnectedDevice device) {
+        Map<String, Object> fields = new HashMap<>();
+        putIfSet(fields, "deviceAddress", device.getDeviceAddress());
+        putIfSet(fields, "deviceName", device.getDeviceName());
+        putIfSet(fields, "username", device.getUsername());
+        putIfSet(fields, "userId", device.getUserId());
+        fields.put("profilePicture", device.getProfilePicture());
+        fields.put("lastSeen", device.getLastSeen());
+        fields.put("online", device.isOnline());
+        return fields;
+    }
+
+    private static void putIfSet(Map<String, Object> fields, String name, String value) {
+        if (value != null) {
+            fields.put(name, value);
+        }
+    }
+
+    private static String asString(Object value) {
+        return value instanceof String ? (String) value : null;
+    }
+
+    // The database hands back whole numbers as Long and others as Double
+    private static long asLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private static boolean asBoolean(Object value) {
+        return value instanceof Boolean && (Boolean) value;
+    }
+}
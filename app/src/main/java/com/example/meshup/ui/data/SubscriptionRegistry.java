@@ -0,0 +1,141 @@
+package com.example.meshup.ui.data;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reference-counted Firebase listeners, one per key.
+ *
+ * The first owner to subscribe to a key attaches the listener; later owners share it, and
+ * subscribing again with the same owner does nothing. The listener is detached when its last
+ * owner unsubscribes, or all at once by {@link #detachAll()} at the end of the lifecycle.
+ */
+public class SubscriptionRegistry {
+    private static final String TAG = "SubscriptionRegistry";
+
+    public enum Result {
+        ATTACHED, // New listener; it will deliver the current data itself
+        JOINED,   // Shares a live listener; the caller hands the new owner the data it missed
+        ALREADY   // This owner was subscribed already
+    }
+
+    /**
+     * Undoes one attach, normally by removing the Firebase listener from its query
+     */
+    public interface Attachment {
+        void detach();
+    }
+
+    public interface Attacher {
+        Attachment attach();
+    }
+
+    private static class Subscription {
+        final Set<Object> owners = new LinkedHashSet<>();
+        Attachment attachment;
+    }
+
+    private final Map<String, Subscription> subscriptions = new LinkedHashMap<>();
+
+    public synchronized Result subscribe(String key, Object owner, Attacher attacher) {
+        Subscription subscription = subscriptions.get(key);
+        if (subscription != null) {
+            return subscription.owners.add(owner) ? Result.JOINED : Result.ALREADY;
+        }
+
+        subscription = new Subscription();
+        subscription.owners.add(owner);
+        subscriptions.put(key, subscription);
+        // Registered before attaching, since Firebase may call back during attach
+        subscription.attachment = attacher.attach();
+        Log.d(TAG, "Attached " + key + ", " + subscriptions.size() + " active");
+        return Result.ATTACHED;
+    }
+
+    public synchronized void unsubscribe(String key, Object owner) {
+        Subscription subscription = subscriptions.get(key);
+        if (subscription != null && subscription.owners.remove(owner) && subscription.owners.isEmpty()) {
+            subscriptions.remove(key);
+            detach(key, subscription);
+        }
+    }
+
+    /**
+     * Drop every subscription an owner holds, e.g. when it is destroyed
+     */
+    public synchronized void unsubscribeAll(Object owner) {
+        Iterator<Map.Entry<String, Subscription>> iterator = subscriptions.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Subscription> entry = iterator.next();
+            if (entry.getValue().owners.remove(owner) && entry.getValue().owners.isEmpty()) {
+                iterator.remove();
+                detach(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Drop a subscription whose listener failed, so the next owner to subscribe attaches a fresh
+     * one instead of joining a dead one. Does nothing if the key has been attached again since.
+     */
+    public synchronized void remove(String key, Attachment attachment) {
+        Subscription subscription = subscriptions.get(key);
+        if (subscription != null && subscription.attachment == attachment) {
+            subscriptions.remove(key);
+            detach(key, subscription);
+        }
+    }
+
+    public synchronized void detachAll() {
+        for (Map.Entry<String, Subscription> entry : subscriptions.entrySet()) {
+            detach(entry.getKey(), entry.getValue());
+        }
+        subscriptions.clear();
+    }
+
+    /**
+     * @return the owners of a key that are of the given type, to deliver an event to
+     */
+    public synchronized <T> List<T> getOwners(String key, Class<T> type) {
+        List<T> owners = new ArrayList<>();
+        Subscription subscription = subscriptions.get(key);
+        if (subscription != null) {
+            for (Object owner : subscription.owners) {
+                if (type.isInstance(owner)) {
+                    owners.add(type.cast(owner));
+                }
+            }
+        }
+        return owners;
+    }
+
+    public synchronized boolean isSubscribed(String key) {
+        return subscriptions.containsKey(key);
+    }
+
+    public synchronized int getReferenceCount(String key) {
+        Subscription subscription = subscriptions.get(key);
+        return subscription != null ? subscription.owners.size() : 0;
+    }
+
+    /**
+     * @return how many Firebase listeners are attached
+     */
+    public synchronized int getActiveCount() {
+        return subscriptions.size();
+    }
+
+    private void detach(String key, Subscription subscription) {
+        if (subscription.attachment != null) {
+            subscription.attachment.detach();
+        }
+        Log.d(TAG, "Detached " + key);
+    }
+}
@@ -0,0 +1,298 @@
+package com.example.meshup.ui.data;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.ValueEventListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Write-behind upload of chat messages.
+ *
+ * A message is put in the store's outbox before anything touches the network, so the UI can show
+ * it at once and a crash or a dead connection cannot lose it. The engine uploads outbox messages
+ * while Firebase is connected, at most {@link #MAX_IN_FLIGHT} at a time; the write batcher folds
+ * those into a few multi-path updates. A failed or unanswered upload is retried with exponential
+ * backoff. Messages are written under their own ID, so uploading one twice is harmless.
+ *
+ * All methods run on the scheduler's thread, the main thread unless one is passed in; with an
+ * in-memory outbox, store and scheduler the engine runs on any JVM.
+ */
+public class SyncEngine {
+    private static final String TAG = "SyncEngine";
+    private static final int MAX_IN_FLIGHT = 16;
+    private static final long ACK_TIMEOUT = 30000; // ms
+    private static final long INITIAL_BACKOFF = 2000; // ms
+    private static final long MAX_BACKOFF = 5 * 60 * 1000; // ms
+
+    private static class Entry {
+        final ChatMessage message;
+        int attempts;
+        long nextAttemptAt;
+
+        Entry(ChatMessage message) {
+            this.message = message;
+        }
+    }
+
+    /**
+     * Durable queue of messages not uploaded yet, e.g. the {@link LocalMessageStore}'s outbox table
+     */
+    public interface Outbox {
+        void insertOutbox(ChatMessage message);
+
+        void removeOutbox(String messageId);
+    }
+
+    /**
+     * Clock and delayed tasks, on the thread every engine method runs on
+     */
+    public interface Scheduler {
+        long now();
+
+        void postDelayed(Runnable task, long delayMillis);
+
+        void removeCallbacks(Runnable task);
+
+        void removeAll();
+    }
+
+    private static class MainThreadScheduler implements Scheduler {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public long now() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            handler.postDelayed(task, delayMillis);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            handler.removeCallbacks(task);
+        }
+
+        @Override
+        public void removeAll() {
+            handler.removeCallbacksAndMessages(null);
+        }
+    }
+
+    private final Outbox store;
+    private final ChatStore remoteStore;
+    private final Scheduler scheduler;
+    private final Runnable drainRunnable = this::drain;
+    private final Random random = new Random();
+    // Waiting for upload, in the order they were queued
+    private final Map<String, Entry> queued = new LinkedHashMap<>();
+    private final Map<String, Entry> inFlight = new HashMap<>();
+    private DatabaseReference connectedRef;
+    private ValueEventListener connectionListener;
+    private boolean connected;
+    private boolean draining;
+    private boolean drainAgain;
+
+    public SyncEngine(Outbox store, ChatStore remoteStore) {
+        this(store, remoteStore, new MainThreadScheduler());
+    }
+
+    public SyncEngine(Outbox store, ChatStore remoteStore, Scheduler scheduler) {
+        this.store = store;
+        this.remoteStore = remoteStore;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Follow the Firebase connection state; uploads only run while connected
+     */
+    public void start() {
+        connectedRef = FirebaseDatabase.getInstance().getReference(".info/connected");
+        connectionListener = new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot snapshot) {
+                Boolean value = snapshot.getValue(Boolean.class);
+                setConnected(value != null && value);
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError error) {
+                Log.e(TAG, "Failed to follow connection state: " + error.getMessage());
+            }
+        };
+        connectedRef.addValueEventListener(connectionListener);
+    }
+
+    public void stop() {
+        scheduler.removeAll();
+        if (connectedRef != null && connectionListener != null) {
+            connectedRef.removeEventListener(connectionListener);
+        }
+    }
+
+    /**
+     * Uploads only run while connected; {@link #start()} follows Firebase's connection state
+     */
+    public void setConnected(boolean connected) {
+        this.connected = connected;
+        Log.d(TAG, (connected ? "Connected, " : "Disconnected, ") + getPendingCount() + " messages pending");
+        if (connected) {
+            drain();
+        }
+    }
+
+    /**
+     * Commit a message to the outbox and upload it when possible; never waits on the network
+     */
+    public void enqueue(ChatMessage message) {
+        if (message == null || message.getId() == null || isPending(message.getId())) {
+            return;
+        }
+        store.insertOutbox(message);
+        queued.put(message.getId(), new Entry(message));
+        drain();
+    }
+
+    /**
+     * Pick up messages a previous run left in the outbox
+     */
+    public void restore(List<ChatMessage> messages) {
+        for (ChatMessage message : messages) {
+            if (!isPending(message.getId())) {
+                queued.put(message.getId(), new Entry(message));
+            }
+        }
+        Log.d(TAG, "Restored " + messages.size() + " messages from the outbox");
+        drain();
+    }
+
+    /**
+     * Stop uploading a cleared conversation's messages with timestamp < before; an answer to an
+     * upload already sent is ignored
+     */
+    public void clearConversation(String conversationKey, long before) {
+        int dropped = 0;
+        for (Map<String, Entry> entries : Arrays.asList(queued, inFlight)) {
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                ChatMessage message = iterator.next().message;
+                if (conversationKey.equals(message.getDeviceAddress()) && message.getTimestamp() < before) {
+                    iterator.remove();
+                    store.removeOutbox(message.getId());
+                    dropped++;
+                }
+            }
+        }
+        if (dropped > 0) {
+            Log.d(TAG, "Dropped " + dropped + " uploads of " + conversationKey);
+            drain();
+        }
+    }
+
+    public int getPendingCount() {
+        return queued.size() + inFlight.size();
+    }
+
+    private boolean isPending(String messageId) {
+        return queued.containsKey(messageId) || inFlight.containsKey(messageId);
+    }
+
+    private void drain() {
+        // A store may answer before append returns; drain again afterwards rather than recursing,
+        // so uploads keep the order they were queued in
+        if (draining) {
+            drainAgain = true;
+            return;
+        }
+        draining = true;
+        try {
+            do {
+                drainAgain = false;
+                drainOnce();
+            } while (drainAgain);
+        } finally {
+            draining = false;
+        }
+    }
+
+    private void drainOnce() {
+        scheduler.removeCallbacks(drainRunnable);
+        if (!connected) {
+            return;
+        }
+
+        long now = scheduler.now();
+        long nextAttemptAt = Long.MAX_VALUE;
+        List<Entry> due = new ArrayList<>();
+        Iterator<Entry> iterator = queued.values().iterator();
+        while (iterator.hasNext() && inFlight.size() < MAX_IN_FLIGHT) {
+            Entry entry = iterator.next();
+            if (entry.nextAttemptAt > now) {
+                nextAttemptAt = Math.min(nextAttemptAt, entry.nextAttemptAt);
+                continue;
+            }
+            iterator.remove();
+            inFlight.put(entry.message.getId(), entry);
+            due.add(entry);
+        }
+
+        if (nextAttemptAt != Long.MAX_VALUE && inFlight.size() < MAX_IN_FLIGHT) {
+            scheduler.postDelayed(drainRunnable, nextAttemptAt - now);
+        }
+        for (Entry entry : due) {
+            if (inFlight.get(entry.message.getId()) == entry) {
+                upload(entry);
+            }
+        }
+    }
+
+    private void upload(Entry entry) {
+        int attempt = ++entry.attempts;
+
+        // Offline writes are held by the Firebase client without completing, so an upload
+        // that is not answered in time counts as failed
+        Runnable timeout = () -> onUploaded(entry, attempt, false, "No answer in " + ACK_TIMEOUT + "ms");
+        scheduler.postDelayed(timeout, ACK_TIMEOUT);
+
+        remoteStore.append(entry.message, (success, error) -> {
+            scheduler.removeCallbacks(timeout);
+            onUploaded(entry, attempt, success, error);
+        });
+    }
+
+    private void onUploaded(Entry entry, int attempt, boolean success, String error) {
+        String messageId = entry.message.getId();
+        if (inFlight.get(messageId) != entry || entry.attempts != attempt) {
+            return; // Answer to an attempt that already timed out
+        }
+        inFlight.remove(messageId);
+
+        if (success) {
+            store.removeOutbox(messageId);
+        } else {
+            // Exponential backoff with jitter, so queued messages do not retry in lockstep
+            long backoff = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << Math.min(entry.attempts - 1, 16));
+            entry.nextAttemptAt = scheduler.now() + backoff / 2 + (long) (random.nextDouble() * backoff / 2);
+            queued.put(messageId, entry);
+            Log.w(TAG, "Upload of " + messageId + " failed (attempt " + entry.attempts + "): " + error);
+        }
+        drain();
+    }
+}
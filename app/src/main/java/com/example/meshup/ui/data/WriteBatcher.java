@@ -0,0 +1,120 @@
+package com.example.meshup.ui.data;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.firebase.database.DatabaseReference;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects Firebase writes for a short window and sends them as one multi-path updateChildren.
+ *
+ * Each call to {@link #write} is one logical change whose paths always land in the same update,
+ * so they succeed or fail together. A later write to a path replaces the queued value, so a burst
+ * of status updates costs one round-trip instead of one per call.
+ */
+public class WriteBatcher {
+    private static final String TAG = "WriteBatcher";
+    private static final long FLUSH_DELAY = 50; // ms
+    private static final int MAX_BATCH_PATHS = 256;
+
+    public interface WriteListener {
+        void onWriteComplete(boolean success, String error);
+    }
+
+    private final DatabaseReference root;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable flushRunnable = this::flush;
+    private Map<String, Object> pendingUpdates = new LinkedHashMap<>();
+    private List<WriteListener> pendingListeners = new ArrayList<>();
+    private boolean flushScheduled;
+
+    public WriteBatcher(DatabaseReference root) {
+        this.root = root;
+    }
+
+    /**
+     * Queue the updates, keyed by path from the database root
+     */
+    public synchronized void write(Map<String, Object> updates, WriteListener listener) {
+        // One update may not hold a path and its ancestor, so send what is queued first
+        for (String path : updates.keySet()) {
+            if (hasPendingAncestor(path)) {
+                flush();
+                break;
+            }
+        }
+
+        for (Map.Entry<String, Object> update : updates.entrySet()) {
+            removePendingDescendants(update.getKey());
+            pendingUpdates.put(update.getKey(), update.getValue());
+        }
+        if (listener != null) {
+            pendingListeners.add(listener);
+        }
+
+        if (pendingUpdates.size() >= MAX_BATCH_PATHS) {
+            flush();
+        } else if (!flushScheduled) {
+            handler.postDelayed(flushRunnable, FLUSH_DELAY);
+            flushScheduled = true;
+        }
+    }
+
+    /**
+     * Send everything queued now
+     */
+    public synchronized void flush() {
+        handler.removeCallbacks(flushRunnable);
+        flushScheduled = false;
+        if (pendingUpdates.isEmpty()) {
+            return;
+        }
+
+        Map<String, Object> updates = pendingUpdates;
+        List<WriteListener> listeners = pendingListeners;
+        pendingUpdates = new LinkedHashMap<>();
+        pendingListeners = new ArrayList<>();
+
+        Log.d(TAG, "Writing " + updates.size() + " paths for " + listeners.size() + " writes");
+        root.updateChildren(updates)
+                .addOnSuccessListener(unused -> {
+                    for (WriteListener listener : listeners) {
+                        listener.onWriteComplete(true, null);
+                    }
+                })
+                .addOnFailureListener(e -> {
+                    Log.e(TAG, "Failed to write batch of " + updates.size() + " paths", e);
+                    for (WriteListener listener : listeners) {
+                        listener.onWriteComplete(false, e.getMessage());
+                    }
+                });
+    }
+
+    private boolean hasPendingAncestor(String path) {
+        for (String pending : pendingUpdates.keySet()) {
+            if (path.startsWith(pending + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A write to a path replaces everything below it, so queued writes there are dropped
+     */
+    private void removePendingDescendants(String path) {
+        Iterator<String> iterator = pendingUpdates.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().startsWith(path + "/")) {
+                iterator.remove();
+            }
+        }
+    }
+}
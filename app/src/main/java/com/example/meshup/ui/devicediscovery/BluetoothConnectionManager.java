@@ -162,8 +162,9 @@ public class BluetoothConnectionManager {
     }
 
     /**
-     * Send data to the connected device
-     * @param data Bytes to send
+     * Send data to the connected device as one message; the other side's listener gets exactly
+     * these bytes in one {@link BluetoothConnectionListener#onDataReceived} call
+     * @param data Bytes to send, at most {@link StreamFramer#MAX_MESSAGE_BYTES}
      * @return true if the data was sent, false otherwise
      */
     public boolean write(byte[] data) {
@@ -178,7 +179,7 @@ public class BluetoothConnectionManager {
         }
 
         if (thread != null) {
-            thread.write(data);
+            thread.write(StreamFramer.frame(data));
             return true;
         } else {
             Log.e(TAG, "Cannot write data: connected thread is null");
@@ -567,6 +568,8 @@ public class BluetoothConnectionManager {
 
             byte[] buffer = new byte[1024];
             int bytes;
+            // Reads split and join messages at random, so only complete ones are handed on
+            StreamFramer framer = new StreamFramer();
 
             // Keep listening to the InputStream while connected
             while (shouldRun && connectionState == ConnectionState.CONNECTED) {
@@ -576,13 +579,12 @@ public class BluetoothConnectionManager {
                     if (bytes > 0) {
                         Log.d(TAG, "Received " + bytes + " bytes");
 
-                        // Send the obtained bytes to the UI activity
+                        // Send each complete message to the UI activity
                         final BluetoothConnectionListener listener = connectionListener; // Create final copy
-                        if (listener != null) {
-                            final byte[] receivedData = new byte[bytes];
-                            System.arraycopy(buffer, 0, receivedData, 0, bytes);
-                            final int finalBytes = bytes; // Make bytes final for lambda
-                            handler.post(() -> listener.onDataReceived(receivedData, finalBytes));
+                        for (byte[] message : framer.accept(buffer, bytes)) {
+                            if (listener != null) {
+                                handler.post(() -> listener.onDataReceived(message, message.length));
+                            }
                         }
                     }
                 } catch (IOException e) {
@@ -0,0 +1,79 @@
+package com.example.meshup.ui.devicediscovery;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Message framing for the RFCOMM byte stream.
+ *
+ * A socket read can end inside a message or hold several back to back, so every write goes out as
+ * a 4-byte big-endian length followed by that many bytes. The receiving side of each connection
+ * keeps the bytes of an unfinished message until the rest arrives and hands on complete messages
+ * only, so a multi-byte UTF-8 character is never split between two decodes.
+ */
+public class StreamFramer {
+    public static final int HEADER_BYTES = 4;
+    public static final int MAX_MESSAGE_BYTES = 64 * 1024;
+
+    private byte[] pending = new byte[2048];
+    private int pendingLength;
+
+    /**
+     * @return the message with its length prefix, ready to write
+     */
+    public static byte[] frame(byte[] message) {
+        if (message.length > MAX_MESSAGE_BYTES) {
+            throw new IllegalArgumentException("Message of " + message.length + " bytes is over the limit");
+        }
+        byte[] framed = new byte[HEADER_BYTES + message.length];
+        framed[0] = (byte) (message.length >>> 24);
+        framed[1] = (byte) (message.length >>> 16);
+        framed[2] = (byte) (message.length >>> 8);
+        framed[3] = (byte) message.length;
+        System.arraycopy(message, 0, framed, HEADER_BYTES, message.length);
+        return framed;
+    }
+
+    /**
+     * Take the bytes of one read
+     * @return the messages these bytes completed, in order; empty if they only added to one
+     * @throws IOException if a length prefix is out of range, i.e. the stream is out of step
+     */
+    public List<byte[]> accept(byte[] data, int count) throws IOException {
+        if (pendingLength + count > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + count));
+        }
+        System.arraycopy(data, 0, pending, pendingLength, count);
+        pendingLength += count;
+
+        List<byte[]> messages = new ArrayList<>();
+        int start = 0;
+        while (pendingLength - start >= HEADER_BYTES) {
+            int length = ((pending[start] & 0xff) << 24) | ((pending[start + 1] & 0xff) << 16)
+                    | ((pending[start + 2] & 0xff) << 8) | (pending[start + 3] & 0xff);
+            if (length < 0 || length > MAX_MESSAGE_BYTES) {
+                pendingLength = 0;
+                throw new IOException("Bad frame length " + length);
+            }
+            if (pendingLength - start - HEADER_BYTES < length) {
+                break; // The rest comes with a later read
+            }
+            messages.add(Arrays.copyOfRange(pending, start + HEADER_BYTES, start + HEADER_BYTES + length));
+            start += HEADER_BYTES + length;
+        }
+        if (start > 0) {
+            System.arraycopy(pending, start, pending, 0, pendingLength - start);
+            pendingLength -= start;
+        }
+        return messages;
+    }
+
+    /**
+     * @return bytes of an unfinished message held for the next read
+     */
+    public int getPendingBytes() {
+        return pendingLength;
+    }
+}
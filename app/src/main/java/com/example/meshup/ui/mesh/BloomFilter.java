@@ -0,0 +1,96 @@
+package com.example.meshup.ui.mesh;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fixed-size Bloom filter over string IDs, used to summarize which messages a node already has.
+ *
+ * Uses double hashing of a 64-bit FNV-1a hash, so k probes cost one pass over the ID.
+ */
+public class BloomFilter {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final int MIN_BITS = 64;
+
+    private final byte[] bits;
+    private final int bitCount;
+    private final int hashCount;
+
+    public BloomFilter(int bitCount, int hashCount) {
+        this.bitCount = Math.max(MIN_BITS, (bitCount + 7) / 8 * 8);
+        this.hashCount = Math.max(1, hashCount);
+        this.bits = new byte[this.bitCount / 8];
+    }
+
+    private BloomFilter(byte[] bits, int hashCount) {
+        this.bits = bits;
+        this.bitCount = bits.length * 8;
+        this.hashCount = hashCount;
+    }
+
+    /**
+     * Size a filter for an expected number of items and false positive rate
+     */
+    public static BloomFilter create(int expectedItems, double falsePositiveRate) {
+        int n = Math.max(1, expectedItems);
+        int m = (int) Math.ceil(n * bitsPerItem(falsePositiveRate));
+        int k = (int) Math.round((double) m / n * Math.log(2));
+        return new BloomFilter(m, k);
+    }
+
+    /**
+     * @return the filter bits {@link #create} spends on each expected item
+     */
+    public static double bitsPerItem(double falsePositiveRate) {
+        double ln2 = Math.log(2);
+        return -Math.log(falsePositiveRate) / (ln2 * ln2);
+    }
+
+    public void add(String item) {
+        long hash = hash(item);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+            bits[bit >>> 3] |= (byte) (1 << (bit & 7));
+        }
+    }
+
+    public boolean mightContain(String item) {
+        long hash = hash(item);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+            if ((bits[bit >>> 3] & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getBitCount() {
+        return bitCount;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    public byte[] toBytes() {
+        return bits.clone();
+    }
+
+    public static BloomFilter fromBytes(byte[] bits, int hashCount) {
+        return new BloomFilter(bits.clone(), Math.max(1, hashCount));
+    }
+
+    static long hash(String item) {
+        long hash = FNV_OFFSET;
+        for (byte b : item.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= (b & 0xff);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}
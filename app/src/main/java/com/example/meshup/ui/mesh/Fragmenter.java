@@ -0,0 +1,94 @@
+package com.example.meshup.ui.mesh;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits frames larger than {@link #MAX_FRAME_BYTES} into numbered fragment frames.
+ *
+ * Each fragment is an ordinary frame with the original origin and destination, so relays route it
+ * like any other frame and never hold more than the fragment in hand. The fragment payload is
+ * messageId, index, count, original type and a slice of the original payload; only the destination
+ * puts the slices back together, see {@link Reassembler}.
+ */
+public final class Fragmenter {
+    // Keeps one long message from holding a link in a single write; StreamFramer, not this limit,
+    // keeps frames whole across socket reads
+    public static final int MAX_FRAME_BYTES = 1024;
+    // Fragment header fields, plus TTL and hop counters gaining a digit in transit
+    private static final int HEADER_RESERVE = 32;
+    private static final int MIN_CHUNK_BYTES = 64;
+
+    private Fragmenter() {}
+
+    /**
+     * @return true if the encoded frame is larger than one link frame
+     */
+    public static boolean isOversized(MeshFrame frame) {
+        return utf8Length(frame.encode()) > MAX_FRAME_BYTES;
+    }
+
+    /**
+     * @return the fragment frames, in order, each small enough for one link frame
+     */
+    public static List<MeshFrame> split(MeshFrame frame) {
+        String payload = frame.getPayload();
+        MeshFrame empty = new MeshFrame(MeshFrame.TYPE_FRAGMENT, fragmentId(frame.getId(), 0),
+                frame.getOrigin(), frame.getDestination(), frame.getTtl(), frame.getHops(), "");
+        int budget = Math.max(MIN_CHUNK_BYTES, MAX_FRAME_BYTES - utf8Length(empty.encode())
+                - utf8Length(frame.getId()) - utf8Length(frame.getType()) - HEADER_RESERVE);
+
+        List<String> chunks = new ArrayList<>();
+        int start = 0;
+        while (start < payload.length()) {
+            int end = start;
+            int bytes = 0;
+            while (end < payload.length()) {
+                int width = charWidth(payload, end);
+                if (bytes + width > budget) break;
+                bytes += width;
+                end += width == 4 ? 2 : 1; // Never split a surrogate pair
+            }
+            chunks.add(payload.substring(start, end));
+            start = end;
+        }
+
+        List<MeshFrame> fragments = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            String header = frame.getId() + MeshPayloads.FIELD_SEPARATOR + i + MeshPayloads.FIELD_SEPARATOR +
+                    chunks.size() + MeshPayloads.FIELD_SEPARATOR + frame.getType() + MeshPayloads.FIELD_SEPARATOR;
+            fragments.add(new MeshFrame(MeshFrame.TYPE_FRAGMENT, fragmentId(frame.getId(), i),
+                    frame.getOrigin(), frame.getDestination(), frame.getTtl(), frame.getHops(),
+                    header + chunks.get(i)));
+        }
+        return fragments;
+    }
+
+    private static String fragmentId(String messageId, int index) {
+        return messageId + "#" + index;
+    }
+
+    /**
+     * Length of the UTF-8 encoding, without encoding
+     */
+    static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            int width = charWidth(value, i);
+            length += width;
+            if (width == 4) i++;
+        }
+        return length;
+    }
+
+    private static int charWidth(String value, int index) {
+        char c = value.charAt(index);
+        if (c < 0x80) return 1;
+        if (c < 0x800) return 2;
+        if (Character.isHighSurrogate(c) && index + 1 < value.length()
+                && Character.isLowSurrogate(value.charAt(index + 1))) {
+            return 4;
+        }
+        return 3;
+    }
+}
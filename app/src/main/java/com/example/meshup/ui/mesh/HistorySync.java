@@ -0,0 +1,361 @@
+package com.example.meshup.ui.mesh;
+
+import com.example.meshup.ui.data.ChatMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Anti-entropy history sync between two neighbours when their link comes up.
+ *
+ * Each side sends a Bloom filter of the message IDs it holds for the conversation window. The other
+ * side answers with only the messages the filter does not contain, packed into batches, so a
+ * reconnect costs a few hundred bytes plus the missing messages instead of the whole history.
+ * A Bloom false positive only means a message is skipped until the next sync.
+ *
+ * Full-history catch-up runs alongside it over the conversation's {@link MerkleTree}: each side
+ * walks the other's tree top-down, only descending into nodes whose hashes differ, and fetches the
+ * messages of divergent leaf buckets. Matching histories cost one round trip; diverged ones take
+ * one round trip per tree level. Both walks only pull, so every missing message crosses the link
+ * once (apart from overlap with the filter's answer).
+ */
+public class HistorySync implements MeshRouter.FrameListener, MeshRouter.LinkListener {
+    public static final long SYNC_WINDOW = 7L * 24 * 60 * 60 * 1000; // 7 days
+    public static final double FALSE_POSITIVE_RATE = 0.01;
+    public static final int MAX_BATCH_CHARS = 900;
+    public static final int MAX_FILTER_FRAMES = 4;
+    // Payload left in a fragment after its headers, with room for long node IDs
+    private static final int FILTER_CHARS_PER_FRAME = Fragmenter.MAX_FRAME_BYTES - 256;
+    // Larger windows skip the Bloom filter; it is sent as base64, six bits per character
+    public static final int FLAT_SYNC_LIMIT = (int) (MAX_FILTER_FRAMES * FILTER_CHARS_PER_FRAME * 6 /
+            BloomFilter.bitsPerItem(FALSE_POSITIVE_RATE));
+    private static final int LEAF_IDS_PER_RECORD = 16;
+    private static final String FETCH_RANGE = "r";
+    private static final String FETCH_ID = "i";
+
+    /**
+     * Local message history the sync reads from; the host decides how conversations are keyed
+     */
+    public interface HistoryStore {
+        /**
+         * @return the conversation shared with the neighbour on a link
+         */
+        String getConversationKey(String link);
+
+        /**
+         * @return messages with from <= timestamp < to, in any order
+         */
+        List<ChatMessage> getMessagesBetween(String conversationKey, long from, long to);
+
+        ChatMessage getMessage(String conversationKey, String messageId);
+
+        boolean containsMessage(String conversationKey, String messageId);
+
+        /**
+         * @return the conversation's incrementally maintained tree, or null to use only the filter
+         */
+        MerkleTree getMerkleTree(String conversationKey);
+    }
+
+    public interface SyncListener {
+        /**
+         * Messages the neighbour had that were missing here, already filtered for duplicates
+         */
+        void onMessagesSynced(String conversationKey, List<ChatMessage> messages);
+    }
+
+    private final MeshRouter router;
+    private final HistoryStore store;
+    private final List<SyncListener> listeners = new CopyOnWriteArrayList<>();
+
+    public HistorySync(MeshRouter router, HistoryStore store) {
+        this.router = router;
+        this.store = store;
+    }
+
+    public void addSyncListener(SyncListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeSyncListener(SyncListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Start the handshake by sending our filter and the root of our tree; the neighbour does the
+     * same from its side
+     */
+    public void startSync(String link, long now) {
+        String conversationKey = store.getConversationKey(link);
+        if (conversationKey == null) {
+            return;
+        }
+
+        MerkleTree tree = store.getMerkleTree(conversationKey);
+        if (tree != null) {
+            List<String> root = new ArrayList<>();
+            root.add(encodeNode(tree.getRoot()));
+            router.sendToNeighbour(link, MeshFrame.TYPE_MERKLE_QUERY, MeshPayloads.joinRecords(root));
+        }
+
+        long since = now - SYNC_WINDOW;
+        List<ChatMessage> messages = store.getMessagesBetween(conversationKey, since, Long.MAX_VALUE);
+        if (messages.size() > FLAT_SYNC_LIMIT) {
+            return; // The filter would take more than MAX_FILTER_FRAMES fragments; the tree walk covers it
+        }
+        BloomFilter filter = BloomFilter.create(messages.size(), FALSE_POSITIVE_RATE);
+        for (ChatMessage message : messages) {
+            filter.add(message.getId());
+        }
+        router.sendToNeighbour(link, MeshFrame.TYPE_SYNC_FILTER, encodeFilter(since, filter));
+    }
+
+    /**
+     * Filter record: "since<US>hashCount<US>bits", since in base 36 and the bits in base64
+     */
+    static String encodeFilter(long since, BloomFilter filter) {
+        return Long.toString(since, 36) + MeshPayloads.FIELD_SEPARATOR +
+                filter.getHashCount() + MeshPayloads.FIELD_SEPARATOR +
+                MeshPayloads.encodeBytes(filter.toBytes());
+    }
+
+    @Override
+    public void onLinkUp(String link, long now) {
+        startSync(link, now);
+    }
+
+    @Override
+    public void onLinkDown(String link) {
+        // Nothing is held per link
+    }
+
+    @Override
+    public void onFrameDelivered(MeshFrame frame, String link, long now) {
+        if (MeshFrame.TYPE_SYNC_FILTER.equals(frame.getType())) {
+            handleFilter(link, frame.getPayload());
+        } else if (MeshFrame.TYPE_SYNC_BATCH.equals(frame.getType())) {
+            handleBatch(link, frame.getPayload());
+        } else if (MeshFrame.TYPE_MERKLE_QUERY.equals(frame.getType())) {
+            handleMerkleQuery(link, frame.getPayload());
+        } else if (MeshFrame.TYPE_MERKLE_NODES.equals(frame.getType())) {
+            handleMerkleNodes(link, frame.getPayload());
+        } else if (MeshFrame.TYPE_MERKLE_LEAF.equals(frame.getType())) {
+            handleMerkleLeaf(link, frame.getPayload());
+        } else if (MeshFrame.TYPE_MERKLE_FETCH.equals(frame.getType())) {
+            handleMerkleFetch(link, frame.getPayload());
+        }
+    }
+
+    private void handleFilter(String link, String payload) {
+        String[] fields = MeshPayloads.split(payload, MeshPayloads.FIELD_SEPARATOR, 3);
+        if (fields.length != 3) return;
+
+        long since;
+        int hashCount;
+        try {
+            since = Long.parseLong(fields[0], 36);
+            hashCount = Integer.parseInt(fields[1]);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        byte[] bits = MeshPayloads.decodeBytes(fields[2]);
+        String conversationKey = store.getConversationKey(link);
+        if (bits == null || bits.length == 0 || conversationKey == null) return;
+
+        BloomFilter filter = BloomFilter.fromBytes(bits, hashCount);
+        List<String> missing = new ArrayList<>();
+        for (ChatMessage message : store.getMessagesBetween(conversationKey, since, Long.MAX_VALUE)) {
+            if (!filter.mightContain(message.getId())) {
+                missing.add(MeshPayloads.encodeChatMessage(message));
+            }
+        }
+        sendRecords(link, MeshFrame.TYPE_SYNC_BATCH, missing);
+    }
+
+    /**
+     * The neighbour sent some of its tree nodes: answer every node that differs from ours with our
+     * children of it, or with our message IDs when it is a leaf bucket
+     */
+    private void handleMerkleQuery(String link, String payload) {
+        String conversationKey = store.getConversationKey(link);
+        MerkleTree tree = conversationKey != null ? store.getMerkleTree(conversationKey) : null;
+        if (tree == null) return;
+
+        List<String> nodes = new ArrayList<>();
+        List<String> leaves = new ArrayList<>();
+        for (String record : MeshPayloads.splitRecords(payload)) {
+            MerkleTree.Node remote = decodeNode(record);
+            if (remote == null) continue;
+
+            MerkleTree.Node local = tree.getNode(remote.getLevel(), remote.getKey());
+            if (local.matches(remote) || local.getCount() == 0) continue;
+
+            if (remote.getLevel() > 0) {
+                for (MerkleTree.Node child : tree.getChildren(remote.getLevel(), remote.getKey())) {
+                    nodes.add(encodeNode(child));
+                }
+            } else {
+                addLeafRecords(leaves, conversationKey, remote.getKey());
+            }
+        }
+        sendRecords(link, MeshFrame.TYPE_MERKLE_NODES, nodes);
+        sendRecords(link, MeshFrame.TYPE_MERKLE_LEAF, leaves);
+    }
+
+    /**
+     * Our walk one level down: query children that differ, fetch whole subtrees we do not have
+     */
+    private void handleMerkleNodes(String link, String payload) {
+        String conversationKey = store.getConversationKey(link);
+        MerkleTree tree = conversationKey != null ? store.getMerkleTree(conversationKey) : null;
+        if (tree == null) return;
+
+        List<String> query = new ArrayList<>();
+        List<String> fetch = new ArrayList<>();
+        for (String record : MeshPayloads.splitRecords(payload)) {
+            MerkleTree.Node remote = decodeNode(record);
+            if (remote == null) continue;
+
+            MerkleTree.Node local = tree.getNode(remote.getLevel(), remote.getKey());
+            if (local.matches(remote)) continue;
+
+            if (local.getCount() == 0) {
+                fetch.add(FETCH_RANGE + MeshPayloads.FIELD_SEPARATOR +
+                        Long.toString(MerkleTree.getStartTime(remote.getLevel(), remote.getKey()), 36) +
+                        MeshPayloads.FIELD_SEPARATOR +
+                        Long.toString(MerkleTree.getEndTime(remote.getLevel(), remote.getKey()), 36));
+            } else {
+                query.add(encodeNode(local));
+            }
+        }
+        sendRecords(link, MeshFrame.TYPE_MERKLE_QUERY, query);
+        sendRecords(link, MeshFrame.TYPE_MERKLE_FETCH, fetch);
+    }
+
+    /**
+     * The neighbour's IDs for a divergent bucket: fetch the ones we are missing
+     */
+    private void handleMerkleLeaf(String link, String payload) {
+        String conversationKey = store.getConversationKey(link);
+        if (conversationKey == null) return;
+
+        List<String> fetch = new ArrayList<>();
+        for (String record : MeshPayloads.splitRecords(payload)) {
+            String[] fields = record.split(String.valueOf(MeshPayloads.FIELD_SEPARATOR));
+            // fields[0] is the bucket key, kept for debugging
+            for (int i = 1; i < fields.length; i++) {
+                if (!fields[i].isEmpty() && !store.containsMessage(conversationKey, fields[i])) {
+                    fetch.add(FETCH_ID + MeshPayloads.FIELD_SEPARATOR + fields[i]);
+                }
+            }
+        }
+        sendRecords(link, MeshFrame.TYPE_MERKLE_FETCH, fetch);
+    }
+
+    private void handleMerkleFetch(String link, String payload) {
+        String conversationKey = store.getConversationKey(link);
+        if (conversationKey == null) return;
+
+        List<String> messages = new ArrayList<>();
+        for (String record : MeshPayloads.splitRecords(payload)) {
+            String[] fields = MeshPayloads.split(record, MeshPayloads.FIELD_SEPARATOR, 3);
+            if (FETCH_ID.equals(fields[0]) && fields.length == 2) {
+                ChatMessage message = store.getMessage(conversationKey, fields[1]);
+                if (message != null) {
+                    messages.add(MeshPayloads.encodeChatMessage(message));
+                }
+            } else if (FETCH_RANGE.equals(fields[0]) && fields.length == 3) {
+                try {
+                    long from = Long.parseLong(fields[1], 36);
+                    long to = Long.parseLong(fields[2], 36);
+                    for (ChatMessage message : store.getMessagesBetween(conversationKey, from, to)) {
+                        messages.add(MeshPayloads.encodeChatMessage(message));
+                    }
+                } catch (NumberFormatException e) {
+                    // Ignore a malformed record, the next sync will cover it
+                }
+            }
+        }
+        sendRecords(link, MeshFrame.TYPE_SYNC_BATCH, messages);
+    }
+
+    private void addLeafRecords(List<String> records, String conversationKey, long bucket) {
+        List<ChatMessage> messages = store.getMessagesBetween(conversationKey,
+                MerkleTree.getStartTime(0, bucket), MerkleTree.getEndTime(0, bucket));
+
+        StringBuilder builder = null;
+        for (int i = 0; i < messages.size(); i++) {
+            if (i % LEAF_IDS_PER_RECORD == 0) {
+                if (builder != null) records.add(builder.toString());
+                builder = new StringBuilder(Long.toString(bucket, 36));
+            }
+            builder.append(MeshPayloads.FIELD_SEPARATOR).append(messages.get(i).getId());
+        }
+        if (builder != null) records.add(builder.toString());
+    }
+
+    /**
+     * Send records in as few frames as possible, keeping each frame under the batch limit
+     */
+    private void sendRecords(String link, String type, List<String> records) {
+        List<String> batch = new ArrayList<>();
+        int batchChars = 0;
+        for (String record : records) {
+            if (!batch.isEmpty() && batchChars + record.length() > MAX_BATCH_CHARS) {
+                router.sendToNeighbour(link, type, MeshPayloads.joinRecords(batch));
+                batch.clear();
+                batchChars = 0;
+            }
+            batch.add(record);
+            batchChars += record.length() + 1;
+        }
+        if (!batch.isEmpty()) {
+            router.sendToNeighbour(link, type, MeshPayloads.joinRecords(batch));
+        }
+    }
+
+    /**
+     * Node record: "level<US>key<US>hash<US>count", numbers in base 36
+     */
+    private static String encodeNode(MerkleTree.Node node) {
+        return node.getLevel() + String.valueOf(MeshPayloads.FIELD_SEPARATOR) +
+                Long.toString(node.getKey(), 36) + MeshPayloads.FIELD_SEPARATOR +
+                Long.toString(node.getHash(), 36) + MeshPayloads.FIELD_SEPARATOR +
+                Integer.toString(node.getCount(), 36);
+    }
+
+    private static MerkleTree.Node decodeNode(String record) {
+        String[] fields = MeshPayloads.split(record, MeshPayloads.FIELD_SEPARATOR, 4);
+        if (fields.length != 4) return null;
+        try {
+            int level = Integer.parseInt(fields[0]);
+            if (level < 0 || level > MerkleTree.ROOT_LEVEL) return null;
+            return new MerkleTree.Node(level, Long.parseLong(fields[1], 36),
+                    Long.parseLong(fields[2], 36), Integer.parseInt(fields[3], 36));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void handleBatch(String link, String payload) {
+        String conversationKey = store.getConversationKey(link);
+        if (conversationKey == null) return;
+
+        List<ChatMessage> missing = new ArrayList<>();
+        for (String record : MeshPayloads.splitRecords(payload)) {
+            ChatMessage message = MeshPayloads.decodeChatMessage(record, conversationKey);
+            if (message == null || store.containsMessage(conversationKey, message.getId())) continue;
+
+            // Our own messages can come back from a peer that kept them when we did not
+            message.setReceived(!router.getLocalId().equals(message.getSenderId()));
+            missing.add(message);
+        }
+
+        if (!missing.isEmpty()) {
+            for (SyncListener listener : listeners) {
+                listener.onMessagesSynced(conversationKey, missing);
+            }
+        }
+    }
+}
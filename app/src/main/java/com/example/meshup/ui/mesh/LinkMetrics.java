@@ -0,0 +1,117 @@
+package com.example.meshup.ui.mesh;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Live quality estimates per neighbour link, turned into the link cost routes are weighted by.
+ *
+ * Round-trip time comes from the router's probes, goodput from the connection layer's write
+ * timings, and the failure rate from failed writes and unanswered probes. All three are smoothed
+ * with an exponentially weighted moving average so one slow frame does not reroute traffic.
+ */
+public class LinkMetrics {
+    public static final double SMOOTHING = 0.25;
+    public static final long REFERENCE_RTT = 100; // ms, a healthy RFCOMM round trip
+    public static final long REFERENCE_GOODPUT = 10_000; // bytes per second
+    public static final int MAX_PENALTY = MeshRouter.LINK_COST * 3;
+
+    /**
+     * Snapshot of one link's estimates; negative values mean no sample yet
+     */
+    public static class Sample {
+        private final double roundTripMillis;
+        private final double goodput;
+        private final double failureRate;
+
+        Sample(double roundTripMillis, double goodput, double failureRate) {
+            this.roundTripMillis = roundTripMillis;
+            this.goodput = goodput;
+            this.failureRate = failureRate;
+        }
+
+        public double getRoundTripMillis() { return roundTripMillis; }
+        public double getGoodput() { return goodput; }
+        public double getFailureRate() { return failureRate; }
+    }
+
+    private static class Stats {
+        double roundTripMillis = -1;
+        double goodput = -1;
+        double failureRate;
+    }
+
+    private final Map<String, Stats> links = new HashMap<>();
+
+    public synchronized void recordRoundTrip(String link, long millis) {
+        Stats stats = stats(link);
+        stats.roundTripMillis = smooth(stats.roundTripMillis, Math.max(0, millis));
+        stats.failureRate = smooth(stats.failureRate, 0);
+    }
+
+    /**
+     * A frame was written to the link in the given time
+     */
+    public synchronized void recordThroughput(String link, int bytes, long millis) {
+        if (bytes <= 0) return;
+        Stats stats = stats(link);
+        stats.goodput = smooth(stats.goodput, bytes * 1000.0 / Math.max(1, millis));
+    }
+
+    /**
+     * Outcome of one write, or a probe that was never answered (success = false)
+     */
+    public synchronized void recordDelivery(String link, boolean success) {
+        Stats stats = stats(link);
+        stats.failureRate = smooth(stats.failureRate, success ? 0 : 1);
+    }
+
+    public synchronized void remove(String link) {
+        links.remove(link);
+    }
+
+    public synchronized Sample getSample(String link) {
+        Stats stats = links.get(link);
+        return stats != null ? new Sample(stats.roundTripMillis, stats.goodput, stats.failureRate)
+                : new Sample(-1, -1, 0);
+    }
+
+    /**
+     * Base link cost plus penalties for slow round trips, low goodput and expected retransmissions.
+     * A link without samples costs the base amount, the same as before metrics existed.
+     */
+    public synchronized int getCost(String link) {
+        Stats stats = links.get(link);
+        int cost = MeshRouter.LINK_COST;
+        if (stats == null) return cost;
+
+        if (stats.roundTripMillis > REFERENCE_RTT) {
+            cost += penalty(stats.roundTripMillis / REFERENCE_RTT - 1);
+        }
+        if (stats.goodput > 0 && stats.goodput < REFERENCE_GOODPUT) {
+            cost += penalty(REFERENCE_GOODPUT / stats.goodput - 1);
+        }
+        if (stats.failureRate > 0) {
+            // Expected extra transmissions per delivered frame
+            cost += penalty(stats.failureRate / Math.max(0.01, 1 - stats.failureRate));
+        }
+        return cost;
+    }
+
+    private static int penalty(double ratio) {
+        return (int) Math.min(MAX_PENALTY, Math.round(ratio * MeshRouter.LINK_COST));
+    }
+
+    private static double smooth(double current, double sample) {
+        return current < 0 ? sample : current + SMOOTHING * (sample - current);
+    }
+
+    private Stats stats(String link) {
+        Stats stats = links.get(link);
+        if (stats == null) {
+            stats = new Stats();
+            links.put(link, stats);
+        }
+        return stats;
+    }
+}
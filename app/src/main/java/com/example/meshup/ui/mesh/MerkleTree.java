@@ -0,0 +1,142 @@
+package com.example.meshup.ui.mesh;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Time-bucketed Merkle tree over the message IDs of one conversation.
+ *
+ * Leaves are one-hour buckets; every level above groups 16 children, so the root covers all time
+ * after {@link #ROOT_LEVEL} levels. A node's hash is the XOR of its messages' ID hashes, which makes
+ * adding or removing a message an O(levels) update instead of a rebuild. Two peers compare the
+ * root and then only descend into the children whose hashes differ.
+ */
+public class MerkleTree {
+    public static final long BUCKET_MILLIS = 60 * 60 * 1000; // 1 hour
+    public static final int FANOUT_BITS = 4; // 16 children per node
+    public static final int ROOT_LEVEL = 6; // 16^6 hourly buckets, far beyond any real timestamp
+    private static final long MAX_LEAF = (1L << (FANOUT_BITS * ROOT_LEVEL)) - 1;
+
+    /**
+     * Summary of one tree node: its XOR hash and how many messages it covers
+     */
+    public static class Node {
+        private final int level;
+        private final long key;
+        private final long hash;
+        private final int count;
+
+        public Node(int level, long key, long hash, int count) {
+            this.level = level;
+            this.key = key;
+            this.hash = hash;
+            this.count = count;
+        }
+
+        public int getLevel() { return level; }
+        public long getKey() { return key; }
+        public long getHash() { return hash; }
+        public int getCount() { return count; }
+
+        public boolean matches(Node other) {
+            return other != null && hash == other.hash && count == other.count;
+        }
+    }
+
+    // One map per level from node key to {hash, count}; empty nodes are not stored
+    private final List<Map<Long, long[]>> levels = new ArrayList<>();
+
+    public MerkleTree() {
+        for (int level = 0; level <= ROOT_LEVEL; level++) {
+            levels.add(new HashMap<>());
+        }
+    }
+
+    public synchronized void add(String messageId, long timestamp) {
+        update(messageId, timestamp, 1);
+    }
+
+    public synchronized void remove(String messageId, long timestamp) {
+        update(messageId, timestamp, -1);
+    }
+
+    /**
+     * @return the node summary, with a zero hash and count when nothing falls under it
+     */
+    public synchronized Node getNode(int level, long key) {
+        long[] value = levels.get(level).get(key);
+        return value != null ? new Node(level, key, value[0], (int) value[1]) : new Node(level, key, 0, 0);
+    }
+
+    public Node getRoot() {
+        return getNode(ROOT_LEVEL, 0);
+    }
+
+    /**
+     * @return the non-empty children of a node, or an empty list for a leaf
+     */
+    public synchronized List<Node> getChildren(int level, long key) {
+        List<Node> children = new ArrayList<>();
+        if (level == 0) return children;
+
+        Map<Long, long[]> childLevel = levels.get(level - 1);
+        long first = key << FANOUT_BITS;
+        for (long child = first; child < first + (1 << FANOUT_BITS); child++) {
+            long[] value = childLevel.get(child);
+            if (value != null) {
+                children.add(new Node(level - 1, child, value[0], (int) value[1]));
+            }
+        }
+        return children;
+    }
+
+    public synchronized int size() {
+        long[] root = levels.get(ROOT_LEVEL).get(0L);
+        return root != null ? (int) root[1] : 0;
+    }
+
+    /**
+     * @return the first timestamp covered by a node
+     */
+    public static long getStartTime(int level, long key) {
+        return (key << (FANOUT_BITS * level)) * BUCKET_MILLIS;
+    }
+
+    /**
+     * @return the first timestamp after a node's range
+     */
+    public static long getEndTime(int level, long key) {
+        return ((key + 1) << (FANOUT_BITS * level)) * BUCKET_MILLIS;
+    }
+
+    private void update(String messageId, long timestamp, int delta) {
+        long idHash = hashId(messageId);
+        long leaf = Math.min(MAX_LEAF, Math.max(0, timestamp) / BUCKET_MILLIS);
+        for (int level = 0; level <= ROOT_LEVEL; level++) {
+            long key = leaf >>> (FANOUT_BITS * level);
+            Map<Long, long[]> nodes = levels.get(level);
+            long[] value = nodes.get(key);
+            if (value == null) {
+                value = new long[2];
+                nodes.put(key, value);
+            }
+            value[0] ^= idHash;
+            value[1] += delta;
+            if (value[1] <= 0) {
+                nodes.remove(key);
+            }
+        }
+    }
+
+    /**
+     * FNV-1a followed by a 64-bit finalizer, so XORs of similar IDs do not cancel out
+     */
+    static long hashId(String messageId) {
+        long hash = BloomFilter.hash(messageId);
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+}
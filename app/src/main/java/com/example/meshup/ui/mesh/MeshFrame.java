@@ -0,0 +1,155 @@
+package com.example.meshup.ui.mesh;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Envelope for every frame that travels over the mesh.
+ *
+ * Frames reuse the existing "|||" separated text protocol so they can share the
+ * RFCOMM link with the plain text / user info messages:
+ * mesh|||type|||id|||origin|||destination|||ttl|||hops|||payload
+ * The payload is always the last field, so it may itself contain separators.
+ * A multicast destination is "@" followed by the comma separated user IDs still to be reached.
+ */
+public class MeshFrame {
+    public static final String PREFIX = "mesh";
+    public static final String SEPARATOR = "|||";
+    public static final String BROADCAST = "*";
+    public static final String MULTICAST_PREFIX = "@";
+
+    // Frame types
+    public static final String TYPE_DATA = "data";
+    public static final String TYPE_GROUP_DATA = "gdat";
+    public static final String TYPE_FRAGMENT = "frag";
+    public static final String TYPE_ROUTE_ADVERT = "radv";
+    public static final String TYPE_LINK_PROBE = "lprb";
+    public static final String TYPE_LINK_PROBE_REPLY = "lpry";
+    public static final String TYPE_TOPOLOGY_ANNOUNCE = "tlsa";
+    public static final String TYPE_PRESENCE_DIGEST = "pdig";
+    public static final String TYPE_PRESENCE_REQUEST = "preq";
+    public static final String TYPE_PRESENCE_UPDATE = "pupd";
+    public static final String TYPE_SYNC_FILTER = "sflt";
+    public static final String TYPE_SYNC_BATCH = "sbat";
+    public static final String TYPE_MERKLE_QUERY = "mqry";
+    public static final String TYPE_MERKLE_NODES = "mnod";
+    public static final String TYPE_MERKLE_LEAF = "mlef";
+    public static final String TYPE_MERKLE_FETCH = "mget";
+
+    private static final int FIELD_COUNT = 8;
+    private static final Pattern SEPARATOR_PATTERN = Pattern.compile(Pattern.quote(SEPARATOR));
+
+    private final String type;
+    private final String id;
+    private final String origin;
+    private final String destination;
+    private final int ttl;
+    private final int hops;
+    private final String payload;
+
+    public MeshFrame(String type, String id, String origin, String destination,
+                     int ttl, int hops, String payload) {
+        this.type = type;
+        this.id = id;
+        this.origin = origin;
+        this.destination = destination;
+        this.ttl = ttl;
+        this.hops = hops;
+        this.payload = payload != null ? payload : "";
+    }
+
+    // Getters
+    public String getType() { return type; }
+    public String getId() { return id; }
+    public String getOrigin() { return origin; }
+    public String getDestination() { return destination; }
+    public int getTtl() { return ttl; }
+    public int getHops() { return hops; }
+    public String getPayload() { return payload; }
+
+    public boolean isBroadcast() {
+        return BROADCAST.equals(destination);
+    }
+
+    public boolean isMulticast() {
+        return destination != null && destination.startsWith(MULTICAST_PREFIX);
+    }
+
+    /**
+     * @return the members a multicast frame still has to reach
+     */
+    public List<String> getMulticastMembers() {
+        List<String> members = new ArrayList<>();
+        if (!isMulticast()) return members;
+
+        int start = MULTICAST_PREFIX.length();
+        while (start <= destination.length()) {
+            int end = destination.indexOf(',', start);
+            if (end < 0) end = destination.length();
+            if (end > start) members.add(destination.substring(start, end));
+            start = end + 1;
+        }
+        return members;
+    }
+
+    public static String multicastDestination(Collection<String> members) {
+        StringBuilder builder = new StringBuilder(MULTICAST_PREFIX);
+        for (String member : members) {
+            if (builder.length() > MULTICAST_PREFIX.length()) builder.append(',');
+            builder.append(member);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Copy of this frame as it leaves the current node: one less TTL, one more hop
+     */
+    public MeshFrame forwarded() {
+        return new MeshFrame(type, id, origin, destination, ttl - 1, hops + 1, payload);
+    }
+
+    /**
+     * Copy of this frame re-addressed to another destination
+     */
+    public MeshFrame withDestination(String newDestination) {
+        return new MeshFrame(type, id, origin, newDestination, ttl, hops, payload);
+    }
+
+    public String encode() {
+        return PREFIX + SEPARATOR + type + SEPARATOR + id + SEPARATOR + origin + SEPARATOR +
+                destination + SEPARATOR + ttl + SEPARATOR + hops + SEPARATOR + payload;
+    }
+
+    public static boolean isMeshFrame(String raw) {
+        return raw != null && raw.startsWith(PREFIX + SEPARATOR);
+    }
+
+    /**
+     * Parse a raw frame received from a link
+     * @return the frame, or null if the text is not a well formed mesh frame
+     */
+    public static MeshFrame decode(String raw) {
+        if (!isMeshFrame(raw)) {
+            return null;
+        }
+
+        String[] parts = SEPARATOR_PATTERN.split(raw, FIELD_COUNT);
+        if (parts.length < FIELD_COUNT) {
+            return null;
+        }
+
+        try {
+            return new MeshFrame(parts[1], parts[2], parts[3], parts[4],
+                    Integer.parseInt(parts[5]), Integer.parseInt(parts[6]), parts[7]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return type + "[" + id + " " + origin + "->" + destination + " ttl=" + ttl + " hops=" + hops + "]";
+    }
+}
@@ -0,0 +1,210 @@
+package com.example.meshup.ui.mesh;
+
+import com.example.meshup.ui.data.ChatMessage;
+import com.example.meshup.ui.data.GroupChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact text encoding of chat messages carried inside mesh frames.
+ *
+ * Fields are separated by the ASCII unit separator and records by the record separator, neither of
+ * which can be typed into the message box, so no escaping is needed.
+ */
+public final class MeshPayloads {
+    static final char FIELD_SEPARATOR = '\u001F';
+    static final char RECORD_SEPARATOR = '\u001E';
+
+    private static final int CHAT_FIELD_COUNT = 6;
+    private static final String BASE64_ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    private MeshPayloads() {}
+
+    /**
+     * Encode the sender-side fields of a message. Device address and the received flag are
+     * relative to the local device, so the receiver fills them in.
+     */
+    public static String encodeChatMessage(ChatMessage message) {
+        return clean(message.getId()) + FIELD_SEPARATOR +
+                clean(message.getSenderId()) + FIELD_SEPARATOR +
+                clean(message.getSenderName()) + FIELD_SEPARATOR +
+                message.getTimestamp() + FIELD_SEPARATOR +
+                clean(message.getMessageType()) + FIELD_SEPARATOR +
+                clean(message.getContent());
+    }
+
+    /**
+     * @param deviceAddress conversation key on the receiving side
+     * @return the decoded message, or null if the payload is malformed
+     */
+    public static ChatMessage decodeChatMessage(String payload, String deviceAddress) {
+        if (payload == null) {
+            return null;
+        }
+
+        String[] fields = split(payload, FIELD_SEPARATOR, CHAT_FIELD_COUNT);
+        if (fields.length < CHAT_FIELD_COUNT) {
+            return null;
+        }
+
+        try {
+            return new ChatMessage(fields[0], fields[1], fields[2], deviceAddress, fields[5],
+                    fields[4], Long.parseLong(fields[3]), true);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Group frames carry the group's ID, name and member list ahead of the message, so a member
+     * learns the group from its first message
+     */
+    public static String encodeGroupMessage(GroupChannel group, ChatMessage message) {
+        StringBuilder members = new StringBuilder();
+        for (String memberId : group.getMemberIds()) {
+            if (members.length() > 0) members.append(',');
+            members.append(clean(memberId));
+        }
+        return clean(group.getGroupId()) + FIELD_SEPARATOR + clean(group.getName()) + FIELD_SEPARATOR +
+                members + RECORD_SEPARATOR + encodeChatMessage(message);
+    }
+
+    /**
+     * @return the group a group frame belongs to, or null if the payload is malformed
+     */
+    public static GroupChannel decodeGroupChannel(String payload) {
+        int headerEnd = payload != null ? payload.indexOf(RECORD_SEPARATOR) : -1;
+        if (headerEnd < 0) {
+            return null;
+        }
+
+        String[] fields = split(payload.substring(0, headerEnd), FIELD_SEPARATOR, 3);
+        if (fields.length < 3 || fields[0].isEmpty()) {
+            return null;
+        }
+        List<String> members = new ArrayList<>();
+        int start = 0;
+        while (start <= fields[2].length()) {
+            int end = fields[2].indexOf(',', start);
+            if (end < 0) end = fields[2].length();
+            if (end > start) members.add(fields[2].substring(start, end));
+            start = end + 1;
+        }
+        return new GroupChannel(fields[0], fields[1], members);
+    }
+
+    /**
+     * @return the message of a group frame, keyed by the group's conversation, or null if malformed
+     */
+    public static ChatMessage decodeGroupMessage(String payload) {
+        GroupChannel group = decodeGroupChannel(payload);
+        if (group == null) {
+            return null;
+        }
+        return decodeChatMessage(payload.substring(payload.indexOf(RECORD_SEPARATOR) + 1),
+                group.getConversationKey());
+    }
+
+    private static String clean(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace(FIELD_SEPARATOR, ' ').replace(RECORD_SEPARATOR, ' ');
+    }
+
+    /**
+     * Split on a single character without regex, keeping the remainder in the last field
+     */
+    static String[] split(String value, char separator, int limit) {
+        String[] parts = new String[limit];
+        int count = 0;
+        int start = 0;
+        while (count < limit - 1) {
+            int index = value.indexOf(separator, start);
+            if (index < 0) {
+                break;
+            }
+            parts[count++] = value.substring(start, index);
+            start = index + 1;
+        }
+        parts[count++] = value.substring(start);
+
+        if (count == limit) {
+            return parts;
+        }
+        String[] trimmed = new String[count];
+        System.arraycopy(parts, 0, trimmed, 0, count);
+        return trimmed;
+    }
+
+    static List<String> splitRecords(String payload) {
+        List<String> records = new ArrayList<>();
+        if (payload == null || payload.isEmpty()) return records;
+
+        int start = 0;
+        int index;
+        while ((index = payload.indexOf(RECORD_SEPARATOR, start)) >= 0) {
+            records.add(payload.substring(start, index));
+            start = index + 1;
+        }
+        records.add(payload.substring(start));
+        return records;
+    }
+
+    static String joinRecords(List<String> records) {
+        StringBuilder builder = new StringBuilder();
+        for (String record : records) {
+            if (builder.length() > 0) builder.append(RECORD_SEPARATOR);
+            builder.append(record);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Unpadded base64 for binary payloads; java.util.Base64 needs API 26 and android.util.Base64
+     * would tie the mesh package to the framework
+     */
+    static String encodeBytes(byte[] data) {
+        StringBuilder builder = new StringBuilder((data.length * 4 + 2) / 3);
+        for (int i = 0; i < data.length; i += 3) {
+            int chunk = (data[i] & 0xff) << 16;
+            if (i + 1 < data.length) chunk |= (data[i + 1] & 0xff) << 8;
+            if (i + 2 < data.length) chunk |= data[i + 2] & 0xff;
+
+            int chars = Math.min(4, (data.length - i) * 4 / 3 + 1);
+            for (int j = 0; j < chars; j++) {
+                builder.append(BASE64_ALPHABET.charAt((chunk >> (18 - 6 * j)) & 0x3f));
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return the decoded bytes, or null if the text is not valid unpadded base64
+     */
+    static byte[] decodeBytes(String text) {
+        if (text.length() % 4 == 1) {
+            return null;
+        }
+
+        byte[] data = new byte[text.length() * 3 / 4];
+        int buffer = 0;
+        int bits = 0;
+        int index = 0;
+        for (int i = 0; i < text.length(); i++) {
+            int value = BASE64_ALPHABET.indexOf(text.charAt(i));
+            if (value < 0) {
+                return null;
+            }
+            buffer = (buffer << 6) | value;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                data[index++] = (byte) (buffer >> bits);
+            }
+        }
+        return data;
+    }
+}
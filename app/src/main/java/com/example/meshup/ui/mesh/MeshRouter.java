@@ -0,0 +1,649 @@
+package com.example.meshup.ui.mesh;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Distance-vector router for the mesh.
+ *
+ * Every node periodically sends each neighbour a compact advertisement of the destinations it can
+ * reach. Unicast frames follow the resulting table hop by hop and only fall back to flooding when
+ * no route is known, so the airtime of a private message grows with path length, not mesh size.
+ *
+ * Frames that cannot go anywhere yet (no links at all, or a relay with nowhere to pass a frame on)
+ * are parked in an optional {@link StoreAndForwardQueue} and flushed in batches once a route appears.
+ * While no route exists, each neighbour met is handed one copy of the node's own queued frames to
+ * carry, so a message can reach a peer that is never in range at the same time as its sender.
+ *
+ * Group frames are multicast: the destination lists the members still to be reached, and each node
+ * splits that list by next hop, so a frame crosses every link of the member spanning tree once
+ * instead of once per member.
+ *
+ * Frames too large for one link read are split by {@link Fragmenter} at the origin, link-local
+ * ones (adverts, sync and presence exchanges) included. Relays route each fragment as an ordinary
+ * frame, so their memory use does not grow with message size; only the destination reassembles,
+ * within the bounded {@link Reassembler} budget.
+ *
+ * Link costs come from {@link LinkMetrics}: adverts echo the neighbour's last advert time, which
+ * gives a round-trip sample per advert round, and only links that went without one are probed.
+ * Failed writes count against a link, so routes avoid slow or lossy hops instead of only counting
+ * hops.
+ *
+ * The router owns no threads or timers: the host feeds it link events, received frames and
+ * {@link #tick(long)} calls, which keeps it usable both on the phone and in tests.
+ */
+public class MeshRouter {
+    public static final long ADVERT_INTERVAL = 15000; // 15 seconds
+    public static final long ROUTE_TIMEOUT = ADVERT_INTERVAL * 3;
+    // Links without an advert round trip for this long are probed; probes cost airtime
+    public static final long PROBE_INTERVAL = ADVERT_INTERVAL * 4;
+    public static final int DEFAULT_TTL = 8;
+    public static final int LINK_COST = 10;
+    private static final int SEEN_CACHE_SIZE = 512;
+    private static final int FLUSH_BATCH_SIZE = 16;
+
+    /**
+     * Sends an encoded frame over one link (a neighbour's Bluetooth address)
+     */
+    public interface Transport {
+        boolean send(String link, String frame);
+    }
+
+    /**
+     * Receives frames addressed to this node (or broadcast) after routing
+     */
+    public interface FrameListener {
+        /**
+         * @param now the router's clock when the frame was received
+         */
+        void onFrameDelivered(MeshFrame frame, String link, long now);
+    }
+
+    /**
+     * Notified when a neighbour link is added or dropped
+     */
+    public interface LinkListener {
+        void onLinkUp(String link, long now);
+        void onLinkDown(String link);
+    }
+
+    private final String localId;
+    private final Transport transport;
+    private final RoutingTable routingTable = new RoutingTable();
+    private final LinkMetrics linkMetrics = new LinkMetrics();
+    private final Reassembler reassembler = new Reassembler();
+    private final Map<String, Long> pendingProbes = new HashMap<>();
+    // Per link: the neighbour's send time of its last advert and when it arrived, echoed once
+    private final Map<String, long[]> advertsToEcho = new HashMap<>();
+    // Per link: when its last round-trip sample arrived, or when it came up
+    private final Map<String, Long> lastRoundTrip = new HashMap<>();
+    private final Set<String> links = new LinkedHashSet<>();
+    private final Map<String, String> linkNeighbours = new HashMap<>();
+    private final List<FrameListener> listeners = new CopyOnWriteArrayList<>();
+    private final List<LinkListener> linkListeners = new CopyOnWriteArrayList<>();
+    private final Map<String, Boolean> seenFrames = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > SEEN_CACHE_SIZE;
+        }
+    };
+
+    private StoreAndForwardQueue storeAndForwardQueue;
+    private long lastAdvertisement;
+    private long lastProbe;
+    private long frameSequence;
+
+    public MeshRouter(String localId, Transport transport) {
+        // Seed frame IDs from the clock so IDs are not reused after a restart
+        this(localId, transport, System.currentTimeMillis());
+    }
+
+    public MeshRouter(String localId, Transport transport, long frameSequenceSeed) {
+        this.localId = localId;
+        this.transport = transport;
+        this.frameSequence = frameSequenceSeed;
+    }
+
+    public String getLocalId() {
+        return localId;
+    }
+
+    public RoutingTable getRoutingTable() {
+        return routingTable;
+    }
+
+    /**
+     * The connection layer reports write timings here
+     */
+    public LinkMetrics getLinkMetrics() {
+        return linkMetrics;
+    }
+
+    public synchronized void setStoreAndForwardQueue(StoreAndForwardQueue queue) {
+        this.storeAndForwardQueue = queue;
+    }
+
+    public void addFrameListener(FrameListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeFrameListener(FrameListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void addLinkListener(LinkListener listener) {
+        linkListeners.add(listener);
+    }
+
+    public void removeLinkListener(LinkListener listener) {
+        linkListeners.remove(listener);
+    }
+
+    public synchronized List<String> getLinks() {
+        return new ArrayList<>(links);
+    }
+
+    /**
+     * @return the user ID learned for the neighbour on a link, or null before its first advertisement
+     */
+    public synchronized String getNeighbourId(String link) {
+        return linkNeighbours.get(link);
+    }
+
+    /**
+     * A link to a neighbour came up: advertise straight away instead of waiting for the next round
+     */
+    public synchronized void onLinkUp(String link, long now) {
+        if (links.add(link)) {
+            lastRoundTrip.put(link, now);
+            sendAdvertisement(link, now);
+            for (LinkListener listener : linkListeners) {
+                listener.onLinkUp(link, now);
+            }
+        }
+    }
+
+    public synchronized void onLinkDown(String link) {
+        boolean removed = links.remove(link);
+        linkNeighbours.remove(link);
+        linkMetrics.remove(link);
+        pendingProbes.remove(link);
+        advertsToEcho.remove(link);
+        lastRoundTrip.remove(link);
+        routingTable.removeRoutesVia(link);
+        if (removed) {
+            for (LinkListener listener : linkListeners) {
+                listener.onLinkDown(link);
+            }
+        }
+    }
+
+    /**
+     * Periodic housekeeping: expire stale routes and send advertisements when due
+     */
+    public synchronized void tick(long now) {
+        routingTable.removeExpired(now);
+        reassembler.removeExpired(now);
+        if (storeAndForwardQueue != null) {
+            storeAndForwardQueue.removeExpired(now);
+        }
+
+        if (now - lastAdvertisement >= ADVERT_INTERVAL) {
+            for (String link : links) {
+                sendAdvertisement(link, now);
+            }
+            lastAdvertisement = now;
+        }
+
+        if (now - lastProbe >= PROBE_INTERVAL) {
+            for (String link : links) {
+                Long sampledAt = lastRoundTrip.get(link);
+                if (sampledAt == null || now - sampledAt >= PROBE_INTERVAL) {
+                    sendProbe(link, now);
+                }
+            }
+            lastProbe = now;
+        }
+
+        flushQueued(now);
+    }
+
+    /**
+     * Send a frame to one user, following the routing table when a route exists.
+     * The destination may also be a neighbour's Bluetooth address when its user ID is not known yet.
+     * @return true if the frame was handed to a link or queued for later delivery
+     */
+    public synchronized boolean sendUnicast(String destination, String type, String id,
+                                            String payload, long now) {
+        MeshFrame frame = new MeshFrame(type, id, localId, destination, DEFAULT_TTL, 0, payload);
+        if (!Fragmenter.isOversized(frame)) {
+            return sendUnicastFrame(frame, now);
+        }
+
+        boolean sent = true;
+        for (MeshFrame fragment : Fragmenter.split(frame)) {
+            sent &= sendUnicastFrame(fragment, now);
+        }
+        return sent;
+    }
+
+    /**
+     * Send one frame to a set of users, one copy per next hop instead of one per member
+     * @return true if the frame was handed to a link or queued for later delivery
+     */
+    public synchronized boolean sendMulticast(Collection<String> members, String type, String id,
+                                              String payload, long now) {
+        Set<String> remaining = new LinkedHashSet<>(members);
+        remaining.remove(localId);
+        if (remaining.isEmpty()) {
+            return false;
+        }
+
+        MeshFrame frame = new MeshFrame(type, id, localId, MeshFrame.multicastDestination(remaining),
+                DEFAULT_TTL, 0, payload);
+        if (!Fragmenter.isOversized(frame)) {
+            markSeen(seenKey(frame));
+            return routeMulticast(frame, remaining, null, now);
+        }
+
+        boolean sent = true;
+        for (MeshFrame fragment : Fragmenter.split(frame)) {
+            markSeen(seenKey(fragment));
+            sent &= routeMulticast(fragment, remaining, null, now);
+        }
+        return sent;
+    }
+
+    /**
+     * Flood a frame to the whole mesh
+     */
+    public synchronized boolean sendBroadcast(String type, String id, String payload) {
+        MeshFrame frame = new MeshFrame(type, id, localId, MeshFrame.BROADCAST, DEFAULT_TTL, 0, payload);
+        if (!Fragmenter.isOversized(frame)) {
+            markSeen(frame.getId());
+            return flood(frame, null);
+        }
+
+        boolean sent = true;
+        for (MeshFrame fragment : Fragmenter.split(frame)) {
+            markSeen(fragment.getId());
+            sent &= flood(fragment, null);
+        }
+        return sent;
+    }
+
+    /**
+     * Send a link-local frame to one neighbour only; it is delivered there and never forwarded
+     */
+    public synchronized boolean sendToNeighbour(String link, String type, String payload) {
+        if (!links.contains(link)) {
+            return false;
+        }
+        return sendLinkLocal(link, new MeshFrame(type, nextFrameId(), localId, MeshFrame.BROADCAST, 1, 0, payload));
+    }
+
+    /**
+     * @return a frame ID that is unique across the mesh
+     */
+    public synchronized String nextFrameId() {
+        return localId + ":" + Long.toString(frameSequence++, 36);
+    }
+
+    public synchronized boolean hasRoute(String destination, long now) {
+        return routingTable.lookup(destination, now) != null;
+    }
+
+    /**
+     * Handle a raw frame read from a link
+     */
+    public synchronized void onFrameReceived(String link, String raw, long now) {
+        MeshFrame frame = MeshFrame.decode(raw);
+        if (frame == null) {
+            return;
+        }
+
+        if (!links.contains(link)) {
+            onLinkUp(link, now);
+        }
+
+        if (handleLinkControl(link, frame, now)) {
+            return;
+        }
+
+        if (localId.equals(frame.getOrigin()) || !markSeen(seenKey(frame))) {
+            return; // Our own frame looping back, or a flooded duplicate
+        }
+
+        if (frame.isMulticast()) {
+            List<String> members = frame.getMulticastMembers();
+            if (members.remove(localId)) {
+                deliver(frame, link, now);
+            }
+            if (!members.isEmpty() && frame.getTtl() > 1) {
+                routeMulticast(frame.forwarded(), members, link, now);
+            }
+        } else if (frame.isBroadcast()) {
+            deliver(frame, link, now);
+            if (frame.getTtl() > 1) {
+                flood(frame.forwarded(), link);
+            }
+        } else if (localId.equals(frame.getDestination())) {
+            deliver(frame, link, now);
+        } else if (frame.getTtl() > 1) {
+            MeshFrame forwarded = frame.forwarded();
+            if (!route(forwarded, link, now)) {
+                // Nowhere to pass it on right now: carry it until a route shows up
+                store(forwarded, true, now);
+            }
+        }
+    }
+
+    /**
+     * Adverts and probes are consumed by the router itself
+     * @return true if the frame was one of them
+     */
+    private boolean handleLinkControl(String link, MeshFrame frame, long now) {
+        if (MeshFrame.TYPE_ROUTE_ADVERT.equals(frame.getType())) {
+            handleAdvertisement(link, frame, now);
+            return true;
+        }
+        if (MeshFrame.TYPE_LINK_PROBE.equals(frame.getType())) {
+            sendToNeighbour(link, MeshFrame.TYPE_LINK_PROBE_REPLY, frame.getPayload());
+            return true;
+        }
+        if (MeshFrame.TYPE_LINK_PROBE_REPLY.equals(frame.getType())) {
+            handleProbeReply(link, frame.getPayload(), now);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Send a one-hop frame, in fragments if it would not fit one link read
+     */
+    private boolean sendLinkLocal(String link, MeshFrame frame) {
+        if (!Fragmenter.isOversized(frame)) {
+            markSeen(frame.getId());
+            return sendOnLink(link, frame.encode());
+        }
+
+        boolean sent = true;
+        for (MeshFrame fragment : Fragmenter.split(frame)) {
+            markSeen(fragment.getId());
+            sent &= sendOnLink(link, fragment.encode());
+        }
+        return sent;
+    }
+
+    private boolean sendUnicastFrame(MeshFrame frame, long now) {
+        markSeen(frame.getId());
+        if (route(frame, null, now)) {
+            return true;
+        }
+        return store(frame, false, now);
+    }
+
+    private void handleAdvertisement(String link, MeshFrame frame, long now) {
+        String neighbour = frame.getOrigin();
+        linkNeighbours.put(link, neighbour);
+
+        long[] timing = RoutingTable.parseTiming(frame.getPayload());
+        if (timing != null) {
+            advertsToEcho.put(link, new long[]{timing[0], now});
+            if (timing[1] >= 0) {
+                // Our advert's round trip, less the time the neighbour held it
+                recordRoundTrip(link, now - timing[1] - timing[2], now);
+            }
+        }
+
+        int linkCost = getLinkCost(link);
+        long expiresAt = now + ROUTE_TIMEOUT;
+        routingTable.update(neighbour, link, 1, linkCost, expiresAt, now);
+
+        for (RouteEntry advertised : RoutingTable.parseAdvertisement(frame.getPayload())) {
+            if (localId.equals(advertised.getDestination())) {
+                continue;
+            }
+            routingTable.update(advertised.getDestination(), link, advertised.getHopCount() + 1,
+                    advertised.getMetric() + linkCost, expiresAt, now);
+        }
+
+        // New routes may have appeared for queued frames
+        flushQueued(now);
+    }
+
+    private boolean store(MeshFrame frame, boolean carried, long now) {
+        if (storeAndForwardQueue == null) {
+            return false;
+        }
+        storeAndForwardQueue.enqueue(frame, carried, now);
+        return true;
+    }
+
+    /**
+     * Send queued frames, in batches per destination, to every destination that is reachable again
+     */
+    private void flushQueued(long now) {
+        if (storeAndForwardQueue == null) {
+            return;
+        }
+
+        for (String destination : storeAndForwardQueue.getDestinations()) {
+            String link = null;
+            String neighbourId = null;
+
+            RouteEntry route = routingTable.lookup(destination, now);
+            if (route != null && links.contains(route.getNextHop())) {
+                link = route.getNextHop();
+            } else if (links.contains(destination) && linkNeighbours.containsKey(destination)) {
+                // Queued by Bluetooth address before the peer's user ID was known
+                link = destination;
+                neighbourId = linkNeighbours.get(destination);
+            }
+            if (link == null) {
+                handToCarriers(destination);
+                continue;
+            }
+
+            List<StoreAndForwardQueue.QueuedFrame> batch =
+                    storeAndForwardQueue.peek(destination, FLUSH_BATCH_SIZE);
+            int sent = 0;
+            for (StoreAndForwardQueue.QueuedFrame queued : batch) {
+                MeshFrame frame = queued.getFrame();
+                if (neighbourId != null) {
+                    frame = frame.withDestination(neighbourId);
+                }
+                if (!sendOnLink(link, frame.encode())) {
+                    break;
+                }
+                sent++;
+            }
+            storeAndForwardQueue.remove(destination, batch.subList(0, sent));
+        }
+    }
+
+    private void sendAdvertisement(String link, long now) {
+        long[] echo = advertsToEcho.remove(link);
+        String payload = RoutingTable.withTiming(routingTable.buildAdvertisement(link, now), now,
+                echo != null ? echo[0] : -1, echo != null ? now - echo[1] : 0);
+        MeshFrame advert = new MeshFrame(MeshFrame.TYPE_ROUTE_ADVERT, nextFrameId(),
+                localId, MeshFrame.BROADCAST, 1, 0, payload);
+        sendLinkLocal(link, advert);
+    }
+
+    /**
+     * Round-trip probe carrying our send time; a probe still pending when the next one is due
+     * counts as a lost frame
+     */
+    private void sendProbe(String link, long now) {
+        if (pendingProbes.containsKey(link)) {
+            linkMetrics.recordDelivery(link, false);
+        }
+        pendingProbes.put(link, now);
+        sendToNeighbour(link, MeshFrame.TYPE_LINK_PROBE, Long.toString(now, 36));
+    }
+
+    private void handleProbeReply(String link, String payload, long now) {
+        try {
+            long sentAt = Long.parseLong(payload, 36);
+            Long pending = pendingProbes.get(link);
+            if (pending != null && pending == sentAt) {
+                pendingProbes.remove(link);
+                recordRoundTrip(link, now - sentAt, now);
+            }
+        } catch (NumberFormatException e) {
+            // Not one of our probes
+        }
+    }
+
+    private void recordRoundTrip(String link, long millis, long now) {
+        linkMetrics.recordRoundTrip(link, millis);
+        lastRoundTrip.put(link, now);
+    }
+
+    /**
+     * Cost of sending one frame over a link, added to every route learned through it
+     */
+    protected int getLinkCost(String link) {
+        return linkMetrics.getCost(link);
+    }
+
+    private boolean sendOnLink(String link, String frame) {
+        boolean sent = transport.send(link, frame);
+        linkMetrics.recordDelivery(link, sent);
+        return sent;
+    }
+
+    /**
+     * No route to the destination: give each known neighbour a copy of our own queued frames to
+     * carry. Frames carried for others are only held, otherwise copies would multiply epidemically.
+     */
+    private void handToCarriers(String destination) {
+        for (String link : links) {
+            if (!linkNeighbours.containsKey(link)) {
+                continue; // Wait for its advertisement, it may turn out to be the destination
+            }
+            for (StoreAndForwardQueue.QueuedFrame queued : storeAndForwardQueue.peek(destination, FLUSH_BATCH_SIZE)) {
+                if (!queued.isCarried() && queued.addCarrier(link)) {
+                    sendOnLink(link, queued.getFrame().encode());
+                }
+            }
+        }
+    }
+
+    private boolean route(MeshFrame frame, String incomingLink, long now) {
+        if (links.contains(frame.getDestination()) && !frame.getDestination().equals(incomingLink)) {
+            // Addressed by Bluetooth address to a direct neighbour
+            String neighbourId = linkNeighbours.get(frame.getDestination());
+            if (neighbourId != null) {
+                return sendOnLink(frame.getDestination(), frame.withDestination(neighbourId).encode());
+            }
+            return false;
+        }
+
+        RouteEntry route = routingTable.lookup(frame.getDestination(), now);
+        if (route != null && links.contains(route.getNextHop()) && !route.getNextHop().equals(incomingLink)) {
+            if (sendOnLink(route.getNextHop(), frame.encode())) {
+                return true;
+            }
+        }
+        // No usable route: fall back to flooding
+        return flood(frame, incomingLink);
+    }
+
+    /**
+     * Split the members by next hop and send each link one copy addressed to its share. Members
+     * without a route get one flooded copy between them, or are queued when there are no links.
+     */
+    private boolean routeMulticast(MeshFrame frame, Collection<String> members, String incomingLink, long now) {
+        Map<String, List<String>> membersByLink = new LinkedHashMap<>();
+        List<String> unroutable = new ArrayList<>();
+        for (String member : members) {
+            RouteEntry route = routingTable.lookup(member, now);
+            if (route != null && links.contains(route.getNextHop()) && !route.getNextHop().equals(incomingLink)) {
+                List<String> share = membersByLink.get(route.getNextHop());
+                if (share == null) {
+                    share = new ArrayList<>();
+                    membersByLink.put(route.getNextHop(), share);
+                }
+                share.add(member);
+            } else {
+                unroutable.add(member);
+            }
+        }
+
+        boolean sent = false;
+        for (Map.Entry<String, List<String>> entry : membersByLink.entrySet()) {
+            MeshFrame copy = frame.withDestination(MeshFrame.multicastDestination(entry.getValue()));
+            if (sendOnLink(entry.getKey(), copy.encode())) {
+                sent = true;
+            } else {
+                unroutable.addAll(entry.getValue());
+            }
+        }
+
+        if (!unroutable.isEmpty()) {
+            MeshFrame rest = frame.withDestination(MeshFrame.multicastDestination(unroutable));
+            markSeen(seenKey(rest));
+            if (flood(rest, incomingLink)) {
+                sent = true;
+            } else {
+                // Queue one unicast copy per member so each follows its own route later
+                boolean carried = !localId.equals(frame.getOrigin());
+                for (String member : unroutable) {
+                    sent |= store(frame.withDestination(member), carried, now);
+                }
+            }
+        }
+        return sent;
+    }
+
+    private boolean flood(MeshFrame frame, String incomingLink) {
+        boolean sent = false;
+        String encoded = frame.encode();
+        for (String link : links) {
+            if (!link.equals(incomingLink)) {
+                sent |= sendOnLink(link, encoded);
+            }
+        }
+        return sent;
+    }
+
+    private void deliver(MeshFrame frame, String link, long now) {
+        if (MeshFrame.TYPE_FRAGMENT.equals(frame.getType())) {
+            frame = reassembler.accept(frame, now);
+            if (frame == null) {
+                return; // More fragments to come
+            }
+            if (handleLinkControl(link, frame, now)) {
+                return; // A large advert, sent in fragments
+            }
+        }
+        for (FrameListener listener : listeners) {
+            listener.onFrameDelivered(frame, link, now);
+        }
+    }
+
+    /**
+     * Multicast copies of one frame travel different branches with different member lists, and
+     * a multicast queued for later leaves as one unicast copy per member, all with the frame's ID,
+     * so every frame but a broadcast is told apart by destination as well
+     */
+    private static String seenKey(MeshFrame frame) {
+        return frame.isBroadcast() ? frame.getId() : frame.getId() + frame.getDestination();
+    }
+
+    /**
+     * @return true if the frame ID had not been seen before
+     */
+    private boolean markSeen(String frameId) {
+        return seenFrames.put(frameId, Boolean.TRUE) == null;
+    }
+}
@@ -0,0 +1,260 @@
+package com.example.meshup.ui.mesh;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Spreads presence (user handle, version counter, last seen) over the mesh without the cloud.
+ *
+ * Every round the node does a push-pull exchange with one random neighbour: it sends a digest of
+ * (user ID, version) pairs, the neighbour answers with the entries it has newer and asks for the
+ * ones it is missing. Random push-pull rounds spread a change to all N nodes in O(log N) rounds,
+ * and a digest costs only a user ID and a counter per known peer.
+ */
+public class PresenceGossip implements MeshRouter.FrameListener {
+    public static final long GOSSIP_INTERVAL = 10000; // 10 seconds
+    public static final long REFRESH_INTERVAL = 30000; // 30 seconds
+    public static final long ONLINE_TIMEOUT = REFRESH_INTERVAL * 4;
+    public static final long ENTRY_EXPIRY = 7L * 24 * 60 * 60 * 1000; // 7 days
+
+    /**
+     * Latest known presence of one user
+     */
+    public static class PresenceEntry {
+        private final String userId;
+        private final String handle;
+        private final long version;
+        private final long lastSeen;
+
+        public PresenceEntry(String userId, String handle, long version, long lastSeen) {
+            this.userId = userId;
+            this.handle = handle;
+            this.version = version;
+            this.lastSeen = lastSeen;
+        }
+
+        public String getUserId() { return userId; }
+        public String getHandle() { return handle; }
+        public long getVersion() { return version; }
+        public long getLastSeen() { return lastSeen; }
+
+        public boolean isOnline(long now) {
+            return now - lastSeen < ONLINE_TIMEOUT;
+        }
+    }
+
+    public interface PresenceListener {
+        void onPresenceChanged(List<PresenceEntry> view);
+    }
+
+    private final MeshRouter router;
+    private final Random random;
+    private final Map<String, PresenceEntry> view = new HashMap<>();
+    private final List<PresenceListener> listeners = new CopyOnWriteArrayList<>();
+
+    private String localHandle;
+    private long localVersion;
+    private long lastRefresh;
+    private long lastGossip;
+
+    public PresenceGossip(MeshRouter router, String localHandle, Random random) {
+        this.router = router;
+        this.localHandle = localHandle;
+        this.random = random;
+    }
+
+    public void addPresenceListener(PresenceListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removePresenceListener(PresenceListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Change the handle others see; spread with the next round
+     */
+    public synchronized void setLocalHandle(String handle, long now) {
+        if (handle != null && !handle.equals(localHandle)) {
+            localHandle = handle;
+            refreshSelf(now);
+        }
+    }
+
+    /**
+     * @return every known peer, excluding this node
+     */
+    public synchronized List<PresenceEntry> getView() {
+        List<PresenceEntry> peers = new ArrayList<>();
+        for (PresenceEntry entry : view.values()) {
+            if (!entry.getUserId().equals(router.getLocalId())) {
+                peers.add(entry);
+            }
+        }
+        return peers;
+    }
+
+    public synchronized PresenceEntry getEntry(String userId) {
+        return view.get(userId);
+    }
+
+    public void tick(long now) {
+        boolean changed;
+        synchronized (this) {
+            changed = false;
+            if (lastRefresh == 0 || now - lastRefresh >= REFRESH_INTERVAL) {
+                // Also lets listeners re-evaluate which peers timed out
+                refreshSelf(now);
+                changed = true;
+            }
+            changed |= removeExpired(now);
+
+            if (now - lastGossip >= GOSSIP_INTERVAL) {
+                lastGossip = now;
+                List<String> links = router.getLinks();
+                if (!links.isEmpty()) {
+                    String link = links.get(random.nextInt(links.size()));
+                    router.sendToNeighbour(link, MeshFrame.TYPE_PRESENCE_DIGEST, buildDigest());
+                }
+            }
+        }
+        if (changed) {
+            notifyListeners();
+        }
+    }
+
+    @Override
+    public void onFrameDelivered(MeshFrame frame, String link, long now) {
+        String type = frame.getType();
+        boolean changed = false;
+        synchronized (this) {
+            if (MeshFrame.TYPE_PRESENCE_DIGEST.equals(type)) {
+                handleDigest(link, frame.getPayload());
+            } else if (MeshFrame.TYPE_PRESENCE_REQUEST.equals(type)) {
+                sendEntries(link, MeshPayloads.splitRecords(frame.getPayload()));
+            } else if (MeshFrame.TYPE_PRESENCE_UPDATE.equals(type)) {
+                changed = mergeUpdate(frame.getPayload());
+            }
+        }
+        if (changed) {
+            notifyListeners();
+        }
+    }
+
+    private void refreshSelf(long now) {
+        lastRefresh = now;
+        // Clock based so the version keeps growing across app restarts
+        localVersion = Math.max(localVersion + 1, now);
+        view.put(router.getLocalId(), new PresenceEntry(router.getLocalId(), localHandle, localVersion, now));
+    }
+
+    private boolean removeExpired(long now) {
+        boolean removed = false;
+        Iterator<PresenceEntry> iterator = view.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().getLastSeen() > ENTRY_EXPIRY) {
+                iterator.remove();
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Digest: "userId<US>version<RS>..." for every known entry
+     */
+    private String buildDigest() {
+        StringBuilder builder = new StringBuilder();
+        for (PresenceEntry entry : view.values()) {
+            if (builder.length() > 0) builder.append(MeshPayloads.RECORD_SEPARATOR);
+            builder.append(entry.getUserId()).append(MeshPayloads.FIELD_SEPARATOR)
+                    .append(Long.toString(entry.getVersion(), 36));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Anti-entropy merge: push what the neighbour is missing, pull what it has newer
+     */
+    private void handleDigest(String link, String payload) {
+        Map<String, Long> remote = new HashMap<>();
+        for (String record : MeshPayloads.splitRecords(payload)) {
+            String[] fields = MeshPayloads.split(record, MeshPayloads.FIELD_SEPARATOR, 2);
+            if (fields.length != 2) continue;
+            try {
+                remote.put(fields[0], Long.parseLong(fields[1], 36));
+            } catch (NumberFormatException e) {
+                // Ignore a malformed record, the next round will cover it
+            }
+        }
+
+        List<String> push = new ArrayList<>();
+        for (PresenceEntry entry : view.values()) {
+            Long remoteVersion = remote.get(entry.getUserId());
+            if (remoteVersion == null || remoteVersion < entry.getVersion()) {
+                push.add(entry.getUserId());
+            }
+        }
+
+        List<String> pull = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : remote.entrySet()) {
+            PresenceEntry local = view.get(entry.getKey());
+            if (local == null || local.getVersion() < entry.getValue()) {
+                pull.add(entry.getKey());
+            }
+        }
+
+        sendEntries(link, push);
+        if (!pull.isEmpty()) {
+            router.sendToNeighbour(link, MeshFrame.TYPE_PRESENCE_REQUEST, MeshPayloads.joinRecords(pull));
+        }
+    }
+
+    private void sendEntries(String link, List<String> userIds) {
+        StringBuilder builder = new StringBuilder();
+        for (String userId : userIds) {
+            PresenceEntry entry = view.get(userId);
+            if (entry == null) continue;
+            if (builder.length() > 0) builder.append(MeshPayloads.RECORD_SEPARATOR);
+            builder.append(entry.getUserId()).append(MeshPayloads.FIELD_SEPARATOR)
+                    .append(entry.getHandle() != null ? entry.getHandle() : "").append(MeshPayloads.FIELD_SEPARATOR)
+                    .append(Long.toString(entry.getVersion(), 36)).append(MeshPayloads.FIELD_SEPARATOR)
+                    .append(Long.toString(entry.getLastSeen(), 36));
+        }
+        if (builder.length() > 0) {
+            router.sendToNeighbour(link, MeshFrame.TYPE_PRESENCE_UPDATE, builder.toString());
+        }
+    }
+
+    private boolean mergeUpdate(String payload) {
+        boolean changed = false;
+        for (String record : MeshPayloads.splitRecords(payload)) {
+            String[] fields = MeshPayloads.split(record, MeshPayloads.FIELD_SEPARATOR, 4);
+            if (fields.length != 4 || fields[0].equals(router.getLocalId())) continue;
+            try {
+                PresenceEntry incoming = new PresenceEntry(fields[0], fields[1],
+                        Long.parseLong(fields[2], 36), Long.parseLong(fields[3], 36));
+                PresenceEntry local = view.get(incoming.getUserId());
+                if (local == null || local.getVersion() < incoming.getVersion()) {
+                    view.put(incoming.getUserId(), incoming);
+                    changed = true;
+                }
+            } catch (NumberFormatException e) {
+                // Ignore a malformed record, the next round will cover it
+            }
+        }
+        return changed;
+    }
+
+    private void notifyListeners() {
+        List<PresenceEntry> snapshot = getView();
+        for (PresenceListener listener : listeners) {
+            listener.onPresenceChanged(snapshot);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.meshup.ui.mesh;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Puts fragments produced by {@link Fragmenter} back together at the destination.
+ *
+ * Incomplete messages share a fixed character budget and a cap on their number, since each one
+ * holds a slot per fragment whatever the fragments' size. When a new fragment would exceed
+ * either, the message that least recently made progress is dropped first, and messages that stop making
+ * progress are evicted after {@link #TIMEOUT}. A sender that never finishes therefore cannot pin
+ * memory, and a message larger than the whole budget is refused instead of crowding out the rest.
+ */
+public class Reassembler {
+    public static final int MAX_BUFFERED_CHARS = 256 * 1024;
+    public static final int MAX_FRAGMENTS = 1024;
+    public static final int MAX_PARTIALS = 64;
+    public static final long TIMEOUT = 2 * 60 * 1000; // 2 minutes without a new fragment
+
+    private static final int HEADER_FIELD_COUNT = 5;
+
+    private static class Partial {
+        final String type;
+        final String[] chunks;
+        int received;
+        int chars;
+        long lastUpdate;
+
+        Partial(String type, int count) {
+            this.type = type;
+            this.chunks = new String[count];
+        }
+    }
+
+    // Access order, so the eldest entry is the one that least recently made progress
+    private final Map<String, Partial> partials = new LinkedHashMap<>(16, 0.75f, true);
+    private int bufferedChars;
+
+    /**
+     * Add one fragment
+     * @return the original frame once its last fragment arrives, otherwise null
+     */
+    public synchronized MeshFrame accept(MeshFrame fragment, long now) {
+        String[] fields = MeshPayloads.split(fragment.getPayload(), MeshPayloads.FIELD_SEPARATOR, HEADER_FIELD_COUNT);
+        if (fields.length < HEADER_FIELD_COUNT) {
+            return null;
+        }
+
+        int index;
+        int count;
+        try {
+            index = Integer.parseInt(fields[1]);
+            count = Integer.parseInt(fields[2]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (count < 1 || count > MAX_FRAGMENTS || index < 0 || index >= count) {
+            return null;
+        }
+
+        String messageId = fields[0];
+        String key = fragment.getOrigin() + "/" + messageId;
+        Partial partial = partials.get(key);
+        if (partial == null) {
+            if (partials.size() >= MAX_PARTIALS) {
+                remove(partials.keySet().iterator().next());
+            }
+            partial = new Partial(fields[3], count);
+            partials.put(key, partial);
+        } else if (partial.chunks.length != count) {
+            return null;
+        }
+        partial.lastUpdate = now;
+
+        String chunk = fields[4];
+        if (partial.chunks[index] == null) {
+            partial.chunks[index] = chunk;
+            partial.received++;
+            partial.chars += chunk.length();
+            bufferedChars += chunk.length();
+        }
+
+        if (partial.received == count) {
+            remove(key);
+            StringBuilder payload = new StringBuilder(partial.chars);
+            for (String part : partial.chunks) {
+                payload.append(part);
+            }
+            return new MeshFrame(partial.type, messageId, fragment.getOrigin(), fragment.getDestination(),
+                    fragment.getTtl(), fragment.getHops(), payload.toString());
+        }
+
+        if (partial.chars > MAX_BUFFERED_CHARS) {
+            remove(key); // Could never fit
+        } else {
+            evictOverBudget();
+        }
+        return null;
+    }
+
+    /**
+     * Drop messages that have not received a fragment within the timeout
+     */
+    public synchronized void removeExpired(long now) {
+        Iterator<Partial> iterator = partials.values().iterator();
+        while (iterator.hasNext()) {
+            Partial partial = iterator.next();
+            if (now - partial.lastUpdate >= TIMEOUT) {
+                bufferedChars -= partial.chars;
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized int getBufferedChars() {
+        return bufferedChars;
+    }
+
+    public synchronized int getPendingCount() {
+        return partials.size();
+    }
+
+    private void evictOverBudget() {
+        Iterator<Partial> iterator = partials.values().iterator();
+        while (bufferedChars > MAX_BUFFERED_CHARS && iterator.hasNext()) {
+            Partial eldest = iterator.next();
+            bufferedChars -= eldest.chars;
+            iterator.remove();
+        }
+    }
+
+    private void remove(String key) {
+        Partial partial = partials.remove(key);
+        if (partial != null) {
+            bufferedChars -= partial.chars;
+        }
+    }
+}
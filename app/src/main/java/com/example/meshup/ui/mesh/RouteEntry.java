@@ -0,0 +1,43 @@
+package com.example.meshup.ui.mesh;
+
+/**
+ * One row of the distance-vector routing table
+ */
+public class RouteEntry {
+    private final String destination;
+    private String nextHop;
+    private int hopCount;
+    private int metric;
+    private long expiresAt;
+
+    public RouteEntry(String destination, String nextHop, int hopCount, int metric, long expiresAt) {
+        this.destination = destination;
+        this.nextHop = nextHop;
+        this.hopCount = hopCount;
+        this.metric = metric;
+        this.expiresAt = expiresAt;
+    }
+
+    // Getters
+    public String getDestination() { return destination; }
+    public String getNextHop() { return nextHop; }
+    public int getHopCount() { return hopCount; }
+    public int getMetric() { return metric; }
+    public long getExpiresAt() { return expiresAt; }
+
+    public boolean isExpired(long now) {
+        return now >= expiresAt;
+    }
+
+    void update(String nextHop, int hopCount, int metric, long expiresAt) {
+        this.nextHop = nextHop;
+        this.hopCount = hopCount;
+        this.metric = metric;
+        this.expiresAt = expiresAt;
+    }
+
+    @Override
+    public String toString() {
+        return destination + " via " + nextHop + " hops=" + hopCount + " metric=" + metric;
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.meshup.ui.mesh;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Distance-vector routing table: destination user ID -> next-hop link, hop count and metric.
+ * Routes are refreshed by neighbour advertisements and silently expire when they stop arriving.
+ */
+public class RoutingTable {
+    public static final int MAX_HOPS = 15;
+    public static final int INFINITE_METRIC = 1024;
+    // A route via another next hop must be this much cheaper before traffic moves over
+    public static final int SWITCH_THRESHOLD_PERCENT = 20;
+
+    private static final String ENTRY_SEPARATOR = ";";
+    private static final String FIELD_SEPARATOR = ":";
+    private static final String TIMING_MARKER = "~";
+
+    private final Map<String, RouteEntry> routes = new HashMap<>();
+
+    /**
+     * Offer a candidate route. It is taken if it is new, replaces an expired route,
+     * comes from the current next hop (which is authoritative for its own route) or is clearly
+     * cheaper. The switch threshold keeps routes from flapping between links of similar quality.
+     * @return true if the table changed
+     */
+    public synchronized boolean update(String destination, String nextHop, int hopCount,
+                                       int metric, long expiresAt, long now) {
+        if (hopCount > MAX_HOPS || metric >= INFINITE_METRIC) {
+            return false;
+        }
+
+        RouteEntry existing = routes.get(destination);
+        if (existing == null || existing.isExpired(now)) {
+            routes.put(destination, new RouteEntry(destination, nextHop, hopCount, metric, expiresAt));
+            return true;
+        }
+
+        if (existing.getNextHop().equals(nextHop)) {
+            boolean changed = existing.getHopCount() != hopCount || existing.getMetric() != metric;
+            existing.update(nextHop, hopCount, metric, expiresAt);
+            return changed;
+        }
+
+        if (metric * 100L < existing.getMetric() * (100L - SWITCH_THRESHOLD_PERCENT)) {
+            existing.update(nextHop, hopCount, metric, expiresAt);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the live route to a destination, or null if there is none
+     */
+    public synchronized RouteEntry lookup(String destination, long now) {
+        RouteEntry entry = routes.get(destination);
+        if (entry == null || entry.isExpired(now)) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Drop every route whose advertisements stopped arriving
+     * @return number of routes removed
+     */
+    public synchronized int removeExpired(long now) {
+        int removed = 0;
+        Iterator<RouteEntry> iterator = routes.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isExpired(now)) {
+                iterator.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Drop every route that goes through a link which just went down
+     */
+    public synchronized int removeRoutesVia(String nextHop) {
+        int removed = 0;
+        Iterator<RouteEntry> iterator = routes.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getNextHop().equals(nextHop)) {
+                iterator.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public synchronized List<RouteEntry> getRoutes(long now) {
+        List<RouteEntry> live = new ArrayList<>();
+        for (RouteEntry entry : routes.values()) {
+            if (!entry.isExpired(now)) {
+                live.add(entry);
+            }
+        }
+        return live;
+    }
+
+    public synchronized int size() {
+        return routes.size();
+    }
+
+    /**
+     * Build the compact advertisement sent to one neighbour: "dest:hops:metric;..."
+     * Split horizon: routes learned from that neighbour are never advertised back to it.
+     */
+    public synchronized String buildAdvertisement(String neighbourLink, long now) {
+        StringBuilder builder = new StringBuilder();
+        for (RouteEntry entry : routes.values()) {
+            if (entry.isExpired(now) || entry.getNextHop().equals(neighbourLink)) {
+                continue;
+            }
+            if (builder.length() > 0) {
+                builder.append(ENTRY_SEPARATOR);
+            }
+            builder.append(entry.getDestination()).append(FIELD_SEPARATOR)
+                    .append(entry.getHopCount()).append(FIELD_SEPARATOR)
+                    .append(entry.getMetric());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Lead an advertisement with a timing entry: when it was sent, and the send time of the last
+     * advertisement received from the neighbour with how long it was held before this one, so the
+     * neighbour gets a round-trip sample without a probe. Parsers that predate the entry skip it,
+     * as it does not have three fields.
+     * @param echoedSentAt -1 when there is nothing to echo
+     */
+    static String withTiming(String advertisement, long sentAt, long echoedSentAt, long heldMillis) {
+        String timing = TIMING_MARKER + FIELD_SEPARATOR + Long.toString(sentAt, 36) + FIELD_SEPARATOR +
+                Long.toString(echoedSentAt, 36) + FIELD_SEPARATOR + Long.toString(heldMillis, 36);
+        return advertisement.isEmpty() ? timing : timing + ENTRY_SEPARATOR + advertisement;
+    }
+
+    /**
+     * @return {sentAt, echoedSentAt, heldMillis} from the advertisement's timing entry, or null if it
+     *         has none
+     */
+    static long[] parseTiming(String payload) {
+        if (payload == null || !payload.startsWith(TIMING_MARKER + FIELD_SEPARATOR)) {
+            return null;
+        }
+        int end = payload.indexOf(ENTRY_SEPARATOR);
+        String[] fields = (end >= 0 ? payload.substring(0, end) : payload).split(FIELD_SEPARATOR);
+        if (fields.length != 4) {
+            return null;
+        }
+        try {
+            return new long[]{Long.parseLong(fields[1], 36), Long.parseLong(fields[2], 36),
+                    Long.parseLong(fields[3], 36)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parse an advertisement built by {@link #buildAdvertisement}
+     * @return entries with the advertised hop count and metric; next hop and expiry are left unset
+     */
+    public static List<RouteEntry> parseAdvertisement(String payload) {
+        List<RouteEntry> entries = new ArrayList<>();
+        if (payload == null || payload.isEmpty()) {
+            return entries;
+        }
+
+        for (String item : payload.split(ENTRY_SEPARATOR)) {
+            String[] fields = item.split(FIELD_SEPARATOR);
+            if (fields.length != 3) {
+                continue;
+            }
+            try {
+                entries.add(new RouteEntry(fields[0], null,
+                        Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), 0));
+            } catch (NumberFormatException e) {
+                // Skip malformed entries, the rest of the advertisement is still usable
+            }
+        }
+        return entries;
+    }
+}
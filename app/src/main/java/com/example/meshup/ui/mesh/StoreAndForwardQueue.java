@@ -0,0 +1,419 @@
+package com.example.meshup.ui.mesh;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Durable delay-tolerant outbox for frames whose destination is currently unreachable.
+ *
+ * Frames are grouped per destination and kept in one journal file per destination, so a crash or
+ * restart does not lose them. Messages carried on behalf of other nodes get a smaller quota and a
+ * shorter lifetime than the node's own messages, so a relay cannot be filled up by strangers.
+ *
+ * The queue itself lives in memory and answers the router at once; journals are read and written
+ * on the journal executor. Changes made while a write is pending share it, so a burst of frames
+ * for one destination costs one append or one rewrite of its journal.
+ */
+public class StoreAndForwardQueue {
+    public static final int MAX_OWN_PER_DESTINATION = 200;
+    public static final int MAX_CARRIED_PER_DESTINATION = 25;
+    public static final long OWN_EXPIRY = 3L * 24 * 60 * 60 * 1000; // 3 days
+    public static final long CARRIED_EXPIRY = 24L * 60 * 60 * 1000; // 1 day
+
+    private static final String FILE_SUFFIX = ".queue";
+    private static final char FIELD_SEPARATOR = '\t';
+
+    /**
+     * A frame waiting for a route to its destination
+     */
+    public static class QueuedFrame {
+        private final MeshFrame frame;
+        private final boolean carried;
+        private final long expiresAt;
+        // Neighbours already given a copy to carry; kept in memory only
+        private final Set<String> carriers = new HashSet<>();
+
+        QueuedFrame(MeshFrame frame, boolean carried, long expiresAt) {
+            this.frame = frame;
+            this.carried = carried;
+            this.expiresAt = expiresAt;
+        }
+
+        public MeshFrame getFrame() { return frame; }
+        public boolean isCarried() { return carried; }
+        public long getExpiresAt() { return expiresAt; }
+
+        /**
+         * @return true the first time a given neighbour is recorded as a carrier
+         */
+        public boolean addCarrier(String link) {
+            return carriers.add(link);
+        }
+    }
+
+    private final File directory;
+    private final Executor journalExecutor;
+    private final Map<String, Deque<QueuedFrame>> queues = new LinkedHashMap<>();
+    // Journal changes not written yet: frames to append, and destinations whose journal is
+    // rewritten from the queue instead
+    private final Map<String, List<QueuedFrame>> pendingAppends = new LinkedHashMap<>();
+    private final Set<String> pendingRewrites = new HashSet<>();
+    private boolean writeScheduled;
+
+    /**
+     * Journals are read and written on the calling thread
+     * @param directory where journals are kept, or null for a purely in-memory queue
+     */
+    public StoreAndForwardQueue(File directory) {
+        this(directory, Runnable::run);
+    }
+
+    /**
+     * @param directory where journals are kept, or null for a purely in-memory queue
+     * @param journalExecutor runs journal reads and writes one at a time, in order; frames stored
+     *        by an earlier run join the queue once it has read them
+     */
+    public StoreAndForwardQueue(File directory, Executor journalExecutor) {
+        this.directory = directory;
+        this.journalExecutor = journalExecutor;
+        if (directory != null) {
+            journalExecutor.execute(this::load);
+        }
+    }
+
+    /**
+     * Queue a frame until a route to its destination appears. When the destination's quota is full
+     * the oldest frame of the same kind is dropped to make room.
+     */
+    public synchronized void enqueue(MeshFrame frame, boolean carried, long now) {
+        String destination = frame.getDestination();
+        Deque<QueuedFrame> queue = queues.get(destination);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            queues.put(destination, queue);
+        }
+
+        int quota = carried ? MAX_CARRIED_PER_DESTINATION : MAX_OWN_PER_DESTINATION;
+        boolean evicted = false;
+        while (count(queue, carried) >= quota) {
+            removeOldest(queue, carried);
+            evicted = true;
+        }
+
+        QueuedFrame queued = new QueuedFrame(frame, carried, now + (carried ? CARRIED_EXPIRY : OWN_EXPIRY));
+        queue.addLast(queued);
+
+        if (evicted) {
+            scheduleRewrite(destination);
+        } else {
+            scheduleAppend(destination, queued);
+        }
+    }
+
+    public synchronized List<String> getDestinations() {
+        return new ArrayList<>(queues.keySet());
+    }
+
+    /**
+     * @return up to maxCount frames for a destination, oldest first, without removing them
+     */
+    public synchronized List<QueuedFrame> peek(String destination, int maxCount) {
+        List<QueuedFrame> batch = new ArrayList<>();
+        Deque<QueuedFrame> queue = queues.get(destination);
+        if (queue != null) {
+            for (QueuedFrame queued : queue) {
+                if (batch.size() >= maxCount) break;
+                batch.add(queued);
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Remove frames of a destination once they have been handed to a link. They are named rather
+     * than counted, since frames read from the journals may have joined the queue since the peek.
+     */
+    public synchronized void remove(String destination, List<QueuedFrame> sent) {
+        Deque<QueuedFrame> queue = queues.get(destination);
+        if (queue == null || sent.isEmpty()) return;
+
+        boolean removed = false;
+        Iterator<QueuedFrame> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            QueuedFrame queued = iterator.next();
+            for (QueuedFrame frame : sent) {
+                if (frame == queued) {
+                    iterator.remove();
+                    removed = true;
+                    break;
+                }
+            }
+        }
+        if (queue.isEmpty()) {
+            queues.remove(destination);
+        }
+        if (removed) {
+            scheduleRewrite(destination);
+        }
+    }
+
+    /**
+     * Drop frames that outlived their delivery window
+     * @return number of frames removed
+     */
+    public synchronized int removeExpired(long now) {
+        int removed = 0;
+        Iterator<Map.Entry<String, Deque<QueuedFrame>>> entries = queues.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Deque<QueuedFrame>> entry = entries.next();
+            int before = entry.getValue().size();
+            Iterator<QueuedFrame> frames = entry.getValue().iterator();
+            while (frames.hasNext()) {
+                if (frames.next().getExpiresAt() <= now) {
+                    frames.remove();
+                }
+            }
+            int expired = before - entry.getValue().size();
+            if (expired > 0) {
+                removed += expired;
+                if (entry.getValue().isEmpty()) {
+                    entries.remove();
+                }
+                scheduleRewrite(entry.getKey());
+            }
+        }
+        return removed;
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (Deque<QueuedFrame> queue : queues.values()) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    public synchronized int size(String destination) {
+        Deque<QueuedFrame> queue = queues.get(destination);
+        return queue != null ? queue.size() : 0;
+    }
+
+    private static int count(Deque<QueuedFrame> queue, boolean carried) {
+        int count = 0;
+        for (QueuedFrame queued : queue) {
+            if (queued.isCarried() == carried) count++;
+        }
+        return count;
+    }
+
+    private static void removeOldest(Deque<QueuedFrame> queue, boolean carried) {
+        Iterator<QueuedFrame> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isCarried() == carried) {
+                iterator.remove();
+                return;
+            }
+        }
+    }
+
+    // Journal persistence: one line per frame, "expiresAt<TAB>carried<TAB>escaped frame"
+
+    private File journalFor(String destination) {
+        StringBuilder name = new StringBuilder();
+        for (char c : destination.toCharArray()) {
+            name.append(Character.isLetterOrDigit(c) || c == '-' ? c : '_');
+        }
+        return new File(directory, name + "_" + Integer.toHexString(destination.hashCode()) + FILE_SUFFIX);
+    }
+
+    private void scheduleAppend(String destination, QueuedFrame queued) {
+        if (directory == null) return;
+
+        // A pending rewrite writes the whole queue, this frame included
+        if (!pendingRewrites.contains(destination)) {
+            List<QueuedFrame> frames = pendingAppends.get(destination);
+            if (frames == null) {
+                frames = new ArrayList<>();
+                pendingAppends.put(destination, frames);
+            }
+            frames.add(queued);
+        }
+        scheduleWrite();
+    }
+
+    private void scheduleRewrite(String destination) {
+        if (directory == null) return;
+
+        pendingRewrites.add(destination);
+        pendingAppends.remove(destination);
+        scheduleWrite();
+    }
+
+    private void scheduleWrite() {
+        if (!writeScheduled) {
+            writeScheduled = true;
+            journalExecutor.execute(this::writeJournals);
+        }
+    }
+
+    /**
+     * Take the pending changes as lines, then write them without holding the lock
+     */
+    private void writeJournals() {
+        Map<String, List<String>> rewrites = new LinkedHashMap<>();
+        Map<String, List<String>> appends = new LinkedHashMap<>();
+        synchronized (this) {
+            writeScheduled = false;
+            for (String destination : pendingRewrites) {
+                Deque<QueuedFrame> queue = queues.get(destination);
+                rewrites.put(destination, toLines(queue != null ? queue : new ArrayDeque<>()));
+            }
+            for (Map.Entry<String, List<QueuedFrame>> entry : pendingAppends.entrySet()) {
+                appends.put(entry.getKey(), toLines(entry.getValue()));
+            }
+            pendingRewrites.clear();
+            pendingAppends.clear();
+        }
+
+        for (Map.Entry<String, List<String>> entry : rewrites.entrySet()) {
+            rewrite(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, List<String>> entry : appends.entrySet()) {
+            append(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void append(String destination, List<String> lines) {
+        try (Writer writer = new OutputStreamWriter(
+                new FileOutputStream(journalFor(destination), true), StandardCharsets.UTF_8)) {
+            for (String line : lines) {
+                writer.write(line);
+            }
+        } catch (IOException e) {
+            // The frames stay queued in memory; they are only lost if the process dies first
+        }
+    }
+
+    private void rewrite(String destination, List<String> lines) {
+        File journal = journalFor(destination);
+        if (lines.isEmpty()) {
+            journal.delete();
+            return;
+        }
+
+        File temp = new File(directory, journal.getName() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            for (String line : lines) {
+                writer.write(line);
+            }
+        } catch (IOException e) {
+            temp.delete();
+            return;
+        }
+        temp.renameTo(journal);
+    }
+
+    private static List<String> toLines(Iterable<QueuedFrame> frames) {
+        List<String> lines = new ArrayList<>();
+        for (QueuedFrame queued : frames) {
+            lines.add(queued.getExpiresAt() + String.valueOf(FIELD_SEPARATOR) + (queued.isCarried() ? '1' : '0')
+                    + FIELD_SEPARATOR + escape(queued.getFrame().encode()) + '\n');
+        }
+        return lines;
+    }
+
+    /**
+     * Read every journal, then put the frames found ahead of any queued since start-up, which are
+     * newer
+     */
+    private void load() {
+        if (!directory.exists() && !directory.mkdirs()) {
+            return;
+        }
+
+        File[] journals = directory.listFiles((dir, name) -> name.endsWith(FILE_SUFFIX));
+        if (journals == null) return;
+
+        Map<String, Deque<QueuedFrame>> loaded = new LinkedHashMap<>();
+        for (File journal : journals) {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(journal), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    QueuedFrame queued = parseLine(line);
+                    if (queued == null) continue;
+
+                    String destination = queued.getFrame().getDestination();
+                    Deque<QueuedFrame> queue = loaded.get(destination);
+                    if (queue == null) {
+                        queue = new ArrayDeque<>();
+                        loaded.put(destination, queue);
+                    }
+                    queue.addLast(queued);
+                }
+            } catch (IOException e) {
+                // Unreadable journal: skip it, the remaining destinations still load
+            }
+        }
+
+        synchronized (this) {
+            for (Map.Entry<String, Deque<QueuedFrame>> entry : loaded.entrySet()) {
+                Deque<QueuedFrame> queued = queues.get(entry.getKey());
+                if (queued != null) {
+                    entry.getValue().addAll(queued);
+                }
+                queues.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static QueuedFrame parseLine(String line) {
+        int first = line.indexOf(FIELD_SEPARATOR);
+        int second = first < 0 ? -1 : line.indexOf(FIELD_SEPARATOR, first + 1);
+        if (second < 0) return null;
+
+        try {
+            long expiresAt = Long.parseLong(line.substring(0, first));
+            boolean carried = line.charAt(first + 1) == '1';
+            MeshFrame frame = MeshFrame.decode(unescape(line.substring(second + 1)));
+            return frame != null ? new QueuedFrame(frame, carried, expiresAt) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String value) {
+        StringBuilder builder = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                builder.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,348 @@
+package com.example.meshup.ui.mesh;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Whole-mesh view built from link-state announcements.
+ *
+ * Every node periodically floods its neighbour list with each link's cost, round-trip time,
+ * goodput and failure rate. Each node keeps the latest announcement per origin, so it can answer
+ * shortest path queries and export the graph for diagnosis. Routing itself stays distance-vector;
+ * this graph is only an observability aid.
+ */
+public class TopologyGraph implements MeshRouter.FrameListener {
+    public static final long ANNOUNCE_INTERVAL = MeshRouter.PROBE_INTERVAL; // Metrics change no faster than probes
+    public static final long ANNOUNCEMENT_EXPIRY = ANNOUNCE_INTERVAL * 3;
+
+    /**
+     * One directed link as reported by the node at its start. Round-trip time and goodput are
+     * negative until the link has been measured.
+     */
+    public static class Edge {
+        private final String from;
+        private final String to;
+        private final int cost;
+        private final long roundTripMillis;
+        private final long goodput;
+        private final double failureRate;
+
+        public Edge(String from, String to, int cost, long roundTripMillis, long goodput, double failureRate) {
+            this.from = from;
+            this.to = to;
+            this.cost = cost;
+            this.roundTripMillis = roundTripMillis;
+            this.goodput = goodput;
+            this.failureRate = failureRate;
+        }
+
+        public String getFrom() { return from; }
+        public String getTo() { return to; }
+        public int getCost() { return cost; }
+        public long getRoundTripMillis() { return roundTripMillis; }
+        public long getGoodput() { return goodput; }
+        public double getFailureRate() { return failureRate; }
+    }
+
+    /**
+     * Shortest path between two nodes, including both ends
+     */
+    public static class Path {
+        private final List<String> nodes;
+        private final int cost;
+
+        Path(List<String> nodes, int cost) {
+            this.nodes = nodes;
+            this.cost = cost;
+        }
+
+        public List<String> getNodes() { return nodes; }
+        public int getCost() { return cost; }
+        public int getHopCount() { return nodes.size() - 1; }
+    }
+
+    private static class Announcement {
+        final long sequence;
+        final long receivedAt;
+        final List<Edge> edges;
+
+        Announcement(long sequence, long receivedAt, List<Edge> edges) {
+            this.sequence = sequence;
+            this.receivedAt = receivedAt;
+            this.edges = edges;
+        }
+    }
+
+    private static class Candidate {
+        final String node;
+        final int distance;
+
+        Candidate(String node, int distance) {
+            this.node = node;
+            this.distance = distance;
+        }
+    }
+
+    private final MeshRouter router;
+    private final Map<String, Announcement> announcements = new LinkedHashMap<>();
+    private long localSequence;
+    private long lastAnnouncement;
+
+    public TopologyGraph(MeshRouter router) {
+        this.router = router;
+    }
+
+    public synchronized void tick(long now) {
+        Iterator<Announcement> iterator = announcements.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().receivedAt > ANNOUNCEMENT_EXPIRY) {
+                iterator.remove();
+            }
+        }
+
+        if (lastAnnouncement == 0 || now - lastAnnouncement >= ANNOUNCE_INTERVAL) {
+            lastAnnouncement = now;
+            // Clock based so a restarted node's announcements are not taken as stale
+            localSequence = Math.max(localSequence + 1, now);
+            router.sendBroadcast(MeshFrame.TYPE_TOPOLOGY_ANNOUNCE, router.nextFrameId(),
+                    encode(localSequence, getLocalEdges()));
+        }
+    }
+
+    @Override
+    public void onFrameDelivered(MeshFrame frame, String link, long now) {
+        if (!MeshFrame.TYPE_TOPOLOGY_ANNOUNCE.equals(frame.getType())) {
+            return;
+        }
+        String origin = frame.getOrigin();
+        List<String> records = MeshPayloads.splitRecords(frame.getPayload());
+        if (records.isEmpty() || origin.equals(router.getLocalId())) {
+            return;
+        }
+
+        long sequence;
+        try {
+            sequence = Long.parseLong(records.get(0), 36);
+        } catch (NumberFormatException e) {
+            return;
+        }
+
+        List<Edge> edges = new ArrayList<>();
+        for (String record : records.subList(1, records.size())) {
+            String[] fields = MeshPayloads.split(record, MeshPayloads.FIELD_SEPARATOR, 5);
+            if (fields.length != 5) continue;
+            try {
+                edges.add(new Edge(origin, fields[0], Integer.parseInt(fields[1]),
+                        Long.parseLong(fields[2]), Long.parseLong(fields[3]), Integer.parseInt(fields[4]) / 1000.0));
+            } catch (NumberFormatException e) {
+                // Ignore a malformed record, the next announcement will cover it
+            }
+        }
+
+        synchronized (this) {
+            Announcement existing = announcements.get(origin);
+            if (existing == null || existing.sequence < sequence) {
+                announcements.put(origin, new Announcement(sequence, now, edges));
+            }
+        }
+    }
+
+    /**
+     * @return every node known to be in the mesh, this one first
+     */
+    public synchronized List<String> getNodes() {
+        Set<String> nodes = new LinkedHashSet<>();
+        nodes.add(router.getLocalId());
+        for (Map.Entry<String, List<Edge>> entry : buildAdjacency().entrySet()) {
+            nodes.add(entry.getKey());
+            for (Edge edge : entry.getValue()) {
+                nodes.add(edge.getTo());
+            }
+        }
+        return new ArrayList<>(nodes);
+    }
+
+    /**
+     * @return every directed edge in the graph
+     */
+    public synchronized List<Edge> getEdges() {
+        List<Edge> edges = new ArrayList<>();
+        for (List<Edge> outgoing : buildAdjacency().values()) {
+            edges.addAll(outgoing);
+        }
+        return edges;
+    }
+
+    /**
+     * Dijkstra over the announced link costs
+     * @return the cheapest path, or null if the destination is not reachable in the graph
+     */
+    public synchronized Path getShortestPath(String from, String to) {
+        Map<String, List<Edge>> adjacency = buildAdjacency();
+        Map<String, Integer> distances = new HashMap<>();
+        Map<String, String> previous = new HashMap<>();
+        Set<String> done = new HashSet<>();
+        PriorityQueue<Candidate> queue = new PriorityQueue<>(16, (a, b) -> Integer.compare(a.distance, b.distance));
+
+        distances.put(from, 0);
+        queue.add(new Candidate(from, 0));
+        while (!queue.isEmpty()) {
+            String node = queue.poll().node;
+            if (!done.add(node)) continue;
+            if (node.equals(to)) break;
+
+            List<Edge> outgoing = adjacency.get(node);
+            if (outgoing == null) continue;
+            for (Edge edge : outgoing) {
+                int distance = distances.get(node) + edge.getCost();
+                Integer known = distances.get(edge.getTo());
+                if (known == null || distance < known) {
+                    distances.put(edge.getTo(), distance);
+                    previous.put(edge.getTo(), node);
+                    queue.add(new Candidate(edge.getTo(), distance));
+                }
+            }
+        }
+
+        if (!distances.containsKey(to)) {
+            return null;
+        }
+        List<String> nodes = new ArrayList<>();
+        for (String node = to; node != null; node = previous.get(node)) {
+            nodes.add(node);
+        }
+        Collections.reverse(nodes);
+        return new Path(nodes, distances.get(to));
+    }
+
+    /**
+     * Machine-readable dump: {"localId", "generatedAt", "nodes": [...], "edges": [...]}
+     */
+    public synchronized String toJson(long now) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"localId\":").append(quote(router.getLocalId()))
+                .append(",\"generatedAt\":").append(now)
+                .append(",\"nodes\":[");
+        List<String> nodes = getNodes();
+        for (int i = 0; i < nodes.size(); i++) {
+            if (i > 0) json.append(',');
+            String node = nodes.get(i);
+            Announcement announcement = announcements.get(node);
+            json.append("{\"id\":").append(quote(node));
+            if (announcement != null) {
+                json.append(",\"sequence\":").append(announcement.sequence)
+                        .append(",\"ageMillis\":").append(now - announcement.receivedAt);
+            }
+            Path path = getShortestPath(router.getLocalId(), node);
+            if (path != null) {
+                json.append(",\"hops\":").append(path.getHopCount())
+                        .append(",\"cost\":").append(path.getCost());
+            }
+            json.append('}');
+        }
+        json.append("],\"edges\":[");
+        List<Edge> edges = getEdges();
+        for (int i = 0; i < edges.size(); i++) {
+            if (i > 0) json.append(',');
+            Edge edge = edges.get(i);
+            json.append("{\"from\":").append(quote(edge.getFrom()))
+                    .append(",\"to\":").append(quote(edge.getTo()))
+                    .append(",\"cost\":").append(edge.getCost())
+                    .append(",\"rttMillis\":").append(edge.getRoundTripMillis())
+                    .append(",\"goodput\":").append(edge.getGoodput())
+                    .append(",\"failureRate\":").append(edge.getFailureRate())
+                    .append('}');
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    /**
+     * Our own links, from the router's live metrics; links whose neighbour ID is not known yet
+     * are left out
+     */
+    private List<Edge> getLocalEdges() {
+        List<Edge> edges = new ArrayList<>();
+        LinkMetrics metrics = router.getLinkMetrics();
+        for (String link : router.getLinks()) {
+            String neighbour = router.getNeighbourId(link);
+            if (neighbour == null) continue;
+            LinkMetrics.Sample sample = metrics.getSample(link);
+            edges.add(new Edge(router.getLocalId(), neighbour, metrics.getCost(link),
+                    Math.round(sample.getRoundTripMillis()), Math.round(sample.getGoodput()),
+                    sample.getFailureRate()));
+        }
+        return edges;
+    }
+
+    /**
+     * Edges by origin. A node that has not announced yet is still reachable through the reverse
+     * of its neighbours' edges, since links are symmetric.
+     */
+    private Map<String, List<Edge>> buildAdjacency() {
+        Map<String, List<Edge>> adjacency = new LinkedHashMap<>();
+        adjacency.put(router.getLocalId(), getLocalEdges());
+        for (Map.Entry<String, Announcement> entry : announcements.entrySet()) {
+            adjacency.put(entry.getKey(), new ArrayList<>(entry.getValue().edges));
+        }
+
+        List<Edge> reverse = new ArrayList<>();
+        for (List<Edge> outgoing : adjacency.values()) {
+            for (Edge edge : outgoing) {
+                if (!adjacency.containsKey(edge.getTo())) {
+                    reverse.add(new Edge(edge.getTo(), edge.getFrom(), edge.getCost(),
+                            edge.getRoundTripMillis(), edge.getGoodput(), edge.getFailureRate()));
+                }
+            }
+        }
+        for (Edge edge : reverse) {
+            List<Edge> outgoing = adjacency.get(edge.getFrom());
+            if (outgoing == null) {
+                outgoing = new ArrayList<>();
+                adjacency.put(edge.getFrom(), outgoing);
+            }
+            outgoing.add(edge);
+        }
+        return adjacency;
+    }
+
+    /**
+     * Announcement: "sequence<RS>neighbour<US>cost<US>rtt<US>goodput<US>failure per mille<RS>..."
+     */
+    private static String encode(long sequence, List<Edge> edges) {
+        StringBuilder builder = new StringBuilder(Long.toString(sequence, 36));
+        for (Edge edge : edges) {
+            builder.append(MeshPayloads.RECORD_SEPARATOR)
+                    .append(edge.getTo()).append(MeshPayloads.FIELD_SEPARATOR)
+                    .append(edge.getCost()).append(MeshPayloads.FIELD_SEPARATOR)
+                    .append(edge.getRoundTripMillis()).append(MeshPayloads.FIELD_SEPARATOR)
+                    .append(edge.getGoodput()).append(MeshPayloads.FIELD_SEPARATOR)
+                    .append(Math.round(edge.getFailureRate() * 1000));
+        }
+        return builder.toString();
+    }
+
+    private static String quote(String value) {
+        StringBuilder builder = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.append('"').toString();
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.meshup.ui.topology;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.fragment.app.Fragment;
+
+import com.example.meshup.R;
+import com.example.meshup.ui.mesh.PresenceGossip;
+import com.example.meshup.ui.mesh.TopologyGraph;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Debug screen showing the mesh as this phone sees it: every known node, the cheapest path to it
+ * and the links it announced, with an export of the whole graph as JSON.
+ */
+public class TopologyFragment extends Fragment {
+
+    public interface TopologyFragmentListener {
+        TopologyGraph getTopologyGraph();
+        PresenceGossip getPresenceGossip();
+    }
+
+    private TopologyFragmentListener topologyFragmentListener;
+    private TextView textViewSummary;
+    private TextView textViewTopology;
+
+    @Override
+    public void onAttach(@NonNull Context context) {
+        super.onAttach(context);
+        try {
+            topologyFragmentListener = (TopologyFragmentListener) context;
+        } catch (ClassCastException e) {
+            throw new ClassCastException(context + " must implement TopologyFragmentListener");
+        }
+    }
+
+    @Nullable
+    @Override
+    public View onCreateView(@NonNull LayoutInflater inflater, @Nullable ViewGroup container,
+                             @Nullable Bundle savedInstanceState) {
+        View view = inflater.inflate(R.layout.fragment_topology, container, false);
+
+        textViewSummary = view.findViewById(R.id.textView_topology_summary);
+        textViewTopology = view.findViewById(R.id.textView_topology);
+        Button buttonRefresh = view.findViewById(R.id.button_topology_refresh);
+        Button buttonExport = view.findViewById(R.id.button_topology_export);
+
+        buttonRefresh.setOnClickListener(v -> refresh());
+        buttonExport.setOnClickListener(v -> export());
+        return view;
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    @Override
+    public void onDetach() {
+        super.onDetach();
+        topologyFragmentListener = null;
+    }
+
+    private void refresh() {
+        TopologyGraph graph = getTopologyGraph();
+        if (graph == null) {
+            textViewSummary.setText(R.string.topology_unavailable);
+            textViewTopology.setText("");
+            return;
+        }
+
+        List<String> nodes = graph.getNodes();
+        List<TopologyGraph.Edge> edges = graph.getEdges();
+        String localId = nodes.get(0);
+        StringBuilder builder = new StringBuilder();
+        int reachable = 0;
+        for (String node : nodes) {
+            TopologyGraph.Path path = graph.getShortestPath(localId, node);
+            builder.append(getDisplayName(node));
+            if (path == null) {
+                builder.append("  unreachable\n");
+            } else {
+                reachable++;
+                builder.append(String.format(Locale.US, "  %d hops, cost %d\n    via %s\n",
+                        path.getHopCount(), path.getCost(), path.getNodes()));
+            }
+            for (TopologyGraph.Edge edge : edges) {
+                if (edge.getFrom().equals(node)) {
+                    builder.append(String.format(Locale.US, "    -> %s cost %d rtt %s goodput %s loss %.0f%%\n",
+                            getDisplayName(edge.getTo()), edge.getCost(),
+                            edge.getRoundTripMillis() >= 0 ? edge.getRoundTripMillis() + "ms" : "?",
+                            edge.getGoodput() >= 0 ? edge.getGoodput() + "B/s" : "?",
+                            edge.getFailureRate() * 100));
+                }
+            }
+            builder.append('\n');
+        }
+
+        textViewSummary.setText(getString(R.string.topology_summary, nodes.size(), reachable - 1));
+        textViewTopology.setText(builder.toString());
+    }
+
+    /**
+     * Hand the graph to any app that accepts text, e.g. to mail it off a device in the field
+     */
+    private void export() {
+        TopologyGraph graph = getTopologyGraph();
+        if (graph == null) {
+            Toast.makeText(getContext(), R.string.topology_unavailable, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType("application/json");
+        intent.putExtra(Intent.EXTRA_SUBJECT, "Mesh topology");
+        intent.putExtra(Intent.EXTRA_TEXT, graph.toJson(System.currentTimeMillis()));
+        startActivity(Intent.createChooser(intent, getString(R.string.topology_export)));
+    }
+
+    private String getDisplayName(String userId) {
+        PresenceGossip presenceGossip = topologyFragmentListener != null
+                ? topologyFragmentListener.getPresenceGossip() : null;
+        PresenceGossip.PresenceEntry entry = presenceGossip != null ? presenceGossip.getEntry(userId) : null;
+        return entry != null && entry.getHandle() != null ? entry.getHandle() + " (" + userId + ")" : userId;
+    }
+
+    private TopologyGraph getTopologyGraph() {
+        return topologyFragmentListener != null ? topologyFragmentListener.getTopologyGraph() : null;
+    }
+}
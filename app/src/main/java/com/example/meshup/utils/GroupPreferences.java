@@ -0,0 +1,105 @@
+package com.example.meshup.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.example.meshup.ui.data.GroupChannel;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Utility class for storing the group channels this user belongs to
+ */
+public class GroupPreferences {
+    private static final String PREF_NAME = "group_prefs";
+    private static final String KEY_GROUP_PREFIX = "group_";
+
+    /**
+     * Get all known groups
+     *
+     * @param context Application context
+     * @return Groups, in no particular order
+     */
+    public static List<GroupChannel> getGroups(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        List<GroupChannel> groups = new ArrayList<>();
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (entry.getKey().startsWith(KEY_GROUP_PREFIX) && entry.getValue() instanceof String) {
+                GroupChannel group = fromJson((String) entry.getValue());
+                if (group != null) {
+                    groups.add(group);
+                }
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Get one group
+     *
+     * @param context Application context
+     * @param groupId Group ID
+     * @return The group, or null if unknown
+     */
+    public static GroupChannel getGroup(Context context, String groupId) {
+        SharedPreferences prefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        String json = prefs.getString(KEY_GROUP_PREFIX + groupId, null);
+        return json != null ? fromJson(json) : null;
+    }
+
+    /**
+     * Save a group, merging its members with any already known
+     *
+     * @param context Application context
+     * @param group Group to save
+     * @return The stored group
+     */
+    public static GroupChannel saveGroup(Context context, GroupChannel group) {
+        GroupChannel existing = getGroup(context, group.getGroupId());
+        GroupChannel merged = group;
+        if (existing != null) {
+            Set<String> members = new LinkedHashSet<>(existing.getMemberIds());
+            members.addAll(group.getMemberIds());
+            String name = group.getName() != null ? group.getName() : existing.getName();
+            merged = new GroupChannel(group.getGroupId(), name, new ArrayList<>(members));
+        }
+
+        SharedPreferences prefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        prefs.edit().putString(KEY_GROUP_PREFIX + merged.getGroupId(), toJson(merged)).apply();
+        return merged;
+    }
+
+    private static String toJson(GroupChannel group) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("id", group.getGroupId());
+            json.put("name", group.getName());
+            json.put("members", new JSONArray(group.getMemberIds()));
+            return json.toString();
+        } catch (JSONException e) {
+            return "{}";
+        }
+    }
+
+    private static GroupChannel fromJson(String value) {
+        try {
+            JSONObject json = new JSONObject(value);
+            JSONArray array = json.getJSONArray("members");
+            List<String> members = new ArrayList<>();
+            for (int i = 0; i < array.length(); i++) {
+                members.add(array.getString(i));
+            }
+            return new GroupChannel(json.getString("id"), json.optString("name", "Group"), members);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+}
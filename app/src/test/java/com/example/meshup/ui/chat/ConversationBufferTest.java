@@ -0,0 +1,215 @@
+package com.example.meshup.ui.chat;
+
+import com.example.meshup.ui.data.ChatMessage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks every position the buffer returns against a list sorted the same way after each change.
+ */
+public class ConversationBufferTest {
+    private static final long START = 1700000000000L;
+    private static final Comparator<ChatMessage> ORDER = (a, b) -> a.getTimestamp() != b.getTimestamp()
+            ? Long.compare(a.getTimestamp(), b.getTimestamp()) : a.getId().compareTo(b.getId());
+
+    private ConversationBuffer buffer;
+    private List<ChatMessage> reference;
+
+    @Before
+    public void setUp() {
+        buffer = new ConversationBuffer();
+        reference = new ArrayList<>();
+    }
+
+    @Test
+    public void add_outOfOrder_returnsSortedPosition() {
+        assertEquals(0, add(message(5, START + 5000)));
+        assertEquals(0, add(message(1, START + 1000)));
+        assertEquals(2, add(message(9, START + 9000)));
+        assertEquals(1, add(message(3, START + 3000)));
+
+        assertMatchesReference();
+    }
+
+    @Test
+    public void add_equalTimestamps_areOrderedById() {
+        assertEquals(0, add(message(2, START)));
+        assertEquals(0, add(message(0, START)));
+        assertEquals(2, add(message(3, START)));
+        assertEquals(1, add(message(1, START)));
+
+        assertEquals("msg-000", buffer.get(0).getId());
+        assertEquals("msg-003", buffer.get(3).getId());
+        assertMatchesReference();
+    }
+
+    @Test
+    public void add_knownId_isIgnored() {
+        add(message(1, START));
+
+        assertEquals(-1, buffer.add(message(1, START + 1000)));
+        assertEquals(1, buffer.size());
+        assertEquals(START, buffer.get(0).getTimestamp());
+    }
+
+    @Test
+    public void update_newTimestamp_movesTheMessage() {
+        for (int i = 0; i < 5; i++) {
+            add(message(i, START + i * 1000L));
+        }
+
+        assertEquals(1, buffer.indexOf("msg-001"));
+        assertEquals(4, update(message(1, START + 10000)));
+        assertEquals(4, buffer.indexOf("msg-001"));
+        assertEquals(0, update(message(4, START - 1000)));
+
+        assertMatchesReference();
+    }
+
+    @Test
+    public void update_unknownMessage_changesNothing() {
+        add(message(1, START));
+
+        assertEquals(-1, buffer.update(message(2, START)));
+        assertEquals(1, buffer.size());
+    }
+
+    @Test
+    public void remove_returnsFormerPosition() {
+        for (int i = 0; i < 5; i++) {
+            add(message(i, START + i * 1000L));
+        }
+
+        assertEquals(2, remove("msg-002"));
+        assertEquals(-1, buffer.remove("msg-002"));
+        assertEquals(-1, buffer.indexOf("msg-002"));
+        assertFalse(buffer.contains("msg-002"));
+        assertEquals(0, remove("msg-000"));
+
+        assertMatchesReference();
+    }
+
+    @Test
+    public void between_includesBothEnds() {
+        for (int i = 0; i < 10; i++) {
+            add(message(i, START + (i / 2) * 1000L));
+        }
+
+        List<ChatMessage> found = buffer.between(START + 1000, START + 3000);
+
+        assertEquals(reference.subList(2, 8), found);
+        assertTrue(buffer.between(START + 100000, START + 200000).isEmpty());
+        assertEquals(reference, buffer.between(Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void randomChanges_matchSortedReference() {
+        Random random = new Random(42);
+        int nextId = 0;
+        for (int step = 0; step < 5000; step++) {
+            int action = random.nextInt(10);
+            // Few distinct timestamps, so many messages tie and the ID decides
+            long timestamp = START + random.nextInt(200) * 1000L;
+            if (action < 6 || reference.isEmpty()) {
+                add(message(nextId++, timestamp));
+            } else if (action < 8) {
+                String id = reference.get(random.nextInt(reference.size())).getId();
+                int expected = referenceIndexOf(id);
+                assertEquals(expected, buffer.indexOf(id));
+                update(message(Integer.parseInt(id.substring(4)), timestamp));
+            } else {
+                remove(reference.get(random.nextInt(reference.size())).getId());
+            }
+
+            if (step % 250 == 0) {
+                assertMatchesReference();
+                long from = START + random.nextInt(200) * 1000L;
+                long to = from + random.nextInt(50) * 1000L;
+                assertEquals(referenceBetween(from, to), buffer.between(from, to));
+            }
+        }
+        assertMatchesReference();
+    }
+
+    @Test
+    public void asList_isALiveView() {
+        List<ChatMessage> view = buffer.asList();
+        add(message(1, START));
+        add(message(0, START - 1000));
+
+        assertEquals(reference, view);
+
+        buffer.clear();
+        assertTrue(view.isEmpty());
+    }
+
+    /**
+     * Add to both, checking the buffer's position against where the reference puts it
+     */
+    private int add(ChatMessage message) {
+        int index = buffer.add(message);
+        reference.add(message);
+        reference.sort(ORDER);
+        assertEquals(reference.indexOf(message), index);
+        return index;
+    }
+
+    private int update(ChatMessage message) {
+        reference.remove(referenceIndexOf(message.getId()));
+        reference.add(message);
+        reference.sort(ORDER);
+        int index = buffer.update(message);
+        assertEquals(reference.indexOf(message), index);
+        return index;
+    }
+
+    private int remove(String id) {
+        int expected = referenceIndexOf(id);
+        reference.remove(expected);
+        int index = buffer.remove(id);
+        assertEquals(expected, index);
+        return index;
+    }
+
+    private void assertMatchesReference() {
+        assertEquals(reference.size(), buffer.size());
+        assertEquals(reference, buffer.asList());
+        for (int i = 0; i < reference.size(); i++) {
+            assertEquals(i, buffer.indexOf(reference.get(i).getId()));
+        }
+    }
+
+    private int referenceIndexOf(String id) {
+        for (int i = 0; i < reference.size(); i++) {
+            if (reference.get(i).getId().equals(id)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private List<ChatMessage> referenceBetween(long from, long to) {
+        List<ChatMessage> messages = new ArrayList<>();
+        for (ChatMessage message : reference) {
+            if (message.getTimestamp() >= from && message.getTimestamp() <= to) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    private static ChatMessage message(int i, long timestamp) {
+        // Zero-padded, so ID order matches send order among equal timestamps
+        return new ChatMessage(String.format(Locale.US, "msg-%03d", i), "uid-1", "Alice", "AA:BB:CC:DD:EE:FF",
+                "body" + i, "TEXT", timestamp, false);
+    }
+}
@@ -0,0 +1,289 @@
+package com.example.meshup.ui.data;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the chat pipeline on the JVM: the chat history and its sinks, the upload engine and an
+ * in-memory chat store, with a manual clock standing in for the main thread.
+ */
+public class ChatPipelineTest {
+    private static final String CONVERSATION = "AA:BB:CC:DD:EE:FF";
+    private static final long START = 1700000000000L;
+
+    /**
+     * Runs delayed tasks in time order when the test moves the clock
+     */
+    private static class ManualScheduler implements SyncEngine.Scheduler {
+        private final List<Object[]> tasks = new ArrayList<>();
+        long now = START;
+
+        @Override
+        public long now() {
+            return now;
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            tasks.add(new Object[]{now + delayMillis, task});
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            tasks.removeIf(scheduled -> scheduled[1] == task);
+        }
+
+        @Override
+        public void removeAll() {
+            tasks.clear();
+        }
+
+        void advance(long millis) {
+            long until = now + millis;
+            while (true) {
+                Object[] next = null;
+                for (Object[] scheduled : tasks) {
+                    if ((long) scheduled[0] <= until && (next == null || (long) scheduled[0] < (long) next[0])) {
+                        next = scheduled;
+                    }
+                }
+                if (next == null) {
+                    break;
+                }
+                tasks.remove(next);
+                now = (long) next[0];
+                ((Runnable) next[1]).run();
+            }
+            now = until;
+        }
+    }
+
+    private static class MemoryOutbox implements SyncEngine.Outbox {
+        final Map<String, ChatMessage> messages = new LinkedHashMap<>();
+
+        @Override
+        public void insertOutbox(ChatMessage message) {
+            messages.put(message.getId(), message);
+        }
+
+        @Override
+        public void removeOutbox(String messageId) {
+            messages.remove(messageId);
+        }
+    }
+
+    /**
+     * Fails the first appends, or leaves them unanswered, like a flaky connection
+     */
+    private static class FlakyStore extends InMemoryChatStore {
+        int failures;
+        int unanswered;
+        int attempts;
+
+        @Override
+        public void append(ChatMessage message, WriteListener listener) {
+            attempts++;
+            if (unanswered > 0) {
+                unanswered--;
+            } else if (failures > 0) {
+                failures--;
+                listener.onWriteComplete(false, "Network unreachable");
+            } else {
+                super.append(message, listener);
+            }
+        }
+    }
+
+    private static class RecordingListener implements ChatStore.DeltaListener {
+        final List<String> added = new ArrayList<>();
+        final List<String> removed = new ArrayList<>();
+
+        @Override
+        public void onMessageAdded(String conversationKey, ChatMessage message) {
+            added.add(message.getId());
+        }
+
+        @Override
+        public void onMessageChanged(String conversationKey, ChatMessage message) {
+        }
+
+        @Override
+        public void onMessageRemoved(String conversationKey, String messageId) {
+            removed.add(messageId);
+        }
+    }
+
+    private ManualScheduler scheduler;
+    private MemoryOutbox outbox;
+    private FlakyStore remote;
+    private LocalChatHistory history;
+    private MessageSearchIndex searchIndex;
+    private SyncEngine syncEngine;
+
+    @Before
+    public void setUp() {
+        scheduler = new ManualScheduler();
+        outbox = new MemoryOutbox();
+        remote = new FlakyStore();
+        history = new LocalChatHistory();
+        searchIndex = new MessageSearchIndex();
+        history.addMessageSink(searchIndex);
+        syncEngine = new SyncEngine(outbox, remote, scheduler);
+    }
+
+    @Test
+    public void sentMessages_uploadOnceConnectedInOrder() {
+        RecordingListener listener = new RecordingListener();
+        remote.subscribe(CONVERSATION, listener);
+        for (int i = 0; i < 100; i++) {
+            send(message(i, START + i));
+        }
+
+        assertEquals(0, remote.size(CONVERSATION));
+        assertEquals(100, outbox.messages.size());
+
+        syncEngine.setConnected(true);
+
+        assertEquals(100, remote.size(CONVERSATION));
+        assertTrue(outbox.messages.isEmpty());
+        assertEquals(0, syncEngine.getPendingCount());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(message(i, START + i).getId(), listener.added.get(i));
+        }
+        assertEquals(1, searchIndex.search("body42", 10).size());
+    }
+
+    @Test
+    public void failedUploads_retryWithBackoff() {
+        remote.failures = 3;
+        syncEngine.setConnected(true);
+        send(message(1, START));
+
+        assertEquals(0, remote.size(CONVERSATION));
+        assertEquals(1, syncEngine.getPendingCount());
+
+        scheduler.advance(60 * 1000);
+
+        assertEquals(1, remote.size(CONVERSATION));
+        assertEquals(4, remote.attempts);
+        assertTrue(outbox.messages.isEmpty());
+    }
+
+    @Test
+    public void unansweredUploads_timeOutAndRetry() {
+        remote.unanswered = 1;
+        syncEngine.setConnected(true);
+        send(message(1, START));
+
+        scheduler.advance(29 * 1000);
+        assertEquals(0, remote.size(CONVERSATION));
+
+        scheduler.advance(5 * 1000);
+        assertEquals(1, remote.size(CONVERSATION));
+        assertEquals(2, remote.attempts);
+        assertTrue(outbox.messages.isEmpty());
+    }
+
+    @Test
+    public void clearConversation_dropsEveryLayerAndPendingUploads() {
+        for (int i = 0; i < 20; i++) {
+            send(message(i, START + i));
+        }
+        long clearedAt = START + 1000;
+
+        history.clearConversation(CONVERSATION, clearedAt);
+        syncEngine.clearConversation(CONVERSATION, clearedAt);
+        syncEngine.setConnected(true);
+
+        assertEquals(0, remote.size(CONVERSATION));
+        assertTrue(outbox.messages.isEmpty());
+        assertTrue(history.getMessagesBetween(CONVERSATION, Long.MIN_VALUE, Long.MAX_VALUE).isEmpty());
+        assertEquals(0, history.getMerkleTree(CONVERSATION).size());
+        assertTrue(searchIndex.search("body5", 10).isEmpty());
+
+        // A peer or a remote page must not bring the cleared messages back; new ones still count
+        assertFalse(history.addMessage(message(5, START + 5)));
+        assertTrue(history.addMessage(message(99, clearedAt + 1)));
+    }
+
+    @Test
+    public void pages_coverHistoryWithoutSkipsOrRepeats() {
+        syncEngine.setConnected(true);
+        for (int i = 0; i < 237; i++) {
+            // Pairs of messages share a timestamp, so pages must also cut by ID
+            send(message(i, START + i / 2));
+        }
+
+        List<String> paged = new ArrayList<>();
+        ChatMessage[] before = {null};
+        boolean[] hasOlder = {true};
+        while (hasOlder[0]) {
+            remote.loadPage(CONVERSATION, before[0], (key, messages, older) -> {
+                for (int i = messages.size() - 1; i >= 0; i--) {
+                    paged.add(0, messages.get(i).getId());
+                }
+                before[0] = messages.isEmpty() ? null : messages.get(0);
+                hasOlder[0] = older && !messages.isEmpty();
+            });
+        }
+
+        assertEquals(237, paged.size());
+        for (int i = 0; i < 237; i++) {
+            assertEquals(message(i, START + i / 2).getId(), paged.get(i));
+        }
+    }
+
+    @Test
+    public void storedConversations_loadOnFirstUseAndAgainAfterInvalidation() {
+        List<ChatMessage> stored = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            stored.add(message(i, START + i));
+        }
+        int[] loads = {0};
+        history.setLoader(conversationKey -> {
+            loads[0]++;
+            return new ArrayList<>(stored);
+        });
+        searchIndex.setLoader(visitor -> {
+            for (ChatMessage message : stored) {
+                visitor.visit(message);
+            }
+        });
+
+        assertEquals(0, loads[0]);
+        assertEquals(10, history.getMerkleTree(CONVERSATION).size());
+        assertFalse(history.addMessage(message(3, START + 3)));
+        assertEquals(1, loads[0]);
+
+        // An import writes to storage behind the history's back
+        stored.add(message(10, START + 10));
+        history.invalidate(CONVERSATION);
+        searchIndex.invalidate();
+
+        assertTrue(history.containsMessage(CONVERSATION, message(10, START + 10).getId()));
+        assertEquals(2, loads[0]);
+        assertEquals(1, searchIndex.search("body10", 10).size());
+        assertEquals(11, searchIndex.size());
+    }
+
+    /**
+     * What the chat screen does with a message the user sends
+     */
+    private void send(ChatMessage message) {
+        history.addMessage(message);
+        syncEngine.enqueue(message);
+    }
+
+    private static ChatMessage message(int i, long timestamp) {
+        // Zero-padded, so ID order matches send order among equal timestamps
+        return new ChatMessage(String.format(Locale.US, "msg-%03d", i), "uid-1", "Alice", CONVERSATION, "body" + i, "TEXT", timestamp, false);
+    }
+}
@@ -0,0 +1,193 @@
+package com.example.meshup.ui.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round-trips history through the export format, and checks that an interrupted import resumes
+ * from its checkpoint without storing anything twice.
+ */
+public class HistoryTransferTest {
+    private static final long START = 1700000000000L;
+
+    /**
+     * Keeps messages by conversation and ID, like the store's primary key; can fail a batch
+     */
+    private static class MemoryTarget implements HistoryTransfer.Target {
+        final Map<String, ChatMessage> messages = new LinkedHashMap<>();
+        int batches;
+        int failAtBatch = -1;
+
+        @Override
+        public List<ChatMessage> insertNew(List<ChatMessage> batch) {
+            if (batches++ == failAtBatch) {
+                throw new IllegalStateException("Disk full");
+            }
+            List<ChatMessage> added = new ArrayList<>();
+            for (ChatMessage message : batch) {
+                String key = message.getDeviceAddress() + "/" + message.getId();
+                if (!messages.containsKey(key)) {
+                    messages.put(key, message);
+                    added.add(message);
+                }
+            }
+            return added;
+        }
+    }
+
+    private final Map<String, List<ChatMessage>> stored = new LinkedHashMap<>();
+    private final HistoryTransfer.Source source = new HistoryTransfer.Source() {
+        @Override
+        public List<String> getConversationKeys() {
+            return new ArrayList<>(stored.keySet());
+        }
+
+        @Override
+        public void forEachMessage(String conversationKey, LocalMessageStore.MessageVisitor visitor)
+                throws IOException {
+            List<ChatMessage> messages = stored.get(conversationKey);
+            if (messages != null) {
+                for (ChatMessage message : messages) {
+                    visitor.visit(message);
+                }
+            }
+        }
+    };
+    private File directory;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("history").toFile();
+        file = new File(directory, "export.mshx");
+        stored.put("AA:AA:AA:AA:AA:01", messages("AA:AA:AA:AA:AA:01", 1200));
+        stored.put("AA:AA:AA:AA:AA:02", messages("AA:AA:AA:AA:AA:02", 1300));
+        stored.put("group-1", Collections.singletonList(new ChatMessage("g-1", null, null, "group-1",
+                "Gr\u00fc\u00dfe \ud83d\udc4b", null, START, false)));
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File leftover : files) {
+                leftover.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void export_roundTripsEveryField() throws IOException {
+        List<ChatMessage> added = new ArrayList<>();
+        MemoryTarget target = new MemoryTarget();
+
+        assertEquals(2501, new HistoryTransfer(source, null, null).export(file, null));
+        HistoryTransfer.ImportResult result = new HistoryTransfer(null, target, added::addAll).importFrom(file);
+
+        assertEquals(2501, result.getImported());
+        assertEquals(0, result.getSkipped());
+        assertEquals(stored.keySet(), result.getConversationKeys());
+        assertEquals(2501, added.size());
+        for (List<ChatMessage> messages : stored.values()) {
+            for (ChatMessage expected : messages) {
+                ChatMessage actual = target.messages.get(expected.getDeviceAddress() + "/" + expected.getId());
+                assertNotNull(expected.getId(), actual);
+                assertEquals(expected.getSenderId(), actual.getSenderId());
+                assertEquals(expected.getSenderName(), actual.getSenderName());
+                assertEquals(expected.getContent(), actual.getContent());
+                assertEquals(expected.getMessageType(), actual.getMessageType());
+                assertEquals(expected.getTimestamp(), actual.getTimestamp());
+                assertEquals(expected.isReceived(), actual.isReceived());
+            }
+        }
+    }
+
+    @Test
+    public void export_onlyListedConversations() throws IOException {
+        MemoryTarget target = new MemoryTarget();
+
+        assertEquals(1, new HistoryTransfer(source, null, null).export(file, Arrays.asList("group-1")));
+        HistoryTransfer.ImportResult result = new HistoryTransfer(null, target, null).importFrom(file);
+
+        assertEquals(new HashSet<>(Arrays.asList("group-1")), result.getConversationKeys());
+        assertEquals(1, target.messages.size());
+    }
+
+    @Test
+    public void import_resumesFromCheckpointAfterFailure() throws IOException {
+        new HistoryTransfer(source, null, null).export(file, null);
+        MemoryTarget target = new MemoryTarget();
+        target.failAtBatch = 2;
+
+        try {
+            new HistoryTransfer(null, target, null).importFrom(file);
+            fail("Import should have failed on the third batch");
+        } catch (IOException expected) {
+            // The first two batches are committed and checkpointed
+        }
+        assertEquals(2000, target.messages.size());
+        assertTrue(new File(file.getPath() + ".progress").exists());
+
+        target.failAtBatch = -1;
+        HistoryTransfer.ImportResult result = new HistoryTransfer(null, target, null).importFrom(file);
+
+        assertEquals(2000, result.getResumedAt());
+        assertEquals(501, result.getImported());
+        assertEquals(0, result.getSkipped());
+        assertEquals(2501, target.messages.size());
+        assertFalse(new File(file.getPath() + ".progress").exists());
+    }
+
+    @Test
+    public void import_skipsMessagesAlreadyStored() throws IOException {
+        new HistoryTransfer(source, null, null).export(file, null);
+        MemoryTarget target = new MemoryTarget();
+        new HistoryTransfer(null, target, null).importFrom(file);
+
+        HistoryTransfer.ImportResult again = new HistoryTransfer(null, target, null).importFrom(file);
+
+        assertEquals(0, again.getImported());
+        assertEquals(2501, again.getSkipped());
+        assertEquals(2501, target.messages.size());
+    }
+
+    @Test
+    public void import_rejectsOtherFiles() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("not an export".getBytes("UTF-8"));
+        }
+
+        try {
+            new HistoryTransfer(null, new MemoryTarget(), null).importFrom(file);
+            fail("Import should have rejected the file");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().startsWith("Not a history export"));
+        }
+    }
+
+    private static List<ChatMessage> messages(String conversationKey, int count) {
+        List<ChatMessage> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            boolean received = i % 3 == 0;
+            messages.add(new ChatMessage("msg-" + i, received ? "uid-peer" : "uid-me", received ? "Bob" : "Alice",
+                    conversationKey, "Message number " + i, "TEXT", START + i * 1000L, received));
+        }
+        return messages;
+    }
+}
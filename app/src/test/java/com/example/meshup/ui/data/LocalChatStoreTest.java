@@ -0,0 +1,275 @@
+package com.example.meshup.ui.data;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the local chat store over storage that keeps rows in memory, in the order the SQLite
+ * store's queries return them.
+ */
+public class LocalChatStoreTest {
+    private static final String CONVERSATION = "AA:BB:CC:DD:EE:FF";
+    private static final String OTHER = "11:22:33:44:55:66";
+    private static final long START = 1700000000000L;
+
+    /**
+     * Rows ordered by timestamp, then ID; inserting an ID again replaces the row
+     */
+    private static class MemoryStorage implements LocalChatStore.Storage {
+        final NavigableSet<ChatMessage> rows = new TreeSet<>(InMemoryChatStore.ORDER);
+
+        @Override
+        public void insert(ChatMessage message) {
+            remove(message.getDeviceAddress(), message.getId());
+            rows.add(message);
+        }
+
+        @Override
+        public boolean contains(String conversationKey, String messageId) {
+            return find(conversationKey, messageId) != null;
+        }
+
+        @Override
+        public List<ChatMessage> getPage(String conversationKey, ChatMessage before, int limit) {
+            List<ChatMessage> page = new ArrayList<>();
+            for (ChatMessage message : before != null ? rows.headSet(before, false).descendingSet() : rows.descendingSet()) {
+                if (page.size() == limit) {
+                    break;
+                }
+                if (message.getDeviceAddress().equals(conversationKey)) {
+                    page.add(message);
+                }
+            }
+            Collections.reverse(page);
+            return page;
+        }
+
+        @Override
+        public List<ChatMessage> getMessagesBetween(String conversationKey, long from, long to) {
+            List<ChatMessage> messages = new ArrayList<>();
+            for (ChatMessage message : rows) {
+                if (message.getDeviceAddress().equals(conversationKey)
+                        && message.getTimestamp() >= from && message.getTimestamp() < to) {
+                    messages.add(message);
+                }
+            }
+            return messages;
+        }
+
+        @Override
+        public void deleteMessages(String conversationKey, List<String> messageIds) {
+            for (String messageId : messageIds) {
+                remove(conversationKey, messageId);
+            }
+        }
+
+        @Override
+        public void deleteConversation(String conversationKey) {
+            rows.removeIf(message -> message.getDeviceAddress().equals(conversationKey));
+        }
+
+        private ChatMessage find(String conversationKey, String messageId) {
+            for (ChatMessage message : rows) {
+                if (message.getDeviceAddress().equals(conversationKey) && message.getId().equals(messageId)) {
+                    return message;
+                }
+            }
+            return null;
+        }
+
+        private void remove(String conversationKey, String messageId) {
+            ChatMessage stored = find(conversationKey, messageId);
+            if (stored != null) {
+                rows.remove(stored);
+            }
+        }
+    }
+
+    /**
+     * Records every change as "added msg-001", "changed msg-001" or "removed msg-001"
+     */
+    private static class RecordingListener implements ChatStore.DeltaListener {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onMessageAdded(String conversationKey, ChatMessage message) {
+            events.add("added " + message.getId());
+        }
+
+        @Override
+        public void onMessageChanged(String conversationKey, ChatMessage message) {
+            events.add("changed " + message.getId());
+        }
+
+        @Override
+        public void onMessageRemoved(String conversationKey, String messageId) {
+            events.add("removed " + messageId);
+        }
+    }
+
+    private MemoryStorage storage;
+    private LocalChatStore store;
+
+    @Before
+    public void setUp() {
+        storage = new MemoryStorage();
+        store = new LocalChatStore(storage);
+    }
+
+    @Test
+    public void append_newMessage_isReportedAsAdded() {
+        RecordingListener listener = new RecordingListener();
+        store.subscribe(CONVERSATION, listener);
+        boolean[] written = new boolean[1];
+
+        store.append(message(CONVERSATION, 1, START), (success, error) -> written[0] = success);
+
+        assertTrue(written[0]);
+        assertEquals(Arrays.asList("added msg-001"), listener.events);
+    }
+
+    @Test
+    public void append_sameIdAgain_isReportedAsChanged() {
+        RecordingListener listener = new RecordingListener();
+        store.subscribe(CONVERSATION, listener);
+        store.append(message(CONVERSATION, 1, START), null);
+
+        store.append(message(CONVERSATION, 1, START + 5000), null);
+
+        assertEquals(Arrays.asList("added msg-001", "changed msg-001"), listener.events);
+        List<ChatMessage> page = page(CONVERSATION, null);
+        assertEquals(1, page.size());
+        assertEquals(START + 5000, page.get(0).getTimestamp());
+    }
+
+    @Test
+    public void append_sameIdInAnotherConversation_isAdded() {
+        RecordingListener listener = new RecordingListener();
+        store.subscribe(OTHER, listener);
+        store.append(message(CONVERSATION, 1, START), null);
+
+        store.append(message(OTHER, 1, START), null);
+
+        assertEquals(Arrays.asList("added msg-001"), listener.events);
+    }
+
+    @Test
+    public void append_withoutId_fails() {
+        String[] error = new String[1];
+
+        store.append(new ChatMessage(null, "uid-1", "Alice", CONVERSATION, "hi", "TEXT", START, false),
+                (success, message) -> error[0] = success ? null : message);
+
+        assertNotNull(error[0]);
+        assertTrue(storage.rows.isEmpty());
+    }
+
+    @Test
+    public void subscribe_deliversNewestPageThenChanges() {
+        for (int i = 0; i < 60; i++) {
+            store.append(message(CONVERSATION, i, START + i * 1000L), null);
+        }
+        RecordingListener listener = new RecordingListener();
+
+        store.subscribe(CONVERSATION, listener);
+        store.subscribe(CONVERSATION, listener);
+        store.append(message(CONVERSATION, 60, START + 60000), null);
+
+        assertEquals(ChatStore.PAGE_SIZE + 1, listener.events.size());
+        assertEquals("added msg-010", listener.events.get(0));
+        assertEquals("added msg-060", listener.events.get(ChatStore.PAGE_SIZE));
+    }
+
+    @Test
+    public void loadPage_pagesBackWithoutGapsOrRepeats() {
+        // Pairs share a timestamp, so the ID has to break the tie at page boundaries
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 120; i++) {
+            store.append(message(CONVERSATION, i, START + (i / 2) * 1000L), null);
+            expected.add(String.format(Locale.US, "msg-%03d", i));
+        }
+
+        List<String> loaded = new ArrayList<>();
+        List<Boolean> hasOlder = new ArrayList<>();
+        ChatMessage before = null;
+        do {
+            List<ChatMessage> page = new ArrayList<>();
+            store.loadPage(CONVERSATION, before, (key, messages, older) -> {
+                page.addAll(messages);
+                hasOlder.add(older);
+            });
+            for (int i = page.size() - 1; i >= 0; i--) {
+                loaded.add(0, page.get(i).getId());
+            }
+            before = page.isEmpty() ? null : page.get(0);
+        } while (hasOlder.get(hasOlder.size() - 1));
+
+        assertEquals(expected, loaded);
+        assertEquals(Arrays.asList(true, true, false), hasOlder);
+    }
+
+    @Test
+    public void delete_reportsEachRemovedMessage() {
+        RecordingListener listener = new RecordingListener();
+        List<ChatMessage> sent = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            sent.add(message(CONVERSATION, i, START + i));
+            store.append(sent.get(i), null);
+        }
+        store.subscribe(CONVERSATION, listener);
+        listener.events.clear();
+
+        store.delete(CONVERSATION, sent.subList(0, 2), null);
+
+        assertEquals(Arrays.asList("removed msg-000", "removed msg-001"), listener.events);
+        assertEquals(1, page(CONVERSATION, null).size());
+    }
+
+    @Test
+    public void deleteConversation_leavesOtherConversations() {
+        store.append(message(CONVERSATION, 1, START), null);
+        store.append(message(OTHER, 2, START), null);
+        RecordingListener listener = new RecordingListener();
+        store.subscribe(CONVERSATION, listener);
+        listener.events.clear();
+
+        store.deleteConversation(CONVERSATION, null);
+
+        assertEquals(Arrays.asList("removed msg-001"), listener.events);
+        assertTrue(page(CONVERSATION, null).isEmpty());
+        assertEquals(1, page(OTHER, null).size());
+    }
+
+    @Test
+    public void unsubscribe_stopsChanges() {
+        RecordingListener listener = new RecordingListener();
+        store.subscribe(CONVERSATION, listener);
+
+        store.unsubscribe(CONVERSATION, listener);
+        store.append(message(CONVERSATION, 1, START), null);
+
+        assertTrue(listener.events.isEmpty());
+    }
+
+    private List<ChatMessage> page(String conversationKey, ChatMessage before) {
+        List<ChatMessage> page = new ArrayList<>();
+        store.loadPage(conversationKey, before, (key, messages, hasOlder) -> page.addAll(messages));
+        return page;
+    }
+
+    private static ChatMessage message(String conversationKey, int i, long timestamp) {
+        // Zero-padded, so ID order matches send order among equal timestamps
+        return new ChatMessage(String.format(Locale.US, "msg-%03d", i), "uid-1", "Alice", conversationKey,
+                "body" + i, "TEXT", timestamp, false);
+    }
+}
@@ -0,0 +1,158 @@
+package com.example.meshup.ui.data;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Queries the search index on the JVM: exact words, prefixes, phrases and folded Unicode.
+ */
+public class MessageSearchIndexTest {
+    private static final String CONVERSATION = "AA:BB:CC:DD:EE:FF";
+    private static final long START = 1700000000000L;
+
+    private MessageSearchIndex index;
+    private int sent;
+
+    @Before
+    public void setUp() {
+        index = new MessageSearchIndex();
+        sent = 0;
+    }
+
+    @Test
+    public void word_matchesWholeTermsOnly() {
+        add("meet at the station");
+        add("stationary bike");
+
+        assertEquals(contents("meet at the station"), contents(index.search("station", 10)));
+    }
+
+    @Test
+    public void prefix_matchesEveryTermStartingWithIt() {
+        add("w1 only");
+        add("w12 and w13 in one message");
+        add("w2 does not match");
+        add("ends with w199");
+
+        List<String> found = contents(index.search("w1*", 10));
+
+        // Newest first, and the message with two matching terms comes back once
+        assertEquals(contents("ends with w199", "w12 and w13 in one message", "w1 only"), found);
+    }
+
+    @Test
+    public void prefix_overManyTerms_matchesAReferenceScan() {
+        for (int i = 0; i < 5000; i++) {
+            add("w" + (i % 1000) + " filler");
+        }
+
+        int expected = 0;
+        for (int i = 0; i < 5000; i++) {
+            if (String.valueOf(i % 1000).startsWith("1")) {
+                expected++;
+            }
+        }
+
+        assertEquals(expected, index.search("w1*", Integer.MAX_VALUE).size());
+        assertEquals(5000, index.search("w*", Integer.MAX_VALUE).size());
+        assertTrue(index.search("x*", 10).isEmpty());
+    }
+
+    @Test
+    public void prefix_andWord_mustBothMatch() {
+        add("deploy tomorrow");
+        add("deployment tonight");
+        add("tonight only");
+
+        assertEquals(contents("deployment tonight"), contents(index.search("depl* tonight", 10)));
+    }
+
+    @Test
+    public void phrase_matchesAdjacentWordsInOrder() {
+        add("see you at noon");
+        add("at noon you see");
+        add("you, at the noon");
+
+        assertEquals(contents("see you at noon"), contents(index.search("\"you at noon\"", 10)));
+    }
+
+    @Test
+    public void punctuatedWord_isSearchedAsAPhrase() {
+        add("mail bob@example.com now");
+        add("bob wrote an example");
+
+        assertEquals(contents("mail bob@example.com now"), contents(index.search("bob@example.com", 10)));
+    }
+
+    @Test
+    public void accentsCaseAndCompatibilityForms_areFolded() {
+        add("Caf\u00e9 CR\u00c8ME");              // Precomposed accents
+        add("cafe\u0301 at the office");          // Combining accent
+        add("the \ufb01nal \uff21\uff22\uff23");  // fi ligature, full-width letters
+
+        assertEquals(2, index.search("cafe", 10).size());
+        assertEquals(2, index.search("CAF\u00c9", 10).size());
+        assertEquals(1, index.search("creme", 10).size());
+        assertEquals(contents("the \ufb01nal \uff21\uff22\uff23"), contents(index.search("final abc", 10)));
+        assertEquals(1, index.search("fin*", 10).size());
+    }
+
+    @Test
+    public void results_areNewestFirstAndLimited() {
+        for (int i = 0; i < 20; i++) {
+            add("status " + i);
+        }
+
+        List<String> found = contents(index.search("status", 3));
+
+        assertEquals(contents("status 19", "status 18", "status 17"), found);
+    }
+
+    @Test
+    public void removedMessages_areNotReturned() {
+        add("lunch at one");
+        ChatMessage removed = add("lunch at two");
+
+        index.remove(CONVERSATION, removed.getId());
+
+        assertEquals(contents("lunch at one"), contents(index.search("lunch", 10)));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void queryWithoutWords_matchesNothing() {
+        add("anything");
+
+        assertTrue(index.search("?! \"\" *", 10).isEmpty());
+        assertTrue(index.search("", 10).isEmpty());
+    }
+
+    private ChatMessage add(String content) {
+        int i = sent++;
+        ChatMessage message = new ChatMessage("msg-" + i, "uid-1", "Alice", CONVERSATION, content, "TEXT",
+                START + i * 1000L, false);
+        index.add(message);
+        return message;
+    }
+
+    private static List<String> contents(List<ChatMessage> messages) {
+        List<String> contents = new ArrayList<>();
+        for (ChatMessage message : messages) {
+            contents.add(message.getContent());
+        }
+        return contents;
+    }
+
+    private static List<String> contents(String... contents) {
+        List<String> list = new ArrayList<>();
+        for (String content : contents) {
+            list.add(content);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.meshup.ui.data;
+
+import com.google.firebase.database.core.utilities.encoding.CustomClassMapper;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the hand-written mappers against Firebase's reflective bean mapper. A benchmark that
+ * times both on the plain value trees snapshots hand out is ignored by default; remove its
+ * {@code @Ignore} to print the timings on the development machine.
+ */
+public class SnapshotMappersTest {
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int DECODES = 200_000;
+
+    @Test
+    public void chatMessage_readsWhatReflectiveMapperWrites() {
+        ChatMessage original = sampleMessage(7);
+        Object plain = CustomClassMapper.convertToPlainJavaTypes(original);
+
+        assertSameMessage(original, SnapshotMappers.decodeChatMessage(plain, "ignored"));
+    }
+
+    @Test
+    public void chatMessage_writesWhatReflectiveMapperReads() {
+        ChatMessage original = sampleMessage(7);
+        Map<String, Object> encoded = SnapshotMappers.encodeChatMessage(original);
+
+        assertSameMessage(original, CustomClassMapper.convertToCustomClass(encoded, ChatMessage.class));
+    }
+
+    @Test
+    public void chatMessage_takesIdFromKeyWhenMissing() {
+        Map<String, Object> encoded = SnapshotMappers.encodeChatMessage(sampleMessage(1));
+        encoded.remove("id");
+
+        assertEquals("key", SnapshotMappers.decodeChatMessage(encoded, "key").getId());
+        assertNull(SnapshotMappers.decodeChatMessage("not a message", "key"));
+    }
+
+    @Test
+    public void connectedDevice_roundTripsBothWays() {
+        ConnectedDevice original = new ConnectedDevice("AA:BB:CC:DD:EE:FF", "Pixel", "alice", 3, 123456789L, true);
+        original.setUserId("uid-1");
+
+        ConnectedDevice fromReflective = SnapshotMappers.decodeConnectedDevice(
+                CustomClassMapper.convertToPlainJavaTypes(original));
+        ConnectedDevice toReflective = CustomClassMapper.convertToCustomClass(
+                SnapshotMappers.encodeConnectedDevice(original), ConnectedDevice.class);
+
+        for (ConnectedDevice device : new ConnectedDevice[]{fromReflective, toReflective}) {
+            assertEquals(original.getDeviceAddress(), device.getDeviceAddress());
+            assertEquals(original.getDeviceName(), device.getDeviceName());
+            assertEquals(original.getUsername(), device.getUsername());
+            assertEquals(original.getUserId(), device.getUserId());
+            assertEquals(original.getProfilePicture(), device.getProfilePicture());
+            assertEquals(original.getLastSeen(), device.getLastSeen());
+            assertEquals(original.isOnline(), device.isOnline());
+        }
+    }
+
+    @Test
+    public void connectedDevice_nodeWithoutAddressIsNoDevice() {
+        Map<String, Object> strayLastSeen = new HashMap<>();
+        strayLastSeen.put("lastSeen", 123456789L);
+
+        assertNull(SnapshotMappers.decodeConnectedDevice(strayLastSeen));
+    }
+
+    /**
+     * Reports timings only: wall-clock numbers depend on the machine and its load, so they are
+     * not asserted
+     */
+    @Ignore("Benchmark; run by hand")
+    @Test
+    public void chatMessage_decodeTimings() {
+        Object[] plain = new Object[1000];
+        for (int i = 0; i < plain.length; i++) {
+            plain[i] = CustomClassMapper.convertToPlainJavaTypes(sampleMessage(i));
+        }
+
+        long mapped = 0;
+        long reflective = 0;
+        for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+            mapped = timeDecodes(plain, false);
+            reflective = timeDecodes(plain, true);
+        }
+
+        System.out.printf("ChatMessage decode: %.0f ns mapped, %.0f ns reflective%n",
+                (double) mapped / DECODES, (double) reflective / DECODES);
+    }
+
+    private static long timeDecodes(Object[] plain, boolean reflective) {
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < DECODES; i++) {
+            Object value = plain[i % plain.length];
+            ChatMessage message = reflective
+                    ? CustomClassMapper.convertToCustomClass(value, ChatMessage.class)
+                    : SnapshotMappers.decodeChatMessage(value, null);
+            checksum += message.getTimestamp();
+        }
+        long elapsed = System.nanoTime() - start;
+        // Keeps the decodes from being optimised away
+        assertTrue(checksum > 0);
+        return elapsed;
+    }
+
+    private static ChatMessage sampleMessage(int i) {
+        return new ChatMessage("msg-" + i, "uid-" + (i % 5), "Sender " + (i % 5), "AA:BB:CC:DD:EE:0" + (i % 10),
+                "Message body number " + i, "TEXT", 1700000000000L + i, i % 2 == 0);
+    }
+
+    private static void assertSameMessage(ChatMessage expected, ChatMessage actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getSenderId(), actual.getSenderId());
+        assertEquals(expected.getSenderName(), actual.getSenderName());
+        assertEquals(expected.getDeviceAddress(), actual.getDeviceAddress());
+        assertEquals(expected.getContent(), actual.getContent());
+        assertEquals(expected.getMessageType(), actual.getMessageType());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.isReceived(), actual.isReceived());
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.meshup.ui.devicediscovery;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds framed messages through the framer in the pieces a socket read can return.
+ */
+public class StreamFramerTest {
+
+    @Test
+    public void messageSplitInsideACharacter_comesOutWhole() throws IOException {
+        String text = "caf\u00e9 \u2615 \ud83d\ude00";
+        byte[] framed = StreamFramer.frame(text.getBytes(StandardCharsets.UTF_8));
+        StreamFramer framer = new StreamFramer();
+
+        // Cut inside the emoji's four bytes
+        int cut = framed.length - 2;
+        assertTrue(framer.accept(framed, cut).isEmpty());
+        assertEquals(cut, framer.getPendingBytes());
+        byte[] rest = new byte[framed.length - cut];
+        System.arraycopy(framed, cut, rest, 0, rest.length);
+        List<byte[]> messages = framer.accept(rest, rest.length);
+
+        assertEquals(1, messages.size());
+        assertEquals(text, new String(messages.get(0), StandardCharsets.UTF_8));
+        assertEquals(0, framer.getPendingBytes());
+    }
+
+    @Test
+    public void messagesBackToBack_comeOutSeparately() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        List<String> sent = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            String text = "frame " + i + " \u00fc";
+            sent.add(text);
+            byte[] framed = StreamFramer.frame(text.getBytes(StandardCharsets.UTF_8));
+            stream.write(framed, 0, framed.length);
+        }
+        byte[] bytes = stream.toByteArray();
+        StreamFramer framer = new StreamFramer();
+
+        // Reads of an odd size, so every cut lands somewhere different
+        List<String> received = new ArrayList<>();
+        for (int start = 0; start < bytes.length; start += 37) {
+            byte[] read = new byte[Math.min(37, bytes.length - start)];
+            System.arraycopy(bytes, start, read, 0, read.length);
+            for (byte[] message : framer.accept(read, read.length)) {
+                received.add(new String(message, StandardCharsets.UTF_8));
+            }
+        }
+
+        assertEquals(sent, received);
+    }
+
+    @Test
+    public void emptyMessage_isKept() throws IOException {
+        byte[] framed = StreamFramer.frame(new byte[0]);
+
+        List<byte[]> messages = new StreamFramer().accept(framed, framed.length);
+
+        assertEquals(1, messages.size());
+        assertEquals(0, messages.get(0).length);
+    }
+
+    @Test
+    public void lengthOverTheLimit_meansTheStreamIsOutOfStep() {
+        byte[] garbage = "PING".getBytes(StandardCharsets.UTF_8);
+
+        try {
+            new StreamFramer().accept(garbage, garbage.length);
+            fail("An unframed write should be rejected");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().startsWith("Bad frame length"));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.meshup.ui.mesh;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Bloom filter sizing and serialization, and the flat history sync limit derived from it.
+ */
+public class BloomFilterTest {
+
+    @Test
+    public void neverMissesAnAddedItem() {
+        BloomFilter filter = BloomFilter.create(1000, 0.01);
+        for (int i = 0; i < 1000; i++) {
+            filter.add("msg-" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertTrue("msg-" + i, filter.mightContain("msg-" + i));
+        }
+    }
+
+    @Test
+    public void falsePositivesStayNearTheTargetRate() {
+        BloomFilter filter = BloomFilter.create(1000, 0.01);
+        for (int i = 0; i < 1000; i++) {
+            filter.add("msg-" + i);
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 100_000; i++) {
+            if (filter.mightContain("other-" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives + " false positives", falsePositives < 2000);
+    }
+
+    @Test
+    public void bytesRoundTrip() {
+        BloomFilter filter = BloomFilter.create(200, 0.01);
+        for (int i = 0; i < 200; i++) {
+            filter.add("msg-" + i);
+        }
+
+        byte[] bits = MeshPayloads.decodeBytes(MeshPayloads.encodeBytes(filter.toBytes()));
+        BloomFilter copy = BloomFilter.fromBytes(bits, filter.getHashCount());
+
+        assertEquals(filter.getBitCount(), copy.getBitCount());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(filter.mightContain("msg-" + i), copy.mightContain("msg-" + i));
+        }
+    }
+
+    @Test
+    public void create_sizesForItemsAndRate() {
+        BloomFilter filter = BloomFilter.create(1000, 0.01);
+
+        assertEquals(1000 * BloomFilter.bitsPerItem(0.01), filter.getBitCount(), 8);
+        assertEquals(7, filter.getHashCount());
+        assertEquals(64, BloomFilter.create(0, 0.01).getBitCount());
+    }
+
+    @Test
+    public void flatSyncLimit_filterFitsItsFrameBudget() {
+        BloomFilter filter = BloomFilter.create(HistorySync.FLAT_SYNC_LIMIT, HistorySync.FALSE_POSITIVE_RATE);
+        for (int i = 0; i < HistorySync.FLAT_SYNC_LIMIT; i++) {
+            filter.add("msg-" + i);
+        }
+        // Firebase UIDs are 28 characters, the longest node IDs in use
+        String node = "0123456789abcdefghijklmnopqr";
+        MeshFrame frame = new MeshFrame(MeshFrame.TYPE_SYNC_FILTER, node + ":zzzzz", node, MeshFrame.BROADCAST,
+                1, 0, HistorySync.encodeFilter(System.currentTimeMillis() - HistorySync.SYNC_WINDOW, filter));
+
+        assertTrue(Fragmenter.isOversized(frame));
+        assertTrue(Fragmenter.split(frame).size() <= HistorySync.MAX_FILTER_FRAMES);
+    }
+}
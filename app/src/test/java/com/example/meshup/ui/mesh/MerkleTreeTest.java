@@ -0,0 +1,95 @@
+package com.example.meshup.ui.mesh;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Incremental Merkle tree updates and the node ranges the history sync walks.
+ */
+public class MerkleTreeTest {
+    private static final long HOUR = MerkleTree.BUCKET_MILLIS;
+    private static final long START = 1700000000000L;
+
+    @Test
+    public void sameMessagesInAnyOrderGiveTheSameRoot() {
+        MerkleTree forward = new MerkleTree();
+        MerkleTree backward = new MerkleTree();
+        for (int i = 0; i < 500; i++) {
+            forward.add("msg-" + i, START + i * 60_000L);
+            backward.add("msg-" + (499 - i), START + (499 - i) * 60_000L);
+        }
+
+        assertTrue(forward.getRoot().matches(backward.getRoot()));
+        assertEquals(500, forward.size());
+    }
+
+    @Test
+    public void removeUndoesAdd() {
+        MerkleTree tree = new MerkleTree();
+        tree.add("msg-1", START);
+        MerkleTree.Node before = tree.getRoot();
+
+        tree.add("msg-2", START + 5 * HOUR);
+        assertFalse(before.matches(tree.getRoot()));
+
+        tree.remove("msg-2", START + 5 * HOUR);
+        assertTrue(before.matches(tree.getRoot()));
+        assertEquals(0, tree.getNode(0, (START + 5 * HOUR) / HOUR).getCount());
+    }
+
+    @Test
+    public void oneMissingMessageOnlyChangesItsPath() {
+        MerkleTree full = new MerkleTree();
+        MerkleTree partial = new MerkleTree();
+        for (int i = 0; i < 100; i++) {
+            long timestamp = START + i * HOUR;
+            full.add("msg-" + i, timestamp);
+            if (i != 42) {
+                partial.add("msg-" + i, timestamp);
+            }
+        }
+
+        long missingLeaf = (START + 42 * HOUR) / HOUR;
+        for (int level = 0; level <= MerkleTree.ROOT_LEVEL; level++) {
+            long key = missingLeaf >>> (MerkleTree.FANOUT_BITS * level);
+            assertFalse(full.getNode(level, key).matches(partial.getNode(level, key)));
+        }
+        long otherLeaf = (START + 41 * HOUR) / HOUR;
+        assertTrue(full.getNode(0, otherLeaf).matches(partial.getNode(0, otherLeaf)));
+    }
+
+    @Test
+    public void childrenCoverTheirParent() {
+        MerkleTree tree = new MerkleTree();
+        for (int i = 0; i < 40; i++) {
+            tree.add("msg-" + i, START + i * HOUR);
+        }
+
+        long parent = (START / HOUR) >>> MerkleTree.FANOUT_BITS;
+        List<MerkleTree.Node> children = tree.getChildren(1, parent);
+        int count = 0;
+        long hash = 0;
+        for (MerkleTree.Node child : children) {
+            count += child.getCount();
+            hash ^= child.getHash();
+            assertTrue(MerkleTree.getStartTime(0, child.getKey()) >= MerkleTree.getStartTime(1, parent));
+            assertTrue(MerkleTree.getEndTime(0, child.getKey()) <= MerkleTree.getEndTime(1, parent));
+        }
+        assertEquals(tree.getNode(1, parent).getCount(), count);
+        assertEquals(tree.getNode(1, parent).getHash(), hash);
+        assertTrue(tree.getChildren(0, START / HOUR).isEmpty());
+    }
+
+    @Test
+    public void nodeRangesAreContiguous() {
+        long leaf = START / HOUR;
+
+        assertEquals(leaf * HOUR, MerkleTree.getStartTime(0, leaf));
+        assertEquals(MerkleTree.getEndTime(0, leaf), MerkleTree.getStartTime(0, leaf + 1));
+        assertEquals(MerkleTree.getStartTime(2, leaf >>> 8), MerkleTree.getStartTime(0, (leaf >>> 8) << 8));
+        assertTrue(MerkleTree.getEndTime(MerkleTree.ROOT_LEVEL, 0) > START);
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.meshup.ui.mesh.sim;
+
+/**
+ * Radio characteristics of a simulated link
+ */
+public class LinkProfile {
+    // Roughly a classic Bluetooth RFCOMM link between two phones in the same room
+    public static final LinkProfile BLUETOOTH = new LinkProfile(40, 20, 20_000, 0.01);
+    public static final LinkProfile PERFECT = new LinkProfile(1, 0, 1_000_000, 0);
+    // BLUETOOTH as the app reads it: BluetoothConnectionManager hands on 1024 bytes per read, so a
+    // longer frame arrives in pieces
+    public static final LinkProfile RFCOMM = new LinkProfile(40, 20, 20_000, 0.01, 1024);
+
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final long bytesPerSecond;
+    private final double lossRate;
+    private final int maxReadBytes;
+
+    public LinkProfile(long latencyMillis, long jitterMillis, long bytesPerSecond, double lossRate) {
+        this(latencyMillis, jitterMillis, bytesPerSecond, lossRate, 0);
+    }
+
+    /**
+     * @param maxReadBytes largest piece the receiver reads at once, or 0 for whole frames
+     */
+    public LinkProfile(long latencyMillis, long jitterMillis, long bytesPerSecond, double lossRate,
+                       int maxReadBytes) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.bytesPerSecond = bytesPerSecond;
+        this.lossRate = lossRate;
+        this.maxReadBytes = maxReadBytes;
+    }
+
+    public long getLatencyMillis() { return latencyMillis; }
+    public long getJitterMillis() { return jitterMillis; }
+    public long getBytesPerSecond() { return bytesPerSecond; }
+    public double getLossRate() { return lossRate; }
+    public int getMaxReadBytes() { return maxReadBytes; }
+
+    /**
+     * @return how long a frame of the given size occupies the radio
+     */
+    public long transmitMillis(int bytes) {
+        return (bytes * 1000L + bytesPerSecond - 1) / bytesPerSecond;
+    }
+}
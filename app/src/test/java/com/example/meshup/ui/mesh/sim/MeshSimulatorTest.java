@@ -0,0 +1,92 @@
+package com.example.meshup.ui.mesh.sim;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Routing regression checks on simulated meshes; runs on the development machine.
+ */
+public class MeshSimulatorTest {
+    private static final long MINUTE = 60 * 1000;
+
+    @Test
+    public void line_deliversEverythingOverPerfectLinks() {
+        MeshSimulator simulator = new MeshSimulator(1, 6);
+        simulator.connectLine(LinkProfile.PERFECT);
+        simulator.scheduleTraffic(50, MINUTE, 1000);
+
+        SimReport report = simulator.run(5 * MINUTE);
+
+        assertEquals(50, report.getMessagesSent());
+        assertEquals(1.0, report.getDeliveryRatio(), 0.0);
+    }
+
+    @Test
+    public void sameSeed_givesIdenticalRuns() {
+        String first = runRandomMesh(42).toString();
+        String second = runRandomMesh(42).toString();
+
+        assertEquals(first, second);
+    }
+
+    @Test
+    public void churn_storeAndForwardKeepsDeliveryHigh() {
+        MeshSimulator simulator = new MeshSimulator(7, 20);
+        simulator.connectRandom(3, LinkProfile.BLUETOOTH);
+        simulator.setChurn(5 * MINUTE, MINUTE);
+        simulator.scheduleTraffic(200, MINUTE, 2000);
+
+        SimReport report = simulator.run(60 * MINUTE);
+
+        assertTrue(report.toString(), report.getDeliveryRatio() > 0.85);
+        assertTrue(report.getLatencyPercentile(50) <= report.getLatencyPercentile(99));
+    }
+
+    @Test
+    public void rfcommReads_largeMessagesArriveWhole() {
+        // Lossless, so every fragment of every message must make it
+        LinkProfile profile = new LinkProfile(40, 20, 20_000, 0, 1024);
+        MeshSimulator simulator = new MeshSimulator(3, 5);
+        simulator.connectLine(profile);
+        StringBuilder payload = new StringBuilder();
+        while (payload.length() < 3000) {
+            payload.append("caf\u00e9 \u2615 \ud83d\ude00 ");
+        }
+        for (int i = 0; i < 5; i++) {
+            // End to end of the line, both ways
+            int from = i % 2 == 0 ? 0 : 4;
+            int to = 4 - from;
+            simulator.getClock().schedule(MINUTE + i * 1000, () -> simulator.sendMessage(from, to, payload.toString()));
+        }
+
+        SimReport report = simulator.run(5 * MINUTE);
+
+        // Fragments plus their length prefix overrun a read, and multi-byte characters straddle
+        // the cut; the framer still hands the router whole frames
+        assertTrue(report.getFramesSplit() > 0);
+        assertEquals(1.0, report.getDeliveryRatio(), 0.0);
+    }
+
+    @Test
+    public void rfcommReads_largeAdvertsAreFragmented() {
+        // Enough nodes that one route advert is well over a read
+        MeshSimulator simulator = new MeshSimulator(4, 120);
+        simulator.connectRandom(3, LinkProfile.RFCOMM);
+        simulator.scheduleTraffic(100, 2 * MINUTE, 1000);
+
+        SimReport report = simulator.run(10 * MINUTE);
+
+        // Acks and adverts sent back to back share reads with each other
+        assertTrue(report.getReadsCoalesced() > 0);
+        assertTrue(report.toString(), report.getDeliveryRatio() > 0.9);
+    }
+
+    private static SimReport runRandomMesh(long seed) {
+        MeshSimulator simulator = new MeshSimulator(seed, 15);
+        simulator.connectRandom(2.5, LinkProfile.BLUETOOTH);
+        simulator.setChurn(10 * MINUTE, MINUTE);
+        simulator.scheduleTraffic(100, MINUTE, 1000);
+        return simulator.run(10 * MINUTE);
+    }
+}
@@ -0,0 +1,205 @@
+package com.example.meshup.ui.mesh.sim;
+
+import com.example.meshup.ui.devicediscovery.StreamFramer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Point-to-point radio link between two simulated nodes.
+ *
+ * Each direction transmits one frame at a time at the profile's bandwidth, so bursts queue up the
+ * way they do on a real RFCOMM socket. Frames in flight when the link drops are lost.
+ *
+ * With a read limit in the profile, each direction is a byte stream like the app's socket: frames
+ * go out with {@link StreamFramer}'s length prefix, arrive in order, and the receiver reads up to
+ * the limit at a time. A long frame therefore takes several reads, and frames that land while the
+ * read loop is busy come back together in one read; the receiver's framer puts whole frames
+ * back together.
+ */
+public class SimLink {
+    // The app's read loop posts each read to the main thread before reading again
+    private static final long READ_DELAY_MILLIS = 5;
+
+    /**
+     * Bytes on their way from one end to the other, and the receiving end's framer
+     */
+    private class Stream {
+        final SimNode receiver;
+        final ByteArrayOutputStream unread = new ByteArrayOutputStream();
+        StreamFramer framer = new StreamFramer();
+        long lastArrival;
+        boolean readScheduled;
+
+        Stream(SimNode receiver) {
+            this.receiver = receiver;
+        }
+
+        void reset() {
+            unread.reset();
+            framer = new StreamFramer();
+            readScheduled = false;
+        }
+
+        void arrive(byte[] bytes) {
+            unread.write(bytes, 0, bytes.length);
+            if (!readScheduled) {
+                readScheduled = true;
+                int readEpoch = epoch;
+                clock.schedule(READ_DELAY_MILLIS, () -> read(readEpoch));
+            }
+        }
+
+        void read(int readEpoch) {
+            if (!up || epoch != readEpoch) {
+                return;
+            }
+            byte[] all = unread.toByteArray();
+            int count = Math.min(all.length, profile.getMaxReadBytes());
+            unread.reset();
+            unread.write(all, count, all.length - count);
+            readScheduled = false;
+            if (unread.size() > 0) {
+                readScheduled = true;
+                clock.schedule(READ_DELAY_MILLIS, () -> read(readEpoch));
+            }
+
+            List<byte[]> frames;
+            try {
+                frames = framer.accept(all, count);
+            } catch (IOException e) {
+                throw new IllegalStateException("Stream out of step", e);
+            }
+            if (frames.size() > 1) {
+                readsCoalesced++;
+            }
+            if (framer.getPendingBytes() > 0) {
+                framesSplit++;
+            }
+            for (byte[] frame : frames) {
+                receiver.onFrameReceived(SimLink.this, new String(frame, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private final VirtualClock clock;
+    private final Random random;
+    private final LinkProfile profile;
+    private final SimNode first;
+    private final SimNode second;
+
+    private boolean up;
+    private int epoch;
+    private long firstBusyUntil;
+    private long secondBusyUntil;
+    private long bytesSent;
+    private long framesSent;
+    private long framesLost;
+    private long framesSplit;
+    private long readsCoalesced;
+    private final Stream toFirst;
+    private final Stream toSecond;
+
+    public SimLink(VirtualClock clock, Random random, LinkProfile profile, SimNode first, SimNode second) {
+        this.clock = clock;
+        this.random = random;
+        this.profile = profile;
+        this.first = first;
+        this.second = second;
+        this.toFirst = new Stream(first);
+        this.toSecond = new Stream(second);
+    }
+
+    public LinkProfile getProfile() { return profile; }
+    public SimNode getFirst() { return first; }
+    public SimNode getSecond() { return second; }
+    public boolean isUp() { return up; }
+    public long getBytesSent() { return bytesSent; }
+    public long getFramesSent() { return framesSent; }
+    public long getFramesLost() { return framesLost; }
+    public long getFramesSplit() { return framesSplit; }
+    public long getReadsCoalesced() { return readsCoalesced; }
+
+    public SimNode other(SimNode node) {
+        return node == first ? second : first;
+    }
+
+    public void setUp(boolean up) {
+        if (this.up == up) return;
+        this.up = up;
+        epoch++;
+        toFirst.reset();
+        toSecond.reset();
+        if (up) {
+            first.onLinkUp(this);
+            second.onLinkUp(this);
+        } else {
+            first.onLinkDown(this);
+            second.onLinkDown(this);
+        }
+    }
+
+    /**
+     * Queue a frame for transmission from one end of the link
+     * @return false if the link is down, like a failed socket write
+     */
+    public boolean transmit(SimNode sender, String frame) {
+        if (!up) return false;
+
+        byte[] encoded = frame.getBytes(StandardCharsets.UTF_8);
+        boolean streamed = profile.getMaxReadBytes() > 0;
+        if (streamed) {
+            encoded = StreamFramer.frame(encoded);
+        }
+        int bytes = encoded.length;
+        long start = Math.max(clock.now(), sender == first ? firstBusyUntil : secondBusyUntil);
+        long end = start + profile.transmitMillis(bytes);
+        if (sender == first) {
+            firstBusyUntil = end;
+        } else {
+            secondBusyUntil = end;
+        }
+        bytesSent += bytes;
+        framesSent++;
+
+        if (random.nextDouble() < profile.getLossRate()) {
+            framesLost++;
+            return true; // Lost on air; the sender cannot tell
+        }
+
+        long jitter = profile.getJitterMillis() > 0 ? (long) (random.nextDouble() * profile.getJitterMillis()) : 0;
+        long arrival = end + profile.getLatencyMillis() + jitter;
+        int sentEpoch = epoch;
+        SimNode receiver = other(sender);
+        if (!streamed) {
+            clock.schedule(arrival - clock.now(), () -> {
+                if (up && epoch == sentEpoch) {
+                    receiver.onFrameReceived(this, frame);
+                }
+            });
+            return true;
+        }
+
+        // A stream keeps its order whatever the jitter
+        Stream stream = receiver == first ? toFirst : toSecond;
+        arrival = Math.max(arrival, stream.lastArrival);
+        stream.lastArrival = arrival;
+        byte[] sent = encoded;
+        clock.schedule(arrival - clock.now(), () -> {
+            if (up && epoch == sentEpoch) {
+                stream.arrive(sent);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @return total time the radio was busy, in milliseconds
+     */
+    public long getAirtimeMillis() {
+        return bytesSent * 1000 / profile.getBytesPerSecond();
+    }
+}
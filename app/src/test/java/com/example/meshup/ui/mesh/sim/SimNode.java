@@ -0,0 +1,78 @@
+package com.example.meshup.ui.mesh.sim;
+
+import com.example.meshup.ui.mesh.MeshFrame;
+import com.example.meshup.ui.mesh.MeshRouter;
+import com.example.meshup.ui.mesh.StoreAndForwardQueue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One simulated phone: a real {@link MeshRouter} with an in-memory outbox, plus the link
+ * bookkeeping BluetoothConnectionManager does on a device. Links are keyed by the neighbour's
+ * address, which differs from its user ID just like a Bluetooth MAC does.
+ */
+public class SimNode implements MeshRouter.FrameListener {
+    public interface DeliveryListener {
+        void onDelivered(SimNode node, MeshFrame frame);
+    }
+
+    private final String id;
+    private final String address;
+    private final VirtualClock clock;
+    private final MeshRouter router;
+    private final Map<String, SimLink> links = new HashMap<>();
+    private final DeliveryListener deliveryListener;
+
+    public SimNode(String id, VirtualClock clock, DeliveryListener deliveryListener) {
+        this.id = id;
+        this.address = "bt-" + id;
+        this.clock = clock;
+        this.deliveryListener = deliveryListener;
+        this.router = new MeshRouter(id, this::send, 0);
+        router.setStoreAndForwardQueue(new StoreAndForwardQueue(null));
+        router.addFrameListener(this);
+    }
+
+    public String getId() { return id; }
+    public String getAddress() { return address; }
+    public MeshRouter getRouter() { return router; }
+
+    void onLinkUp(SimLink link) {
+        String neighbour = link.other(this).getAddress();
+        links.put(neighbour, link);
+        router.onLinkUp(neighbour, clock.now());
+    }
+
+    void onLinkDown(SimLink link) {
+        String neighbour = link.other(this).getAddress();
+        links.remove(neighbour);
+        router.onLinkDown(neighbour);
+    }
+
+    void onFrameReceived(SimLink link, String frame) {
+        router.onFrameReceived(link.other(this).getAddress(), frame, clock.now());
+    }
+
+    public void tick() {
+        router.tick(clock.now());
+    }
+
+    private boolean send(String neighbour, String frame) {
+        SimLink link = links.get(neighbour);
+        if (link == null || !link.transmit(this, frame)) {
+            return false;
+        }
+        // What BluetoothConnectionManager's blocking write time reports on a phone
+        router.getLinkMetrics().recordThroughput(neighbour, frame.length(),
+                link.getProfile().transmitMillis(frame.length()));
+        return true;
+    }
+
+    @Override
+    public void onFrameDelivered(MeshFrame frame, String link, long now) {
+        if (deliveryListener != null) {
+            deliveryListener.onDelivered(this, frame);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.meshup.ui.mesh.sim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Outcome of one simulator run
+ */
+public class SimReport {
+    private final int messagesSent;
+    private final List<Long> latencies;
+    private final long bytesSent;
+    private final long framesSent;
+    private final long airtimeMillis;
+    private final long framesSplit;
+    private final long readsCoalesced;
+
+    SimReport(int messagesSent, List<Long> latencies, long bytesSent, long framesSent, long airtimeMillis,
+              long framesSplit, long readsCoalesced) {
+        this.messagesSent = messagesSent;
+        this.latencies = new ArrayList<>(latencies);
+        Collections.sort(this.latencies);
+        this.bytesSent = bytesSent;
+        this.framesSent = framesSent;
+        this.airtimeMillis = airtimeMillis;
+        this.framesSplit = framesSplit;
+        this.readsCoalesced = readsCoalesced;
+    }
+
+    public int getMessagesSent() { return messagesSent; }
+    public int getMessagesDelivered() { return latencies.size(); }
+    public long getBytesSent() { return bytesSent; }
+    public long getFramesSent() { return framesSent; }
+    public long getAirtimeMillis() { return airtimeMillis; }
+
+    /**
+     * Reads on streamed links that ended inside a frame, so the receiver had to wait for the rest
+     */
+    public long getFramesSplit() { return framesSplit; }
+
+    /**
+     * Reads on streamed links that returned more than one frame
+     */
+    public long getReadsCoalesced() { return readsCoalesced; }
+
+    public double getDeliveryRatio() {
+        return messagesSent == 0 ? 0 : (double) latencies.size() / messagesSent;
+    }
+
+    /**
+     * @param percentile 0-100
+     * @return delivery latency in milliseconds, or -1 if nothing was delivered
+     */
+    public long getLatencyPercentile(double percentile) {
+        if (latencies.isEmpty()) return -1;
+        int index = (int) Math.ceil(percentile / 100 * latencies.size()) - 1;
+        return latencies.get(Math.max(0, Math.min(latencies.size() - 1, index)));
+    }
+
+    /**
+     * Radio time spent per delivered message, counting routing and gossip overhead
+     */
+    public double getAirtimeMillisPerMessage() {
+        return latencies.isEmpty() ? 0 : (double) airtimeMillis / latencies.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "delivered %d/%d (%.1f%%), latency p50=%dms p90=%dms p99=%dms, %d frames, %d bytes, %.1fms airtime/msg",
+                getMessagesDelivered(), messagesSent, getDeliveryRatio() * 100,
+                getLatencyPercentile(50), getLatencyPercentile(90), getLatencyPercentile(99),
+                framesSent, bytesSent, getAirtimeMillisPerMessage());
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.meshup.ui.mesh.sim;
+
+import java.util.PriorityQueue;
+
+/**
+ * Discrete-event clock: time only moves when the next scheduled event runs, so a simulated hour
+ * takes as long as its events need and every run with the same seed is identical.
+ */
+public class VirtualClock {
+    private static class Event implements Comparable<Event> {
+        final long time;
+        final long sequence;
+        final Runnable action;
+
+        Event(long time, long sequence, Runnable action) {
+            this.time = time;
+            this.sequence = sequence;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            // Ties run in scheduling order so runs stay deterministic
+            int byTime = Long.compare(time, other.time);
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private long now;
+    private long sequence;
+
+    public VirtualClock(long start) {
+        this.now = start;
+    }
+
+    public long now() {
+        return now;
+    }
+
+    public void schedule(long delay, Runnable action) {
+        events.add(new Event(now + Math.max(0, delay), sequence++, action));
+    }
+
+    /**
+     * Run every event due up to and including the given time, then move the clock there
+     */
+    public void runUntil(long time) {
+        while (!events.isEmpty() && events.peek().time <= time) {
+            Event event = events.poll();
+            now = event.time;
+            event.action.run();
+        }
+        now = Math.max(now, time);
+    }
+}